@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the reads per second of a single session against a standalone
+ * server: one at a time with the synchronous API (testSync), and with up to
+ * window reads in flight with the callbacks run by the event thread
+ * (testCallbacks) or the stages of AsyncZooKeeper completed on an executor
+ * (testFutures).
+ */
+@Fork(3)
+public class AsyncClientBench {
+
+    static final String path = "/bench";
+
+    @State(Scope.Benchmark)
+    public static class SessionState {
+
+        @Param({"1", "16", "256"})
+        public int window;
+
+        @Param({"128"})
+        public int dataSize;
+
+        File dataDir;
+        ZooKeeperServer server;
+        ServerCnxnFactory factory;
+        ZooKeeper zk;
+        ExecutorService executor;
+        AsyncZooKeeper async;
+        // the reads which may still be sent before one completes
+        Semaphore inFlight;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            dataDir = Files.createTempDirectory("bench").toFile();
+            server = new ZooKeeperServer(dataDir, dataDir, 2000);
+            factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 100);
+            factory.startup(server);
+
+            CountDownLatch connected = new CountDownLatch(1);
+            zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 30000, event -> {
+                if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            });
+            connected.await();
+            zk.create(path, new byte[dataSize], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            executor = Executors.newSingleThreadExecutor();
+            async = new AsyncZooKeeper(zk, executor);
+            inFlight = new Semaphore(window);
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain() throws InterruptedException {
+            inFlight.acquire(window);
+            inFlight.release(window);
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws Exception {
+            zk.close();
+            executor.shutdown();
+            factory.shutdown();
+            server.shutdown();
+            FileUtils.deleteDirectory(dataDir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS)
+    public byte[] testSync(SessionState state) throws Exception {
+        return state.zk.getData(path, false, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS)
+    public void testCallbacks(SessionState state) throws InterruptedException {
+        state.inFlight.acquire();
+        state.zk.getData(path, false, (rc, p, ctx, data, stat) -> state.inFlight.release(), null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS)
+    public void testFutures(SessionState state) throws InterruptedException {
+        state.inFlight.acquire();
+        state.async.getData(path, false, null).whenComplete((data, e) -> state.inFlight.release());
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of serializing getData responses, the interesting
+ * output being the allocation rate reported with "-prof gc": the response
+ * framing of 3.8 is reproduced by testLegacySerialize.
+ */
+@Fork(3)
+public class ResponseSerializeBench {
+
+    static final String path = "/services/registry/config";
+
+    @State(Scope.Thread)
+    public static class ResponseState {
+
+        @Param({"true", "false"})
+        public boolean responseCachingEnabled;
+
+        @Param({"100", "4096"})
+        public int dataSize;
+
+        File dataDir;
+        ServerCnxn cnxn;
+        ReplyHeader header;
+        GetDataResponse response;
+        Stat stat;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            dataDir = Files.createTempDirectory("bench").toFile();
+            ZooKeeperServer zks = new ZooKeeperServer(dataDir, dataDir, 2000);
+            ZKDatabase zkDb = new ZKDatabase(null);
+            zks.setZKDatabase(zkDb);
+            zks.setResponseCachingEnabled(responseCachingEnabled);
+
+            DataTree tree = zkDb.getDataTree();
+            tree.createNode("/services", null, null, 0, 1, 1, 1);
+            tree.createNode("/services/registry", null, null, 0, 1, 2, 2);
+            tree.createNode(path, new byte[dataSize], null, 0, 1, 3, 3);
+
+            cnxn = new DumbWatcher(zks, 1);
+            stat = new Stat();
+            response = new GetDataResponse(tree.getData(path, stat, null), stat);
+            header = new ReplyHeader(1, 3, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws Exception {
+            FileUtils.deleteDirectory(dataDir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    public ByteBuffer[] testSerialize(ResponseState state) throws IOException {
+        return state.cnxn.serialize(state.header, state.response, "response", path, state.stat, OpCode.getData);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    public ByteBuffer[] testLegacySerialize(ResponseState state) throws IOException {
+        byte[] header = legacySerializeRecord(state.header);
+        byte[] data = legacySerializeRecord(state.response);
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(header.length + data.length);
+        lengthBuffer.rewind();
+        return new ByteBuffer[] {lengthBuffer, ByteBuffer.wrap(header), ByteBuffer.wrap(data)};
+    }
+
+    static byte[] legacySerializeRecord(Record record) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        bos.writeRecord(record, null);
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares getAllChildrenNumber and getEphemerals(prefix) served from the
+ * counters and the sorted ephemerals of the DataTree with the scans they
+ * replaced: over all the nodes, and over all the ephemerals of the session.
+ */
+@Fork(3)
+public class SubtreeCountBench {
+
+    static final String pathPrefix = "/services/registry/cluster-";
+
+    static final long sessionId = 1L;
+
+    @State(Scope.Benchmark)
+    public static class TreeState {
+
+        @Param({"1000000"})
+        public int nodeCount;
+
+        @Param({"1000"})
+        public int fanOut;
+
+        DataTree tree;
+        // the nodes of the tree, in a map of their own for the scan
+        NodeHashMap nodes;
+        String path;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            tree = new DataTree();
+            long zxid = 1;
+            tree.createNode("/services", null, null, 0, 1, zxid, zxid++);
+            tree.createNode("/services/registry", null, null, 0, 1, zxid, zxid++);
+            for (int i = 0; i < nodeCount; i++) {
+                String cluster = pathPrefix + (i / fanOut);
+                if (i % fanOut == 0) {
+                    tree.createNode(cluster, null, null, 0, 1, zxid, zxid++);
+                    tree.createNode(cluster + "/instances", null, null, 0, 1, zxid, zxid++);
+                }
+                tree.createNode(cluster + "/instances/member-" + String.format("%010d", i % fanOut),
+                        null, null, sessionId, 1, zxid, zxid++);
+            }
+            path = pathPrefix + (nodeCount / fanOut / 2);
+
+            nodes = new NodeHashMapImpl(new DigestCalculator());
+            List<String> paths = new ArrayList<>();
+            collectPaths("", paths);
+            for (String p : paths) {
+                nodes.putWithoutDigest(p, tree.getNode(p));
+            }
+        }
+
+        private void collectPaths(String parent, List<String> paths) {
+            paths.add(parent);
+            for (String child : tree.getNode(parent).getChildren()) {
+                collectPaths(parent + "/" + child, paths);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public int testAllChildrenNumber(TreeState state) {
+        return state.tree.getAllChildrenNumber(state.path);
+    }
+
+    /**
+     * The scan of getAllChildrenNumber before the counters.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public long testAllChildrenNumberScan(TreeState state) {
+        String prefix = state.path + "/";
+        return state.nodes.entrySet().parallelStream()
+                .filter(entry -> entry.getKey().startsWith(prefix)).count();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public List<String> testEphemerals(TreeState state) {
+        return state.tree.getEphemerals(sessionId, state.path);
+    }
+
+    /**
+     * The scan of getEphemerals(prefix) before the sorted ephemerals.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public List<String> testEphemeralsScan(TreeState state) {
+        Set<String> all = state.tree.getEphemerals(sessionId);
+        List<String> ephemerals = new ArrayList<>();
+        for (String p : all) {
+            if (p.startsWith(state.path)) {
+                ephemerals.add(p);
+            }
+        }
+        return ephemerals;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares replaying and seeking in the transaction logs with the stream
+ * based FileTxnIterator and the memory mapped MappedTxnIterator.
+ */
+@Fork(3)
+public class TxnLogReadBench {
+
+    @State(Scope.Benchmark)
+    public static class LogState {
+
+        @Param({"stream", "mmap"})
+        public String reader;
+
+        @Param({"200000"})
+        public int txnCount;
+
+        @Param({"4", "1024"})
+        public int dataSize;
+
+        File logDir;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            logDir = Files.createTempDirectory("txnlogbench").toFile();
+            FileTxnLog txnLog = new FileTxnLog(logDir);
+            byte[] data = new byte[dataSize];
+            for (long zxid = 1; zxid <= txnCount; zxid++) {
+                TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.setData);
+                txnLog.append(hdr, new SetDataTxn("/bench/node-" + (zxid % 1000), data, (int) zxid));
+                if (zxid % 1000 == 0) {
+                    txnLog.commit();
+                }
+            }
+            txnLog.commit();
+            txnLog.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(logDir);
+        }
+
+        TxnLog.TxnIterator read(long zxid) throws IOException {
+            if ("mmap".equals(reader)) {
+                return new MappedTxnIterator(logDir, zxid, true);
+            }
+            return new FileTxnLog.FileTxnIterator(logDir, zxid, true);
+        }
+    }
+
+    /**
+     * Replay the whole log, like loading the database on startup.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testReplay(LogState state, Blackhole bh) throws IOException {
+        try (TxnLog.TxnIterator itr = state.read(1)) {
+            while (itr.getHeader() != null) {
+                bh.consume(itr.getTxn());
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Position an iterator at the last transactions of the log, like the
+     * leader does when it sends a DIFF to a learner which is a bit behind.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testSeek(LogState state, Blackhole bh) throws IOException {
+        try (TxnLog.TxnIterator itr = state.read(state.txnCount - 100)) {
+            bh.consume(itr.getHeader());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jute.BinaryOutputArchive;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the leader CPU spent writing a PROPOSAL and its COMMIT to all
+ * the learners, as the LearnerHandler send loops do, with the packets
+ * encoded once (testEncodedFanOut) or serialized by every handler
+ * (testLegacyFanOut).
+ */
+@Fork(3)
+public class LearnerFanOutBench {
+
+    @State(Scope.Thread)
+    public static class FanOutState {
+
+        @Param({"4", "14", "50"})
+        public int learners;
+
+        @Param({"128", "1024", "16384"})
+        public int dataSize;
+
+        BufferedOutputStream[] outputs;
+        BinaryOutputArchive[] archives;
+        byte[] data;
+        long zxid;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            outputs = new BufferedOutputStream[learners];
+            archives = new BinaryOutputArchive[learners];
+            for (int i = 0; i < learners; i++) {
+                outputs[i] = new BufferedOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+                archives[i] = BinaryOutputArchive.getArchive(outputs[i]);
+            }
+            data = new byte[dataSize];
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS)
+    public void testEncodedFanOut(FanOutState state) throws IOException {
+        long zxid = ++state.zxid;
+        EncodedQuorumPacket proposal = new EncodedQuorumPacket(Leader.PROPOSAL, zxid, state.data);
+        EncodedQuorumPacket commit = new EncodedQuorumPacket(Leader.COMMIT, zxid, null);
+        for (BufferedOutputStream out : state.outputs) {
+            proposal.writeTo(out);
+        }
+        for (BufferedOutputStream out : state.outputs) {
+            commit.writeTo(out);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS)
+    public void testLegacyFanOut(FanOutState state) throws IOException {
+        long zxid = ++state.zxid;
+        QuorumPacket proposal = new QuorumPacket(Leader.PROPOSAL, zxid, state.data, null);
+        QuorumPacket commit = new QuorumPacket(Leader.COMMIT, zxid, null, null);
+        for (BinaryOutputArchive oa : state.archives) {
+            oa.writeRecord(proposal, "packet");
+        }
+        for (BinaryOutputArchive oa : state.archives) {
+            oa.writeRecord(commit, "packet");
+        }
+    }
+}
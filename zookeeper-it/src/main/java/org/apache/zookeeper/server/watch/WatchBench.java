@@ -26,6 +26,7 @@
 
 import org.openjdk.jmh.annotations.*;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 @Fork(3)
@@ -65,7 +66,7 @@ static long getMemoryUse() {
     @State(Scope.Benchmark)
     public static class IterationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerLockFree"})
         public String watchManagerClass;
 
         @Param({"10000"})
@@ -128,7 +129,7 @@ public void testAddConcentrateWatch(IterationState state) throws Exception {
     @State(Scope.Benchmark)
     public static class InvocationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerLockFree"})
         public String watchManagerClass;
 
         @Param({"1", "1000"})
@@ -297,4 +298,74 @@ public void testTriggerSparseWatch(TriggerSparseWatchState state) throws Excepti
             state.watchManager.triggerWatch(path, event);
         }
     }
+
+    @State(Scope.Benchmark)
+    public static class ConcurrentState {
+
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerLockFree"})
+        public String watchManagerClass;
+
+        @Param({"1000"})
+        public int pathCount;
+
+        @Param({"1000"})
+        public int watcherCount;
+
+        String[] paths;
+        Watcher[] watchers;
+
+        IWatchManager watchManager;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            paths = new String[pathCount];
+            for (int i = 0; i < pathCount; i++) {
+                paths[i] = pathPrefix + i;
+            }
+            watchers = new Watcher[watcherCount];
+            for (int i = 0; i < watcherCount; i++) {
+                watchers[i] = new DumbWatcher();
+            }
+            watchManager = createWatchManager(watchManagerClass);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            watchManager.shutdown();
+        }
+    }
+
+    /**
+     * Test watches being added by many threads, like the CommitProcessor
+     * workers serving reads, while other threads trigger them, like bursty
+     * setData requests.
+     *
+     * The output of this test is the throughput of each side.
+     */
+    @Benchmark
+    @Group("concurrentAddTrigger")
+    @GroupThreads(16)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public boolean testConcurrentAdd(ConcurrentState state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return state.watchManager.addWatch(
+                state.paths[random.nextInt(state.pathCount)],
+                state.watchers[random.nextInt(state.watcherCount)]);
+    }
+
+    @Benchmark
+    @Group("concurrentAddTrigger")
+    @GroupThreads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public WatcherOrBitSet testConcurrentTrigger(ConcurrentState state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return state.watchManager.triggerWatch(
+                state.paths[random.nextInt(state.pathCount)], event);
+    }
 }
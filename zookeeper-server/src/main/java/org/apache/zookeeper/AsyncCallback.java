@@ -203,6 +203,51 @@ interface Children2Callback extends AsyncCallback {
 
     }
 
+    /**
+     * This callback is used to retrieve a page of the children of the node.
+     *
+     * @since 3.9.0
+     */
+    @InterfaceAudience.Public
+    interface ChildrenPageCallback extends AsyncCallback {
+
+        /**
+         * Process the result of the asynchronous call.
+         *
+         * @param rc   The return code or the result of the call.
+         * @param path The path that we passed to asynchronous calls.
+         * @param ctx  Whatever context object that we passed to asynchronous calls.
+         * @param page The page of the children of the node on given path.
+         *
+         * @see ChildrenCallback
+         * @see ZooKeeper#getChildrenPage(String, Watcher, String, long, long, String, int, AsyncCallback.ChildrenPageCallback, Object)
+         */
+        void processResult(int rc, String path, Object ctx, ChildrenPage page);
+
+    }
+
+    /**
+     * This callback is used to retrieve a chunk of the subtree of the node.
+     *
+     * @since 3.9.0
+     */
+    @InterfaceAudience.Public
+    interface SubtreeCallback extends AsyncCallback {
+
+        /**
+         * Process the result of the asynchronous call.
+         *
+         * @param rc    The return code or the result of the call.
+         * @param path  The path that we passed to asynchronous calls.
+         * @param ctx   Whatever context object that we passed to asynchronous calls.
+         * @param chunk The chunk of the subtree of the node on given path.
+         *
+         * @see ZooKeeper#getSubtree(String, int, int, String, Watcher, AsyncCallback.SubtreeCallback, Object)
+         */
+        void processResult(int rc, String path, Object ctx, SubtreeChunk chunk);
+
+    }
+
     /**
      * This callback is used to retrieve the name and stat of the node.
      */
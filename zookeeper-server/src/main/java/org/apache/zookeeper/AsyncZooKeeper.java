@@ -0,0 +1,570 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.AllChildrenNumberCallback;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
+import org.apache.zookeeper.AsyncCallback.Create2Callback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.EphemeralsCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.SubtreeCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher.WatcherType;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+
+/**
+ * The operations of a {@link ZooKeeper} client returning a
+ * {@link CompletionStage} of their result.
+ * <p>
+ * The methods mirror the synchronous ones of the client: a stage completes
+ * with what the synchronous method returns, or exceptionally with the
+ * {@link KeeperException} it throws. A {@link Stat} given is filled in before
+ * the stage completes.
+ * <p>
+ * Like the asynchronous methods of the client, the requests are queued to the
+ * server without waiting for the replies of the previous ones, so a session
+ * can have many of them in flight. But their stages are not completed by the
+ * event thread of the client, which runs the callbacks one at a time: they are
+ * completed on the executor given, so a slow stage does not hold up the
+ * callbacks and the other stages of the session. The stages complete in the
+ * order of the replies only if the executor runs its tasks in order, e.g. if
+ * it has a single thread.
+ * <p>
+ * The stages are ordered with the watch events of the session as the
+ * callbacks are: a stage completes once the watchers of the events received
+ * before its reply have returned, and the events received after its reply
+ * reach their watchers once it has completed. So a watcher sees its event
+ * only after the stage of the request which set the watch completed. The
+ * event thread waits for the stages meanwhile, so a stage blocking on a watch
+ * event to come holds up the watchers of the session, like a callback would.
+ * <p>
+ * Any executor can be used, e.g. one starting a virtual thread per task. The
+ * stages do not run on the threads of the client, so they may call the
+ * synchronous methods of the client.
+ *
+ * @since 3.9.0
+ */
+@InterfaceAudience.Public
+public class AsyncZooKeeper {
+
+    private final ZooKeeper zk;
+
+    private final Executor executor;
+
+    /**
+     * @param zk the client to send the requests with
+     * @param executor the executor to complete the stages on
+     */
+    public AsyncZooKeeper(ZooKeeper zk, Executor executor) {
+        this.zk = zk;
+        this.executor = executor;
+    }
+
+    /**
+     * Completes the stages on {@link ForkJoinPool#commonPool()}.
+     *
+     * @param zk the client to send the requests with
+     */
+    public AsyncZooKeeper(ZooKeeper zk) {
+        this(zk, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @return the client the requests are sent with
+     */
+    public ZooKeeper getZooKeeper() {
+        return zk;
+    }
+
+    /**
+     * @see ZooKeeper#create(String, byte[], List, CreateMode, Stat)
+     */
+    public CompletionStage<String> create(String path, byte[] data, List<ACL> acl, CreateMode createMode, Stat stat) {
+        return create(path, data, acl, createMode, stat, -1);
+    }
+
+    /**
+     * @see ZooKeeper#create(String, byte[], List, CreateMode)
+     */
+    public CompletionStage<String> create(String path, byte[] data, List<ACL> acl, CreateMode createMode) {
+        return create(path, data, acl, createMode, null, -1);
+    }
+
+    /**
+     * @see ZooKeeper#create(String, byte[], List, CreateMode, Stat, long)
+     */
+    public CompletionStage<String> create(
+        String path,
+        byte[] data,
+        List<ACL> acl,
+        CreateMode createMode,
+        Stat stat,
+        long ttl) {
+        CreateCompletion completion = new CreateCompletion(stat);
+        zk.create(path, data, acl, createMode, completion, null, ttl);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#delete(String, int)
+     */
+    public CompletionStage<Void> delete(String path, int version) {
+        VoidCompletion completion = new VoidCompletion();
+        zk.delete(path, version, completion, null);
+        return completion;
+    }
+
+    /**
+     * Completes with the stat of the node, or null if there is none.
+     *
+     * @see ZooKeeper#exists(String, Watcher)
+     */
+    public CompletionStage<Stat> exists(String path, Watcher watcher) {
+        StatCompletion completion = new StatCompletion(true);
+        zk.exists(path, watcher, completion, null);
+        return completion;
+    }
+
+    /**
+     * Completes with the stat of the node, or null if there is none.
+     *
+     * @see ZooKeeper#exists(String, Watcher, boolean)
+     */
+    public CompletionStage<Stat> exists(String path, Watcher watcher, boolean linearizable) {
+        StatCompletion completion = new StatCompletion(true);
+        zk.exists(path, watcher, completion, null, linearizable);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#exists(String, boolean)
+     */
+    public CompletionStage<Stat> exists(String path, boolean watch) {
+        StatCompletion completion = new StatCompletion(true);
+        zk.exists(path, watch, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getData(String, Watcher, Stat)
+     */
+    public CompletionStage<byte[]> getData(String path, Watcher watcher, Stat stat) {
+        DataCompletion completion = new DataCompletion(stat);
+        zk.getData(path, watcher, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getData(String, boolean, Stat)
+     */
+    public CompletionStage<byte[]> getData(String path, boolean watch, Stat stat) {
+        DataCompletion completion = new DataCompletion(stat);
+        zk.getData(path, watch, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getData(String, Watcher, Stat, boolean)
+     */
+    public CompletionStage<byte[]> getData(String path, Watcher watcher, Stat stat, boolean linearizable) {
+        DataCompletion completion = new DataCompletion(stat);
+        zk.getData(path, watcher, completion, null, linearizable);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getConfig(Watcher, Stat)
+     */
+    public CompletionStage<byte[]> getConfig(Watcher watcher, Stat stat) {
+        DataCompletion completion = new DataCompletion(stat);
+        zk.getConfig(watcher, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#setData(String, byte[], int)
+     */
+    public CompletionStage<Stat> setData(String path, byte[] data, int version) {
+        StatCompletion completion = new StatCompletion(false);
+        zk.setData(path, data, version, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getACL(String, Stat)
+     */
+    public CompletionStage<List<ACL>> getACL(String path, Stat stat) {
+        ACLCompletion completion = new ACLCompletion(stat);
+        zk.getACL(path, stat, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#setACL(String, List, int)
+     */
+    public CompletionStage<Stat> setACL(String path, List<ACL> acl, int aclVersion) {
+        StatCompletion completion = new StatCompletion(false);
+        zk.setACL(path, acl, aclVersion, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getChildren(String, Watcher, Stat)
+     */
+    public CompletionStage<List<String>> getChildren(String path, Watcher watcher, Stat stat) {
+        ChildrenCompletion completion = new ChildrenCompletion(stat);
+        zk.getChildren(path, watcher, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getChildren(String, Watcher, Stat, boolean)
+     */
+    public CompletionStage<List<String>> getChildren(String path, Watcher watcher, Stat stat, boolean linearizable) {
+        ChildrenCompletion completion = new ChildrenCompletion(stat);
+        zk.getChildren(path, watcher, completion, null, linearizable);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getChildren(String, boolean, Stat)
+     */
+    public CompletionStage<List<String>> getChildren(String path, boolean watch, Stat stat) {
+        ChildrenCompletion completion = new ChildrenCompletion(stat);
+        zk.getChildren(path, watch, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getChildrenPage(String, Watcher, String, long, long, String, int)
+     */
+    public CompletionStage<ChildrenPage> getChildrenPage(
+        String path,
+        Watcher watcher,
+        String prefix,
+        long minSequence,
+        long maxSequence,
+        String cursor,
+        int maxChildren) {
+        ChildrenPageCompletion completion = new ChildrenPageCompletion();
+        zk.getChildrenPage(path, watcher, prefix, minSequence, maxSequence, cursor, maxChildren, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getSubtree(String, int, int, String, Watcher)
+     */
+    public CompletionStage<SubtreeChunk> getSubtree(String path, int depth, int maxBytes, String cursor, Watcher watcher) {
+        SubtreeCompletion completion = new SubtreeCompletion();
+        zk.getSubtree(path, depth, maxBytes, cursor, watcher, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getAllChildrenNumber(String)
+     */
+    public CompletionStage<Integer> getAllChildrenNumber(String path) {
+        AllChildrenNumberCompletion completion = new AllChildrenNumberCompletion();
+        zk.getAllChildrenNumber(path, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getEphemerals(String)
+     */
+    public CompletionStage<List<String>> getEphemerals(String prefixPath) {
+        EphemeralsCompletion completion = new EphemeralsCompletion();
+        zk.getEphemerals(prefixPath, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#getEphemerals()
+     */
+    public CompletionStage<List<String>> getEphemerals() {
+        EphemeralsCompletion completion = new EphemeralsCompletion();
+        zk.getEphemerals(completion, null);
+        return completion;
+    }
+
+    /**
+     * Completes once the server the client is connected to is as up to date
+     * as the leader was when the request got to it.
+     *
+     * @see ZooKeeper#sync(String, VoidCallback, Object)
+     */
+    public CompletionStage<Void> sync(String path) {
+        VoidCompletion completion = new VoidCompletion();
+        zk.sync(path, completion, null);
+        return completion;
+    }
+
+    /**
+     * Completes exceptionally if one of the operations of a transaction
+     * failed, with the results of all of them in
+     * {@link KeeperException#getResults()}. The results of read operations
+     * are returned even if some of them failed.
+     *
+     * @see ZooKeeper#multi(Iterable)
+     */
+    public CompletionStage<List<OpResult>> multi(Iterable<Op> ops) {
+        boolean read = false;
+        for (Op op : ops) {
+            try {
+                op.validate();
+            } catch (KeeperException e) {
+                CompletableFuture<List<OpResult>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            read = op.getKind() == Op.OpKind.READ;
+        }
+        MultiCompletion completion = new MultiCompletion(read);
+        zk.multi(ops, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#addWatch(String, Watcher, AddWatchMode)
+     */
+    public CompletionStage<Void> addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+        VoidCompletion completion = new VoidCompletion();
+        zk.addWatch(basePath, watcher, mode, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#addWatch(String, AddWatchMode)
+     */
+    public CompletionStage<Void> addWatch(String basePath, AddWatchMode mode) {
+        VoidCompletion completion = new VoidCompletion();
+        zk.addWatch(basePath, mode, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#removeWatches(String, Watcher, WatcherType, boolean)
+     */
+    public CompletionStage<Void> removeWatches(String path, Watcher watcher, WatcherType watcherType, boolean local) {
+        VoidCompletion completion = new VoidCompletion();
+        zk.removeWatches(path, watcher, watcherType, local, completion, null);
+        return completion;
+    }
+
+    /**
+     * @see ZooKeeper#removeAllWatches(String, WatcherType, boolean)
+     */
+    public CompletionStage<Void> removeAllWatches(String path, WatcherType watcherType, boolean local) {
+        VoidCompletion completion = new VoidCompletion();
+        zk.removeAllWatches(path, watcherType, local, completion, null);
+        return completion;
+    }
+
+    /**
+     * A stage completed by the callback of its request.
+     */
+    private abstract class Completion<T> extends CompletableFuture<T> implements ClientCnxn.DirectCallback {
+
+        @Override
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        void complete(int rc, String path, T value) {
+            if (rc == Code.OK.intValue()) {
+                complete(value);
+            } else {
+                completeExceptionally(KeeperException.create(Code.get(rc), path));
+            }
+        }
+
+    }
+
+    private static void copyStat(Stat from, Stat to) {
+        if (from != null && to != null) {
+            DataTree.copyStat(from, to);
+        }
+    }
+
+    private class CreateCompletion extends Completion<String> implements Create2Callback {
+
+        private final Stat stat;
+
+        CreateCompletion(Stat stat) {
+            this.stat = stat;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name, Stat stat) {
+            copyStat(stat, this.stat);
+            complete(rc, path, name);
+        }
+
+    }
+
+    private class VoidCompletion extends Completion<Void> implements VoidCallback {
+
+        @Override
+        public void processResult(int rc, String path, Object ctx) {
+            complete(rc, path, null);
+        }
+
+    }
+
+    private class StatCompletion extends Completion<Stat> implements StatCallback {
+
+        // whether a missing node completes with a null stat, as for exists
+        private final boolean noNodeIsNull;
+
+        StatCompletion(boolean noNodeIsNull) {
+            this.noNodeIsNull = noNodeIsNull;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            if (noNodeIsNull && rc == Code.NONODE.intValue()) {
+                complete(null);
+            } else {
+                complete(rc, path, stat);
+            }
+        }
+
+    }
+
+    private class DataCompletion extends Completion<byte[]> implements DataCallback {
+
+        private final Stat stat;
+
+        DataCompletion(Stat stat) {
+            this.stat = stat;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            copyStat(stat, this.stat);
+            complete(rc, path, data);
+        }
+
+    }
+
+    private class ACLCompletion extends Completion<List<ACL>> implements ACLCallback {
+
+        private final Stat stat;
+
+        ACLCompletion(Stat stat) {
+            this.stat = stat;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+            copyStat(stat, this.stat);
+            complete(rc, path, acl);
+        }
+
+    }
+
+    private class ChildrenCompletion extends Completion<List<String>> implements Children2Callback {
+
+        private final Stat stat;
+
+        ChildrenCompletion(Stat stat) {
+            this.stat = stat;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+            copyStat(stat, this.stat);
+            complete(rc, path, children);
+        }
+
+    }
+
+    private class ChildrenPageCompletion extends Completion<ChildrenPage> implements ChildrenPageCallback {
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, ChildrenPage page) {
+            complete(rc, path, page);
+        }
+
+    }
+
+    private class SubtreeCompletion extends Completion<SubtreeChunk> implements SubtreeCallback {
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, SubtreeChunk chunk) {
+            complete(rc, path, chunk);
+        }
+
+    }
+
+    private class AllChildrenNumberCompletion extends Completion<Integer> implements AllChildrenNumberCallback {
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, int number) {
+            complete(rc, path, number);
+        }
+
+    }
+
+    private class EphemeralsCompletion extends Completion<List<String>> implements EphemeralsCallback {
+
+        @Override
+        public void processResult(int rc, Object ctx, List<String> paths) {
+            complete(rc, null, paths);
+        }
+
+    }
+
+    private class MultiCompletion extends Completion<List<OpResult>> implements MultiCallback {
+
+        private final boolean read;
+
+        MultiCompletion(boolean read) {
+            this.read = read;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<OpResult> opResults) {
+            if (rc == Code.OK.intValue() || (read && opResults != null && !opResults.isEmpty())) {
+                complete(opResults);
+            } else {
+                KeeperException e = KeeperException.create(Code.get(rc), path);
+                if (opResults != null) {
+                    e.setMultiResults(opResults);
+                }
+                completeExceptionally(e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.List;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * A page of the children of a node, read by
+ * {@link ZooKeeper#getChildrenPage(String, Watcher, String, long, long, String, int)}.
+ * <p>
+ * The children of a page are sorted by name. The stat is the one of the node
+ * when the page was read: a listing made of several pages is consistent if
+ * the cversion of the node did not change from its first page to its last
+ * one. Otherwise each child which was there during the whole listing still
+ * appears exactly once in it.
+ *
+ * @since 3.9.0
+ */
+@InterfaceAudience.Public
+public class ChildrenPage {
+
+    private final List<String> children;
+
+    private final Stat stat;
+
+    private final String nextCursor;
+
+    public ChildrenPage(List<String> children, Stat stat, String nextCursor) {
+        this.children = children;
+        this.stat = stat;
+        this.nextCursor = nextCursor == null ? "" : nextCursor;
+    }
+
+    /**
+     * @return the children of the page, sorted by name
+     */
+    public List<String> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the stat of the node when the page was read
+     */
+    public Stat getStat() {
+        return stat;
+    }
+
+    /**
+     * @return the cursor to pass to read the next page, empty on the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return whether there are no more children to read after this page
+     */
+    public boolean isLast() {
+        return nextCursor.isEmpty();
+    }
+
+}
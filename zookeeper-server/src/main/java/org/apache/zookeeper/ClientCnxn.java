@@ -38,9 +38,12 @@
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
 import javax.security.auth.login.LoginException;
 import javax.security.sasl.SaslException;
@@ -51,12 +54,14 @@
 import org.apache.zookeeper.AsyncCallback.AllChildrenNumberCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.EphemeralsCallback;
 import org.apache.zookeeper.AsyncCallback.MultiCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.SubtreeCallback;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.OpResult.ErrorResult;
@@ -78,16 +83,20 @@
 import org.apache.zookeeper.proto.GetACLResponse;
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.GetEphemeralsResponse;
 import org.apache.zookeeper.proto.GetSASLRequest;
+import org.apache.zookeeper.proto.GetSubtreeResponse;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
 import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataResponse;
 import org.apache.zookeeper.proto.SetWatches;
 import org.apache.zookeeper.proto.SetWatches2;
+import org.apache.zookeeper.proto.SyncRequest;
+import org.apache.zookeeper.proto.SyncResponse;
 import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.apache.zookeeper.server.ZooKeeperThread;
@@ -257,6 +266,18 @@ public String toString() {
         return sb.toString();
     }
 
+    /**
+     * A callback run on an executor of its own rather than by the event
+     * thread. It still runs after the watch events queued before its reply,
+     * and the watch events queued after its reply wait for it to return, but
+     * it does not wait for the other callbacks of the session.
+     */
+    interface DirectCallback extends AsyncCallback {
+
+        Executor getExecutor();
+
+    }
+
     /**
      * This class allows us to pass the headers and the relevant records around.
      */
@@ -289,6 +310,9 @@ static class Packet {
 
         WatchDeregistration watchDeregistration;
 
+        /** The read index queued before this read to make it linearizable **/
+        Packet readIndex;
+
         /** Convenience ctor */
         Packet(
             RequestHeader requestHeader,
@@ -451,6 +475,9 @@ private static class WatcherSetEventPair {
         private final Set<Watcher> watchers;
         private final WatchedEvent event;
 
+        /** the last direct callback dispatched before the event was queued */
+        private long lastCallback;
+
         public WatcherSetEventPair(Set<Watcher> watchers, WatchedEvent event) {
             this.watchers = watchers;
             this.event = event;
@@ -491,6 +518,17 @@ class EventThread extends ZooKeeperThread {
         private volatile boolean wasKilled = false;
         private volatile boolean isRunning = false;
 
+        /**
+         * The direct callbacks dispatched and not run yet, by the order they
+         * were dispatched in. Also guards lastCallback and pendingWatchEvents.
+         */
+        private final TreeSet<Long> runningCallbacks = new TreeSet<>();
+
+        private long lastCallback;
+
+        /** the number of watch events queued and not processed yet */
+        private int pendingWatchEvents;
+
         EventThread() {
             super(makeThreadName("-EventThread"));
             setDaemon(true);
@@ -514,7 +552,99 @@ private void queueEvent(WatchedEvent event, Set<Watcher> materializedWatchers) {
             }
             WatcherSetEventPair pair = new WatcherSetEventPair(watchers, event);
             // queue the pair (watch set & event) for later processing
-            waitingEvents.add(pair);
+            synchronized (runningCallbacks) {
+                pair.lastCallback = lastCallback;
+                pendingWatchEvents++;
+                waitingEvents.add(pair);
+            }
+        }
+
+        /**
+         * Runs the callback of the packet or of the local callback given on
+         * the executor of the callback, once the watch events queued so far
+         * are processed. The watch events queued from now on are not
+         * processed until it returns.
+         */
+        @SuppressFBWarnings("JLM_JSR166_UTILCONCURRENT_MONITORENTER")
+        public void queueDirectCallback(DirectCallback cb, Object event) {
+            DirectCompletion completion;
+            synchronized (runningCallbacks) {
+                completion = new DirectCompletion(cb, event, ++lastCallback);
+                runningCallbacks.add(completion.seq);
+                if (pendingWatchEvents > 0) {
+                    synchronized (waitingEvents) {
+                        if (isRunning || !wasKilled) {
+                            waitingEvents.add(completion);
+                            return;
+                        }
+                    }
+                }
+            }
+            completion.dispatch();
+        }
+
+        /**
+         * Waits for the direct callbacks dispatched up to the one given to
+         * return.
+         */
+        private void awaitCallbacks(long last) {
+            synchronized (runningCallbacks) {
+                while (!runningCallbacks.isEmpty() && runningCallbacks.first() <= last) {
+                    try {
+                        runningCallbacks.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void callbackDone(long seq) {
+            synchronized (runningCallbacks) {
+                runningCallbacks.remove(seq);
+                runningCallbacks.notifyAll();
+            }
+        }
+
+        private class DirectCompletion implements Runnable {
+
+            private final DirectCallback cb;
+            private final Object event;
+            private final long seq;
+
+            DirectCompletion(DirectCallback cb, Object event, long seq) {
+                this.cb = cb;
+                this.event = event;
+                this.seq = seq;
+            }
+
+            void dispatch() {
+                try {
+                    cb.getExecutor().execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOG.warn("Callback rejected by its executor, running it in the event thread", e);
+                    // the watch events queued meanwhile do not wait for it
+                    callbackDone(seq);
+                    if (Thread.currentThread() == EventThread.this) {
+                        processEvent(event);
+                    } else if (event instanceof Packet) {
+                        queuePacket((Packet) event);
+                    } else {
+                        waitingEvents.add(event);
+                    }
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    processEvent(event);
+                } finally {
+                    callbackDone(seq);
+                }
+            }
+
         }
 
         public void queueCallback(AsyncCallback cb, int rc, String path, Object ctx) {
@@ -573,13 +703,22 @@ private void processEvent(Object event) {
                 if (event instanceof WatcherSetEventPair) {
                     // each watcher will process the event
                     WatcherSetEventPair pair = (WatcherSetEventPair) event;
-                    for (Watcher watcher : pair.watchers) {
-                        try {
-                            watcher.process(pair.event);
-                        } catch (Throwable t) {
-                            LOG.error("Error while calling watcher.", t);
+                    awaitCallbacks(pair.lastCallback);
+                    try {
+                        for (Watcher watcher : pair.watchers) {
+                            try {
+                                watcher.process(pair.event);
+                            } catch (Throwable t) {
+                                LOG.error("Error while calling watcher.", t);
+                            }
+                        }
+                    } finally {
+                        synchronized (runningCallbacks) {
+                            pendingWatchEvents--;
                         }
                     }
+                } else if (event instanceof DirectCompletion) {
+                    ((DirectCompletion) event).dispatch();
                 } else if (event instanceof LocalCallback) {
                     LocalCallback lcb = (LocalCallback) event;
                     if (lcb.cb instanceof StatCallback) {
@@ -592,6 +731,10 @@ private void processEvent(Object event) {
                         ((ChildrenCallback) lcb.cb).processResult(lcb.rc, lcb.path, lcb.ctx, null);
                     } else if (lcb.cb instanceof Children2Callback) {
                         ((Children2Callback) lcb.cb).processResult(lcb.rc, lcb.path, lcb.ctx, null, null);
+                    } else if (lcb.cb instanceof ChildrenPageCallback) {
+                        ((ChildrenPageCallback) lcb.cb).processResult(lcb.rc, lcb.path, lcb.ctx, null);
+                    } else if (lcb.cb instanceof SubtreeCallback) {
+                        ((SubtreeCallback) lcb.cb).processResult(lcb.rc, lcb.path, lcb.ctx, null);
                     } else if (lcb.cb instanceof StringCallback) {
                         ((StringCallback) lcb.cb).processResult(lcb.rc, lcb.path, lcb.ctx, null);
                     } else if (lcb.cb instanceof AsyncCallback.EphemeralsCallback) {
@@ -667,6 +810,23 @@ private void processEvent(Object event) {
                         } else {
                             cb.processResult(rc, clientPath, p.ctx, null, null);
                         }
+                    } else if (p.response instanceof GetChildrenPageResponse) {
+                        ChildrenPageCallback cb = (ChildrenPageCallback) p.cb;
+                        GetChildrenPageResponse rsp = (GetChildrenPageResponse) p.response;
+                        if (rc == Code.OK.intValue()) {
+                            cb.processResult(rc, clientPath, p.ctx,
+                                new ChildrenPage(rsp.getChildren(), rsp.getStat(), rsp.getNextCursor()));
+                        } else {
+                            cb.processResult(rc, clientPath, p.ctx, null);
+                        }
+                    } else if (p.response instanceof GetSubtreeResponse) {
+                        SubtreeCallback cb = (SubtreeCallback) p.cb;
+                        GetSubtreeResponse rsp = (GetSubtreeResponse) p.response;
+                        if (rc == Code.OK.intValue()) {
+                            cb.processResult(rc, clientPath, p.ctx, SubtreeChunk.fromResponse(rsp, chrootPath));
+                        } else {
+                            cb.processResult(rc, clientPath, p.ctx, null);
+                        }
                     } else if (p.response instanceof CreateResponse) {
                         StringCallback cb = (StringCallback) p.cb;
                         CreateResponse rsp = (CreateResponse) p.response;
@@ -766,6 +926,9 @@ protected void finishPacket(Packet p) {
                 p.finished = true;
                 p.notifyAll();
             }
+        } else if (p.cb instanceof DirectCallback) {
+            p.finished = true;
+            eventThread.queueDirectCallback((DirectCallback) p.cb, p);
         } else {
             p.finished = true;
             eventThread.queuePacket(p);
@@ -783,7 +946,11 @@ void queueEvent(String clientPath, int err, Set<Watcher> materializedWatchers, E
     }
 
     void queueCallback(AsyncCallback cb, int rc, String path, Object ctx) {
-        eventThread.queueCallback(cb, rc, path, ctx);
+        if (cb instanceof DirectCallback) {
+            eventThread.queueDirectCallback((DirectCallback) cb, new LocalCallback(cb, rc, path, ctx));
+        } else {
+            eventThread.queueCallback(cb, rc, path, ctx);
+        }
     }
 
     // for test only
@@ -955,7 +1122,11 @@ void readResponse(ByteBuffer incomingBuffer) throws IOException {
                 if (replyHdr.getZxid() > 0) {
                     lastZxid = replyHdr.getZxid();
                 }
-                if (packet.response != null && replyHdr.getErr() == 0) {
+                if (replyHdr.getErr() == 0 && packet.readIndex != null && packet.readIndex.replyHeader.getErr() != 0) {
+                    // the read was served without its read index, so it may be stale
+                    packet.replyHeader.setErr(packet.readIndex.replyHeader.getErr());
+                }
+                if (packet.response != null && packet.replyHeader.getErr() == 0) {
                     packet.response.deserialize(bbia, "response");
                 }
 
@@ -1570,6 +1741,20 @@ public ReplyHeader submitRequest(
         Record response,
         WatchRegistration watchRegistration,
         WatchDeregistration watchDeregistration) throws InterruptedException {
+        return submitRequest(h, request, response, watchRegistration, watchDeregistration, null);
+    }
+
+    /**
+     * Submits a read, which fails with the error of readIndex if readIndex
+     * is not null and fails.
+     */
+    public ReplyHeader submitRequest(
+        RequestHeader h,
+        Record request,
+        Record response,
+        WatchRegistration watchRegistration,
+        WatchDeregistration watchDeregistration,
+        Packet readIndex) throws InterruptedException {
         ReplyHeader r = new ReplyHeader();
         Packet packet = queuePacket(
             h,
@@ -1581,7 +1766,8 @@ public ReplyHeader submitRequest(
             null,
             null,
             watchRegistration,
-            watchDeregistration);
+            watchDeregistration,
+            readIndex);
         synchronized (packet) {
             if (requestTimeout > 0) {
                 // Wait for request completion with timeout
@@ -1647,7 +1833,6 @@ public Packet queuePacket(
         return queuePacket(h, r, request, response, cb, clientPath, serverPath, ctx, watchRegistration, null);
     }
 
-    @SuppressFBWarnings("JLM_JSR166_UTILCONCURRENT_MONITORENTER")
     public Packet queuePacket(
         RequestHeader h,
         ReplyHeader r,
@@ -1659,6 +1844,22 @@ public Packet queuePacket(
         Object ctx,
         WatchRegistration watchRegistration,
         WatchDeregistration watchDeregistration) {
+        return queuePacket(h, r, request, response, cb, clientPath, serverPath, ctx, watchRegistration, watchDeregistration, null);
+    }
+
+    @SuppressFBWarnings("JLM_JSR166_UTILCONCURRENT_MONITORENTER")
+    public Packet queuePacket(
+        RequestHeader h,
+        ReplyHeader r,
+        Record request,
+        Record response,
+        AsyncCallback cb,
+        String clientPath,
+        String serverPath,
+        Object ctx,
+        WatchRegistration watchRegistration,
+        WatchDeregistration watchDeregistration,
+        Packet readIndex) {
         Packet packet = null;
 
         // Note that we do not generate the Xid for the packet yet. It is
@@ -1670,6 +1871,7 @@ public Packet queuePacket(
         packet.clientPath = clientPath;
         packet.serverPath = serverPath;
         packet.watchDeregistration = watchDeregistration;
+        packet.readIndex = readIndex;
         // The synchronized block here is for two purpose:
         // 1. synchronize with the final cleanup() in SendThread.run() to avoid race
         // 2. synchronized against each packet. So if a closeSession packet is added,
@@ -1690,6 +1892,21 @@ public Packet queuePacket(
         return packet;
     }
 
+    /**
+     * Queues a read index request, which the server completes once it has
+     * applied all the txns the leader had committed when it received it. The
+     * reads of the session queued after it are served after it.
+     *
+     * @param serverPath the path of the read, as seen by the server
+     * @return the packet to pass along with the read
+     */
+    Packet queueReadIndex(String serverPath) {
+        RequestHeader h = new RequestHeader();
+        h.setType(OpCode.readIndex);
+        SyncRequest request = new SyncRequest(serverPath);
+        return queuePacket(h, new ReplyHeader(), request, new SyncResponse(), null, null, serverPath, null, null);
+    }
+
     public void addAuthInfo(String scheme, byte[] auth) {
         if (!state.isAlive()) {
             return;
@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.SubtreeCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher.WatcherType;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of the nodes of a subtree, kept up to date by a persistent
+ * recursive watch on its root.
+ * <p>
+ * {@link #start()} reads the subtree with
+ * {@link ZooKeeper#getSubtree(String, int, int, String, Watcher)}, setting the
+ * watch in the same request, and every node the watch then notifies a change
+ * of is read again. The replies and the notifications are processed in the
+ * order the server sent them, by the event thread of the client, so the
+ * cache goes through the changes in the order they were made.
+ * <p>
+ * When the client reconnects, the watch is set again with the other ones,
+ * but the changes made while it was disconnected are not notified. So the
+ * cache reads the subtree again, without the data of the nodes which did not
+ * change since the last change it knows of, and drops the nodes gone since.
+ * <p>
+ * {@link #getData(String, Stat)}, {@link #getChildren(String, Stat)} and
+ * {@link #exists(String)} are served by the cache for the paths of the
+ * subtree while it is up to date, or out of date for less than the staleness
+ * given: from the disconnection of the client until the cache was read
+ * again. Otherwise they are sent to the server. The nodes of the subtree the
+ * client may not read are not cached, and so they are reported as missing.
+ *
+ * @since 3.9.0
+ */
+@InterfaceAudience.Public
+public class SubtreeCache implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubtreeCache.class);
+
+    private static class CachedNode {
+
+        final byte[] data;
+        final Stat stat;
+        final Set<String> children;
+        // the sync of the subtree the node was last read in or after
+        final long generation;
+
+        CachedNode(byte[] data, Stat stat, Set<String> children, long generation) {
+            this.data = data;
+            this.stat = stat;
+            this.children = children;
+            this.generation = generation;
+        }
+
+    }
+
+    private final ZooKeeper zk;
+
+    private final String path;
+
+    private final long maxStalenessMs;
+
+    private final Map<String, CachedNode> nodes = new ConcurrentHashMap<>();
+
+    private final Watcher watcher = this::process;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private volatile Code startCode;
+
+    // only updated by the event thread once started
+    private long generation;
+    private volatile long lastZxid = -1;
+
+    private volatile boolean synced;
+
+    // the time the cache stopped being up to date, 0 while it is
+    private volatile long staleSince;
+
+    private volatile boolean closed;
+
+    /**
+     * @param zk the client to read the subtree with
+     * @param path the path of the root of the subtree
+     * @param maxStalenessMs how long the cache keeps serving the reads once
+     *                       it is no longer up to date
+     */
+    public SubtreeCache(ZooKeeper zk, String path, long maxStalenessMs) {
+        PathUtils.validatePath(path);
+        this.zk = zk;
+        this.path = path;
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    /**
+     * Reads the subtree and sets the watch on it.
+     *
+     * @throws KeeperException if the subtree could not be read, e.g.
+     *                         KeeperException.NoNode if the root does not exist
+     * @throws InterruptedException if interrupted while waiting for the subtree
+     */
+    public void start() throws KeeperException, InterruptedException {
+        sync();
+        started.await();
+        if (startCode != Code.OK) {
+            throw KeeperException.create(startCode, path);
+        }
+    }
+
+    /**
+     * @return whether the reads are currently served by the cache
+     */
+    public boolean isCurrent() {
+        if (!synced || closed) {
+            return false;
+        }
+        long since = staleSince;
+        return since == 0 || Time.currentElapsedTime() - since <= maxStalenessMs;
+    }
+
+    /**
+     * @return the highest mzxid of the nodes read by the cache
+     */
+    public long getLastZxid() {
+        return lastZxid;
+    }
+
+    /**
+     * Returns the data and the stat of the node of the given path, like
+     * {@link ZooKeeper#getData(String, boolean, Stat)}.
+     */
+    public byte[] getData(String path, Stat stat) throws KeeperException, InterruptedException {
+        if (!isCached(path)) {
+            return zk.getData(path, false, stat);
+        }
+        CachedNode node = nodes.get(path);
+        if (node == null) {
+            throw new KeeperException.NoNodeException(path);
+        }
+        if (stat != null) {
+            copyStat(node.stat, stat);
+        }
+        return node.data == null ? null : node.data.clone();
+    }
+
+    /**
+     * Returns the children and the stat of the node of the given path, like
+     * {@link ZooKeeper#getChildren(String, boolean, Stat)}.
+     */
+    public List<String> getChildren(String path, Stat stat) throws KeeperException, InterruptedException {
+        if (!isCached(path)) {
+            return zk.getChildren(path, false, stat);
+        }
+        CachedNode node = nodes.get(path);
+        if (node == null) {
+            throw new KeeperException.NoNodeException(path);
+        }
+        if (stat != null) {
+            copyStat(node.stat, stat);
+        }
+        return new ArrayList<>(node.children);
+    }
+
+    /**
+     * Returns the stat of the node of the given path, or null if there is
+     * none, like {@link ZooKeeper#exists(String, boolean)}.
+     */
+    public Stat exists(String path) throws KeeperException, InterruptedException {
+        if (!isCached(path)) {
+            return zk.exists(path, false);
+        }
+        CachedNode node = nodes.get(path);
+        if (node == null) {
+            return null;
+        }
+        Stat stat = new Stat();
+        copyStat(node.stat, stat);
+        return stat;
+    }
+
+    /**
+     * Removes the watch of the cache. The reads are sent to the server from
+     * then on.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            zk.removeWatches(path, watcher, WatcherType.Any, true);
+        } catch (KeeperException e) {
+            LOG.warn("Failed to remove the watch of the cache of {}", path, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        nodes.clear();
+    }
+
+    private boolean isCached(String path) {
+        return isCurrent()
+            && (path.equals(this.path) || this.path.equals("/") || path.startsWith(this.path + "/"));
+    }
+
+    private void process(WatchedEvent event) {
+        if (closed) {
+            return;
+        }
+        switch (event.getType()) {
+        case None:
+            switch (event.getState()) {
+            case SyncConnected:
+            case ConnectedReadOnly:
+                if (synced && staleSince != 0) {
+                    sync();
+                }
+                break;
+            default:
+                if (staleSince == 0) {
+                    staleSince = Time.currentElapsedTime();
+                }
+            }
+            break;
+        case NodeCreated:
+            refresh(event.getPath());
+            refreshParent(event.getPath());
+            break;
+        case NodeDataChanged:
+            refresh(event.getPath());
+            break;
+        case NodeDeleted:
+            remove(event.getPath());
+            refreshParent(event.getPath());
+            break;
+        default:
+            // the children changes come as the creations and deletions of the children
+        }
+    }
+
+    /**
+     * Reads the whole subtree, setting the watch again in case it was not
+     * set again on reconnection.
+     */
+    private void sync() {
+        long syncGeneration = ++generation;
+        long sinceZxid = synced ? lastZxid : -1;
+        zk.getSubtree(path, -1, 0, null, sinceZxid, watcher, new SubtreeCallback() {
+            @Override
+            public void processResult(int rc, String p, Object ctx, SubtreeChunk chunk) {
+                if (closed || syncGeneration != generation) {
+                    return;
+                }
+                if (rc == Code.OK.intValue()) {
+                    for (SubtreeChunk.Node node : chunk.getNodes()) {
+                        Stat stat = node.getStat();
+                        CachedNode cached = nodes.get(node.getPath());
+                        if (sinceZxid < 0 || stat.getMzxid() > sinceZxid) {
+                            put(node.getPath(), node.getData(), stat);
+                        } else if (cached != null && cached.stat.getMzxid() == stat.getMzxid()) {
+                            put(node.getPath(), cached.data, stat);
+                        } else {
+                            // the data was left out, but the cache missed a change of it:
+                            // keep the node as it is until it is read again
+                            if (cached != null) {
+                                put(node.getPath(), cached.data, cached.stat);
+                            }
+                            refresh(node.getPath());
+                        }
+                    }
+                    if (!chunk.isLast()) {
+                        zk.getSubtree(path, -1, 0, chunk.getNextCursor(), sinceZxid, null, this, null);
+                        return;
+                    }
+                } else if (rc == Code.NONODE.intValue() && synced) {
+                    // the root was deleted: the subtree is empty
+                    LOG.debug("The root of the cache {} is gone", path);
+                } else {
+                    LOG.warn("Failed to read the subtree of {}: {}", path, Code.get(rc));
+                    if (!synced) {
+                        startCode = Code.get(rc);
+                        started.countDown();
+                    }
+                    return;
+                }
+                finishSync(syncGeneration);
+            }
+        }, null);
+    }
+
+    private void finishSync(long syncGeneration) {
+        for (Map.Entry<String, CachedNode> entry : nodes.entrySet()) {
+            if (entry.getValue().generation < syncGeneration) {
+                remove(entry.getKey());
+            }
+        }
+        staleSince = 0;
+        if (!synced) {
+            synced = true;
+            startCode = Code.OK;
+            started.countDown();
+        }
+    }
+
+    private void refresh(String path) {
+        zk.getData(path, null, (DataCallback) (rc, p, ctx, data, stat) -> {
+            if (closed) {
+                return;
+            }
+            if (rc == Code.OK.intValue()) {
+                put(p, data, stat);
+            } else if (rc == Code.NONODE.intValue() || rc == Code.NOAUTH.intValue()) {
+                remove(p);
+            }
+            // otherwise the client got disconnected, and the cache reads the
+            // subtree again once reconnected
+        }, null);
+    }
+
+    /**
+     * Reads the stat of the parent again after one of its children was
+     * created or deleted, since its cversion, pzxid and number of children
+     * changed with it. The watch does not notify the children changes.
+     */
+    private void refreshParent(String path) {
+        if (!path.equals(this.path) && nodes.containsKey(parentPath(path))) {
+            refresh(parentPath(path));
+        }
+    }
+
+    private void put(String path, byte[] data, Stat stat) {
+        CachedNode cached = nodes.get(path);
+        Set<String> children = cached == null ? ConcurrentHashMap.newKeySet() : cached.children;
+        nodes.put(path, new CachedNode(data, stat, children, generation));
+        if (!path.equals(this.path)) {
+            CachedNode parent = nodes.get(parentPath(path));
+            if (parent != null) {
+                parent.children.add(path.substring(path.lastIndexOf('/') + 1));
+            }
+        }
+        lastZxid = Math.max(lastZxid, stat.getMzxid());
+    }
+
+    private void remove(String path) {
+        CachedNode cached = nodes.remove(path);
+        if (cached != null) {
+            for (String child : cached.children) {
+                remove(path.equals("/") ? "/" + child : path + "/" + child);
+            }
+        }
+        if (!path.equals(this.path)) {
+            CachedNode parent = nodes.get(parentPath(path));
+            if (parent != null) {
+                parent.children.remove(path.substring(path.lastIndexOf('/') + 1));
+            }
+        }
+    }
+
+    private static String parentPath(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static void copyStat(Stat from, Stat to) {
+        to.setAversion(from.getAversion());
+        to.setCtime(from.getCtime());
+        to.setCversion(from.getCversion());
+        to.setCzxid(from.getCzxid());
+        to.setMtime(from.getMtime());
+        to.setMzxid(from.getMzxid());
+        to.setPzxid(from.getPzxid());
+        to.setVersion(from.getVersion());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setDataLength(from.getDataLength());
+        to.setNumChildren(from.getNumChildren());
+    }
+
+}
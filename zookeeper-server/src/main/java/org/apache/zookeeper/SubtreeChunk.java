@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetSubtreeResponse;
+import org.apache.zookeeper.proto.SubtreeNode;
+
+/**
+ * A chunk of the nodes of a subtree, read by
+ * {@link ZooKeeper#getSubtree(String, int, int, String, Watcher)}.
+ * <p>
+ * The nodes are in pre-order, with the children of a node sorted by name.
+ * All the nodes of a chunk are read at the same zxid; the chunks after it
+ * may be read at later ones.
+ *
+ * @since 3.9.0
+ */
+@InterfaceAudience.Public
+public class SubtreeChunk {
+
+    /**
+     * A node of a subtree: its path, data and stat.
+     */
+    @InterfaceAudience.Public
+    public static class Node {
+
+        private final String path;
+
+        private final byte[] data;
+
+        private final Stat stat;
+
+        public Node(String path, byte[] data, Stat stat) {
+            this.path = path;
+            this.data = data;
+            this.stat = stat;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public Stat getStat() {
+            return stat;
+        }
+
+    }
+
+    private final List<Node> nodes;
+
+    private final String nextCursor;
+
+    private final long zxid;
+
+    public SubtreeChunk(List<Node> nodes, String nextCursor, long zxid) {
+        this.nodes = nodes;
+        this.nextCursor = nextCursor == null ? "" : nextCursor;
+        this.zxid = zxid;
+    }
+
+    /**
+     * @return the nodes of the chunk, in pre-order
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the cursor to pass to read the next chunk, empty on the last chunk
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return the zxid of the last txn applied by the server when it read the chunk
+     */
+    public long getZxid() {
+        return zxid;
+    }
+
+    /**
+     * @return whether there are no more nodes to read after this chunk
+     */
+    public boolean isLast() {
+        return nextCursor.isEmpty();
+    }
+
+    static SubtreeChunk fromResponse(GetSubtreeResponse response, String chrootPath) {
+        List<Node> nodes = new ArrayList<>(response.getNodes().size());
+        for (SubtreeNode node : response.getNodes()) {
+            nodes.add(new Node(toClientPath(node.getPath(), chrootPath), node.getData(), node.getStat()));
+        }
+        String nextCursor = response.getNextCursor();
+        if (nextCursor != null && !nextCursor.isEmpty()) {
+            nextCursor = toClientPath(nextCursor, chrootPath);
+        }
+        return new SubtreeChunk(nodes, nextCursor, response.getZxid());
+    }
+
+    private static String toClientPath(String serverPath, String chrootPath) {
+        if (chrootPath == null) {
+            return serverPath;
+        }
+        return serverPath.length() == chrootPath.length() ? "/" : serverPath.substring(chrootPath.length());
+    }
+
+}
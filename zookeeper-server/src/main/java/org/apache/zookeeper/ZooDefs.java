@@ -95,6 +95,12 @@ public interface OpCode {
 
         int whoAmI = 107;
 
+        int readIndex = 108;
+
+        int getChildrenPage = 109;
+
+        int getSubtree = 110;
+
         int createSession = -10;
 
         int closeSession = -11;
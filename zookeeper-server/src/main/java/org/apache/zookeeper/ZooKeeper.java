@@ -34,11 +34,13 @@
 import org.apache.zookeeper.AsyncCallback.ACLCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.MultiCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.SubtreeCallback;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.OpResult.ErrorResult;
 import org.apache.zookeeper.Watcher.WatcherType;
@@ -66,12 +68,16 @@
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageRequest;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
 import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.GetEphemeralsRequest;
 import org.apache.zookeeper.proto.GetEphemeralsResponse;
+import org.apache.zookeeper.proto.GetSubtreeRequest;
+import org.apache.zookeeper.proto.GetSubtreeResponse;
 import org.apache.zookeeper.proto.RemoveWatchesRequest;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
@@ -1900,6 +1906,36 @@ public void delete(final String path, int version, VoidCallback cb, Object ctx)
      * @throws IllegalArgumentException if an invalid path is specified
      */
     public Stat exists(final String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return exists(path, watcher, false);
+    }
+
+    /**
+     * Return the stat of the node of the given path, like {@link #exists(String, Watcher)}.
+     * <p>
+     * If linearizable is true, the server first asks the leader for the last
+     * zxid it committed and waits until it has applied it, so the result
+     * reflects all the writes completed before the call, whichever server
+     * they were sent to. This costs a round trip between the server and the
+     * leader, but unlike {@link #sync(String, VoidCallback, Object)} it does
+     * not wait for the writes in progress. The observers, and the followers
+     * of a leader which does not answer read index requests, e.g. with
+     * zookeeper.readIndexEnabled=false, serve the read once they are
+     * synced with the leader instead, like a read following a
+     * {@link #sync(String, VoidCallback, Object)}. Servers older than 3.9.0
+     * fail the call with KeeperException.Unimplemented.
+     *
+     * @since 3.9.0
+     *
+     * @param path the node path
+     * @param watcher explicit watcher
+     * @param linearizable whether the read must reflect all the completed writes
+     * @return the stat of the node of the given path; return null if no such a
+     *         node exists.
+     * @throws KeeperException If the server signals an error
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public Stat exists(final String path, Watcher watcher, boolean linearizable) throws KeeperException, InterruptedException {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -1917,7 +1953,8 @@ public Stat exists(final String path, Watcher watcher) throws KeeperException, I
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         SetDataResponse response = new SetDataResponse();
-        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        ClientCnxn.Packet readIndex = linearizable ? cnxn.queueReadIndex(serverPath) : null;
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb, null, readIndex);
         if (r.getErr() != 0) {
             if (r.getErr() == KeeperException.Code.NONODE.intValue()) {
                 return null;
@@ -1955,6 +1992,17 @@ public Stat exists(String path, boolean watch) throws KeeperException, Interrupt
      * @see #exists(String, Watcher)
      */
     public void exists(final String path, Watcher watcher, StatCallback cb, Object ctx) {
+        exists(path, watcher, cb, ctx, false);
+    }
+
+    /**
+     * The asynchronous version of exists, optionally linearizable.
+     *
+     * @since 3.9.0
+     *
+     * @see #exists(String, Watcher, boolean)
+     */
+    public void exists(final String path, Watcher watcher, StatCallback cb, Object ctx, boolean linearizable) {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -1972,7 +2020,8 @@ public void exists(final String path, Watcher watcher, StatCallback cb, Object c
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         SetDataResponse response = new SetDataResponse();
-        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb);
+        ClientCnxn.Packet readIndex = linearizable ? cnxn.queueReadIndex(serverPath) : null;
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb, null, readIndex);
     }
 
     /**
@@ -2006,6 +2055,37 @@ public void exists(String path, boolean watch, StatCallback cb, Object ctx) {
      * @throws IllegalArgumentException if an invalid path is specified
      */
     public byte[] getData(final String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        return getData(path, watcher, stat, false);
+    }
+
+    /**
+     * Return the data and the stat of the node of the given path, like
+     * {@link #getData(String, Watcher, Stat)}.
+     * <p>
+     * If linearizable is true, the server first asks the leader for the last
+     * zxid it committed and waits until it has applied it, so the result
+     * reflects all the writes completed before the call, whichever server
+     * they were sent to. This costs a round trip between the server and the
+     * leader, but unlike {@link #sync(String, VoidCallback, Object)} it does
+     * not wait for the writes in progress. The observers, and the followers
+     * of a leader which does not answer read index requests, e.g. with
+     * zookeeper.readIndexEnabled=false, serve the read once they are
+     * synced with the leader instead, like a read following a
+     * {@link #sync(String, VoidCallback, Object)}. Servers older than 3.9.0
+     * fail the call with KeeperException.Unimplemented.
+     *
+     * @since 3.9.0
+     *
+     * @param path the given path
+     * @param watcher explicit watcher
+     * @param stat the stat of the node
+     * @param linearizable whether the read must reflect all the completed writes
+     * @return the data of the node
+     * @throws KeeperException If the server signals an error with a non-zero error code
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public byte[] getData(final String path, Watcher watcher, Stat stat, boolean linearizable) throws KeeperException, InterruptedException {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -2023,7 +2103,8 @@ public byte[] getData(final String path, Watcher watcher, Stat stat) throws Keep
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetDataResponse response = new GetDataResponse();
-        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        ClientCnxn.Packet readIndex = linearizable ? cnxn.queueReadIndex(serverPath) : null;
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb, null, readIndex);
         if (r.getErr() != 0) {
             throw KeeperException.create(KeeperException.Code.get(r.getErr()), clientPath);
         }
@@ -2062,6 +2143,17 @@ public byte[] getData(String path, boolean watch, Stat stat) throws KeeperExcept
      * @see #getData(String, Watcher, Stat)
      */
     public void getData(final String path, Watcher watcher, DataCallback cb, Object ctx) {
+        getData(path, watcher, cb, ctx, false);
+    }
+
+    /**
+     * The asynchronous version of getData, optionally linearizable.
+     *
+     * @since 3.9.0
+     *
+     * @see #getData(String, Watcher, Stat, boolean)
+     */
+    public void getData(final String path, Watcher watcher, DataCallback cb, Object ctx, boolean linearizable) {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -2079,7 +2171,8 @@ public void getData(final String path, Watcher watcher, DataCallback cb, Object
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetDataResponse response = new GetDataResponse();
-        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb);
+        ClientCnxn.Packet readIndex = linearizable ? cnxn.queueReadIndex(serverPath) : null;
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb, null, readIndex);
     }
 
     /**
@@ -2514,6 +2607,41 @@ public List<String> getChildren(
         final String path,
         Watcher watcher,
         Stat stat) throws KeeperException, InterruptedException {
+        return getChildren(path, watcher, stat, false);
+    }
+
+    /**
+     * For the given znode path return the stat and children list, like
+     * {@link #getChildren(String, Watcher, Stat)}.
+     * <p>
+     * If linearizable is true, the server first asks the leader for the last
+     * zxid it committed and waits until it has applied it, so the result
+     * reflects all the writes completed before the call, whichever server
+     * they were sent to. This costs a round trip between the server and the
+     * leader, but unlike {@link #sync(String, VoidCallback, Object)} it does
+     * not wait for the writes in progress. The observers, and the followers
+     * of a leader which does not answer read index requests, e.g. with
+     * zookeeper.readIndexEnabled=false, serve the read once they are
+     * synced with the leader instead, like a read following a
+     * {@link #sync(String, VoidCallback, Object)}. Servers older than 3.9.0
+     * fail the call with KeeperException.Unimplemented.
+     *
+     * @since 3.9.0
+     *
+     * @param path
+     * @param watcher explicit watcher
+     * @param stat stat of the znode designated by path
+     * @param linearizable whether the read must reflect all the completed writes
+     * @return an unordered array of children of the node with the given path
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public List<String> getChildren(
+        final String path,
+        Watcher watcher,
+        Stat stat,
+        boolean linearizable) throws KeeperException, InterruptedException {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -2531,7 +2659,8 @@ public List<String> getChildren(
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetChildren2Response response = new GetChildren2Response();
-        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        ClientCnxn.Packet readIndex = linearizable ? cnxn.queueReadIndex(serverPath) : null;
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb, null, readIndex);
         if (r.getErr() != 0) {
             throw KeeperException.create(KeeperException.Code.get(r.getErr()), clientPath);
         }
@@ -2581,6 +2710,22 @@ public List<String> getChildren(
      * @see #getChildren(String, Watcher, Stat)
      */
     public void getChildren(final String path, Watcher watcher, Children2Callback cb, Object ctx) {
+        getChildren(path, watcher, cb, ctx, false);
+    }
+
+    /**
+     * The asynchronous version of getChildren, optionally linearizable.
+     *
+     * @since 3.9.0
+     *
+     * @see #getChildren(String, Watcher, Stat, boolean)
+     */
+    public void getChildren(
+        final String path,
+        Watcher watcher,
+        Children2Callback cb,
+        Object ctx,
+        boolean linearizable) {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -2598,7 +2743,8 @@ public void getChildren(final String path, Watcher watcher, Children2Callback cb
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetChildren2Response response = new GetChildren2Response();
-        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb);
+        ClientCnxn.Packet readIndex = linearizable ? cnxn.queueReadIndex(serverPath) : null;
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb, null, readIndex);
     }
 
     /**
@@ -2614,6 +2760,287 @@ public void getChildren(String path, boolean watch, Children2Callback cb, Object
         getChildren(path, getDefaultWatcher(watch), cb, ctx);
     }
 
+    /**
+     * For the given znode path return a page of its children, sorted by name,
+     * and its stat.
+     * <p>
+     * Unlike {@link #getChildren(String, Watcher, Stat)}, this does not read
+     * all the children in one response: pass the cursor of a page to read the
+     * next one, until {@link ChildrenPage#isLast()}. Only the children whose
+     * name starts with prefix are read. If minSequence or maxSequence is not
+     * negative, only the children named prefix followed by a sequence number
+     * in that range are read, as created with a sequential {@link CreateMode}.
+     * <p>
+     * If the watcher is non-null and the call is successful (no exception is
+     * thrown), a watch will be left on the node with the given path, like for
+     * {@link #getChildren(String, Watcher, Stat)}. It only needs to be set
+     * with the first page.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.9.0
+     *
+     * @param path the node path
+     * @param watcher explicit watcher
+     * @param prefix the prefix of the names of the children to read, or null
+     * @param minSequence the lowest sequence number of the children to read, or -1
+     * @param maxSequence the highest sequence number of the children to read, or -1
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param maxChildren the maximum number of children of the page, or 0
+     *                    for as many as fit in a response
+     * @return the page of the children of the node with the given path
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public ChildrenPage getChildrenPage(
+        final String path,
+        Watcher watcher,
+        String prefix,
+        long minSequence,
+        long maxSequence,
+        String cursor,
+        int maxChildren) throws KeeperException, InterruptedException {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPage);
+        GetChildrenPageRequest request = new GetChildrenPageRequest(
+            serverPath, watcher != null, prefix == null ? "" : prefix,
+            minSequence, maxSequence, cursor == null ? "" : cursor, maxChildren);
+        GetChildrenPageResponse response = new GetChildrenPageResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()), clientPath);
+        }
+        return new ChildrenPage(response.getChildren(), response.getStat(), response.getNextCursor());
+    }
+
+    /**
+     * Return a page of the children of the node of the given path whose name
+     * starts with prefix.
+     *
+     * @since 3.9.0
+     *
+     * @see #getChildrenPage(String, Watcher, String, long, long, String, int)
+     */
+    public ChildrenPage getChildrenPage(
+        String path,
+        boolean watch,
+        String prefix,
+        String cursor,
+        int maxChildren) throws KeeperException, InterruptedException {
+        return getChildrenPage(path, getDefaultWatcher(watch), prefix, -1, -1, cursor, maxChildren);
+    }
+
+    /**
+     * The asynchronous version of getChildrenPage.
+     *
+     * @since 3.9.0
+     *
+     * @see #getChildrenPage(String, Watcher, String, long, long, String, int)
+     */
+    public void getChildrenPage(
+        final String path,
+        Watcher watcher,
+        String prefix,
+        long minSequence,
+        long maxSequence,
+        String cursor,
+        int maxChildren,
+        ChildrenPageCallback cb,
+        Object ctx) {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPage);
+        GetChildrenPageRequest request = new GetChildrenPageRequest(
+            serverPath, watcher != null, prefix == null ? "" : prefix,
+            minSequence, maxSequence, cursor == null ? "" : cursor, maxChildren);
+        GetChildrenPageResponse response = new GetChildrenPageResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb);
+    }
+
+    /**
+     * Return the paths, data and stats of the nodes of the subtree of the
+     * given path, down to the given depth.
+     * <p>
+     * The nodes are read by chunks of about maxBytes, with one request per
+     * chunk, and returned in pre-order with the children of a node sorted by
+     * name. The nodes the client is not allowed to read are skipped with
+     * their subtree. Each chunk is read at one zxid, but the chunks may be
+     * read at different ones: a node changed during the call may be returned
+     * in its state before or after the change.
+     * <p>
+     * If the watcher is non-null and the call is successful (no exception is
+     * thrown), a persistent recursive watch is set on the node with the given
+     * path, like with {@link #addWatch(String, Watcher, AddWatchMode)}, in the
+     * same request as the first chunk. The watcher is notified of all the
+     * changes made to the subtree after the first chunk was read, so that a
+     * cache primed with the nodes returned and updated on the notifications
+     * is consistent with the server.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.9.0
+     *
+     * @param path the node path
+     * @param depth the number of levels to read below the node, or -1 for all
+     * @param maxBytes the size of a chunk, or 0 for as much as fits in a response
+     * @param watcher the persistent recursive watcher to set on the node, or null
+     * @return the nodes of the subtree
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public List<SubtreeChunk.Node> getSubtree(
+        String path,
+        int depth,
+        int maxBytes,
+        Watcher watcher) throws KeeperException, InterruptedException {
+        List<SubtreeChunk.Node> nodes = new ArrayList<>();
+        SubtreeChunk chunk = getSubtree(path, depth, maxBytes, null, watcher);
+        nodes.addAll(chunk.getNodes());
+        while (!chunk.isLast()) {
+            chunk = getSubtree(path, depth, maxBytes, chunk.getNextCursor(), null);
+            nodes.addAll(chunk.getNodes());
+        }
+        return nodes;
+    }
+
+    /**
+     * Return the paths, data and stats of the nodes of the subtree of the
+     * given path, down to the given depth.
+     *
+     * @since 3.9.0
+     *
+     * @see #getSubtree(String, int, int, Watcher)
+     */
+    public List<SubtreeChunk.Node> getSubtree(
+        String path,
+        int depth,
+        int maxBytes) throws KeeperException, InterruptedException {
+        return getSubtree(path, depth, maxBytes, null);
+    }
+
+    /**
+     * Return a chunk of the nodes of the subtree of the given path, down to
+     * the given depth: the first one if cursor is null, or the one after the
+     * chunk the cursor was returned with.
+     *
+     * @since 3.9.0
+     *
+     * @param path the node path
+     * @param depth the number of levels to read below the node, or -1 for all
+     * @param maxBytes the size of the chunk, or 0 for as much as fits in a response
+     * @param cursor the cursor of the previous chunk, or null for the first chunk
+     * @param watcher the persistent recursive watcher to set on the node, or null
+     * @return the chunk of the subtree
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     *
+     * @see #getSubtree(String, int, int, Watcher)
+     */
+    public SubtreeChunk getSubtree(
+        final String path,
+        int depth,
+        int maxBytes,
+        String cursor,
+        Watcher watcher) throws KeeperException, InterruptedException {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new AddWatchRegistration(watcher, clientPath, AddWatchMode.PERSISTENT_RECURSIVE);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getSubtree);
+        GetSubtreeRequest request = new GetSubtreeRequest(
+            serverPath, depth, maxBytes, cursor == null || cursor.isEmpty() ? "" : prependChroot(cursor), watcher != null, -1);
+        GetSubtreeResponse response = new GetSubtreeResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()), clientPath);
+        }
+        return SubtreeChunk.fromResponse(response, cnxn.chrootPath);
+    }
+
+    /**
+     * The asynchronous version of getSubtree, reading one chunk.
+     *
+     * @since 3.9.0
+     *
+     * @see #getSubtree(String, int, int, String, Watcher)
+     */
+    public void getSubtree(
+        final String path,
+        int depth,
+        int maxBytes,
+        String cursor,
+        Watcher watcher,
+        SubtreeCallback cb,
+        Object ctx) {
+        getSubtree(path, depth, maxBytes, cursor, -1, watcher, cb, ctx);
+    }
+
+    /**
+     * Read a chunk of a subtree, leaving out the data of the nodes not
+     * changed after sinceZxid: they are returned with a null data.
+     */
+    void getSubtree(
+        final String path,
+        int depth,
+        int maxBytes,
+        String cursor,
+        long sinceZxid,
+        Watcher watcher,
+        SubtreeCallback cb,
+        Object ctx) {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new AddWatchRegistration(watcher, clientPath, AddWatchMode.PERSISTENT_RECURSIVE);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getSubtree);
+        GetSubtreeRequest request = new GetSubtreeRequest(
+            serverPath, depth, maxBytes, cursor == null || cursor.isEmpty() ? "" : prependChroot(cursor), watcher != null, sinceZxid);
+        GetSubtreeResponse response = new GetSubtreeResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, wcb);
+    }
+
     /**
      * Synchronously gets all numbers of children nodes under a specific path
      *
@@ -22,7 +22,10 @@
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -68,6 +71,22 @@ public class DataNode implements Record {
 
     private static final Set<String> EMPTY_SET = Collections.emptySet();
 
+    /**
+     * the children sorted by name, to read them by page. It is only built on
+     * the first page read from this node, and then kept along with the
+     * children.
+     */
+    private TreeSet<String> sortedChildren = null;
+
+    /**
+     * the number of nodes in the subtree of this node, itself excluded. It is
+     * maintained by the DataTree, and is not persisted.
+     */
+    private volatile int descendants;
+
+    private static final AtomicIntegerFieldUpdater<DataNode> DESCENDANTS =
+        AtomicIntegerFieldUpdater.newUpdater(DataNode.class, "descendants");
+
     /**
      * default constructor for the datanode
      */
@@ -103,7 +122,11 @@ public synchronized boolean addChild(String child) {
             // let's be conservative on the typical number of children
             children = new HashSet<String>(8);
         }
-        return children.add(child);
+        boolean added = children.add(child);
+        if (added && sortedChildren != null) {
+            sortedChildren.add(child);
+        }
+        return added;
     }
 
     /**
@@ -116,7 +139,11 @@ public synchronized boolean removeChild(String child) {
         if (children == null) {
             return false;
         }
-        return children.remove(child);
+        boolean removed = children.remove(child);
+        if (removed && sortedChildren != null) {
+            sortedChildren.remove(child);
+        }
+        return removed;
     }
 
     /**
@@ -126,6 +153,7 @@ public synchronized boolean removeChild(String child) {
      */
     public synchronized void setChildren(HashSet<String> children) {
         this.children = children;
+        this.sortedChildren = null;
     }
 
     /**
@@ -142,6 +170,30 @@ public synchronized Set<String> getChildren() {
         return Collections.unmodifiableSet(children);
     }
 
+    /**
+     * Returns the children sorted by name, building the sorted index on the
+     * first call. The caller must hold the lock of this node while it reads
+     * them.
+     */
+    synchronized NavigableSet<String> getSortedChildren() {
+        if (sortedChildren == null) {
+            sortedChildren = children == null ? new TreeSet<>() : new TreeSet<>(children);
+        }
+        return Collections.unmodifiableNavigableSet(sortedChildren);
+    }
+
+    int getDescendants() {
+        return descendants;
+    }
+
+    void setDescendants(int descendants) {
+        this.descendants = descendants;
+    }
+
+    void addDescendants(int delta) {
+        DESCENDANTS.addAndGet(this, delta);
+    }
+
     public synchronized void copyStat(Stat to) {
         to.setAversion(stat.getAversion());
         to.setCtime(stat.getCtime());
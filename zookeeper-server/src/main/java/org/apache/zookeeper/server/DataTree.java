@@ -29,10 +29,16 @@
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
@@ -57,6 +63,7 @@
 import org.apache.zookeeper.audit.ZKAuditProvider;
 import org.apache.zookeeper.common.PathTrie;
 import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
@@ -152,7 +159,7 @@ public class DataTree {
     /**
      * This hashtable lists the paths of the ephemeral nodes of a session.
      */
-    private final Map<Long, HashSet<String>> ephemerals = new ConcurrentHashMap<Long, HashSet<String>>();
+    private final Map<Long, TreeSet<String>> ephemerals = new ConcurrentHashMap<Long, TreeSet<String>>();
 
     /**
      * This set contains the paths of all container nodes
@@ -185,24 +192,51 @@ public class DataTree {
     // Will be notified when digest mismatch event triggered.
     private final List<DigestWatcher> digestWatchers = new ArrayList<>();
 
+    // Notified of every change made to a node.
+    private final List<NodeChangeListener> nodeChangeListeners = new CopyOnWriteArrayList<>();
+
     // The historical digests list.
     private LinkedList<ZxidDigest> digestLog = new LinkedList<>();
 
     private final DigestCalculator digestCalculator;
 
-    @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
-        HashSet<String> retv = ephemerals.get(sessionId);
+        TreeSet<String> retv = ephemerals.get(sessionId);
         if (retv == null) {
             return new HashSet<String>();
         }
         Set<String> cloned = null;
         synchronized (retv) {
-            cloned = (HashSet<String>) retv.clone();
+            cloned = new HashSet<String>(retv);
         }
         return cloned;
     }
 
+    /**
+     * The ephemerals of a session are sorted by path, so the ones starting
+     * with a prefix are found without scanning the others.
+     *
+     * @param sessionId the owner of the ephemerals
+     * @param prefixPath the prefix of the paths, not necessarily a znode
+     * @return the paths of the ephemerals of the session starting with prefixPath
+     */
+    public List<String> getEphemerals(long sessionId, String prefixPath) {
+        TreeSet<String> retv = ephemerals.get(sessionId);
+        if (retv == null) {
+            return new ArrayList<String>();
+        }
+        List<String> paths = new ArrayList<String>();
+        synchronized (retv) {
+            for (String path : retv.tailSet(prefixPath, true)) {
+                if (!path.startsWith(prefixPath)) {
+                    break;
+                }
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
     public Set<String> getContainers() {
         return new HashSet<String>(containers);
     }
@@ -229,7 +263,7 @@ public int getWatchCount() {
 
     public int getEphemeralsCount() {
         int result = 0;
-        for (HashSet<String> set : ephemerals.values()) {
+        for (TreeSet<String> set : ephemerals.values()) {
             result += set.size();
         }
         return result;
@@ -300,6 +334,7 @@ public DataTree() {
 
         addConfigNode();
 
+        countDescendants("", root);
         nodeDataSize.set(approximateDataSize());
         try {
             dataWatches = WatchManagerFactory.createWatchManager();
@@ -322,7 +357,9 @@ public void addConfigNode() {
             assert false : "There's no /zookeeper znode - this should never happen.";
         }
 
-        nodes.put(configZookeeper, new DataNode(new byte[0], -1L, new StatPersisted()));
+        if (nodes.put(configZookeeper, new DataNode(new byte[0], -1L, new StatPersisted())) == null) {
+            addDescendants(procZookeeper, zookeeperZnode, 1);
+        }
         try {
             // Reconfig node is access controlled by default (ZOOKEEPER-2014).
             setACL(configZookeeper, ZooDefs.Ids.READ_ACL_UNSAFE, -1);
@@ -488,15 +525,16 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             nodes.postChange(parentName, parent);
             nodeDataSize.addAndGet(getNodeSize(path, child.data));
             nodes.put(path, child);
+            addDescendants(parentName, parent, 1);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
                 containers.add(path);
             } else if (ephemeralType == EphemeralType.TTL) {
                 ttls.add(path);
             } else if (ephemeralOwner != 0) {
-                HashSet<String> list = ephemerals.get(ephemeralOwner);
+                TreeSet<String> list = ephemerals.get(ephemeralOwner);
                 if (list == null) {
-                    list = new HashSet<String>();
+                    list = new TreeSet<String>();
                     ephemerals.put(ephemeralOwner, list);
                 }
                 synchronized (list) {
@@ -527,6 +565,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             updateQuotaStat(lastPrefix, bytes, 1);
         }
         updateWriteStat(path, bytes);
+        nodeChanged(parentName);
         dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
         childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged);
     }
@@ -569,6 +608,7 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
             throw new KeeperException.NoNodeException();
         }
         nodes.remove(path);
+        addDescendants(parentName, parent, -1 - node.getDescendants());
         synchronized (node) {
             aclCache.removeUsage(node.acl);
             nodeDataSize.addAndGet(-getNodeSize(path, node.data));
@@ -612,6 +652,8 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
         }
 
         updateWriteStat(path, 0L);
+        nodeChanged(path);
+        nodeChanged(parentName);
 
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
@@ -658,6 +700,7 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastdata));
 
         updateWriteStat(path, dataBytes);
+        nodeChanged(path);
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
         return s;
     }
@@ -746,13 +789,151 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
         return children;
     }
 
+    /**
+     * Reads a page of the children of a node, in the order of their names.
+     *
+     * @param path the path of the node
+     * @param prefix only the children whose name starts with it are read
+     * @param minSequence if not negative, only the children named prefix
+     *                    followed by a sequence number of at least minSequence
+     *                    are read
+     * @param maxSequence if not negative, only the children named prefix
+     *                    followed by a sequence number of at most maxSequence
+     *                    are read
+     * @param cursor the page starts after the child of this name, or at the
+     *               first child if it is null or empty
+     * @param maxChildren the maximum number of children of the page, unbounded
+     *                    if not positive
+     * @param maxBytes the maximum total length of the names of the page,
+     *                 counting the 4 bytes of length of each name; the page
+     *                 holds at least one child anyway
+     * @param children the list the children of the page are added to
+     * @param stat the stat of the node is copied into it, if not null
+     * @param watcher the child watcher to set on the node, if not null
+     * @return the cursor of the next page, or an empty string if there is none
+     */
+    public String getChildrenPage(
+        String path,
+        String prefix,
+        long minSequence,
+        long maxSequence,
+        String cursor,
+        int maxChildren,
+        int maxBytes,
+        List<String> children,
+        Stat stat,
+        Watcher watcher) throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        if (prefix == null) {
+            prefix = "";
+        }
+        boolean sequenceRange = minSequence >= 0 || maxSequence >= 0;
+        String from = minSequence >= 0 ? prefix + sequenceSuffix(minSequence) : prefix;
+        String to = maxSequence >= 0 ? prefix + sequenceSuffix(maxSequence) : null;
+        boolean fromInclusive = true;
+        if (cursor != null && !cursor.isEmpty() && cursor.compareTo(from) >= 0) {
+            from = cursor;
+            fromInclusive = false;
+        }
+
+        String nextCursor = "";
+        int bytes = 0;
+        synchronized (n) {
+            if (stat != null) {
+                n.copyStat(stat);
+            }
+            if (to == null || from.compareTo(to) <= 0) {
+                for (String child : n.getSortedChildren().tailSet(from, fromInclusive)) {
+                    if (!child.startsWith(prefix) || (to != null && child.compareTo(to) > 0)) {
+                        break;
+                    }
+                    if (sequenceRange && !isSequenceSuffix(child, prefix.length())) {
+                        continue;
+                    }
+                    if (!children.isEmpty()
+                        && ((maxChildren > 0 && children.size() >= maxChildren)
+                            || bytes + 4 + child.length() > maxBytes)) {
+                        nextCursor = children.get(children.size() - 1);
+                        break;
+                    }
+                    children.add(child);
+                    bytes += 4 + child.length();
+                }
+            }
+
+            if (watcher != null) {
+                childWatches.addWatch(path, watcher);
+            }
+        }
+
+        updateReadStat(path, bytes);
+
+        return nextCursor;
+    }
+
+    private static String sequenceSuffix(long sequence) {
+        return String.format(Locale.ENGLISH, "%010d", sequence);
+    }
+
+    private static boolean isSequenceSuffix(String name, int start) {
+        if (name.length() - start != 10) {
+            return false;
+        }
+        for (int i = start; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int getAllChildrenNumber(String path) {
         //cull out these two keys:"", "/"
         if ("/".equals(path)) {
             return nodes.size() - 2;
         }
 
-        return (int) nodes.entrySet().parallelStream().filter(entry -> entry.getKey().startsWith(path + "/")).count();
+        DataNode node = nodes.get(path);
+        return node == null ? 0 : node.getDescendants();
+    }
+
+    /**
+     * Add delta to the number of descendants of a node and of its ancestors.
+     */
+    private void addDescendants(String path, DataNode node, int delta) {
+        String ancestorPath = path;
+        DataNode ancestor = node;
+        while (ancestor != null) {
+            ancestor.addDescendants(delta);
+            int lastSlash = ancestorPath.lastIndexOf('/');
+            if (lastSlash == -1) {
+                break;
+            }
+            ancestorPath = ancestorPath.substring(0, lastSlash);
+            ancestor = nodes.get(ancestorPath);
+        }
+    }
+
+    /**
+     * Set the number of descendants of a node and of the nodes of its
+     * subtree, once the tree is loaded.
+     *
+     * @return the number of descendants of the node
+     */
+    private int countDescendants(String path, DataNode node) {
+        int count = 0;
+        for (String child : node.getChildren()) {
+            String childPath = path + "/" + child;
+            DataNode childNode = nodes.get(childPath);
+            if (childNode != null) {
+                count += 1 + countDescendants(childPath, childNode);
+            }
+        }
+        node.setDescendants(count);
+        return count;
     }
 
     public Stat setACL(String path, List<ACL> acl, int version) throws KeeperException.NoNodeException {
@@ -768,8 +949,9 @@ public Stat setACL(String path, List<ACL> acl, int version) throws KeeperExcepti
             n.acl = aclCache.convertAcls(acl);
             n.copyStat(stat);
             nodes.postChange(path, n);
-            return stat;
         }
+        nodeChanged(path);
+        return stat;
     }
 
     public List<ACL> getACL(String path, Stat stat) throws KeeperException.NoNodeException {
@@ -1102,21 +1284,76 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTx
              * case where the snapshot contains data ahead of the zxid associated
              * with the file.
              */
-            if (rc.zxid > lastProcessedZxid) {
-                lastProcessedZxid = rc.zxid;
-            }
-
-            if (digestFromLoadedSnapshot != null) {
-                compareSnapshotDigests(rc.zxid);
-            } else {
-                // only start recording digest when we're not in fuzzy state
-                logZxidDigest(rc.zxid, getTreeDigest());
-            }
+            txnProcessed(rc.zxid);
         }
 
         return rc;
     }
 
+    private void txnProcessed(long zxid) {
+        if (zxid > lastProcessedZxid) {
+            lastProcessedZxid = zxid;
+        }
+
+        if (digestFromLoadedSnapshot != null) {
+            compareSnapshotDigests(zxid);
+        } else {
+            // only start recording digest when we're not in fuzzy state
+            logZxidDigest(zxid, getTreeDigest());
+        }
+    }
+
+    /**
+     * Apply a txn to the tree, concurrently with txns touching other nodes,
+     * without updating the last processed zxid. It has to be completed with
+     * {@link #completeTxn(TxnHeader, Record, TxnDigest, boolean)} once the
+     * txns before it are applied.
+     */
+    public ProcessTxnResult applyTxn(TxnHeader header, Record txn) {
+        return processTxn(header, txn, true);
+    }
+
+    /**
+     * Complete a txn applied by {@link #applyTxn(TxnHeader, Record)}, in zxid
+     * order.
+     *
+     * @param treeAtTxn whether no txn after this one is applied yet, so the
+     *                  digest of the tree is the one expected after the txn.
+     *                  The digests are only recorded and compared then, since
+     *                  the digest of the tree is the sum of the digests of
+     *                  the nodes, a mismatch still shows at the next one.
+     *                  The txn of the digest of the loaded snapshot has to
+     *                  be completed with the tree at it, see
+     *                  {@link #isSnapshotDigestZxid(long)}.
+     */
+    public void completeTxn(TxnHeader header, Record txn, TxnDigest digest, boolean treeAtTxn) {
+        if (treeAtTxn) {
+            txnProcessed(header.getZxid());
+            compareDigest(header, txn, digest);
+            return;
+        }
+        if (header.getZxid() > lastProcessedZxid) {
+            lastProcessedZxid = header.getZxid();
+        }
+        if (digestFromLoadedSnapshot != null && header.getZxid() == digestFromLoadedSnapshot.zxid) {
+            // the tree is already ahead of the txn, the snapshot digest can
+            // no longer be compared
+            LOG.warn("Txn 0x{} of the snapshot digest was applied with the txns after it, not comparing it.",
+                Long.toHexString(header.getZxid()));
+            digestFromLoadedSnapshot = null;
+        }
+    }
+
+    /**
+     * Whether the digest of the loaded snapshot is still to be compared with
+     * the tree after the txn of the given zxid. Such a txn cannot be applied
+     * with the txns after it.
+     */
+    public boolean isSnapshotDigestZxid(long zxid) {
+        ZxidDigest snapshotDigest = digestFromLoadedSnapshot;
+        return snapshotDigest != null && snapshotDigest.zxid == zxid;
+    }
+
     void killSession(long session, long zxid) {
         // the list is already removed from the ephemerals
         // so we do not have to worry about synchronizing on
@@ -1300,6 +1537,10 @@ private void setupQuota() {
      * @throws IOException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
+        serializeNode(oa, path, null, true);
+    }
+
+    private void serializeNode(OutputArchive oa, StringBuilder path, SnapshotChunkWriter chunks, boolean recursive) throws IOException {
         String pathString = path.toString();
         DataNode node = getNode(pathString);
         if (node == null) {
@@ -1316,7 +1557,16 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
         }
+        if (chunks != null) {
+            chunks.nodeWriting(pathString, nodeCopy);
+        }
         serializeNodeData(oa, pathString, nodeCopy);
+        if (chunks != null) {
+            chunks.nodeWritten();
+        }
+        if (!recursive) {
+            return;
+        }
         path.append('/');
         int off = path.length();
         for (String child : children) {
@@ -1325,7 +1575,7 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             // to truncate the previous bytes of string.
             path.delete(off, Integer.MAX_VALUE);
             path.append(child);
-            serializeNode(oa, path);
+            serializeNode(oa, path, chunks, true);
         }
     }
 
@@ -1353,6 +1603,159 @@ public void serialize(OutputArchive oa, String tag) throws IOException {
         serializeNodes(oa);
     }
 
+    /**
+     * Serialize the tree in independently decodable chunks, see
+     * {@link SnapshotChunkWriter} for the layout. The chunks can be decoded in
+     * parallel by {@link #deserializeChunked(InputArchive, ExecutorService)}.
+     *
+     * @param oa the output archive to write to
+     * @param chunkSize the number of bytes after which a chunk is closed
+     */
+    public void serializeChunked(OutputArchive oa, int chunkSize) throws IOException {
+        serializeAcls(oa);
+        SnapshotChunkWriter chunks = new SnapshotChunkWriter(oa, chunkSize);
+        serializeNode(chunks.getArchive(), new StringBuilder(), chunks, true);
+        chunks.finish();
+    }
+
+    /**
+     * @return the names of the children of the root node, used to partition
+     * the tree by top level subtree
+     */
+    public List<String> getTopLevelChildren() {
+        synchronized (root) {
+            return new ArrayList<>(root.getChildren());
+        }
+    }
+
+    /**
+     * Serialize the ACLs and the root node, without its children, in the
+     * chunked layout. The subtrees of the root are serialized separately with
+     * {@link #serializePartition(OutputArchive, Collection, int)}.
+     */
+    public void serializePartitionHead(OutputArchive oa, int chunkSize) throws IOException {
+        serializeAcls(oa);
+        SnapshotChunkWriter chunks = new SnapshotChunkWriter(oa, chunkSize);
+        serializeNode(chunks.getArchive(), new StringBuilder(), chunks, false);
+        chunks.finish();
+    }
+
+    /**
+     * Serialize the given top level subtrees in the chunked layout. Distinct
+     * partitions can be serialized concurrently, like the serial snapshot
+     * the result is fuzzy and made consistent by replaying the txn log.
+     *
+     * @param oa the output archive to write to
+     * @param topLevelChildren the names of the children of the root to write
+     * @param chunkSize the number of bytes after which a chunk is closed
+     * @return the number of nodes written
+     */
+    public long serializePartition(OutputArchive oa, Collection<String> topLevelChildren, int chunkSize) throws IOException {
+        SnapshotChunkWriter chunks = new SnapshotChunkWriter(oa, chunkSize);
+        for (String child : topLevelChildren) {
+            serializeNode(chunks.getArchive(), new StringBuilder("/").append(child), chunks, true);
+        }
+        chunks.finish();
+        return chunks.getNodeCount();
+    }
+
+    /**
+     * Restore the tree from the chunked layout written by
+     * {@link #serializeChunked(OutputArchive, int)}. The chunks are read
+     * sequentially from the archive and decoded on the given executor while
+     * the following ones are still being read. Parent/child links, the
+     * ephemeral indexes and the digest are then assembled in snapshot order.
+     */
+    public void deserializeChunked(InputArchive ia, ExecutorService executor) throws IOException {
+        deserializeAcls(ia);
+        long startTime = Time.currentElapsedTime();
+        List<Future<List<SnapshotChunkWriter.DecodedChunk>>> decoded = readChunks(ia, executor);
+        ServerMetrics.getMetrics().STARTUP_SNAP_CHUNKS.add(decoded.size());
+        ServerMetrics.getMetrics().STARTUP_SNAP_CHUNK_READ_TIME.add(Time.currentElapsedTime() - startTime);
+        restoreChunks(decoded);
+    }
+
+    /**
+     * Clear the tree and read the ACL cache, the first step of restoring a
+     * chunked or partitioned snapshot.
+     */
+    public void deserializeAcls(InputArchive ia) throws IOException {
+        aclCache.deserialize(ia);
+        nodes.clear();
+        pTrie.clear();
+        nodeDataSize.set(0);
+    }
+
+    /**
+     * Read the chunks which follow in the archive, each one is decoded by a
+     * task submitted to the executor.
+     */
+    public List<Future<List<SnapshotChunkWriter.DecodedChunk>>> readChunks(
+        InputArchive ia,
+        ExecutorService executor) throws IOException {
+        List<Future<List<SnapshotChunkWriter.DecodedChunk>>> decoded = new ArrayList<>();
+        int chunkNodeCount = ia.readInt("count");
+        while (chunkNodeCount != SnapshotChunkWriter.END_OF_CHUNKS) {
+            final int count = chunkNodeCount;
+            final byte[] chunk = ia.readBuffer("chunk");
+            decoded.add(executor.submit(
+                () -> Collections.singletonList(SnapshotChunkWriter.decode(chunk, count, digestCalculator))));
+            chunkNodeCount = ia.readInt("count");
+        }
+        SnapshotChunkWriter.readIndex(ia, decoded.size());
+        return decoded;
+    }
+
+    /**
+     * Read and decode all the chunks which follow in the archive in the
+     * calling thread, used to read a whole segment of a partitioned snapshot.
+     */
+    public List<SnapshotChunkWriter.DecodedChunk> decodeChunks(InputArchive ia) throws IOException {
+        List<SnapshotChunkWriter.DecodedChunk> decoded = new ArrayList<>();
+        int chunkNodeCount = ia.readInt("count");
+        while (chunkNodeCount != SnapshotChunkWriter.END_OF_CHUNKS) {
+            decoded.add(SnapshotChunkWriter.decode(ia.readBuffer("chunk"), chunkNodeCount, digestCalculator));
+            chunkNodeCount = ia.readInt("count");
+        }
+        SnapshotChunkWriter.readIndex(ia, decoded.size());
+        return decoded;
+    }
+
+    /**
+     * Wait for the decoded chunks and link them into the tree, in the order
+     * of the list. A parent must come before its children.
+     */
+    public void restoreChunks(List<Future<List<SnapshotChunkWriter.DecodedChunk>>> decoded) throws IOException {
+        long startTime = Time.currentElapsedTime();
+        List<List<SnapshotChunkWriter.DecodedChunk>> chunks = new ArrayList<>(decoded.size());
+        try {
+            for (Future<List<SnapshotChunkWriter.DecodedChunk>> future : decoded) {
+                chunks.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding snapshot chunks", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to decode snapshot chunk", e.getCause());
+        } finally {
+            for (Future<List<SnapshotChunkWriter.DecodedChunk>> future : decoded) {
+                future.cancel(true);
+            }
+        }
+        long decodeTime = Time.currentElapsedTime();
+        ServerMetrics.getMetrics().STARTUP_SNAP_CHUNK_DECODE_TIME.add(decodeTime - startTime);
+
+        for (List<SnapshotChunkWriter.DecodedChunk> list : chunks) {
+            for (SnapshotChunkWriter.DecodedChunk chunk : list) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    addDeserializedNode(chunk.getPath(i), chunk.getNode(i));
+                }
+            }
+        }
+        finishDeserialize();
+        ServerMetrics.getMetrics().STARTUP_SNAP_TREE_ASSEMBLE_TIME.add(Time.currentElapsedTime() - decodeTime);
+    }
+
     public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.deserialize(ia);
         nodes.clear();
@@ -1362,45 +1765,54 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
-            synchronized (node) {
-                aclCache.addUsage(node.acl);
+            addDeserializedNode(path, node);
+            path = ia.readString("path");
+        }
+        finishDeserialize();
+    }
+
+    private void addDeserializedNode(String path, DataNode node) throws IOException {
+        nodes.put(path, node);
+        synchronized (node) {
+            aclCache.addUsage(node.acl);
+        }
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            root = node;
+        } else {
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find "
+                                      + "parent "
+                                      + parentPath
+                                      + " of path "
+                                      + path);
             }
-            int lastSlash = path.lastIndexOf('/');
-            if (lastSlash == -1) {
-                root = node;
-            } else {
-                String parentPath = path.substring(0, lastSlash);
-                DataNode parent = nodes.get(parentPath);
-                if (parent == null) {
-                    throw new IOException("Invalid Datatree, unable to find "
-                                          + "parent "
-                                          + parentPath
-                                          + " of path "
-                                          + path);
-                }
-                parent.addChild(path.substring(lastSlash + 1));
-                long eowner = node.stat.getEphemeralOwner();
-                EphemeralType ephemeralType = EphemeralType.get(eowner);
-                if (ephemeralType == EphemeralType.CONTAINER) {
-                    containers.add(path);
-                } else if (ephemeralType == EphemeralType.TTL) {
-                    ttls.add(path);
-                } else if (eowner != 0) {
-                    HashSet<String> list = ephemerals.get(eowner);
-                    if (list == null) {
-                        list = new HashSet<String>();
-                        ephemerals.put(eowner, list);
-                    }
-                    list.add(path);
+            parent.addChild(path.substring(lastSlash + 1));
+            long eowner = node.stat.getEphemeralOwner();
+            EphemeralType ephemeralType = EphemeralType.get(eowner);
+            if (ephemeralType == EphemeralType.CONTAINER) {
+                containers.add(path);
+            } else if (ephemeralType == EphemeralType.TTL) {
+                ttls.add(path);
+            } else if (eowner != 0) {
+                TreeSet<String> list = ephemerals.get(eowner);
+                if (list == null) {
+                    list = new TreeSet<String>();
+                    ephemerals.put(eowner, list);
                 }
+                list.add(path);
             }
-            path = ia.readString("path");
         }
+    }
+
+    private void finishDeserialize() {
         // have counted digest for root node with "", ignore here to avoid
         // counting twice for root node
         nodes.putWithoutDigest("/", root);
 
+        countDescendants("", root);
         nodeDataSize.set(approximateDataSize());
 
         // we are done with deserializing the
@@ -1465,7 +1877,7 @@ public synchronized WatchesSummary getWatchesSummary() {
      */
     public void dumpEphemerals(PrintWriter pwriter) {
         pwriter.println("Sessions with Ephemerals (" + ephemerals.keySet().size() + "):");
-        for (Entry<Long, HashSet<String>> entry : ephemerals.entrySet()) {
+        for (Entry<Long, TreeSet<String>> entry : ephemerals.entrySet()) {
             pwriter.print("0x" + Long.toHexString(entry.getKey()));
             pwriter.println(":");
             Set<String> tmp = entry.getValue();
@@ -1491,7 +1903,7 @@ public void shutdownWatcher() {
      */
     public Map<Long, Set<String>> getEphemerals() {
         Map<Long, Set<String>> ephemeralsCopy = new HashMap<Long, Set<String>>();
-        for (Entry<Long, HashSet<String>> e : ephemerals.entrySet()) {
+        for (Entry<Long, TreeSet<String>> e : ephemerals.entrySet()) {
             synchronized (e.getValue()) {
                 ephemeralsCopy.put(e.getKey(), new HashSet<String>(e.getValue()));
             }
@@ -1580,6 +1992,7 @@ public void setCversionPzxid(String path, int newCversion, long zxid) throws Kee
                 nodes.postChange(path, node);
             }
         }
+        nodeChanged(path);
     }
 
     public boolean containsWatcher(String path, WatcherType type, Watcher watcher) {
@@ -1852,6 +2265,31 @@ public void addDigestWatcher(DigestWatcher digestWatcher) {
         digestWatchers.add(digestWatcher);
     }
 
+    /**
+     * Add a listener notified after each change made to a node.
+     *
+     * @param listener the listener to add
+     */
+    public void addNodeChangeListener(NodeChangeListener listener) {
+        nodeChangeListeners.add(listener);
+    }
+
+    public void removeNodeChangeListener(NodeChangeListener listener) {
+        nodeChangeListeners.remove(listener);
+    }
+
+    private void nodeChanged(String path) {
+        if (nodeChangeListeners.isEmpty()) {
+            return;
+        }
+        if (path.isEmpty()) {
+            path = rootZookeeper;
+        }
+        for (NodeChangeListener listener : nodeChangeListeners) {
+            listener.nodeChanged(path);
+        }
+    }
+
     /**
      * Return all the digests in the historical digest list.
      */
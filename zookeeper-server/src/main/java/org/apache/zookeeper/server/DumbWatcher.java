@@ -39,7 +39,11 @@ public DumbWatcher() {
     }
 
     public DumbWatcher(long sessionId) {
-        super(null);
+        this(null, sessionId);
+    }
+
+    public DumbWatcher(ZooKeeperServer zkServer, long sessionId) {
+        super(zkServer);
         this.sessionId = sessionId;
     }
 
@@ -25,7 +25,8 @@
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.NavigableSet;
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.KeeperException;
@@ -63,18 +64,23 @@
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageRequest;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
 import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.GetEphemeralsRequest;
 import org.apache.zookeeper.proto.GetEphemeralsResponse;
+import org.apache.zookeeper.proto.GetSubtreeRequest;
+import org.apache.zookeeper.proto.GetSubtreeResponse;
 import org.apache.zookeeper.proto.RemoveWatchesRequest;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataResponse;
 import org.apache.zookeeper.proto.SetWatches;
 import org.apache.zookeeper.proto.SetWatches2;
+import org.apache.zookeeper.proto.SubtreeNode;
 import org.apache.zookeeper.proto.SyncRequest;
 import org.apache.zookeeper.proto.SyncResponse;
 import org.apache.zookeeper.proto.WhoAmIResponse;
@@ -99,6 +105,24 @@ public class FinalRequestProcessor implements RequestProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(FinalRequestProcessor.class);
 
+    /**
+     * The size of the names of a page of children, so that the response fits
+     * in jute.maxbuffer even with names of 3 bytes per character in UTF-8.
+     */
+    static final int MAX_CHILDREN_PAGE_BYTES = BinaryInputArchive.maxBuffer / 4;
+
+    /**
+     * The size of a chunk of subtree, leaving room in jute.maxbuffer for the
+     * node which does not fit in it, since a chunk holds at least one node.
+     */
+    static final int MAX_SUBTREE_CHUNK_BYTES = BinaryInputArchive.maxBuffer / 2;
+
+    /**
+     * The serialized size of a node of subtree besides its path and data: the
+     * stat and the lengths of the path and data.
+     */
+    private static final int SUBTREE_NODE_OVERHEAD = 76;
+
     private final RequestPathMetricsCollector requestPathMetricsCollector;
 
     ZooKeeperServer zks;
@@ -355,6 +379,13 @@ public void processRequest(Request request) {
                 requestPathMetricsCollector.registerRequest(request.type, syncRequest.getPath());
                 break;
             }
+            case OpCode.readIndex: {
+                lastOp = "RIDX";
+                SyncRequest syncRequest = new SyncRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request, syncRequest);
+                rsp = new SyncResponse(syncRequest.getPath());
+                break;
+            }
             case OpCode.check: {
                 lastOp = "CHEC";
                 rsp = new SetDataResponse(rc.stat);
@@ -521,6 +552,47 @@ public void processRequest(Request request) {
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
+            case OpCode.getChildrenPage: {
+                lastOp = "GETP";
+                GetChildrenPageRequest getChildrenPageRequest = new GetChildrenPageRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request, getChildrenPageRequest);
+                Stat stat = new Stat();
+                path = getChildrenPageRequest.getPath();
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                zks.checkACL(
+                    request.cnxn,
+                    zks.getZKDatabase().aclForNode(n),
+                    ZooDefs.Perms.READ,
+                    request.authInfo, path,
+                    null);
+                List<String> children = new ArrayList<>();
+                String nextCursor = zks.getZKDatabase().getChildrenPage(
+                    path,
+                    getChildrenPageRequest.getPrefix(),
+                    getChildrenPageRequest.getMinSequence(),
+                    getChildrenPageRequest.getMaxSequence(),
+                    getChildrenPageRequest.getCursor(),
+                    getChildrenPageRequest.getMaxChildren(),
+                    MAX_CHILDREN_PAGE_BYTES,
+                    children,
+                    stat,
+                    getChildrenPageRequest.getWatch() ? cnxn : null);
+                rsp = new GetChildrenPageResponse(children, stat, nextCursor);
+                requestPathMetricsCollector.registerRequest(request.type, path);
+                break;
+            }
+            case OpCode.getSubtree: {
+                lastOp = "GETT";
+                GetSubtreeRequest getSubtreeRequest = new GetSubtreeRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request, getSubtreeRequest);
+                path = getSubtreeRequest.getPath();
+                rsp = handleGetSubtreeRequest(getSubtreeRequest, cnxn, request.authInfo);
+                requestPathMetricsCollector.registerRequest(request.type, path);
+                break;
+            }
             case OpCode.checkWatches: {
                 lastOp = "CHKW";
                 CheckWatchesRequest checkWatches = new CheckWatchesRequest();
@@ -559,17 +631,10 @@ public void processRequest(Request request) {
                 GetEphemeralsRequest getEphemerals = new GetEphemeralsRequest();
                 ByteBufferInputStream.byteBuffer2Record(request.request, getEphemerals);
                 String prefixPath = getEphemerals.getPrefixPath();
-                Set<String> allEphems = zks.getZKDatabase().getDataTree().getEphemerals(request.sessionId);
-                List<String> ephemerals = new ArrayList<>();
                 if (prefixPath == null || prefixPath.trim().isEmpty() || "/".equals(prefixPath.trim())) {
-                    ephemerals.addAll(allEphems);
-                } else {
-                    for (String p : allEphems) {
-                        if (p.startsWith(prefixPath)) {
-                            ephemerals.add(p);
-                        }
-                    }
+                    prefixPath = "";
                 }
+                List<String> ephemerals = zks.getZKDatabase().getDataTree().getEphemerals(request.sessionId, prefixPath);
                 rsp = new GetEphemeralsResponse(ephemerals);
                 break;
             }
@@ -668,6 +733,160 @@ private Record handleGetDataRequest(Record request, ServerCnxn cnxn, List<Id> au
         return new GetDataResponse(b, stat);
     }
 
+    private Record handleGetSubtreeRequest(GetSubtreeRequest request, ServerCnxn cnxn, List<Id> authInfo) throws KeeperException, IOException {
+        String path = request.getPath();
+        DataNode n = zks.getZKDatabase().getNode(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        zks.checkACL(cnxn, zks.getZKDatabase().aclForNode(n), ZooDefs.Perms.READ, authInfo, path, null);
+        String cursor = request.getCursor();
+        String[] cursorNames = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            String base = path.equals("/") ? "" : path;
+            if (cursor.equals(path)) {
+                cursorNames = new String[0];
+            } else if (cursor.startsWith(base + "/")) {
+                cursorNames = cursor.substring(base.length() + 1).split("/");
+            } else {
+                throw new KeeperException.BadArgumentsException(path);
+            }
+        }
+        if (request.getWatch()) {
+            // set before reading, so that the client is notified of any
+            // change made after the chunk was read
+            zks.getZKDatabase().addWatch(path, cnxn, ZooDefs.AddWatchModes.persistentRecursive);
+        }
+
+        int maxBytes = request.getMaxBytes() > 0
+            ? Math.min(request.getMaxBytes(), MAX_SUBTREE_CHUNK_BYTES)
+            : MAX_SUBTREE_CHUNK_BYTES;
+        SubtreeChunkReader reader = new SubtreeChunkReader(
+            cnxn, authInfo, request.getDepth(), maxBytes, request.getSinceZxid());
+        if (cursorNames == null) {
+            reader.read(path, 0);
+        } else {
+            reader.resume(path, 0, cursorNames, 0);
+        }
+        return new GetSubtreeResponse(reader.nodes, reader.nextCursor, zks.getZKDatabase().getDataTreeLastProcessedZxid());
+    }
+
+    /**
+     * Reads a chunk of a subtree, in pre-order with the children sorted by
+     * name. The nodes the client may not read are skipped with their subtree.
+     */
+    private class SubtreeChunkReader {
+
+        private final ServerCnxn cnxn;
+        private final List<Id> authInfo;
+        private final int depth;
+        private final int maxBytes;
+        private final long sinceZxid;
+
+        private final List<SubtreeNode> nodes = new ArrayList<>();
+        private int bytes;
+        private String nextCursor = "";
+
+        SubtreeChunkReader(ServerCnxn cnxn, List<Id> authInfo, int depth, int maxBytes, long sinceZxid) {
+            this.cnxn = cnxn;
+            this.authInfo = authInfo;
+            this.depth = depth;
+            this.maxBytes = maxBytes;
+            this.sinceZxid = sinceZxid;
+        }
+
+        /**
+         * Reads the node of the path and its subtree.
+         *
+         * @return false once the chunk is full
+         */
+        boolean read(String path, int level) {
+            DataNode node = zks.getZKDatabase().getNode(path);
+            if (node == null || !canRead(node, path)) {
+                return true;
+            }
+            Stat stat = new Stat();
+            byte[] data;
+            try {
+                data = zks.getZKDatabase().getData(path, stat, null);
+            } catch (KeeperException.NoNodeException e) {
+                return true;
+            }
+            if (sinceZxid >= 0 && stat.getMzxid() <= sinceZxid) {
+                // the client already has this data
+                data = null;
+            }
+            int size = path.getBytes(UTF_8).length + (data == null ? 0 : data.length) + SUBTREE_NODE_OVERHEAD;
+            if (!nodes.isEmpty() && bytes + size > maxBytes) {
+                nextCursor = nodes.get(nodes.size() - 1).getPath();
+                return false;
+            }
+            nodes.add(new SubtreeNode(path, data, stat));
+            bytes += size;
+
+            if (depth < 0 || level < depth) {
+                for (String child : sortedChildren(node, null)) {
+                    if (!read(childPath(path, child), level + 1)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the subtree of the path after the cursor, given by its names
+         * from the index on. The nodes on the way to the cursor were read with
+         * the previous chunks; those deleted since are skipped.
+         *
+         * @return false once the chunk is full
+         */
+        boolean resume(String path, int level, String[] cursorNames, int index) {
+            DataNode node = zks.getZKDatabase().getNode(path);
+            if (node == null || !canRead(node, path) || (depth >= 0 && level >= depth)) {
+                return true;
+            }
+            String after = null;
+            if (index < cursorNames.length) {
+                after = cursorNames[index];
+                if (!resume(childPath(path, after), level + 1, cursorNames, index + 1)) {
+                    return false;
+                }
+            }
+            for (String child : sortedChildren(node, after)) {
+                if (!read(childPath(path, child), level + 1)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean canRead(DataNode node, String path) {
+            try {
+                zks.checkACL(cnxn, zks.getZKDatabase().aclForNode(node), ZooDefs.Perms.READ, authInfo, path, null);
+                return true;
+            } catch (KeeperException.NoAuthException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Copies the children sorted by name, after the given one if any, so
+         * they can be read without holding the lock of the node.
+         */
+        private List<String> sortedChildren(DataNode node, String after) {
+            synchronized (node) {
+                NavigableSet<String> children = node.getSortedChildren();
+                return new ArrayList<>(after == null ? children : children.tailSet(after, false));
+            }
+        }
+
+        private String childPath(String path, String child) {
+            return path.equals("/") ? "/" + child : path + "/" + child;
+        }
+
+    }
+
     private boolean closeSession(ServerCnxnFactory serverCnxnFactory, long sessionId) {
         if (serverCnxnFactory == null) {
             return false;
@@ -30,14 +30,13 @@
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.ReplyHeader;
@@ -698,7 +697,6 @@ public int sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, St
      */
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
                 LOG,
@@ -709,13 +707,32 @@ public void process(WatchedEvent event) {
         // Convert WatchedEvent to a type that can be sent over the wire
         WatcherEvent e = event.getWrapper();
 
-        // The last parameter OpCode here is used to select the response cache.
-        // Passing OpCode.error (with a value of -1) means we don't care, as we don't need
-        // response cache on delivering watcher events.
-        int responseSize = sendResponse(h, e, "notification", null, null, ZooDefs.OpCode.error);
+        int responseSize = 0;
+        try {
+            responseSize = sendNotification(e);
+        } catch (Exception e1) {
+            LOG.warn("Unexpected exception. Destruction averted.", e1);
+        }
         ServerMetrics.getMetrics().WATCH_BYTES.add(responseSize);
     }
 
+    /**
+     * Queues the notifications with a sentinel after each of them, so they
+     * are still counted as packets, but wakes up the selector only once.
+     */
+    @Override
+    void sendNotifications(List<ByteBuffer[]> notifications) {
+        synchronized (outgoingBuffers) {
+            for (ByteBuffer[] notification : notifications) {
+                for (ByteBuffer buffer : notification) {
+                    outgoingBuffers.add(buffer);
+                }
+                outgoingBuffers.add(packetSentinel);
+            }
+        }
+        requestInterestOpsUpdate();
+    }
+
     /*
      * (non-Javadoc)
      *
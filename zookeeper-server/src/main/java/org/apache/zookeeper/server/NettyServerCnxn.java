@@ -38,10 +38,10 @@
 import java.nio.channels.SelectionKey;
 import java.security.cert.Certificate;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
@@ -160,7 +160,6 @@ public int getSessionTimeout() {
 
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
                 LOG,
@@ -172,7 +171,10 @@ public void process(WatchedEvent event) {
         WatcherEvent e = event.getWrapper();
 
         try {
-            int responseSize = sendResponse(h, e, "notification");
+            int responseSize = 0;
+            if (!closingChannel && channel.isOpen()) {
+                responseSize = sendNotification(e);
+            }
             ServerMetrics.getMetrics().WATCH_BYTES.add(responseSize);
         } catch (IOException e1) {
             LOG.debug("Problem sending to {}", getRemoteSocketAddress(), e1);
@@ -218,6 +220,18 @@ public void sendBuffer(ByteBuffer... buffers) {
         channel.writeAndFlush(Unpooled.wrappedBuffer(buffers)).addListener(onSendBufferDoneListener);
     }
 
+    @Override
+    void sendNotifications(List<ByteBuffer[]> notifications) {
+        int count = notifications.size();
+        channel.writeAndFlush(Unpooled.wrappedBuffer(concat(notifications))).addListener(f -> {
+            if (f.isSuccess()) {
+                for (int i = 0; i < count; i++) {
+                    packetSent();
+                }
+            }
+        });
+    }
+
     /**
      * This class wraps the sendBuffer method of NIOServerCnxn. It is
      * responsible for chunking up the response to a client. Rather
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+/**
+ * Notified of the changes made to the nodes of a {@link DataTree}, e.g. to
+ * invalidate what has been derived from them.
+ * <p>
+ * The callbacks run on the thread applying the change, once it is visible to
+ * the readers of the tree, so they must be cheap and must not block.
+ */
+public interface NodeChangeListener {
+
+    /**
+     * Called after the data, the acl or the children of a node changed, or
+     * the node was deleted. Any change to a node changes its stat.
+     *
+     * @param path the path of the node, "/" for the root
+     */
+    void nodeChanged(String path);
+
+    /**
+     * Called when the whole tree has been replaced, e.g. by a snapshot
+     * received from the leader.
+     */
+    void treeReplaced();
+
+}
@@ -910,12 +910,15 @@ private void pRequestHelper(Request request) throws RequestProcessorException {
 
             //All the rest don't need to create a Txn - just verify session
             case OpCode.sync:
+            case OpCode.readIndex:
             case OpCode.exists:
             case OpCode.getData:
             case OpCode.getACL:
             case OpCode.getChildren:
             case OpCode.getAllChildrenNumber:
             case OpCode.getChildren2:
+            case OpCode.getChildrenPage:
+            case OpCode.getSubtree:
             case OpCode.ping:
             case OpCode.setWatches:
             case OpCode.setWatches2:
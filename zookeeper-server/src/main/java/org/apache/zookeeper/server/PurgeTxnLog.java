@@ -28,6 +28,8 @@
 import java.util.List;
 import java.util.Set;
 import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.util.ServiceUtils;
@@ -59,7 +61,9 @@ static void printUsage() {
     }
 
     private static final String PREFIX_SNAPSHOT = "snapshot";
+    private static final String PREFIX_SNAPSHOT_SEGMENT = FileSnap.SNAPSHOT_SEGMENT_FILE_PREFIX;
     private static final String PREFIX_LOG = "log";
+    private static final String PREFIX_LOG_INDEX = FileTxnLog.LOG_INDEX_FILE_PREFIX;
 
     /**
      * Purges the snapshot and logs keeping the last num snapshots and the
@@ -130,6 +134,11 @@ public boolean accept(File f) {
                     return false;
                 }
                 long fZxid = Util.getZxidFromName(f.getName(), prefix);
+                // the index of a retained log is retained as well
+                if (prefix.equals(PREFIX_LOG_INDEX)
+                    && retainedTxnLogs.contains(new File(f.getParentFile(), Util.makeLogName(fZxid)))) {
+                    return false;
+                }
                 return fZxid < leastZxidToBeRetain;
             }
 
@@ -141,12 +150,24 @@ public boolean accept(File f) {
             files.addAll(Arrays.asList(logs));
         }
 
+        // and their indexes
+        File[] logIndexes = txnLog.getDataDir().listFiles(new MyFileFilter(PREFIX_LOG_INDEX));
+        if (logIndexes != null) {
+            files.addAll(Arrays.asList(logIndexes));
+        }
+
         // add all non-excluded snapshot files to the deletion list
         File[] snapshots = txnLog.getSnapDir().listFiles(new MyFileFilter(PREFIX_SNAPSHOT));
         if (snapshots != null) {
             files.addAll(Arrays.asList(snapshots));
         }
 
+        // and the segments of the partitioned snapshots
+        File[] segments = txnLog.getSnapDir().listFiles(new MyFileFilter(PREFIX_SNAPSHOT_SEGMENT));
+        if (segments != null) {
+            files.addAll(Arrays.asList(segments));
+        }
+
         // remove the old files
         for (File f : files) {
             final String msg = String.format(
@@ -112,6 +112,14 @@ public Request(long sessionId, int xid, int type, TxnHeader hdr, Record txn, lon
 
     private TxnDigest txnDigest;
 
+    /**
+     * The result and the watch notifications of the txn if it was applied
+     * ahead of its completion, see {@link ZooKeeperServer#applyTxn(Request)}.
+     */
+    DataTree.ProcessTxnResult appliedTxnResult;
+
+    WatchEventBatch appliedTxnEvents;
+
     private boolean isThrottledFlag = false;
 
     public boolean isThrottled() {
@@ -258,6 +266,8 @@ static boolean isValid(int type) {
         case OpCode.getChildren:
         case OpCode.getAllChildrenNumber:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPage:
+        case OpCode.getSubtree:
         case OpCode.getData:
         case OpCode.getEphemerals:
         case OpCode.multi:
@@ -269,6 +279,7 @@ static boolean isValid(int type) {
         case OpCode.setWatches:
         case OpCode.setWatches2:
         case OpCode.sync:
+        case OpCode.readIndex:
         case OpCode.checkWatches:
         case OpCode.removeWatches:
         case OpCode.addWatch:
@@ -286,6 +297,8 @@ public boolean isQuorum() {
         case OpCode.getChildren:
         case OpCode.getAllChildrenNumber:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPage:
+        case OpCode.getSubtree:
         case OpCode.getData:
         case OpCode.getEphemerals:
         case OpCode.multiRead:
@@ -380,6 +393,12 @@ public static String op2String(int op) {
                 return "error";
             case OpCode.whoAmI:
                 return "whoAmI";
+            case OpCode.readIndex:
+                return "readIndex";
+            case OpCode.getChildrenPage:
+                return "getChildrenPage";
+            case OpCode.getSubtree:
+                return "getSubtree";
             default:
                 return "unknown " + op;
         }
@@ -18,73 +18,258 @@
 
 package org.apache.zookeeper.server;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("serial")
-public class ResponseCache {
+/**
+ * Caches the serialized read responses of nodes, bounded by a number of
+ * entries and a number of bytes.
+ * <p>
+ * Lookups go straight to a concurrent map and only mark the entry as
+ * referenced. The entries are split by path into segments, each with its
+ * own lock and share of the bounds, which evict with the CLOCK algorithm:
+ * the oldest entry is evicted unless it has been referenced since the hand
+ * last passed over it, in which case it gets a second chance.
+ * <p>
+ * The entries are not compared to the stat of the node on lookup. Instead
+ * the cache listens to the changes of the {@link DataTree} and drops the
+ * entry of a node as soon as it changes, while a response is only added if
+ * it still matches the node.
+ * <p>
+ * The responses are kept as read-only buffers, a hit returns a duplicate
+ * which can be written out as is, without copying the response.
+ */
+public class ResponseCache implements NodeChangeListener {
+
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
 
     // Magic number chosen to be "big enough but not too big"
     public static final int DEFAULT_RESPONSE_CACHE_SIZE = 400;
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 16;
+
     private final int cacheSize;
+    private final long maxBytes;
+
+    private final ConcurrentHashMap<String, Entry> cache;
+    private final Segment[] segments;
+
     private static class Entry {
-        public Stat stat;
-        public byte[] data;
-    }
 
-    private final Map<String, Entry> cache;
+        final String path;
+        final ByteBuffer data;
+        final long weight;
+        volatile boolean referenced;
+        // guarded by the segment
+        boolean removed;
+
+        Entry(String path, byte[] data) {
+            this.path = path;
+            this.data = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            this.weight = data.length + 2L * path.length();
+        }
+
+    }
 
     public ResponseCache(int cacheSize, String requestType) {
+        this(cacheSize, DEFAULT_RESPONSE_CACHE_BYTES, requestType);
+    }
+
+    public ResponseCache(int cacheSize, long maxBytes, String requestType) {
         this.cacheSize = cacheSize;
-        cache = Collections.synchronizedMap(new LRUCache<>(cacheSize));
-        LOG.info("{} response cache size is initialized with value {}.", requestType, cacheSize);
+        this.maxBytes = maxBytes;
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, cacheSize / MIN_SEGMENT_SIZE));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((cacheSize + segmentCount - 1) / segmentCount, maxBytes / segmentCount);
+        }
+        this.cache = new ConcurrentHashMap<>(Math.max(16, cacheSize / 4), 0.75f, segmentCount);
+        LOG.info("{} response cache size is initialized with value {} and {} bytes.", requestType, cacheSize, maxBytes);
     }
 
     public int getCacheSize() {
         return cacheSize;
     }
 
-    public void put(String path, byte[] data, Stat stat) {
-        Entry entry = new Entry();
-        entry.data = data;
-        entry.stat = stat;
-        cache.put(path, entry);
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Add the serialized response of a node, unless the node changed since
+     * the response was read.
+     *
+     * @param path the path of the node
+     * @param data the serialized response
+     * @param stat the stat of the node in the response
+     * @param node the node, its stat is compared to the one of the response
+     * @return the number of entries evicted to make room for the response
+     */
+    public int put(String path, byte[] data, Stat stat, DataNode node) {
+        Segment segment = segmentFor(path);
+        Entry entry = new Entry(path, data);
+        if (entry.weight > segment.maxBytes) {
+            return 0;
+        }
+        Stat current = new Stat();
+        // Holding the node makes sure a change of the node, and so its
+        // invalidation, either happens before the check or after the put.
+        synchronized (node) {
+            node.copyStat(current);
+            if (!current.equals(stat)) {
+                return 0;
+            }
+            synchronized (segment) {
+                Entry previous = cache.put(path, entry);
+                if (previous != null) {
+                    segment.unlink(previous);
+                }
+                segment.link(entry);
+                return segment.evict();
+            }
+        }
     }
 
-    public byte[] get(String key, Stat stat) {
+    /**
+     * @return a read-only buffer of the cached response, positioned at its
+     * start, or null if the response is not cached
+     */
+    public ByteBuffer get(String key) {
         Entry entry = cache.get(key);
         if (entry == null) {
             return null;
         }
-        if (!stat.equals(entry.stat)) {
-            // The node has been modified, invalidate cache.
-            cache.remove(key);
-            return null;
-        } else {
-            return entry.data;
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.data.duplicate();
+    }
+
+    /**
+     * Drop the entry of the given path, if any.
+     */
+    public void invalidate(String path) {
+        Entry entry = cache.remove(path);
+        if (entry != null) {
+            Segment segment = segmentFor(path);
+            synchronized (segment) {
+                segment.unlink(entry);
+            }
+        }
+    }
+
+    /**
+     * Drop all the entries.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
         }
     }
 
+    /**
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public void nodeChanged(String path) {
+        invalidate(path);
+    }
+
+    @Override
+    public void treeReplaced() {
+        clear();
+    }
+
     public boolean isEnabled() {
-        return cacheSize > 0;
+        return cacheSize > 0 && maxBytes > 0;
+    }
+
+    private Segment segmentFor(String path) {
+        int h = path.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+    /**
+     * The entries of a share of the paths, in insertion order for the CLOCK
+     * hand. Removed entries are skipped by the hand, or compacted away once
+     * they outnumber the live ones.
+     */
+    private class Segment {
+
+        final int maxEntries;
+        final long maxBytes;
+
+        final ArrayDeque<Entry> clock = new ArrayDeque<>();
+        int entries;
+        long bytes;
 
-        private int cacheSize;
+        Segment(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        void link(Entry entry) {
+            clock.addLast(entry);
+            entries++;
+            bytes += entry.weight;
+        }
+
+        void unlink(Entry entry) {
+            if (entry.removed) {
+                return;
+            }
+            entry.removed = true;
+            entries--;
+            bytes -= entry.weight;
+            if (clock.size() > 2 * entries + MIN_SEGMENT_SIZE) {
+                clock.removeIf(e -> e.removed);
+            }
+        }
 
-        LRUCache(int cacheSize) {
-            super(cacheSize / 4);
-            this.cacheSize = cacheSize;
+        int evict() {
+            int evicted = 0;
+            while (entries > maxEntries || bytes > maxBytes) {
+                Entry entry = clock.pollFirst();
+                if (entry.removed) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.addLast(entry);
+                    continue;
+                }
+                cache.remove(entry.path, entry);
+                entry.removed = true;
+                entries--;
+                bytes -= entry.weight;
+                evicted++;
+            }
+            return evicted;
         }
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() >= cacheSize;
+        void clear() {
+            for (Entry entry : clock) {
+                if (!entry.removed) {
+                    cache.remove(entry.path, entry);
+                    entry.removed = true;
+                }
+            }
+            clock.clear();
+            entries = 0;
+            bytes = 0;
         }
 
     }
@@ -37,6 +37,7 @@
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -46,6 +47,7 @@
 import org.apache.zookeeper.metrics.Counter;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -192,31 +194,71 @@ public int sendResponse(ReplyHeader h, Record r, String tag) throws IOException
         return sendResponse(h, r, tag, null, null, -1);
     }
 
+    /**
+     * The length prefix and the xid, zxid and err of the {@link ReplyHeader}
+     * which start every response.
+     */
+    static final int RESPONSE_HEADER_LENGTH = 4 + 4 + 8 + 4;
+
+    /**
+     * The buffer records are serialized into is reused by the thread, unless
+     * it grew beyond this size.
+     */
+    private static final int MAX_POOLED_SERIALIZE_BUFFER_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<SerializeBuffer> serializeBuffer = ThreadLocal.withInitial(SerializeBuffer::new);
+
+    private static class SerializeBuffer extends ByteArrayOutputStream {
+
+        final BinaryOutputArchive archive = BinaryOutputArchive.getArchive(this);
+
+        SerializeBuffer() {
+            super(ZooKeeperServer.intBufferStartingSizeBytes);
+        }
+
+        byte[] serialize(Record record) throws IOException {
+            reset();
+            try {
+                archive.writeRecord(record, null);
+                return toByteArray();
+            } finally {
+                if (buf.length > MAX_POOLED_SERIALIZE_BUFFER_BYTES) {
+                    buf = new byte[ZooKeeperServer.intBufferStartingSizeBytes];
+                }
+            }
+        }
+
+    }
+
     protected byte[] serializeRecord(Record record) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
-        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-        bos.writeRecord(record, null);
-        return baos.toByteArray();
+        return serializeBuffer.get().serialize(record);
     }
 
+    /**
+     * Serializes a response into the buffers to send: the length prefix and
+     * the reply header encoded into one small buffer, and the body if any.
+     * Cached bodies are shared read-only by all the responses they are sent
+     * in, so only the reply header is encoded for a cache hit.
+     */
     protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                                      String cacheKey, Stat stat, int opCode) throws IOException {
-        byte[] header = serializeRecord(h);
-        byte[] data = null;
+        ByteBuffer data = null;
         if (r != null) {
             ResponseCache cache = null;
-            Counter cacheHit = null, cacheMiss = null;
+            Counter cacheHit = null, cacheMiss = null, cacheEviction = null;
             switch (opCode) {
                 case OpCode.getData : {
                     cache = zkServer.getReadResponseCache();
                     cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_HITS;
                     cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_MISSING;
+                    cacheEviction = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_EVICTIONS;
                     break;
                 }
                 case OpCode.getChildren2 : {
                     cache = zkServer.getGetChildrenResponseCache();
                     cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
                     cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+                    cacheEviction = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
                     break;
                 }
                 default:
@@ -228,35 +270,83 @@ protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                 //
                 // NB: Tag is ignored both during cache lookup and serialization,
                 // since is is not used in read responses, which are being cached.
-                data = cache.get(cacheKey, stat);
+                data = cache.get(cacheKey);
                 if (data == null) {
-                    // Cache miss, serialize the response and put it in cache.
-                    data = serializeRecord(r);
-                    cache.put(cacheKey, data, stat);
+                    // Cache miss, serialize the response and put it in cache
+                    // unless the node changed since the response was read.
+                    byte[] serialized = serializeRecord(r);
+                    DataNode node = zkServer.getZKDatabase().getNode(cacheKey);
+                    if (node != null) {
+                        cacheEviction.add(cache.put(cacheKey, serialized, stat, node));
+                    }
+                    data = ByteBuffer.wrap(serialized);
                     cacheMiss.add(1);
                 } else {
                     cacheHit.add(1);
                 }
             } else {
-                data = serializeRecord(r);
+                data = ByteBuffer.wrap(serializeRecord(r));
             }
         }
-        int dataLength = data == null ? 0 : data.length;
-        int packetLength = header.length + dataLength;
+        int dataLength = data == null ? 0 : data.remaining();
+        int packetLength = RESPONSE_HEADER_LENGTH - 4 + dataLength;
         ServerStats serverStats = serverStats();
         if (serverStats != null) {
             serverStats.updateClientResponseSize(packetLength);
         }
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
-        lengthBuffer.rewind();
+        ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_LENGTH);
+        header.putInt(packetLength)
+              .putInt(h.getXid())
+              .putLong(h.getZxid())
+              .putInt(h.getErr());
+        header.flip();
+
+        if (data == null) {
+            return new ByteBuffer[] {header};
+        }
+        return new ByteBuffer[] {header, data};
+    }
+
+    /**
+     * Serializes a watch notification and sends it, or queues it with the
+     * other notifications of the connection if the current thread is
+     * applying a txn, see {@link WatchEventBatch}.
+     *
+     * @return the size of the notification
+     */
+    protected int sendNotification(WatcherEvent event) throws IOException {
+        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, -1L, 0);
+        // The last parameter OpCode here is used to select the response cache.
+        // Passing OpCode.error (with a value of -1) means we don't care, as we don't need
+        // response cache on delivering watcher events.
+        ByteBuffer[] bb = serialize(h, event, "notification", null, null, OpCode.error);
+        int responseSize = bb[0].getInt();
+        bb[0].rewind();
+        if (!WatchEventBatch.defer(this, bb)) {
+            sendBuffer(bb);
+        }
+        return responseSize;
+    }
 
-        int bufferLen = data != null ? 3 : 2;
-        ByteBuffer[] buffers = new ByteBuffer[bufferLen];
+    /**
+     * Sends the notifications batched by {@link WatchEventBatch} with a
+     * single write.
+     */
+    void sendNotifications(List<ByteBuffer[]> notifications) {
+        sendBuffer(concat(notifications));
+    }
 
-        buffers[0] = lengthBuffer;
-        buffers[1] = ByteBuffer.wrap(header);
-        if (data != null) {
-            buffers[2] = ByteBuffer.wrap(data);
+    static ByteBuffer[] concat(List<ByteBuffer[]> notifications) {
+        int count = 0;
+        for (ByteBuffer[] notification : notifications) {
+            count += notification.length;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int i = 0;
+        for (ByteBuffer[] notification : notifications) {
+            for (ByteBuffer buffer : notification) {
+                buffers[i++] = buffer;
+            }
         }
         return buffers;
     }
@@ -72,13 +72,19 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         FSYNC_TIME = metricsContext.getSummary("fsynctime", DetailLevel.BASIC);
 
         SNAPSHOT_TIME = metricsContext.getSummary("snapshottime", DetailLevel.BASIC);
+        SNAPSHOT_BYTES = metricsContext.getSummary("snapshot_bytes", DetailLevel.BASIC);
+        SNAPSHOT_BYTES_PER_SEC = metricsContext.getSummary("snapshot_bytes_per_sec", DetailLevel.BASIC);
         DB_INIT_TIME = metricsContext.getSummary("dbinittime", DetailLevel.BASIC);
         READ_LATENCY = metricsContext.getSummary("readlatency", DetailLevel.ADVANCED);
         UPDATE_LATENCY = metricsContext.getSummary("updatelatency", DetailLevel.ADVANCED);
         PROPAGATION_LATENCY = metricsContext.getSummary("propagation_latency", DetailLevel.ADVANCED);
         FOLLOWER_SYNC_TIME = metricsContext.getSummary("follower_sync_time", DetailLevel.BASIC);
         OBSERVER_SYNC_TIME = metricsContext.getSummary("observer_sync_time", DetailLevel.BASIC);
+        LEARNER_SYNC_PHASE_TIME = metricsContext.getSummarySet("learner_sync_phase_time_ms", DetailLevel.BASIC);
+        LEARNER_SYNC_PEAK_BUFFERED_BYTES = metricsContext.getSummary("learner_sync_peak_buffered_bytes", DetailLevel.BASIC);
         ELECTION_TIME = metricsContext.getSummary("election_time", DetailLevel.BASIC);
+        ELECTION_TIME_PER_TRANSPORT = metricsContext.getSummarySet("election_time_per_transport", DetailLevel.BASIC);
+        QUORUM_CONNECTION_TIME = metricsContext.getSummary("quorum_connection_time_ms", DetailLevel.BASIC);
         LOOKING_COUNT = metricsContext.getCounter("looking_count");
         DIFF_COUNT = metricsContext.getCounter("diff_count");
         SNAP_COUNT = metricsContext.getCounter("snap_count");
@@ -113,6 +119,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_cache_hits");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_cache_misses");
+        RESPONSE_PACKET_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_cache_evictions");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_get_children_cache_evictions");
 
         ENSEMBLE_AUTH_SUCCESS = metricsContext.getCounter("ensemble_auth_success");
 
@@ -163,6 +171,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         COMMITS_QUEUED = metricsContext.getCounter("request_commit_queued");
         READS_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("read_commit_proc_issued", DetailLevel.BASIC);
         WRITES_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("write_commit_proc_issued", DetailLevel.BASIC);
+        TXNS_APPLIED_IN_PARALLEL = metricsContext.getSummary("txns_applied_in_parallel", DetailLevel.BASIC);
+        PARALLEL_APPLY_CONFLICTS = metricsContext.getCounter("parallel_apply_conflicts");
 
         THROTTLED_OPS = metricsContext.getCounter("throttled_ops");
 
@@ -217,6 +227,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         STARTUP_TXNS_LOADED = metricsContext.getSummary("startup_txns_loaded", DetailLevel.BASIC);
         STARTUP_TXNS_LOAD_TIME = metricsContext.getSummary("startup_txns_load_time", DetailLevel.BASIC);
         STARTUP_SNAP_LOAD_TIME = metricsContext.getSummary("startup_snap_load_time", DetailLevel.BASIC);
+        STARTUP_SNAP_CHUNKS = metricsContext.getSummary("startup_snap_chunks", DetailLevel.BASIC);
+        STARTUP_SNAP_CHUNK_READ_TIME = metricsContext.getSummary("startup_snap_chunk_read_time", DetailLevel.BASIC);
+        STARTUP_SNAP_CHUNK_DECODE_TIME = metricsContext.getSummary("startup_snap_chunk_decode_time", DetailLevel.BASIC);
+        STARTUP_SNAP_TREE_ASSEMBLE_TIME = metricsContext.getSummary("startup_snap_tree_assemble_time", DetailLevel.BASIC);
 
         SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME = metricsContext.getSummary("sync_processor_queue_and_flush_time_ms", DetailLevel.ADVANCED);
         SYNC_PROCESSOR_QUEUE_SIZE = metricsContext.getSummary("sync_processor_queue_size", DetailLevel.BASIC);
@@ -226,6 +240,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         SYNC_PROCESS_TIME = metricsContext.getSummary("sync_process_time", DetailLevel.BASIC);
 
         BATCH_SIZE = metricsContext.getSummary("sync_processor_batch_size", DetailLevel.BASIC);
+        SYNC_PROCESSOR_TARGET_BATCH_SIZE = metricsContext.getSummary("sync_processor_target_batch_size", DetailLevel.BASIC);
+        SYNC_PROCESSOR_FSYNC_OVERLAP_RATIO = metricsContext.getSummary("sync_processor_fsync_overlap_ratio", DetailLevel.BASIC);
 
         QUORUM_ACK_LATENCY = metricsContext.getSummary("quorum_ack_latency", DetailLevel.ADVANCED);
         ACK_LATENCY = metricsContext.getSummarySet("ack_latency", DetailLevel.ADVANCED);
@@ -260,6 +276,18 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
         RESPONSE_BYTES = metricsContext.getCounter("response_bytes");
         WATCH_BYTES = metricsContext.getCounter("watch_bytes");
+        WATCH_EVENTS_PER_FLUSH = metricsContext.getSummary("watch_events_per_flush", DetailLevel.BASIC);
+        PROPOSAL_BATCH_SIZE = metricsContext.getSummary("proposal_batch_size", DetailLevel.BASIC);
+        SNAP_SYNC_CHUNKED_BYTES = metricsContext.getCounter("snap_sync_chunked_bytes");
+        SNAP_SYNC_RESUMED_BYTES = metricsContext.getCounter("snap_sync_resumed_bytes");
+        LEADER_ACK_LOCK_WAIT_TIME = metricsContext.getSummary("leader_ack_lock_wait_time_us", DetailLevel.ADVANCED);
+        LEADER_COMMITS_COALESCED = metricsContext.getCounter("leader_commits_coalesced");
+        READ_INDEX_CONFIRM_TIME = metricsContext.getSummary("read_index_confirm_time_us", DetailLevel.BASIC);
+        READ_INDEX_LEASE_HITS = metricsContext.getCounter("read_index_lease_hits");
+        READ_INDEX_BATCH_SIZE = metricsContext.getSummary("read_index_batch_size", DetailLevel.BASIC);
+        READ_INDEX_LATENCY = metricsContext.getSummary("read_index_latency", DetailLevel.BASIC);
+        LEARNER_REQUEST_BATCH_SIZE = metricsContext.getSummary("learner_request_batch_size", DetailLevel.BASIC);
+        LEARNER_REQUEST_FORWARD_LATENCY = metricsContext.getSummary("learner_request_forward_latency", DetailLevel.BASIC);
 
         JVM_PAUSE_TIME = metricsContext.getSummary("jvm_pause_time_ms", DetailLevel.ADVANCED);
 
@@ -276,6 +304,13 @@ private ServerMetrics(MetricsProvider metricsProvider) {
      */
     public final Summary SNAPSHOT_TIME;
 
+    /**
+     * Size of the snapshots, including the segment files, and the rate they
+     * were written at
+     */
+    public final Summary SNAPSHOT_BYTES;
+    public final Summary SNAPSHOT_BYTES_PER_SEC;
+
     /**
      * Db init time (snapshot loading + txnlog replay)
      */
@@ -303,8 +338,33 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary FOLLOWER_SYNC_TIME;
     public final Summary OBSERVER_SYNC_TIME;
 
+    /**
+     * Phases of the sync of a learner with its leader: "diff", "snap" or
+     * "trunc" from the sync packet to the NEWLEADER, and "uptodate" from the
+     * NEWLEADER to the end of the sync.
+     */
+    public final SummarySet LEARNER_SYNC_PHASE_TIME;
+
+    /**
+     * Peak size of the txns held in memory by a learner while syncing with
+     * its leader.
+     */
+    public final Summary LEARNER_SYNC_PEAK_BUFFERED_BYTES;
+
     public final Summary ELECTION_TIME;
 
+    /**
+     * Election time by transport of the election connections, "blocking"
+     * or "nio".
+     */
+    public final SummarySet ELECTION_TIME_PER_TRANSPORT;
+
+    /**
+     * Time to open an election connection to another server and send it the
+     * initial message, for the connections which are kept.
+     */
+    public final Summary QUORUM_CONNECTION_TIME;
+
     public final Counter LOOKING_COUNT;
     public final Counter DIFF_COUNT;
     public final Counter SNAP_COUNT;
@@ -353,6 +413,16 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary STARTUP_TXNS_LOAD_TIME;
     public final Summary STARTUP_SNAP_LOAD_TIME;
 
+    /**
+     * Restore phases of a chunked snapshot: reading the chunks, waiting for
+     * the last chunks to be decoded after the read completed, and linking the
+     * decoded nodes into the tree.
+     */
+    public final Summary STARTUP_SNAP_CHUNKS;
+    public final Summary STARTUP_SNAP_CHUNK_READ_TIME;
+    public final Summary STARTUP_SNAP_CHUNK_DECODE_TIME;
+    public final Summary STARTUP_SNAP_TREE_ASSEMBLE_TIME;
+
     public final Summary SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME;
     public final Summary SYNC_PROCESSOR_QUEUE_SIZE;
     public final Counter SYNC_PROCESSOR_QUEUED;
@@ -362,6 +432,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
     public final Summary BATCH_SIZE;
 
+    /**
+     * Pipelined fsync: the batch size derived from the fsync latency and the
+     * arrival rate, and the percentage of the txns of a batch which were
+     * appended while the previous batch was being synced.
+     */
+    public final Summary SYNC_PROCESSOR_TARGET_BATCH_SIZE;
+    public final Summary SYNC_PROCESSOR_FSYNC_OVERLAP_RATIO;
+
     public final Summary QUORUM_ACK_LATENCY;
     public final SummarySet ACK_LATENCY;
     public final Counter PROPOSAL_COUNT;
@@ -384,12 +462,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary DEAD_WATCHERS_CLEANER_LATENCY;
 
     /*
-     * Response cache hit and miss metrics.
+     * Response cache hit, miss and eviction metrics.
      */
     public final Counter RESPONSE_PACKET_CACHE_HITS;
     public final Counter RESPONSE_PACKET_CACHE_MISSING;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
 
     /**
      * Learner handler quorum packet metrics.
@@ -421,6 +501,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary READS_ISSUED_IN_COMMIT_PROC;
     public final Summary WRITES_ISSUED_IN_COMMIT_PROC;
 
+    /**
+     * Number of txns applied concurrently by the commit processor before
+     * they are completed, and number of txns which had to wait for the txns
+     * applied before because they touch the same nodes or session.
+     */
+    public final Summary TXNS_APPLIED_IN_PARALLEL;
+    public final Counter PARALLEL_APPLY_CONFLICTS;
+
     // Request op throttling related
     public final Counter THROTTLED_OPS;
 
@@ -513,6 +601,56 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter RESPONSE_BYTES;
     public final Counter WATCH_BYTES;
 
+    /**
+     * Number of watch events sent to a connection with one write, when they
+     * are batched while applying a txn.
+     */
+    public final Summary WATCH_EVENTS_PER_FLUSH;
+
+    /**
+     * Number of PROPOSAL and COMMIT packets the leader sent to a follower
+     * as one PROPOSALBATCH packet.
+     */
+    public final Summary PROPOSAL_BATCH_SIZE;
+
+    /**
+     * Number of bytes of snapshot files sent to learners in chunks, and
+     * number of bytes not sent again because a transfer was resumed.
+     */
+    public final Counter SNAP_SYNC_CHUNKED_BYTES;
+    public final Counter SNAP_SYNC_RESUMED_BYTES;
+
+    /**
+     * Time, in microseconds, an ACK waited for the Leader lock before its
+     * proposal could be committed, and the number of commit attempts taken
+     * over by the thread already committing.
+     */
+    public final Summary LEADER_ACK_LOCK_WAIT_TIME;
+    public final Counter LEADER_COMMITS_COALESCED;
+
+    /**
+     * Time, in microseconds, the leader waited for a quorum to answer its
+     * pings before answering a read index, and the number of read indexes
+     * answered at once thanks to the lease.
+     */
+    public final Summary READ_INDEX_CONFIRM_TIME;
+    public final Counter READ_INDEX_LEASE_HITS;
+
+    /**
+     * Number of read index requests a follower asked the leader for with
+     * one READINDEX packet, and the time from their creation until they
+     * were committed.
+     */
+    public final Summary READ_INDEX_BATCH_SIZE;
+    public final Summary READ_INDEX_LATENCY;
+
+    /**
+     * Number of requests a learner forwarded to the leader in one packet,
+     * and the time from their creation until they were forwarded.
+     */
+    public final Summary LEARNER_REQUEST_BATCH_SIZE;
+    public final Summary LEARNER_REQUEST_FORWARD_LATENCY;
+
     public final Summary JVM_PAUSE_TIME;
 
     public final CounterSet QUOTA_EXCEEDED_ERROR_PER_NAMESPACE;
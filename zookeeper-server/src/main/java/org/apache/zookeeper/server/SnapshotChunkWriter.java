@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+
+/**
+ * Groups the serialized nodes of a snapshot into chunks which can be decoded
+ * independently of each other.
+ * <p>
+ * The chunked layout of the nodes is:
+ * <pre>
+ * Chunk* EndOfChunks Index
+ * Chunk: int nodeCount, buffer (path, DataNode)*nodeCount
+ * EndOfChunks: int -1
+ * Index: int chunkCount, (int nodeCount, int byteLength)*chunkCount
+ * </pre>
+ * Nodes are written in the same depth first order as the serial layout, so a
+ * parent is always found in the same or an earlier chunk than its children.
+ */
+public class SnapshotChunkWriter {
+
+    public static final int END_OF_CHUNKS = -1;
+
+    private final OutputArchive target;
+    private final int chunkSize;
+
+    private final ByteArrayOutputStream buffer;
+    private final BinaryOutputArchive archive;
+    private int nodeCount;
+
+    private final List<int[]> index = new ArrayList<>();
+    private long totalNodeCount;
+
+    /**
+     * @param target the archive the chunks are written to
+     * @param chunkSize the number of bytes after which a chunk is closed, it
+     *                  is capped so a chunk stays readable with the default
+     *                  jute.maxbuffer
+     */
+    public SnapshotChunkWriter(OutputArchive target, int chunkSize) {
+        this.target = target;
+        this.chunkSize = Math.max(1, Math.min(chunkSize, BinaryInputArchive.maxBuffer / 2));
+        this.buffer = new ByteArrayOutputStream(this.chunkSize + 1024);
+        this.archive = BinaryOutputArchive.getArchive(buffer);
+    }
+
+    /**
+     * @return the archive the nodes of the current chunk are written to
+     */
+    public OutputArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Called before a node is written to {@link #getArchive()}, closes the
+     * current chunk first if the node would take it past the chunk size. So
+     * a chunk either fits in the chunk size or holds a single larger node,
+     * which is still readable since a node is smaller than jute.maxbuffer.
+     */
+    public void nodeWriting(String path, DataNode node) throws IOException {
+        if (buffer.size() + maxSerializedSize(path, node) > chunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * @return an upper bound of the number of bytes the path and the node
+     * take in a chunk
+     */
+    static int maxSerializedSize(String path, DataNode node) {
+        // a char of the path takes at most 3 bytes in modified UTF-8, the
+        // node is its data, its acl and the 6 longs and 3 ints of its stat
+        return 4 + 3 * path.length() + 4 + (node.data == null ? 0 : node.data.length) + 8 + 60;
+    }
+
+    /**
+     * Called after a node has been written to {@link #getArchive()}, closes
+     * the current chunk once it reached the chunk size.
+     */
+    public void nodeWritten() throws IOException {
+        nodeCount++;
+        totalNodeCount++;
+        if (buffer.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (nodeCount == 0) {
+            return;
+        }
+        target.writeInt(nodeCount, "count");
+        target.writeBuffer(buffer.toByteArray(), "chunk");
+        index.add(new int[] {nodeCount, buffer.size()});
+        buffer.reset();
+        nodeCount = 0;
+    }
+
+    /**
+     * @return the number of nodes written so far
+     */
+    public long getNodeCount() {
+        return totalNodeCount;
+    }
+
+    /**
+     * Close the last chunk and write the end marker and the chunk index.
+     */
+    public void finish() throws IOException {
+        flush();
+        target.writeInt(END_OF_CHUNKS, "count");
+        target.writeInt(index.size(), "chunks");
+        for (int[] entry : index) {
+            target.writeInt(entry[0], "count");
+            target.writeInt(entry[1], "length");
+        }
+    }
+
+    /**
+     * Read the chunk index which follows the end marker and check it matches
+     * the chunks which have been read.
+     *
+     * @return the total number of nodes listed in the index
+     */
+    public static long readIndex(InputArchive ia, int chunksRead) throws IOException {
+        int chunks = ia.readInt("chunks");
+        if (chunks != chunksRead) {
+            throw new IOException("Snapshot index lists " + chunks + " chunks, but " + chunksRead + " were read");
+        }
+        long total = 0;
+        for (int i = 0; i < chunks; i++) {
+            total += ia.readInt("count");
+            ia.readInt("length");
+        }
+        return total;
+    }
+
+    /**
+     * Decode the nodes of one chunk. The digest of each node is computed
+     * here as well, so it is cached by the time the node is added to the tree.
+     */
+    public static DecodedChunk decode(byte[] chunk, int count, DigestCalculator digestCalculator) throws IOException {
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(chunk));
+        DecodedChunk decoded = new DecodedChunk(count);
+        for (int i = 0; i < count; i++) {
+            String path = ia.readString("path");
+            DataNode node = new DataNode();
+            ia.readRecord(node, "node");
+            digestCalculator.calculateDigest(path, node);
+            decoded.paths[i] = path;
+            decoded.nodes[i] = node;
+        }
+        return decoded;
+    }
+
+    /**
+     * The nodes of a chunk, in snapshot order.
+     */
+    public static class DecodedChunk {
+
+        private final String[] paths;
+        private final DataNode[] nodes;
+
+        DecodedChunk(int count) {
+            paths = new String[count];
+            nodes = new DataNode[count];
+        }
+
+        public int size() {
+            return paths.length;
+        }
+
+        public String getPath(int i) {
+            return paths[i];
+        }
+
+        public DataNode getNode(int i) {
+            return nodes[i];
+        }
+
+    }
+
+}
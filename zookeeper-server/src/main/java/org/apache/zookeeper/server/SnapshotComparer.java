@@ -259,7 +259,7 @@ public static Comparator<TreeNode> MakeAlphabeticComparator() {
    * @throws Exception
    */
   private static DataTree getSnapshot(File file) throws Exception {
-    FileSnap fileSnap = new FileSnap(null);
+    FileSnap fileSnap = new FileSnap(file.getParentFile());
     DataTree dataTree = new DataTree();
     Map<Long, Integer> sessions = new HashMap<Long, Integer>();
     CheckedInputStream snapIS = SnapStream.getInputStream(file);
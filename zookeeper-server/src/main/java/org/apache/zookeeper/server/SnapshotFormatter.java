@@ -96,7 +96,7 @@ public void run(String snapshotFileName, boolean dumpData, boolean dumpJson) thr
         try (InputStream is = SnapStream.getInputStream(snapshotFile)) {
             InputArchive ia = BinaryInputArchive.getArchive(is);
 
-            FileSnap fileSnap = new FileSnap(null);
+            FileSnap fileSnap = new FileSnap(snapshotFile.getParentFile());
 
             DataTree dataTree = new DataTree();
             Map<Long, Integer> sessions = new HashMap<Long, Integer>();
@@ -29,6 +29,7 @@
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +49,13 @@
  *             It never send ack back to the leader, so the nextProcessor will
  *             be null. This change the semantic of txnlog on the observer
  *             since it only contains committed txns.
+ *
+ * With pipelined fsync enabled, a batch is synced by a separate FsyncThread,
+ * which then passes its requests to the next processor, while this thread
+ * appends the requests arriving meanwhile to the log as the next batch. A
+ * batch is handed over once the FsyncThread is idle and either no more
+ * requests are queued or the batch reached the number of requests expected
+ * to arrive during one fsync.
  */
 public class SyncRequestProcessor extends ZooKeeperCriticalThread implements RequestProcessor {
 
@@ -55,6 +63,14 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
 
     private static final Request REQUEST_OF_DEATH = Request.requestOfDeath;
 
+    /** Queued by the FsyncThread when it is done with a batch */
+    private static final Request FSYNC_DONE = new Request(null, 0, 0, 0, null, null);
+
+    /** Sync the txn log on a separate thread while appending the next batch */
+    public static final String PIPELINED_FSYNC = "zookeeper.pipelinedFsync";
+
+    private static boolean pipelinedFsync = Boolean.getBoolean(PIPELINED_FSYNC);
+
     /** The number of log entries to log before starting a snapshot */
     private static int snapCount = ZooKeeperServer.getSnapCount();
 
@@ -85,11 +101,33 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Syncs the batches when pipelined fsync is enabled, null otherwise.
+     */
+    private final FsyncThread fsyncThread;
+
+    /** requests of toFlush which were queued while a batch was being synced */
+    private int overlapped;
+
+    /** requests per ms, averaged over the recent batches */
+    private double arrivalRate;
+    private int targetBatchSize = 1;
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
         this.toFlush = new ArrayDeque<>(zks.getMaxBatchSize());
+        this.fsyncThread = pipelinedFsync ? new FsyncThread() : null;
+    }
+
+    /**
+     * used by tests to enable pipelined fsync for the processors created
+     * afterwards
+     * @param enabled
+     */
+    public static void setPipelinedFsync(boolean enabled) {
+        pipelinedFsync = enabled;
     }
 
     /**
@@ -128,6 +166,9 @@ private boolean shouldFlush() {
         if ((flushDelay > 0) && (getRemainingDelay() == 0)) {
             return true;
         }
+        if (fsyncThread != null && fsyncThread.isIdle() && toFlush.size() >= targetBatchSize) {
+            return true;
+        }
         return (maxBatchSize > 0) && (toFlush.size() >= maxBatchSize);
     }
 
@@ -159,6 +200,9 @@ public void run() {
             // in the ensemble take a snapshot at the same time
             resetSnapshotStats();
             lastFlushTime = Time.currentElapsedTime();
+            if (fsyncThread != null) {
+                fsyncThread.start();
+            }
             while (true) {
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
@@ -174,6 +218,15 @@ public void run() {
                     break;
                 }
 
+                if (si == FSYNC_DONE) {
+                    // hand over what has been appended while the previous
+                    // batch was being synced
+                    if (queuedRequests.isEmpty() || toFlush.size() >= targetBatchSize) {
+                        flush();
+                    }
+                    continue;
+                }
+
                 long startProcessTime = Time.currentElapsedTime();
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_TIME.add(startProcessTime - si.syncQueueStartTime);
 
@@ -200,7 +253,7 @@ public void run() {
                             }.start();
                         }
                     }
-                } else if (toFlush.isEmpty()) {
+                } else if (toFlush.isEmpty() && (fsyncThread == null || fsyncThread.isIdle())) {
                     // optimization for read heavy workloads
                     // iff this is a read or a throttled request(which doesn't need to be written to the disk),
                     // and there are no pending flushes (writes), then just pass this to the next processor
@@ -213,6 +266,9 @@ public void run() {
                     continue;
                 }
                 toFlush.add(si);
+                if (fsyncThread != null && !fsyncThread.isIdle()) {
+                    overlapped++;
+                }
                 if (shouldFlush()) {
                     flush();
                 }
@@ -224,22 +280,65 @@ public void run() {
         LOG.info("SyncRequestProcessor exited!");
     }
 
-    private void flush() throws IOException, RequestProcessorException {
+    private void flush() throws IOException, RequestProcessorException, InterruptedException {
         if (this.toFlush.isEmpty()) {
             return;
         }
 
+        if (fsyncThread != null) {
+            int maxBatchSize = zks.getMaxBatchSize();
+            if (!fsyncThread.isIdle() && (maxBatchSize <= 0 || toFlush.size() < maxBatchSize)) {
+                // keep batching until the FsyncThread is done
+                return;
+            }
+            submitBatch();
+            return;
+        }
+
         ServerMetrics.getMetrics().BATCH_SIZE.add(toFlush.size());
 
         long flushStartTime = Time.currentElapsedTime();
         zks.getZKDatabase().commit();
         ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
 
+        flushed(this.toFlush);
+        lastFlushTime = Time.currentElapsedTime();
+    }
+
+    /**
+     * Write the batch to the log and hand it over to the FsyncThread, once it
+     * is done with the previous batch.
+     */
+    private void submitBatch() throws IOException, InterruptedException {
+        int batchSize = toFlush.size();
+        ServerMetrics.getMetrics().BATCH_SIZE.add(batchSize);
+        ServerMetrics.getMetrics().SYNC_PROCESSOR_FSYNC_OVERLAP_RATIO.add(overlapped * 100L / batchSize);
+
+        // aim for the number of requests arriving during one fsync
+        long now = Time.currentElapsedTime();
+        double rate = batchSize / (double) Math.max(1, now - lastFlushTime);
+        arrivalRate = arrivalRate == 0 ? rate : 0.8 * arrivalRate + 0.2 * rate;
+        long syncTime = Math.max(1, zks.getTxnLogElapsedSyncTime());
+        int maxBatchSize = zks.getMaxBatchSize() > 0 ? zks.getMaxBatchSize() : Integer.MAX_VALUE;
+        targetBatchSize = (int) Math.max(1, Math.min(maxBatchSize, arrivalRate * syncTime));
+        ServerMetrics.getMetrics().SYNC_PROCESSOR_TARGET_BATCH_SIZE.add(targetBatchSize);
+
+        TxnLog.PendingCommit commit = zks.getZKDatabase().startCommit();
+        fsyncThread.submit(new ArrayDeque<>(toFlush), commit);
+        toFlush.clear();
+        overlapped = 0;
+        lastFlushTime = now;
+    }
+
+    /**
+     * Pass the requests whose txns are on disk to the next processor.
+     */
+    private void flushed(Queue<Request> requests) throws IOException, RequestProcessorException {
         if (this.nextProcessor == null) {
-            this.toFlush.clear();
+            requests.clear();
         } else {
-            while (!this.toFlush.isEmpty()) {
-                final Request i = this.toFlush.remove();
+            while (!requests.isEmpty()) {
+                final Request i = requests.remove();
                 long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
                 this.nextProcessor.processRequest(i);
@@ -248,7 +347,6 @@ private void flush() throws IOException, RequestProcessorException {
                 ((Flushable) this.nextProcessor).flush();
             }
         }
-        lastFlushTime = Time.currentElapsedTime();
     }
 
     public void shutdown() {
@@ -256,7 +354,13 @@ public void shutdown() {
         queuedRequests.add(REQUEST_OF_DEATH);
         try {
             this.join();
+            if (fsyncThread != null) {
+                fsyncThread.awaitIdle();
+            }
             this.flush();
+            if (fsyncThread != null) {
+                fsyncThread.shutdown();
+            }
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while wating for {} to finish", this);
             Thread.currentThread().interrupt();
@@ -278,4 +382,87 @@ public void processRequest(final Request request) {
         ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUED.add(1);
     }
 
+    /**
+     * Syncs one batch at a time and passes its requests to the next
+     * processor.
+     */
+    private class FsyncThread extends ZooKeeperCriticalThread {
+
+        private Queue<Request> batch;
+        private TxnLog.PendingCommit commit;
+        private volatile boolean busy;
+        private boolean stopping;
+
+        FsyncThread() {
+            super("FsyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
+        }
+
+        boolean isIdle() {
+            return !busy;
+        }
+
+        synchronized void submit(Queue<Request> requests, TxnLog.PendingCommit pendingCommit) throws InterruptedException, IOException {
+            awaitIdle();
+            if (stopping) {
+                throw new IOException("FsyncThread is not running");
+            }
+            batch = requests;
+            commit = pendingCommit;
+            busy = true;
+            notifyAll();
+        }
+
+        synchronized void awaitIdle() throws InterruptedException {
+            while (busy) {
+                wait();
+            }
+        }
+
+        void shutdown() throws InterruptedException {
+            synchronized (this) {
+                stopping = true;
+                notifyAll();
+            }
+            join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (!busy && !stopping) {
+                            wait();
+                        }
+                        if (!busy) {
+                            break;
+                        }
+                    }
+
+                    long flushStartTime = Time.currentElapsedTime();
+                    commit.complete();
+                    ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+                    flushed(batch);
+
+                    synchronized (this) {
+                        batch = null;
+                        commit = null;
+                        busy = false;
+                        notifyAll();
+                    }
+                    queuedRequests.add(FSYNC_DONE);
+                }
+            } catch (Throwable t) {
+                handleException(getName(), t);
+                synchronized (this) {
+                    stopping = true;
+                    busy = false;
+                    notifyAll();
+                }
+            }
+            LOG.info("FsyncThread exited!");
+        }
+
+    }
+
 }
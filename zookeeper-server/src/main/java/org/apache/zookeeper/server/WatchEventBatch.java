@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the watch notifications sent to the same connection while a txn
+ * is applied, so a txn firing many watches of a session, e.g. a multi, is
+ * delivered with one write instead of one per event.
+ * <p>
+ * A batch is bound to the thread applying the txn, between {@link #begin()}
+ * and {@link #end()}. The notifications are flushed when the batch ends,
+ * which has to happen before the response of the txn is sent so a client
+ * still sees the watch events before the response.
+ */
+public final class WatchEventBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchEventBatch.class);
+
+    public static final String WATCH_EVENT_BATCHING_ENABLED = "zookeeper.watchEventBatchingEnabled";
+
+    private static volatile boolean enabled;
+
+    static {
+        enabled = Boolean.parseBoolean(System.getProperty(WATCH_EVENT_BATCHING_ENABLED, "true"));
+        LOG.info("{} = {}", WATCH_EVENT_BATCHING_ENABLED, enabled);
+    }
+
+    private static final ThreadLocal<WatchEventBatch> CURRENT = ThreadLocal.withInitial(WatchEventBatch::new);
+
+    private int depth;
+
+    private Map<ServerCnxn, List<ByteBuffer[]>> pending = new IdentityHashMap<>();
+
+    private WatchEventBatch() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        WatchEventBatch.enabled = enabled;
+        LOG.info("{} = {}", WATCH_EVENT_BATCHING_ENABLED, enabled);
+    }
+
+    /**
+     * Start batching the notifications sent by the current thread. Batches
+     * nest, the notifications are flushed by the outermost {@link #end()}.
+     * A batch nested in another one is counted even if batching is disabled,
+     * so its end does not flush the enclosing one.
+     */
+    public static void begin() {
+        WatchEventBatch batch = CURRENT.get();
+        if (enabled || batch.depth > 0) {
+            batch.depth++;
+        }
+    }
+
+    /**
+     * End the batch started by {@link #begin()}, and send the notifications
+     * if this is the outermost batch.
+     */
+    public static void end() {
+        WatchEventBatch batch = CURRENT.get();
+        if (batch.depth > 0 && --batch.depth == 0) {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Start batching the notifications sent by the current thread, even if
+     * batching is disabled, until {@link #detach()}. This is used for a txn
+     * applied ahead of the txns before it, whose notifications have to be
+     * sent after theirs.
+     */
+    public static void beginDetached() {
+        CURRENT.get().depth++;
+    }
+
+    /**
+     * End the batch started by {@link #beginDetached()} without sending the
+     * notifications.
+     *
+     * @return the notifications, to send with {@link #send()}
+     */
+    public static WatchEventBatch detach() {
+        WatchEventBatch batch = CURRENT.get();
+        batch.depth--;
+        WatchEventBatch detached = new WatchEventBatch();
+        if (!batch.pending.isEmpty()) {
+            detached.pending = batch.pending;
+            batch.pending = new IdentityHashMap<>();
+        }
+        return detached;
+    }
+
+    /**
+     * Send the notifications of a detached batch.
+     */
+    public void send() {
+        flush();
+    }
+
+    /**
+     * Queue a serialized notification if the current thread is batching.
+     *
+     * @return false if there is no batch, the notification has to be sent
+     * right away
+     */
+    static boolean defer(ServerCnxn cnxn, ByteBuffer[] notification) {
+        WatchEventBatch batch = CURRENT.get();
+        if (batch.depth == 0) {
+            return false;
+        }
+        batch.pending.computeIfAbsent(cnxn, k -> new ArrayList<>(4)).add(notification);
+        return true;
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<ServerCnxn, List<ByteBuffer[]>> entry : pending.entrySet()) {
+            List<ByteBuffer[]> notifications = entry.getValue();
+            ServerMetrics.getMetrics().WATCH_EVENTS_PER_FLUSH.add(notifications.size());
+            try {
+                entry.getKey().sendNotifications(notifications);
+            } catch (Exception e) {
+                LOG.warn("Unexpected exception sending notifications to {}", entry.getKey(), e);
+            }
+        }
+        pending.clear();
+    }
+
+}
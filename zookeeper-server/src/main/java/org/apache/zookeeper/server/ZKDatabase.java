@@ -32,6 +32,7 @@
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
@@ -48,8 +49,10 @@
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
+import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
@@ -94,6 +97,12 @@ public class ZKDatabase {
     protected ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
     private volatile boolean initialized = false;
 
+    /**
+     * The listeners of the node changes, they are moved to the new
+     * datatree on a clear.
+     */
+    private final CopyOnWriteArrayList<NodeChangeListener> nodeChangeListeners = new CopyOnWriteArrayList<>();
+
     /**
      * Number of txn since last snapshot;
      */
@@ -175,6 +184,10 @@ public void clear() {
          */
         dataTree.shutdownWatcher();
         dataTree = createDataTree();
+        for (NodeChangeListener listener : nodeChangeListeners) {
+            dataTree.addNodeChangeListener(listener);
+            listener.treeReplaced();
+        }
         sessionsWithTimeouts.clear();
         WriteLock lock = logLock.writeLock();
         try {
@@ -194,6 +207,24 @@ public DataTree getDataTree() {
         return this.dataTree;
     }
 
+    /**
+     * Add a listener notified of the changes made to the nodes of the
+     * datatree, including the datatrees which replace it.
+     *
+     * @param listener the listener to add, it is only added once
+     */
+    public void addNodeChangeListener(NodeChangeListener listener) {
+        if (nodeChangeListeners.addIfAbsent(listener)) {
+            dataTree.addNodeChangeListener(listener);
+        }
+    }
+
+    public void removeNodeChangeListener(NodeChangeListener listener) {
+        if (nodeChangeListeners.remove(listener)) {
+            dataTree.removeNodeChangeListener(listener);
+        }
+    }
+
     /**
      * the committed log for this zk database
      * @return the committed log for this zkdatabase
@@ -399,6 +430,10 @@ public Iterator<Proposal> getProposalsFromTxnLog(long startZxid, long sizeLimit)
                     return TxnLogProposalIterator.EMPTY_ITERATOR;
                 }
             }
+
+            // Jump over the txns before startZxid using the log index, the
+            // last txn before it is kept in case the learner needs a TRUNC
+            itr.skipTo(startZxid);
         } catch (IOException e) {
             LOG.error("Unable to read txnlog from disk", e);
             try {
@@ -482,6 +517,26 @@ public ProcessTxnResult processTxn(TxnHeader hdr, Record txn, TxnDigest digest)
         return dataTree.processTxn(hdr, txn, digest);
     }
 
+    /**
+     * apply the txn on the data, concurrently with txns touching other
+     * nodes, see {@link DataTree#applyTxn(TxnHeader, Record)}
+     * @param hdr the txnheader for the txn
+     * @param txn the transaction that needs to be applied
+     * @return the result of processing the transaction on this
+     * datatree/zkdatabase
+     */
+    public ProcessTxnResult applyTxn(TxnHeader hdr, Record txn) {
+        return dataTree.applyTxn(hdr, txn);
+    }
+
+    /**
+     * complete a txn applied by {@link #applyTxn(TxnHeader, Record)}, see
+     * {@link DataTree#completeTxn(TxnHeader, Record, TxnDigest, boolean)}
+     */
+    public void completeTxn(TxnHeader hdr, Record txn, TxnDigest digest, boolean treeAtTxn) {
+        dataTree.completeTxn(hdr, txn, digest, treeAtTxn);
+    }
+
     /**
      * stat the path
      * @param path the path for which stat is to be done
@@ -565,6 +620,26 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
         return dataTree.getChildren(path, stat, watcher);
     }
 
+    /**
+     * get a page of the children of this path, sorted by name
+     * @see DataTree#getChildrenPage(String, String, long, long, String, int, int, List, Stat, Watcher)
+     * @return the cursor of the next page, empty on the last page
+     * @throws KeeperException.NoNodeException
+     */
+    public String getChildrenPage(
+        String path,
+        String prefix,
+        long minSequence,
+        long maxSequence,
+        String cursor,
+        int maxChildren,
+        int maxBytes,
+        List<String> children,
+        Stat stat,
+        Watcher watcher) throws KeeperException.NoNodeException {
+        return dataTree.getChildrenPage(path, prefix, minSequence, maxSequence, cursor, maxChildren, maxBytes, children, stat, watcher);
+    }
+
     /*
      * get all sub-children number of this node
      * */
@@ -620,6 +695,30 @@ public void deserializeSnapshot(InputArchive ia) throws IOException {
         initialized = true;
     }
 
+    /**
+     * deserialize a snapshot from a snapshot file
+     * @param snap the snapshot file
+     * @param zxid the zxid of the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupted
+     */
+    public void deserializeSnapshot(File snap, long zxid) throws IOException {
+        clear();
+        new FileSnap(snap.getParentFile()).deserialize(getDataTree(), getSessionWithTimeOuts(), snap, zxid);
+        initialized = true;
+    }
+
+    /**
+     * the n most recent valid snapshots of this database
+     * @param n the number of snapshots
+     * @return the snapshot files, with the most recent in front
+     */
+    public List<File> findNValidSnapshots(int n) {
+        if (snapLog == null) {
+            return Collections.emptyList();
+        }
+        return snapLog.findNValidSnapshots(n);
+    }
+
     /**
      * serialize the snapshot
      * @param oa the output archive to which the snapshot needs to be serialized
@@ -659,6 +758,15 @@ public void commit() throws IOException {
         this.snapLog.commit();
     }
 
+    /**
+     * start committing to the underlying transaction log, the returned
+     * commit syncs the log
+     * @throws IOException
+     */
+    public TxnLog.PendingCommit startCommit() throws IOException {
+        return this.snapLog.startCommit();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
@@ -219,6 +219,8 @@ protected enum State {
     final Deque<ChangeRecord> outstandingChanges = new ArrayDeque<>();
     // this data structure must be accessed under the outstandingChanges lock
     final Map<String, ChangeRecord> outstandingChangesForPath = new HashMap<String, ChangeRecord>();
+    // the txns applied by applyTxn and not completed yet by processTxn
+    private final AtomicInteger appliedTxns = new AtomicInteger(0);
 
     protected ServerCnxnFactory serverCnxnFactory;
     protected ServerCnxnFactory secureServerCnxnFactory;
@@ -245,6 +247,8 @@ protected enum State {
 
     public static final String GET_DATA_RESPONSE_CACHE_SIZE = "zookeeper.maxResponseCacheSize";
     public static final String GET_CHILDREN_RESPONSE_CACHE_SIZE = "zookeeper.maxGetChildrenResponseCacheSize";
+    public static final String GET_DATA_RESPONSE_CACHE_BYTES = "zookeeper.maxResponseCacheBytes";
+    public static final String GET_CHILDREN_RESPONSE_CACHE_BYTES = "zookeeper.maxGetChildrenResponseCacheBytes";
 
     static {
         long configuredFlushDelay = Long.getLong(FLUSH_DELAY, 0);
@@ -348,11 +352,15 @@ public ZooKeeperServer(FileTxnSnapLog txnLogFactory, int tickTime, int minSessio
 
         readResponseCache = new ResponseCache(Integer.getInteger(
             GET_DATA_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), "getData");
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), Long.getLong(
+            GET_DATA_RESPONSE_CACHE_BYTES,
+            ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES), "getData");
 
         getChildrenResponseCache = new ResponseCache(Integer.getInteger(
             GET_CHILDREN_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), "getChildren");
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), Long.getLong(
+            GET_CHILDREN_RESPONSE_CACHE_BYTES,
+            ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES), "getChildren");
 
         this.initialConfig = initialConfig;
 
@@ -722,6 +730,8 @@ private void startupWithServerState(State state) {
 
         registerMetrics();
 
+        registerResponseCaches();
+
         setState(state);
 
         requestPathMetricsCollector.start();
@@ -731,6 +741,29 @@ private void startupWithServerState(State state) {
         notifyAll();
     }
 
+    /**
+     * The response caches are invalidated by the changes of the nodes, they
+     * start empty since the database may have changed while this server was
+     * not listening.
+     */
+    private void registerResponseCaches() {
+        if (zkDb == null) {
+            return;
+        }
+        readResponseCache.clear();
+        getChildrenResponseCache.clear();
+        zkDb.addNodeChangeListener(readResponseCache);
+        zkDb.addNodeChangeListener(getChildrenResponseCache);
+    }
+
+    private void unregisterResponseCaches() {
+        if (zkDb == null) {
+            return;
+        }
+        zkDb.removeNodeChangeListener(readResponseCache);
+        zkDb.removeNodeChangeListener(getChildrenResponseCache);
+    }
+
     protected void startJvmPauseMonitor() {
         if (this.jvmPauseMonitor != null) {
             this.jvmPauseMonitor.serviceStart();
@@ -862,6 +895,8 @@ public synchronized void shutdown(boolean fullyShutDown) {
             jvmPauseMonitor.serviceStop();
         }
 
+        unregisterResponseCaches();
+
         if (zkDb != null) {
             if (fullyShutDown) {
                 zkDb.clear();
@@ -1788,7 +1823,12 @@ public ProcessTxnResult processTxn(Request request) {
             return new ProcessTxnResult();
         }
         synchronized (outstandingChanges) {
-            ProcessTxnResult rc = processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
+            ProcessTxnResult rc;
+            if (request.appliedTxnResult != null) {
+                rc = completeTxn(request);
+            } else {
+                rc = processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
+            }
 
             // request.hdr is set for write requests, which are the only ones
             // that add to outstandingChanges.
@@ -1818,6 +1858,34 @@ public ProcessTxnResult processTxn(Request request) {
         }
     }
 
+    /**
+     * Apply the txn of a committed request to the data tree ahead of
+     * {@link #processTxn(Request)}, concurrently with the txns of requests
+     * touching other nodes, see
+     * {@link org.apache.zookeeper.server.quorum.CommitProcessor}. The last
+     * processed zxid, the digest, the outstanding changes and the watch
+     * notifications are only updated by {@link #processTxn(Request)}, which
+     * still has to be called in zxid order.
+     */
+    public void applyTxn(Request request) {
+        WatchEventBatch.beginDetached();
+        try {
+            request.appliedTxnResult = getZKDatabase().applyTxn(request.getHdr(), request.getTxn());
+            appliedTxns.incrementAndGet();
+        } finally {
+            request.appliedTxnEvents = WatchEventBatch.detach();
+        }
+    }
+
+    private ProcessTxnResult completeTxn(Request request) {
+        // the digest of the tree is the one after the txn once the txns
+        // applied with it are all completed
+        boolean treeAtTxn = appliedTxns.decrementAndGet() == 0;
+        getZKDatabase().completeTxn(request.getHdr(), request.getTxn(), request.getTxnDigest(), treeAtTxn);
+        request.appliedTxnEvents.send();
+        return request.appliedTxnResult;
+    }
+
     private void processTxnForSessionEvents(Request request, TxnHeader hdr, Record txn) {
         int opCode = (request == null) ? hdr.getType() : request.type;
         long sessionId = (request == null) ? hdr.getClientId() : request.sessionId;
@@ -1837,8 +1905,13 @@ private void processTxnForSessionEvents(Request request, TxnHeader hdr, Record t
     private ProcessTxnResult processTxnInDB(TxnHeader hdr, Record txn, TxnDigest digest) {
         if (hdr == null) {
             return new ProcessTxnResult();
-        } else {
+        }
+        // the watch events fired by the txn are sent before its response
+        WatchEventBatch.begin();
+        try {
             return getZKDatabase().processTxn(hdr, txn, digest);
+        } finally {
+            WatchEventBatch.end();
         }
     }
 
@@ -46,6 +46,8 @@
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.LeaderZooKeeperServer;
 import org.apache.zookeeper.server.quorum.MultipleAddresses;
+import org.apache.zookeeper.server.quorum.Observer;
+import org.apache.zookeeper.server.quorum.ObserverZooKeeperServer;
 import org.apache.zookeeper.server.quorum.QuorumPeer;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
 import org.apache.zookeeper.server.quorum.QuorumZooKeeperServer;
@@ -474,6 +476,9 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
             } else if (zkServer instanceof FollowerZooKeeperServer) {
                 Follower follower = ((FollowerZooKeeperServer) zkServer).getFollower();
                 follower.resetObserverConnectionStats();
+            } else if (zkServer instanceof ObserverZooKeeperServer) {
+                Observer observer = ((ObserverZooKeeperServer) zkServer).getObserver();
+                observer.resetObserverConnectionStats();
             }
             return response;
         }
@@ -650,6 +655,14 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
                     response.put("observers", follower.getSyncedObserversInfo());
                     return response;
                 }
+            } else if (zkServer instanceof ObserverZooKeeperServer) {
+                Observer observer = ((ObserverZooKeeperServer) zkServer).getObserver();
+                Integer syncedObservers = observer.getSyncedObserverSize();
+                if (syncedObservers != null) {
+                    response.put("synced_observers", syncedObservers);
+                    response.put("observers", observer.getSyncedObserversInfo());
+                    return response;
+                }
             }
 
             response.put("synced_observers", 0);
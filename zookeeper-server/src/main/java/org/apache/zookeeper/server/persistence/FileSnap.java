@@ -22,15 +22,25 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.SnapshotChunkWriter;
 import org.apache.zookeeper.server.util.SerializeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,13 +56,26 @@ public class FileSnap implements SnapShot {
     File snapDir;
     SnapshotInfo lastSnapshotInfo = null;
     private volatile boolean close = false;
-    private static final int VERSION = 2;
     private static final long dbId = -1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public static final int SNAP_MAGIC = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
 
     public static final String SNAPSHOT_FILE_PREFIX = "snapshot";
 
+    /**
+     * Prefix of the segment files of a partitioned snapshot. It differs from
+     * {@link #SNAPSHOT_FILE_PREFIX} so segments are never taken for snapshots.
+     */
+    public static final String SNAPSHOT_SEGMENT_FILE_PREFIX = "snapshotSegment";
+
+    public static final String SNAPSHOT_WRITE_THREADS = "zookeeper.snapshot.writeThreads";
+
+    public static final String SNAPSHOT_CHUNK_SIZE = "zookeeper.snapshot.chunkSizeBytes";
+
+    public static final String SNAPSHOT_RESTORE_THREADS = "zookeeper.snapshot.restoreThreads";
+
+    private static final int DEFAULT_SNAPSHOT_CHUNK_SIZE = 256 * 1024;
+
     public FileSnap(File snapDir) {
         this.snapDir = snapDir;
     }
@@ -84,21 +107,8 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
             snap = snapList.get(i);
             LOG.info("Reading snapshot {}", snap);
             snapZxid = Util.getZxidFromName(snap.getName(), SNAPSHOT_FILE_PREFIX);
-            try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
-                InputArchive ia = BinaryInputArchive.getArchive(snapIS);
-                deserialize(dt, sessions, ia);
-                SnapStream.checkSealIntegrity(snapIS, ia);
-
-                // Digest feature was added after the CRC to make it backward
-                // compatible, the older code can still read snapshots which
-                // includes digest.
-                //
-                // To check the intact, after adding digest we added another
-                // CRC check.
-                if (dt.deserializeZxidDigest(ia, snapZxid)) {
-                    SnapStream.checkSealIntegrity(snapIS, ia);
-                }
-
+            try {
+                deserialize(dt, sessions, snap, snapZxid);
                 foundValid = true;
                 break;
             } catch (IOException e) {
@@ -119,6 +129,32 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
         return dt.lastProcessedZxid;
     }
 
+    /**
+     * deserialize the datatree from a snapshot file, and check its integrity
+     * @param dt the datatree to be serialized into
+     * @param sessions the sessions to be filled up
+     * @param snap the snapshot file, its compression is detected from its name
+     * @param snapZxid the zxid of the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupted
+     */
+    public void deserialize(DataTree dt, Map<Long, Integer> sessions, File snap, long snapZxid) throws IOException {
+        try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
+            InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+            deserialize(dt, sessions, ia);
+            SnapStream.checkSealIntegrity(snapIS, ia);
+
+            // Digest feature was added after the CRC to make it backward
+            // compatible, the older code can still read snapshots which
+            // includes digest.
+            //
+            // To check the intact, after adding digest we added another
+            // CRC check.
+            if (dt.deserializeZxidDigest(ia, snapZxid)) {
+                SnapStream.checkSealIntegrity(snapIS, ia);
+            }
+        }
+    }
+
     /**
      * deserialize the datatree from an inputarchive
      * @param dt the datatree to be serialized into
@@ -132,7 +168,63 @@ public void deserialize(DataTree dt, Map<Long, Integer> sessions, InputArchive i
         if (header.getMagic() != SNAP_MAGIC) {
             throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        SnapStream.Layout layout = SnapStream.Layout.fromVersion(header.getVersion());
+        if (layout == SnapStream.Layout.SERIAL) {
+            SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+            return;
+        }
+        int threads = Integer.getInteger(SNAPSHOT_RESTORE_THREADS, Runtime.getRuntime().availableProcessors());
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            if (layout == SnapStream.Layout.CHUNKED) {
+                SerializeUtils.deserializeChunkedSnapshot(dt, ia, sessions, pool);
+            } else {
+                deserializePartitioned(dt, sessions, ia, pool);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Restore a partitioned snapshot, the segments listed in the manifest
+     * are read and decoded concurrently.
+     */
+    private void deserializePartitioned(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        InputArchive ia,
+        ExecutorService executor) throws IOException {
+        long startTime = Time.currentElapsedTime();
+        List<Future<List<SnapshotChunkWriter.DecodedChunk>>> decoded = new ArrayList<>(
+            SerializeUtils.deserializePartitionedSnapshotHead(dt, ia, sessions, executor));
+        int segments = ia.readInt("segments");
+        for (int i = 0; i < segments; i++) {
+            String name = ia.readString("name");
+            ia.readLong("nodes");
+            long length = ia.readLong("length");
+            if (snapDir == null) {
+                throw new IOException("Unable to locate segment " + name + " without a snapshot directory");
+            }
+            File segment = new File(snapDir, name);
+            if (segment.length() != length) {
+                throw new IOException("Snapshot segment " + segment + " is missing or has "
+                                      + segment.length() + " bytes instead of " + length);
+            }
+            decoded.add(executor.submit(() -> deserializeSegment(dt, segment)));
+        }
+        ServerMetrics.getMetrics().STARTUP_SNAP_CHUNKS.add(segments);
+        ServerMetrics.getMetrics().STARTUP_SNAP_CHUNK_READ_TIME.add(Time.currentElapsedTime() - startTime);
+        dt.restoreChunks(decoded);
+    }
+
+    private static List<SnapshotChunkWriter.DecodedChunk> deserializeSegment(DataTree dt, File segment) throws IOException {
+        try (CheckedInputStream segmentIS = SnapStream.getInputStream(segment)) {
+            InputArchive ia = BinaryInputArchive.getArchive(segmentIS);
+            List<SnapshotChunkWriter.DecodedChunk> chunks = dt.decodeChunks(ia);
+            SnapStream.checkSealIntegrity(segmentIS, ia);
+            return chunks;
+        }
     }
 
     /**
@@ -223,7 +315,111 @@ protected void serialize(
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        switch (SnapStream.Layout.fromVersion(header.getVersion())) {
+        case CHUNKED:
+            SerializeUtils.serializeChunkedSnapshot(dt, oa, sessions, getChunkSize());
+            break;
+        case PARTITIONED:
+            SerializeUtils.serializePartitionedSnapshotHead(dt, oa, sessions, getChunkSize());
+            break;
+        case SERIAL:
+        default:
+            SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        }
+    }
+
+    private static int getChunkSize() {
+        return Integer.getInteger(SNAPSHOT_CHUNK_SIZE, DEFAULT_SNAPSHOT_CHUNK_SIZE);
+    }
+
+    /**
+     * Write the top level subtrees of the tree to segment files, the subtrees
+     * are spread over the segments which are written concurrently.
+     *
+     * @param dt the datatree to be serialized
+     * @param snapShot the snapshot file the segments belong to
+     * @param fsync sync the segments immediately after write
+     * @return the manifest entries of the segments
+     */
+    private List<SnapshotSegment> serializeSegments(DataTree dt, File snapShot, boolean fsync) throws IOException {
+        long zxid = Util.getZxidFromName(snapShot.getName(), SNAPSHOT_FILE_PREFIX);
+        List<String> children = dt.getTopLevelChildren();
+        int threads = Integer.getInteger(SNAPSHOT_WRITE_THREADS, Runtime.getRuntime().availableProcessors());
+        int partitions = Math.max(1, Math.min(children.size(), threads));
+        List<List<String>> assignment = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            assignment.add(new ArrayList<>());
+        }
+        for (int i = 0; i < children.size(); i++) {
+            assignment.get(i % partitions).add(children.get(i));
+        }
+
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions, r -> {
+            Thread t = new Thread(r, "SnapshotSegmentWriter-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<SnapshotSegment>> futures = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                File segment = new File(snapShot.getParentFile(), Util.makeSnapshotSegmentName(zxid, i));
+                List<String> subtrees = assignment.get(i);
+                futures.add(executor.submit(() -> serializeSegment(dt, subtrees, segment, fsync)));
+            }
+            List<SnapshotSegment> segments = new ArrayList<>(partitions);
+            for (Future<SnapshotSegment> future : futures) {
+                segments.add(future.get());
+            }
+            return segments;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing snapshot segments", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write snapshot segment", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static SnapshotSegment serializeSegment(
+        DataTree dt,
+        List<String> subtrees,
+        File segment,
+        boolean fsync) throws IOException {
+        long nodes;
+        try (CheckedOutputStream segmentOS = SnapStream.getOutputStream(segment, fsync)) {
+            OutputArchive oa = BinaryOutputArchive.getArchive(segmentOS);
+            nodes = dt.serializePartition(oa, subtrees, getChunkSize());
+            SnapStream.sealStream(segmentOS, oa);
+        }
+        return new SnapshotSegment(segment.getName(), nodes, segment.length());
+    }
+
+    private static void serializeManifest(OutputArchive oa, List<SnapshotSegment> segments) throws IOException {
+        oa.writeInt(segments.size(), "segments");
+        for (SnapshotSegment segment : segments) {
+            oa.writeString(segment.name, "name");
+            oa.writeLong(segment.nodes, "nodes");
+            oa.writeLong(segment.length, "length");
+        }
+    }
+
+    /**
+     * Manifest entry of a segment file of a partitioned snapshot.
+     */
+    private static class SnapshotSegment {
+
+        final String name;
+        final long nodes;
+        final long length;
+
+        SnapshotSegment(String name, long nodes, long length) {
+            this.name = name;
+            this.nodes = nodes;
+            this.length = length;
+        }
+
     }
 
     /**
@@ -239,10 +435,20 @@ public synchronized void serialize(
         File snapShot,
         boolean fsync) throws IOException {
         if (!close) {
+            long startTime = Time.currentElapsedTime();
+            SnapStream.Layout layout = SnapStream.getLayout();
+            // the segments are written first, so a complete snapshot file
+            // implies complete segments
+            List<SnapshotSegment> segments = layout == SnapStream.Layout.PARTITIONED
+                ? serializeSegments(dt, snapShot, fsync)
+                : Collections.emptyList();
             try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                FileHeader header = new FileHeader(SNAP_MAGIC, layout.getVersion(), dbId);
                 serialize(dt, sessions, oa, header);
+                if (layout == SnapStream.Layout.PARTITIONED) {
+                    serializeManifest(oa, segments);
+                }
                 SnapStream.sealStream(snapOS, oa);
 
                 // Digest feature was added after the CRC to make it backward
@@ -259,6 +465,13 @@ public synchronized void serialize(
                     Util.getZxidFromName(snapShot.getName(), SNAPSHOT_FILE_PREFIX),
                     snapShot.lastModified() / 1000);
             }
+            long bytes = snapShot.length();
+            for (SnapshotSegment segment : segments) {
+                bytes += segment.length;
+            }
+            long elapsed = Time.currentElapsedTime() - startTime;
+            ServerMetrics.getMetrics().SNAPSHOT_BYTES.add(bytes);
+            ServerMetrics.getMetrics().SNAPSHOT_BYTES_PER_SEC.add(bytes * 1000 / Math.max(1, elapsed));
         } else {
             throw new IOException("FileSnap has already been closed");
         }
@@ -33,7 +33,9 @@
 import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Adler32;
@@ -105,6 +107,8 @@ public class FileTxnLog implements TxnLog, Closeable {
 
     public static final String LOG_FILE_PREFIX = "log";
 
+    public static final String LOG_INDEX_FILE_PREFIX = "logIndex";
+
     static final String FSYNC_WARNING_THRESHOLD_MS_PROPERTY = "fsync.warningthresholdms";
     static final String ZOOKEEPER_FSYNC_WARNING_THRESHOLD_MS_PROPERTY = "zookeeper." + FSYNC_WARNING_THRESHOLD_MS_PROPERTY;
 
@@ -126,6 +130,24 @@ public class FileTxnLog implements TxnLog, Closeable {
      */
     private static long txnLogSizeLimit = -1;
 
+    /**
+     * When enabled, {@link #read(long, boolean)} returns a
+     * {@link MappedTxnIterator}, which decodes the transactions straight from
+     * memory mapped log files instead of going through buffered streams.
+     */
+    public static final String TXN_LOG_MMAP_READ_ENABLED = "zookeeper.txnLogMmapReadEnabled";
+
+    private static boolean mmapReadEnabled = Boolean.getBoolean(TXN_LOG_MMAP_READ_ENABLED);
+
+    /**
+     * Every how many transactions the offset of a transaction is written to
+     * the index file of the log, which readers use to seek to a zxid.
+     * A non-positive value disables the index files.
+     */
+    public static final String TXN_LOG_INDEX_INTERVAL = "zookeeper.txnLogIndexInterval";
+
+    private static int txnLogIndexInterval = Integer.getInteger(TXN_LOG_INDEX_INTERVAL, 1000);
+
     static {
         LOG = LoggerFactory.getLogger(FileTxnLog.class);
 
@@ -144,6 +166,10 @@ public class FileTxnLog implements TxnLog, Closeable {
             logSize = logSize * 1024;
             txnLogSizeLimit = logSize;
         }
+
+        if (mmapReadEnabled) {
+            LOG.info("{} = {}", TXN_LOG_MMAP_READ_ENABLED, mmapReadEnabled);
+        }
     }
 
     long lastZxidSeen;
@@ -157,6 +183,10 @@ public class FileTxnLog implements TxnLog, Closeable {
     private final Queue<FileOutputStream> streamsToFlush = new ArrayDeque<>();
     File logFileWrite = null;
     private FilePadding filePadding = new FilePadding();
+    private TxnLogIndex.Writer indexWriter = null;
+    // the index writers of the rolled logs, closed once their log is synced
+    private final Map<FileOutputStream, TxnLogIndex.Writer> rolledIndexWriters = new HashMap<>();
+    private long logFilePosition;
 
     private ServerStats serverStats;
 
@@ -202,6 +232,25 @@ public static void setTxnLogSizeLimit(long size) {
         txnLogSizeLimit = size;
     }
 
+    /**
+     * Enable or disable reading the logs through memory mapped files
+     */
+    public static void setMmapReadEnabled(boolean enabled) {
+        mmapReadEnabled = enabled;
+    }
+
+    public static boolean isMmapReadEnabled() {
+        return mmapReadEnabled;
+    }
+
+    /**
+     * Set every how many transactions an entry is written to the log index
+     * files, a non-positive value disables them
+     */
+    public static void setTxnLogIndexInterval(int interval) {
+        txnLogIndexInterval = interval;
+    }
+
     /**
      * Return the current on-disk size of log size. This will be accurate only
      * after commit() is called. Otherwise, unflushed txns may not be included.
@@ -239,6 +288,10 @@ public synchronized void rollLog() throws IOException {
             prevLogsRunningTotal += getCurrentLogSize();
             this.logStream = null;
             oa = null;
+            if (indexWriter != null) {
+                rolledIndexWriters.put(fos, indexWriter);
+                indexWriter = null;
+            }
 
             // Roll over the current log file into the running total
         }
@@ -255,6 +308,14 @@ public synchronized void close() throws IOException {
         for (FileOutputStream log : streamsToFlush) {
             log.close();
         }
+        for (TxnLogIndex.Writer writer : rolledIndexWriters.values()) {
+            writer.close();
+        }
+        rolledIndexWriters.clear();
+        if (indexWriter != null) {
+            indexWriter.close();
+            indexWriter = null;
+        }
     }
 
     /**
@@ -292,8 +353,12 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
             fhdr.serialize(oa, "fileheader");
             // Make sure that the magic number is written before padding.
             logStream.flush();
-            filePadding.setCurrentSize(fos.getChannel().position());
+            logFilePosition = fos.getChannel().position();
+            filePadding.setCurrentSize(logFilePosition);
             streamsToFlush.add(fos);
+            if (txnLogIndexInterval > 0) {
+                indexWriter = new TxnLogIndex.Writer(logFileWrite, txnLogIndexInterval);
+            }
         }
         filePadding.padFile(fos.getChannel());
         byte[] buf = Util.marshallTxnEntry(hdr, txn, digest);
@@ -305,6 +370,12 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
         oa.writeLong(crc.getValue(), "txnEntryCRC");
         Util.writeTxnBytes(oa, buf);
 
+        if (indexWriter != null) {
+            indexWriter.appended(hdr.getZxid(), logFilePosition);
+        }
+        // crc, length, txn and end of record marker
+        logFilePosition += 8 + 4 + buf.length + 1;
+
         return true;
     }
 
@@ -374,36 +445,77 @@ public long getLastLoggedZxid() {
      * disk
      */
     public synchronized void commit() throws IOException {
+        startCommit().complete();
+    }
+
+    /**
+     * Flush the appended transactions to the log files. The files are synced
+     * by the returned commit, which does not hold the lock of this log while
+     * syncing, so transactions can be appended in the meantime.
+     */
+    @Override
+    public synchronized PendingCommit startCommit() throws IOException {
         if (logStream != null) {
             logStream.flush();
         }
-        for (FileOutputStream log : streamsToFlush) {
-            log.flush();
-            if (forceSync) {
-                long startSyncNS = System.nanoTime();
+        final List<FileOutputStream> streams = new ArrayList<>(streamsToFlush);
+        // the txns appended while syncing are not covered by this commit
+        final TxnLogIndex.Writer index = indexWriter;
+        final long indexMark = index == null ? 0 : index.mark();
+        return () -> {
+            for (FileOutputStream log : streams) {
+                log.flush();
+                if (forceSync) {
+                    sync(log);
+                }
+            }
+            // all but the current log have been rolled and are complete
+            finishCommit(streams.isEmpty() ? streams : streams.subList(0, streams.size() - 1), index, indexMark);
+        };
+    }
 
-                FileChannel channel = log.getChannel();
-                channel.force(false);
+    private void sync(FileOutputStream log) throws IOException {
+        long startSyncNS = System.nanoTime();
 
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
+        FileChannel channel = log.getChannel();
+        channel.force(false);
 
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
-                }
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+        if (syncElapsedMS > fsyncWarningThresholdMS) {
+            if (serverStats != null) {
+                serverStats.incrementFsyncThresholdExceedCount();
+            }
 
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+            LOG.warn(
+                "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                    + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                Thread.currentThread().getName(),
+                syncElapsedMS,
+                channel.size());
+        }
+
+        ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    }
+
+    private synchronized void finishCommit(
+        List<FileOutputStream> rolled,
+        TxnLogIndex.Writer index,
+        long indexMark) throws IOException {
+        for (FileOutputStream log : rolled) {
+            if (streamsToFlush.remove(log)) {
+                log.close();
+            }
+            TxnLogIndex.Writer writer = rolledIndexWriters.remove(log);
+            if (writer != null) {
+                writer.close();
             }
         }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.poll().close();
+
+        // the index only points to transactions which are on disk: those
+        // appended before the commit started. The index of a log rolled
+        // since is written once the log is synced, by a later commit.
+        if (index != null && index == indexWriter) {
+            index.flush(indexMark);
         }
 
         // Roll the log file if we exceed the size limit
@@ -445,6 +557,9 @@ public TxnIterator read(long zxid) throws IOException {
      * @return returns an iterator to iterate through the transaction logs
      */
     public TxnIterator read(long zxid, boolean fastForward) throws IOException {
+        if (mmapReadEnabled) {
+            return new MappedTxnIterator(logDir, zxid, fastForward);
+        }
         return new FileTxnIterator(logDir, zxid, fastForward);
     }
 
@@ -466,7 +581,9 @@ public boolean truncate(long zxid) throws IOException {
             RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
             raf.setLength(pos);
             raf.close();
+            TxnLogIndex.delete(itr.logFile);
             while (itr.goToNextLog()) {
+                TxnLogIndex.delete(itr.logFile);
                 if (!itr.logFile.delete()) {
                     LOG.warn("Unable to truncate {}", itr.logFile);
                 }
@@ -475,6 +592,29 @@ public boolean truncate(long zxid) throws IOException {
         return true;
     }
 
+    /**
+     * The log files which may contain transactions starting at the given zxid,
+     * newest first: all the logs starting at or after the zxid and the last
+     * log starting before it.
+     */
+    static ArrayList<File> getLogFilesFrom(File logDir, long zxid) {
+        ArrayList<File> storedFiles = new ArrayList<>();
+        List<File> files = Util.sortDataDir(
+            FileTxnLog.getLogFiles(logDir.listFiles(), 0),
+            LOG_FILE_PREFIX,
+            false);
+        for (File f : files) {
+            if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) >= zxid) {
+                storedFiles.add(f);
+            } else if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) < zxid) {
+                // add the last logfile that is less than the zxid
+                storedFiles.add(f);
+                break;
+            }
+        }
+        return storedFiles;
+    }
+
     /**
      * read the header of the transaction file
      * @param file the transaction file to read
@@ -628,6 +768,7 @@ public FileTxnIterator(File logDir, long zxid, boolean fastForward) throws IOExc
             init();
 
             if (fastForward && hdr != null) {
+                skipTo(zxid - 1);
                 while (hdr.getZxid() < zxid) {
                     if (!next()) {
                         break;
@@ -652,20 +793,7 @@ public FileTxnIterator(File logDir, long zxid) throws IOException {
          * @throws IOException
          */
         void init() throws IOException {
-            storedFiles = new ArrayList<>();
-            List<File> files = Util.sortDataDir(
-                FileTxnLog.getLogFiles(logDir.listFiles(), 0),
-                LOG_FILE_PREFIX,
-                false);
-            for (File f : files) {
-                if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) >= zxid) {
-                    storedFiles.add(f);
-                } else if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) < zxid) {
-                    // add the last logfile that is less than the zxid
-                    storedFiles.add(f);
-                    break;
-                }
-            }
+            storedFiles = getLogFilesFrom(logDir, zxid);
             goToNextLog();
             next();
         }
@@ -746,23 +874,7 @@ public boolean next() throws IOException {
                 return false;
             }
             try {
-                long crcValue = ia.readLong("crcvalue");
-                byte[] bytes = Util.readTxnBytes(ia);
-                // Since we preallocate, we define EOF to be an
-                if (bytes == null || bytes.length == 0) {
-                    throw new EOFException("Failed to read " + logFile);
-                }
-                // EOF or corrupted record
-                // validate CRC
-                Checksum crc = makeChecksumAlgorithm();
-                crc.update(bytes, 0, bytes.length);
-                if (crcValue != crc.getValue()) {
-                    throw new IOException(CRC_ERROR);
-                }
-                TxnLogEntry logEntry = SerializeUtils.deserializeTxn(bytes);
-                hdr = logEntry.getHeader();
-                record = logEntry.getTxn();
-                digest = logEntry.getDigest();
+                readTxn();
             } catch (EOFException e) {
                 LOG.debug("EOF exception", e);
                 inputStream.close();
@@ -783,6 +895,73 @@ public boolean next() throws IOException {
             return true;
         }
 
+        /**
+         * read the transaction at the current position of the current log
+         * @throws EOFException at the end of the log
+         */
+        private void readTxn() throws IOException {
+            long crcValue = ia.readLong("crcvalue");
+            byte[] bytes = Util.readTxnBytes(ia);
+            // Since we preallocate, we define EOF to be an
+            if (bytes == null || bytes.length == 0) {
+                throw new EOFException("Failed to read " + logFile);
+            }
+            // EOF or corrupted record
+            // validate CRC
+            Checksum crc = makeChecksumAlgorithm();
+            crc.update(bytes, 0, bytes.length);
+            if (crcValue != crc.getValue()) {
+                throw new IOException(CRC_ERROR);
+            }
+            TxnLogEntry logEntry = SerializeUtils.deserializeTxn(bytes);
+            hdr = logEntry.getHeader();
+            record = logEntry.getTxn();
+            digest = logEntry.getDigest();
+        }
+
+        /**
+         * Skip ahead in the current log to the indexed transaction closest to
+         * the given zxid, if there is one after the current transaction. If
+         * the index turns out to be stale the iterator stays where it was.
+         */
+        @Override
+        public void skipTo(long zxid) throws IOException {
+            if (hdr == null || hdr.getZxid() >= zxid) {
+                return;
+            }
+            TxnLogIndex index = TxnLogIndex.forLog(logFile);
+            long[] entry = index.floor(zxid);
+            if (entry == null || entry[0] <= hdr.getZxid() || entry[1] <= inputStream.getPosition()) {
+                return;
+            }
+            long current = hdr.getZxid();
+            try {
+                long toSkip = entry[1] - inputStream.getPosition();
+                while (toSkip > 0) {
+                    long skipped = inputStream.skip(toSkip);
+                    if (skipped <= 0) {
+                        throw new EOFException("Failed to skip in " + logFile);
+                    }
+                    toSkip -= skipped;
+                }
+                readTxn();
+                if (hdr.getZxid() == entry[0]) {
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.debug("Failed to read indexed txn", e);
+            }
+            LOG.warn("Stale index of {} at offset {}, scanning the log", logFile, entry[1]);
+            index.clear();
+            // read the log again up to where we were
+            inputStream.close();
+            inputStream = null;
+            ia = createInputArchive(logFile);
+            do {
+                readTxn();
+            } while (hdr.getZxid() < current);
+        }
+
         /**
          * return the current header
          * @return the current header that
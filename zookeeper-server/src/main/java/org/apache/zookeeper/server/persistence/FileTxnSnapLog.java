@@ -598,6 +598,15 @@ public void commit() throws IOException {
         txnLog.commit();
     }
 
+    /**
+     * start committing the transaction of logs, see {@link TxnLog#startCommit()}
+     * @return the commit to complete
+     * @throws IOException
+     */
+    public TxnLog.PendingCommit startCommit() throws IOException {
+        return txnLog.startCommit();
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log commit in milliseconds
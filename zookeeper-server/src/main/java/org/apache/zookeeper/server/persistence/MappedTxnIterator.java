@@ -0,0 +1,416 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.Adler32;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TxnLog.TxnIterator} over memory mapped transaction log files.
+ * <p>
+ * Unlike {@link FileTxnLog.FileTxnIterator}, the records are not copied
+ * through a buffered stream: the checksum is computed over the mapped bytes
+ * and the txn is decoded straight from a slice of the mapping. Seeking to a
+ * zxid only looks at the record lengths and the zxid in the txn header, and
+ * starts from the closest offset recorded in the {@link TxnLogIndex} of the
+ * log file.
+ * <p>
+ * A log is mapped in windows of {@link #WINDOW_SIZE} bytes, or of the size of
+ * a larger record. The window is unmapped as soon as the iterator moves past
+ * it or is closed, rather than when it is garbage collected, so a long read
+ * holds at most one window of address space and the log files can be
+ * deleted once the iterator is closed. The txns are copied out of the window
+ * while decoded, nothing refers to it once unmapped.
+ */
+public class MappedTxnIterator implements TxnLog.TxnIterator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedTxnIterator.class);
+
+    /** magic, version and dbid */
+    private static final int FILE_HEADER_LENGTH = 16;
+
+    /** crc and length of the txn */
+    private static final int RECORD_HEADER_LENGTH = 12;
+
+    /** clientId and cxid precede the zxid in the txn header */
+    private static final int ZXID_OFFSET = RECORD_HEADER_LENGTH + 12;
+
+    /** the number of bytes of a log mapped at once */
+    static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+    // unmaps a buffer before it is garbage collected, when the JVM allows it
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    private final ArrayList<File> storedFiles;
+
+    private File logFile;
+    private FileChannel channel;
+    private TxnLogIndex index;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    private TxnHeader hdr;
+    private Record record;
+    private TxnDigest digest;
+
+    /**
+     * create an iterator over a transaction database directory
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @param fastForward   true if the iterator should be fast forwarded to
+     *        point to the txn of a given zxid, else the iterator will
+     *        point to the starting txn of a txnlog that may contain txn of
+     *        a given zxid
+     * @throws IOException
+     */
+    public MappedTxnIterator(File logDir, long zxid, boolean fastForward) throws IOException {
+        this.storedFiles = FileTxnLog.getLogFilesFrom(logDir, zxid);
+        goToNextLog();
+        next();
+        if (fastForward && hdr != null) {
+            skipTo(zxid - 1);
+            while (hdr.getZxid() < zxid) {
+                if (!next()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return total storage size of txnlog that will return by this iterator.
+     */
+    public long getStorageSize() {
+        long sum = 0;
+        for (File f : storedFiles) {
+            sum += f.length();
+        }
+        return sum;
+    }
+
+    private boolean goToNextLog() throws IOException {
+        closeLog();
+        if (storedFiles.isEmpty()) {
+            return false;
+        }
+        logFile = storedFiles.remove(storedFiles.size() - 1);
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        index = TxnLogIndex.forLog(logFile);
+        if (!map(0, FILE_HEADER_LENGTH)) {
+            throw new EOFException("Failed to read header of " + logFile);
+        }
+        int magic = window.getInt(0);
+        if (magic != FileTxnLog.TXNLOG_MAGIC) {
+            throw new IOException("Transaction log: " + logFile
+                                  + " has invalid magic number "
+                                  + magic + " != " + FileTxnLog.TXNLOG_MAGIC);
+        }
+        position = FILE_HEADER_LENGTH;
+        LOG.debug("Mapped transaction log: {}", logFile);
+        return true;
+    }
+
+    private void closeLog() throws IOException {
+        unmapWindow();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Make sure the given range of the log is mapped, the log may have grown
+     * since it was mapped.
+     *
+     * @return false if the log is shorter than the range
+     */
+    private boolean map(long offset, long length) throws IOException {
+        if (window != null && offset >= windowStart && offset + length <= windowStart + window.capacity()) {
+            return true;
+        }
+        long size = channel.size();
+        if (offset + length > size) {
+            return false;
+        }
+        unmapWindow();
+        windowStart = offset;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size - offset, Math.max(length, WINDOW_SIZE)));
+        return true;
+    }
+
+    private void unmapWindow() {
+        if (window != null) {
+            UNMAPPER.unmap(window);
+            window = null;
+        }
+    }
+
+    /**
+     * @return whether the iterator currently holds a mapping of a log
+     */
+    boolean isMapped() {
+        return window != null;
+    }
+
+    /**
+     * Releases a mapping without waiting for its buffer to be garbage
+     * collected: with {@code Unsafe.invokeCleaner} from Java 9 on, with the
+     * cleaner of the buffer before. If neither is accessible, the mapping is
+     * left to the garbage collector.
+     */
+    abstract static class Unmapper {
+
+        abstract void unmap(MappedByteBuffer buffer);
+
+        static Unmapper create() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                return new Unmapper() {
+                    @Override
+                    void unmap(MappedByteBuffer buffer) {
+                        invoke(invokeCleaner, unsafe, buffer);
+                    }
+                };
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug("Unsafe.invokeCleaner is not available", e);
+            }
+            try {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return new Unmapper() {
+                    @Override
+                    void unmap(MappedByteBuffer buffer) {
+                        Object bufferCleaner = invoke(cleaner, buffer);
+                        if (bufferCleaner != null) {
+                            invoke(clean, bufferCleaner);
+                        }
+                    }
+                };
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.info("Transaction log mappings will be released by the garbage collector", e);
+            }
+            return new Unmapper() {
+                @Override
+                void unmap(MappedByteBuffer buffer) {
+                }
+            };
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.warn("Failed to unmap a transaction log, it is left to the garbage collector", e);
+                return null;
+            }
+        }
+
+    }
+
+    /**
+     * @return the length of the txn of the record at the current position,
+     * or -1 at the end of the log
+     */
+    private int recordLength() throws IOException {
+        if (!map(position, RECORD_HEADER_LENGTH)) {
+            return -1;
+        }
+        int length = window.getInt((int) (position - windowStart) + 8);
+        // Since we preallocate, we define EOF to be an
+        // empty transaction
+        if (length == 0) {
+            return -1;
+        }
+        if (length < 0) {
+            throw new IOException(BinaryInputArchive.UNREASONBLE_LENGTH + length);
+        }
+        if (!map(position, RECORD_HEADER_LENGTH + 1L + length)) {
+            return -1;
+        }
+        if (window.get((int) (position - windowStart) + RECORD_HEADER_LENGTH + length) != 'B') {
+            LOG.error("Last transaction was partial.");
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Move to the last transaction of the current log whose zxid is less than
+     * or equal to the given zxid, starting from the closest indexed one. The
+     * transactions skipped are not verified nor decoded, only the zxid in
+     * their header is read.
+     */
+    @Override
+    public void skipTo(long zxid) throws IOException {
+        if (hdr == null || hdr.getZxid() >= zxid) {
+            return;
+        }
+        long[] entry = index.floor(zxid);
+        if (entry != null && entry[0] > hdr.getZxid() && entry[1] > position) {
+            long current = position;
+            position = entry[1];
+            if (!isRecordOf(entry[0])) {
+                LOG.warn("Stale index of {} at offset {}, scanning the log", logFile, entry[1]);
+                index.clear();
+                position = current;
+            }
+        }
+        long last = -1;
+        while (true) {
+            int length = recordLength();
+            if (length < ZXID_OFFSET + 8 - RECORD_HEADER_LENGTH) {
+                // end of the log, or a record next() will complain about
+                break;
+            }
+            long recordZxid = window.getLong((int) (position - windowStart) + ZXID_OFFSET);
+            if (recordZxid > zxid) {
+                break;
+            }
+            index.observe(recordZxid, position);
+            last = position;
+            position += RECORD_HEADER_LENGTH + length + 1;
+        }
+        if (last != -1) {
+            position = last;
+            readRecord();
+        }
+    }
+
+    /**
+     * @return true if there is a complete record of the given zxid at the
+     * current position
+     */
+    private boolean isRecordOf(long zxid) {
+        try {
+            int length = recordLength();
+            return length >= ZXID_OFFSET + 8 - RECORD_HEADER_LENGTH
+                   && window.getLong((int) (position - windowStart) + ZXID_OFFSET) == zxid;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * the iterator that moves to the next transaction
+     * @return true if there is more transactions to be read
+     * false if not.
+     */
+    public boolean next() throws IOException {
+        while (channel != null) {
+            try {
+                if (readRecord()) {
+                    return true;
+                }
+            } catch (IOException e) {
+                closeLog();
+                throw e;
+            }
+            hdr = null;
+            // this means that the file has ended
+            // we should go to the next file
+            if (!goToNextLog()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean readRecord() throws IOException {
+        int length = recordLength();
+        if (length == -1) {
+            return false;
+        }
+        int base = (int) (position - windowStart);
+        long crcValue = window.getLong(base);
+
+        ByteBuffer txn = window.duplicate();
+        txn.limit(base + RECORD_HEADER_LENGTH + length);
+        txn.position(base + RECORD_HEADER_LENGTH);
+        txn = txn.slice();
+
+        // validate CRC
+        Adler32 crc = new Adler32();
+        crc.update(txn);
+        if (crcValue != crc.getValue()) {
+            throw new IOException(FileTxnLog.FileTxnIterator.CRC_ERROR);
+        }
+        txn.rewind();
+        TxnLogEntry logEntry = SerializeUtils.deserializeTxn(txn);
+        hdr = logEntry.getHeader();
+        record = logEntry.getTxn();
+        digest = logEntry.getDigest();
+        index.observe(hdr.getZxid(), position);
+        position += RECORD_HEADER_LENGTH + length + 1;
+        return true;
+    }
+
+    /**
+     * return the current header
+     * @return the current header that
+     * is read
+     */
+    public TxnHeader getHeader() {
+        return hdr;
+    }
+
+    /**
+     * return the current transaction
+     * @return the current transaction
+     * that is read
+     */
+    public Record getTxn() {
+        return record;
+    }
+
+    public TxnDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * close the iterator
+     * and release the resources.
+     */
+    public void close() throws IOException {
+        closeLog();
+    }
+
+}
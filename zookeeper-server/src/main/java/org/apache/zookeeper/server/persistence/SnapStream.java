@@ -57,8 +57,71 @@ public class SnapStream {
         System.getProperty(ZOOKEEPER_SHAPSHOT_STREAM_MODE,
                            StreamMode.DEFAULT_MODE.getName()));
 
+    public static final String ZOOKEEPER_SNAPSHOT_LAYOUT = "zookeeper.snapshot.layout";
+
+    private static Layout layout = Layout.fromString(
+        System.getProperty(ZOOKEEPER_SNAPSHOT_LAYOUT,
+                           Layout.DEFAULT_LAYOUT.getName()));
+
     static {
         LOG.info("{} = {}", ZOOKEEPER_SHAPSHOT_STREAM_MODE, streamMode);
+        LOG.info("{} = {}", ZOOKEEPER_SNAPSHOT_LAYOUT, layout);
+    }
+
+    /**
+     * The layout of the content of a snapshot, independent of the stream
+     * compression. The layout is recorded as the version of the snapshot
+     * file header, so it is detected when reading.
+     */
+    public enum Layout {
+        /** nodes written one after the other, decoded by a single thread */
+        SERIAL("serial", 2),
+        /** nodes grouped in independently decodable chunks followed by an index */
+        CHUNKED("chunked", 3),
+        /**
+         * top level subtrees written concurrently to chunked segment files,
+         * the snapshot file itself holds the root node and the segment manifest
+         */
+        PARTITIONED("partitioned", 4);
+
+        public static final Layout DEFAULT_LAYOUT = SERIAL;
+
+        private final String name;
+        private final int version;
+
+        Layout(String name, int version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public static Layout fromString(String name) {
+            for (Layout l : values()) {
+                if (l.getName().compareToIgnoreCase(name) == 0) {
+                    return l;
+                }
+            }
+            return DEFAULT_LAYOUT;
+        }
+
+        /**
+         * Detect the layout from the version of the snapshot file header.
+         */
+        public static Layout fromVersion(int version) throws IOException {
+            for (Layout l : values()) {
+                if (l.getVersion() == version) {
+                    return l;
+                }
+            }
+            throw new IOException("Unsupported snapshot version " + version);
+        }
     }
 
     public enum StreamMode {
@@ -218,6 +281,14 @@ public static StreamMode getStreamMode() {
         return streamMode;
     }
 
+    public static void setLayout(Layout l) {
+        layout = l;
+    }
+
+    public static Layout getLayout() {
+        return layout;
+    }
+
     /**
      * Detect the stream mode from file name extension
      *
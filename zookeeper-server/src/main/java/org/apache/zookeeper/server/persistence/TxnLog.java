@@ -101,6 +101,19 @@ public interface TxnLog extends Closeable {
      */
     void commit() throws IOException;
 
+    /**
+     * Start committing the transactions appended so far: they are handed to
+     * the OS, and made durable by {@link PendingCommit#complete()}, which
+     * can run on another thread while more transactions are appended.
+     * Only one commit may be pending at a time.
+     * @return the commit to complete
+     * @throws IOException
+     */
+    default PendingCommit startCommit() throws IOException {
+        commit();
+        return () -> { };
+    }
+
     /**
      *
      * @return transaction log's elapsed sync time in milliseconds
@@ -122,6 +135,19 @@ public interface TxnLog extends Closeable {
      */
     long getTotalLogSize();
 
+    /**
+     * A commit whose transactions have been written, but not synced yet.
+     */
+    interface PendingCommit {
+
+        /**
+         * sync the transactions of this commit to disk
+         * @throws IOException
+         */
+        void complete() throws IOException;
+
+    }
+
     /**
      * an iterating interface for reading
      * transaction logs.
@@ -165,6 +191,18 @@ interface TxnIterator extends Closeable {
          */
         long getStorageSize() throws IOException;
 
+        /**
+         * Move forward to the transaction with the greatest zxid less than or
+         * equal to the given zxid, or to a transaction between the current
+         * one and that one. Iterators which can not seek ahead stay on the
+         * current transaction, so callers still need to call next() until
+         * they reach the zxid they are after.
+         * @param zxid the zxid to move towards
+         * @throws IOException
+         */
+        default void skipTo(long zxid) throws IOException {
+        }
+
     }
 
 }
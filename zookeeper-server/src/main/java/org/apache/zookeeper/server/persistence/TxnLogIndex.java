@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse zxid to file offset index of one transaction log file.
+ * <p>
+ * Only some of the transactions are recorded, a lookup returns the offset of
+ * the closest recorded transaction at or before the requested zxid, and the
+ * reader scans forward from there. Entries are appended in zxid order and
+ * cover a prefix of the log, which stays valid since logs are append only.
+ * A log can still be truncated, so readers must check the zxid found at an
+ * offset and {@link #clear()} the index if it does not match.
+ * <p>
+ * The entries come from the index file written next to the log by
+ * {@link Writer}, and from the transactions readers have skipped over.
+ * The index file is a hint: it is only synced once its log is rolled or
+ * closed, so after a crash it may be short or hold garbage. Entries which do
+ * not follow the previous one or point past the end of the log are dropped
+ * on load, and a missing, short or stale index file only means the readers
+ * scan more of the log. Its format is:
+ * <pre>
+ * int magic, int version, (long zxid, long offset)*
+ * </pre>
+ */
+class TxnLogIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogIndex.class);
+
+    static final int MAGIC = ByteBuffer.wrap("ZKLI".getBytes()).getInt();
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int ENTRY_LENGTH = 16;
+
+    /** minimum distance in bytes between two entries added by readers */
+    static final long SPACING = 64 * 1024;
+
+    private static final int MAX_CACHED_LOGS = 64;
+
+    private static final Map<String, TxnLogIndex> CACHE = new LinkedHashMap<String, TxnLogIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TxnLogIndex> eldest) {
+            return size() > MAX_CACHED_LOGS;
+        }
+    };
+
+    private long[] zxids = new long[16];
+    private long[] offsets = new long[16];
+    private int size;
+
+    /** how much of the index file has been loaded */
+    private long loadedLength;
+
+    /**
+     * @return the index of the given log file, shared by all the readers of
+     * the file in this process, with the entries of its index file loaded
+     */
+    static TxnLogIndex forLog(File logFile) {
+        TxnLogIndex index;
+        synchronized (CACHE) {
+            index = CACHE.computeIfAbsent(logFile.getAbsolutePath(), k -> new TxnLogIndex());
+        }
+        index.load(indexFileOf(logFile), logFile.length());
+        return index;
+    }
+
+    /**
+     * Forget the index of the given log file and remove its index file, e.g.
+     * when the log is truncated or deleted.
+     */
+    static void delete(File logFile) {
+        synchronized (CACHE) {
+            CACHE.remove(logFile.getAbsolutePath());
+        }
+        File indexFile = indexFileOf(logFile);
+        if (indexFile.exists() && !indexFile.delete()) {
+            LOG.warn("Unable to delete {}", indexFile);
+        }
+    }
+
+    /**
+     * @return the index file of a log file, "log.N" is indexed in "logIndex.N"
+     */
+    static File indexFileOf(File logFile) {
+        String suffix = logFile.getName().substring(FileTxnLog.LOG_FILE_PREFIX.length());
+        return new File(logFile.getParentFile(), FileTxnLog.LOG_INDEX_FILE_PREFIX + suffix);
+    }
+
+    /**
+     * Load the entries which have been appended to the index file since it
+     * was last loaded. The rest of the file is ignored from the first entry
+     * which cannot be trusted, one out of order or beyond the log's length.
+     */
+    private synchronized void load(File indexFile, long logLength) {
+        long length = indexFile.length();
+        if (length == loadedLength) {
+            return;
+        }
+        if (length < loadedLength) {
+            // the index file has been rewritten or removed
+            clear();
+            loadedLength = 0;
+        }
+        if (length == 0) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.warn("Ignoring {}, it is not a transaction log index", indexFile);
+                loadedLength = length;
+                return;
+            }
+            long position = HEADER_LENGTH;
+            if (loadedLength > position) {
+                in.skipBytes((int) (loadedLength - position));
+                position = loadedLength;
+            }
+            while (position + ENTRY_LENGTH <= length) {
+                long zxid = in.readLong();
+                long offset = in.readLong();
+                if (offset >= logLength || (size > 0 && (zxid <= zxids[size - 1] || offset <= offsets[size - 1]))) {
+                    LOG.warn("Ignoring {} from offset {}, its entries do not match the log", indexFile, position);
+                    loadedLength = length;
+                    return;
+                }
+                add(zxid, offset);
+                position += ENTRY_LENGTH;
+            }
+            loadedLength = position;
+        } catch (EOFException e) {
+            // a partially written entry, it is read once complete
+        } catch (IOException e) {
+            LOG.warn("Unable to read {}, falling back to scanning the log", indexFile, e);
+        }
+    }
+
+    /**
+     * Record the offset of a transaction, it is only kept if it follows the
+     * last entry.
+     */
+    synchronized void add(long zxid, long offset) {
+        if (size > 0 && (zxid <= zxids[size - 1] || offset <= offsets[size - 1])) {
+            return;
+        }
+        if (size == zxids.length) {
+            zxids = Arrays.copyOf(zxids, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        zxids[size] = zxid;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Record the offset of a transaction which has been read. It is only
+     * kept if it follows the last entry and is far enough from it.
+     */
+    synchronized void observe(long zxid, long offset) {
+        if (size > 0 && offset < offsets[size - 1] + SPACING) {
+            return;
+        }
+        add(zxid, offset);
+    }
+
+    /**
+     * @return the entry with the greatest zxid which is less than or equal to
+     * the given zxid as a {zxid, offset} pair, or null if there is none
+     */
+    synchronized long[] floor(long zxid) {
+        int i = Arrays.binarySearch(zxids, 0, size, zxid);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            return null;
+        }
+        return new long[] {zxids[i], offsets[i]};
+    }
+
+    synchronized void clear() {
+        size = 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the index file of the log being appended to, with an entry every
+     * interval transactions. The entries are buffered and only written to
+     * the index file on {@link #flush()}, once the log has been committed.
+     */
+    static class Writer {
+
+        private final File indexFile;
+        private final int interval;
+        private FileOutputStream fos;
+        private DataOutputStream out;
+        private boolean failed;
+
+        private long[] pending = new long[16];
+        private int pendingSize;
+        private int sinceLastEntry;
+        // the number of entries added since the writer was created
+        private long entries;
+
+        Writer(File logFile, int interval) {
+            this.indexFile = indexFileOf(logFile);
+            this.interval = interval;
+            // a log with the same name may have been truncated or deleted
+            delete(logFile);
+        }
+
+        /**
+         * Called for every transaction appended to the log.
+         */
+        void appended(long zxid, long offset) {
+            if (sinceLastEntry++ % interval != 0) {
+                return;
+            }
+            if (pendingSize == pending.length) {
+                pending = Arrays.copyOf(pending, pendingSize * 2);
+            }
+            pending[pendingSize++] = zxid;
+            pending[pendingSize++] = offset;
+            entries++;
+        }
+
+        /**
+         * @return a mark of the entries added so far, to flush them only with
+         * {@link #flush(long)}
+         */
+        long mark() {
+            return entries;
+        }
+
+        /**
+         * Write the pending entries to the index file.
+         */
+        void flush() {
+            flush(entries);
+        }
+
+        /**
+         * Write the pending entries added before the mark to the index file,
+         * keeping the later ones pending. Failures are logged and disable the
+         * writer, readers then fall back to scanning the log.
+         */
+        void flush(long mark) {
+            int size = (int) Math.min(pendingSize, 2 * (mark - (entries - pendingSize / 2)));
+            if (size <= 0 || failed) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    fos = new FileOutputStream(indexFile);
+                    out = new DataOutputStream(new BufferedOutputStream(fos));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(pending[i]);
+                }
+                out.flush();
+            } catch (IOException e) {
+                LOG.warn("Unable to write {}, disabling the index of this log", indexFile, e);
+                failed = true;
+                closeStream();
+            }
+            pendingSize -= size;
+            System.arraycopy(pending, size, pending, 0, pendingSize);
+        }
+
+        /**
+         * Write the pending entries, sync and close the index file. The log
+         * is complete at this point, so the index of a rolled log survives a
+         * crash.
+         */
+        void close() {
+            flush();
+            if (out != null && !failed) {
+                try {
+                    fos.getChannel().force(false);
+                } catch (IOException e) {
+                    LOG.warn("Unable to sync {}", indexFile, e);
+                }
+            }
+            closeStream();
+        }
+
+        private void closeStream() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOG.warn("Unable to close {}", indexFile, e);
+                }
+                out = null;
+                fos = null;
+            }
+        }
+
+    }
+
+}
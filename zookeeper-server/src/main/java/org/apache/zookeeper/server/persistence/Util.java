@@ -97,6 +97,20 @@ public static String makeSnapshotName(long zxid) {
                + SnapStream.getStreamMode().getFileExtension();
     }
 
+    /**
+     * Creates the file name of a segment of a partitioned snapshot.
+     *
+     * @param zxid the zxid of the snapshot the segment belongs to
+     * @param segment the index of the segment
+     * @return file name
+     */
+    public static String makeSnapshotSegmentName(long zxid, int segment) {
+        return FileSnap.SNAPSHOT_SEGMENT_FILE_PREFIX + "."
+               + Long.toHexString(zxid) + "."
+               + segment
+               + SnapStream.getStreamMode().getFileExtension();
+    }
+
     /**
      * Extracts snapshot directory property value from the container.
      *
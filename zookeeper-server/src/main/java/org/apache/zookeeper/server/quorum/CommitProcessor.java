@@ -19,23 +19,42 @@
 package org.apache.zookeeper.server.quorum;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jute.Record;
+import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
+import org.apache.zookeeper.server.ZooKeeperServer;
 import org.apache.zookeeper.server.ZooKeeperServerListener;
+import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CreateContainerTxn;
+import org.apache.zookeeper.txn.CreateTTLTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
 import org.apache.zookeeper.util.ServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +92,12 @@
  *
  * The current implementation solves the third constraint by simply allowing no
  * read requests to be processed in parallel with write requests.
+ *
+ * When parallel apply is enabled, the txns of a batch of commits which touch
+ * different nodes and sessions are applied to the data tree by the worker
+ * threads concurrently. They are then completed by the main thread in zxid
+ * order, which updates the last processed zxid, sends the watch notifications
+ * and the responses, so only the changes to the tree are reordered.
  */
 public class CommitProcessor extends ZooKeeperCriticalThread implements RequestProcessor {
 
@@ -86,6 +111,8 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE = "zookeeper.commitProcessor.maxReadBatchSize";
     /** Default max commit batch size: 1 */
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE = "zookeeper.commitProcessor.maxCommitBatchSize";
+    /** Default: false */
+    public static final String ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY_ENABLED = "zookeeper.commitProcessor.parallelApplyEnabled";
 
     /**
      * Incoming requests.
@@ -119,11 +146,31 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
      */
     protected final Map<Long, Deque<Request>> pendingRequests = new HashMap<>(10000);
 
+    /**
+     * Read indexes committed before they were sent to the next processor,
+     * and read indexes sent before they were committed. Only accessed by
+     * the main thread.
+     */
+    private final Set<Request> committedReadIndexes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Request> earlyReadIndexes = Collections.newSetFromMap(new IdentityHashMap<>());
+
     /** The number of requests currently being processed */
     protected final AtomicInteger numRequestsProcessing = new AtomicInteger(0);
 
+    /**
+     * The writes whose txns are applied concurrently and not completed yet,
+     * in zxid order, and the nodes and the sessions they touch. Only accessed
+     * by the main thread.
+     */
+    private final List<Request> appliedWrites = new ArrayList<>();
+    private final Set<String> appliedPaths = new HashSet<>();
+    private final Set<Long> appliedSessions = new HashSet<>();
+
     RequestProcessor nextProcessor;
 
+    /** The server applying the txns, null to disable parallel apply */
+    private final ZooKeeperServer zks;
+
     /** For testing purposes, we use a separated stopping condition for the
      * outer loop.*/
     protected volatile boolean stoppedMainLoop = true;
@@ -149,6 +196,12 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
      */
     private static volatile int maxCommitBatchSize;
 
+    /**
+     * Whether the txns of a batch of commits touching different nodes are
+     * applied concurrently, see {@link #scheduleApply(Request, boolean)}.
+     */
+    private static volatile boolean parallelApplyEnabled;
+
     /**
      * This flag indicates whether we need to wait for a response to come back from the
      * leader or we just let the sync operation flow through like a read. The flag will
@@ -157,9 +210,60 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     boolean matchSyncs;
 
     public CommitProcessor(RequestProcessor nextProcessor, String id, boolean matchSyncs, ZooKeeperServerListener listener) {
+        this(nextProcessor, id, matchSyncs, listener, null);
+    }
+
+    public CommitProcessor(RequestProcessor nextProcessor, String id, boolean matchSyncs, ZooKeeperServerListener listener,
+        ZooKeeperServer zks) {
         super("CommitProcessor:" + id, listener);
         this.nextProcessor = nextProcessor;
         this.matchSyncs = matchSyncs;
+        this.zks = zks;
+    }
+
+    /**
+     * A read index is not matched with the local writes as its commit comes
+     * from the leader out of their order: it only holds the requests of its
+     * session until it is committed, see {@link #commit(Request)}.
+     */
+    private boolean isWaitingForCommit(Request request) {
+        if (needCommit(request)) {
+            return true;
+        }
+        return request.type == OpCode.readIndex
+               && !request.isThrottled()
+               && !committedReadIndexes.contains(request);
+    }
+
+    /**
+     * Serves the read indexes, and the reads following them, queued in the
+     * session before the local write about to be committed. The read index
+     * of the leader is lower than the zxid of the write, since the write
+     * reached the leader after the read index request, so the txns it waits
+     * for are applied once the write can be. The requests sent are done
+     * before returning, so that they do not see the write.
+     */
+    private void sendReadIndexesBefore(Deque<Request> sessionQueue, Request write)
+        throws RequestProcessorException, InterruptedException {
+        boolean sent = false;
+        Request request;
+        while (!stopped
+               && (request = sessionQueue.peek()) != null
+               && request != write
+               && (request.type == OpCode.readIndex || !needCommit(request))) {
+            // the writes committed before have to be applied
+            completeAppliedWrites();
+            sessionQueue.poll();
+            if (request.type == OpCode.readIndex && !committedReadIndexes.remove(request)) {
+                earlyReadIndexes.add(request);
+            }
+            numReadQueuedRequests.decrementAndGet();
+            sendToNextProcessor(request);
+            sent = true;
+        }
+        if (sent) {
+            waitForEmptyPool();
+        }
     }
 
     private boolean isProcessingRequest() {
@@ -248,7 +352,7 @@ public void run() {
                        && (maxReadBatchSize < 0 || readsProcessed <= maxReadBatchSize)
                        && (request = queuedRequests.poll()) != null) {
                     requestsToProcess--;
-                    if (needCommit(request) || pendingRequests.containsKey(request.sessionId)) {
+                    if (isWaitingForCommit(request) || pendingRequests.containsKey(request.sessionId)) {
                         // Add request to pending
                         Deque<Request> requests = pendingRequests.computeIfAbsent(request.sessionId, sid -> new ArrayDeque<>());
                         requests.addLast(request);
@@ -256,6 +360,7 @@ public void run() {
                     } else {
                         readsProcessed++;
                         numReadQueuedRequests.decrementAndGet();
+                        committedReadIndexes.remove(request);
                         sendToNextProcessor(request);
                     }
                     /*
@@ -315,6 +420,17 @@ public void run() {
                             ServiceUtils.requestSystemExit(ExitCode.UNEXPECTED_ERROR.getValue());
                         }
 
+                        if (request.type == OpCode.readIndex) {
+                            // a local read index, not a txn: release its session
+                            committedRequests.remove();
+                            if (!earlyReadIndexes.remove(request)) {
+                                committedReadIndexes.add(request);
+                                queuesToDrain.add(request.sessionId);
+                            }
+                            commitIsWaiting = !committedRequests.isEmpty();
+                            continue;
+                        }
+
                         /*
                          * Check if this is a local write request is pending,
                          * if so, update it with the committed info. If the commit matches
@@ -330,6 +446,12 @@ public void run() {
                              */
                             Deque<Request> sessionQueue = pendingRequests.get(request.sessionId);
                             ServerMetrics.getMetrics().PENDING_SESSION_QUEUE_SIZE.add(pendingRequests.size());
+                            if (sessionQueue != null) {
+                                sendReadIndexesBefore(sessionQueue, queuedWriteRequests.peek());
+                                if (stopped) {
+                                    return;
+                                }
+                            }
                             if (sessionQueue == null || sessionQueue.isEmpty() || !needCommit(sessionQueue.peek())) {
                                 /*
                                  * Can't process this write yet.
@@ -376,11 +498,16 @@ public void run() {
                         commitsToProcess--;
                         commitsProcessed++;
 
-                        // Process the write inline.
-                        processWrite(request);
+                        if (parallelApplyEnabled && zks != null && maxCommitBatchSize > 1) {
+                            scheduleApply(request, commitsToProcess == 0 || committedRequests.isEmpty());
+                        } else {
+                            // Process the write inline.
+                            processWrite(request);
+                        }
 
                         commitIsWaiting = !committedRequests.isEmpty();
                     }
+                    completeAppliedWrites();
                     ServerMetrics.getMetrics().WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR
                         .add(Time.currentElapsedTime() - startWriteTime);
                     ServerMetrics.getMetrics().WRITES_ISSUED_IN_COMMIT_PROC.add(commitsProcessed);
@@ -392,9 +519,14 @@ public void run() {
                     readsProcessed = 0;
                     for (Long sessionId : queuesToDrain) {
                         Deque<Request> sessionQueue = pendingRequests.get(sessionId);
+                        if (sessionQueue == null) {
+                            // a read index committed before it was queued
+                            continue;
+                        }
                         int readsAfterWrite = 0;
-                        while (!stopped && !sessionQueue.isEmpty() && !needCommit(sessionQueue.peek())) {
+                        while (!stopped && !sessionQueue.isEmpty() && !isWaitingForCommit(sessionQueue.peek())) {
                             numReadQueuedRequests.decrementAndGet();
+                            committedReadIndexes.remove(sessionQueue.peek());
                             sendToNextProcessor(sessionQueue.poll());
                             readsAfterWrite++;
                         }
@@ -477,6 +609,151 @@ private void processWrite(Request request) throws RequestProcessorException {
         ServerMetrics.getMetrics().WRITE_FINAL_PROC_TIME.add(Time.currentElapsedTime() - timeBeforeFinalProc);
     }
 
+    /**
+     * Apply the txn of a committed write with a worker thread, concurrently
+     * with the writes of the batch before it, unless it touches the same
+     * nodes or session as one of them. Writes whose nodes are not known, like
+     * the ones creating or closing a session, or touching the nodes under
+     * /zookeeper, are processed inline once all the writes before are. So is
+     * the write whose tree is compared with the digest of the loaded snapshot.
+     *
+     * @param last whether this is the last write of the batch, which is
+     *             applied by this thread instead of waiting for the others
+     */
+    private void scheduleApply(Request request, boolean last) throws RequestProcessorException, InterruptedException {
+        Set<String> paths = new HashSet<>();
+        boolean known;
+        try {
+            known = request.getHdr() != null && addTxnPaths(request.getHdr().getType(), request.getTxn(), paths);
+        } catch (IOException e) {
+            LOG.warn("Cannot read the txn of {}", request, e);
+            known = false;
+        }
+        if (!known || zks.getZKDatabase().getDataTree().isSnapshotDigestZxid(request.getHdr().getZxid())) {
+            completeAppliedWrites();
+            processWrite(request);
+            return;
+        }
+        if (appliedSessions.contains(request.sessionId) || !Collections.disjoint(appliedPaths, paths)) {
+            ServerMetrics.getMetrics().PARALLEL_APPLY_CONFLICTS.add(1);
+            completeAppliedWrites();
+        }
+        if (last && appliedWrites.isEmpty()) {
+            // nothing to apply it with
+            processWrite(request);
+            return;
+        }
+        appliedWrites.add(request);
+        appliedPaths.addAll(paths);
+        appliedSessions.add(request.sessionId);
+        if (last) {
+            zks.applyTxn(request);
+        } else {
+            numRequestsProcessing.incrementAndGet();
+            workerPool.schedule(new ApplyWorkRequest(request), request.sessionId);
+        }
+    }
+
+    /**
+     * Wait for the txns applied concurrently, then complete their writes in
+     * zxid order.
+     */
+    private void completeAppliedWrites() throws RequestProcessorException, InterruptedException {
+        if (appliedWrites.isEmpty()) {
+            return;
+        }
+        ServerMetrics.getMetrics().TXNS_APPLIED_IN_PARALLEL.add(appliedWrites.size());
+        waitForEmptyPool();
+        if (!stopped) {
+            for (Request request : appliedWrites) {
+                processWrite(request);
+            }
+        }
+        appliedWrites.clear();
+        appliedPaths.clear();
+        appliedSessions.clear();
+    }
+
+    /**
+     * Add the nodes changed by a txn, and their parents for the creations and
+     * deletions.
+     *
+     * @return false if they are not known
+     */
+    private static boolean addTxnPaths(int type, Record txn, Set<String> paths) throws IOException {
+        String path;
+        switch (type) {
+        case OpCode.create:
+        case OpCode.create2:
+            path = ((CreateTxn) txn).getPath();
+            break;
+        case OpCode.createTTL:
+            path = ((CreateTTLTxn) txn).getPath();
+            break;
+        case OpCode.createContainer:
+            path = ((CreateContainerTxn) txn).getPath();
+            break;
+        case OpCode.delete:
+        case OpCode.deleteContainer:
+            path = ((DeleteTxn) txn).getPath();
+            break;
+        case OpCode.setData:
+            return addPath(((SetDataTxn) txn).getPath(), paths);
+        case OpCode.setACL:
+            return addPath(((SetACLTxn) txn).getPath(), paths);
+        case OpCode.check:
+            return addPath(((CheckVersionTxn) txn).getPath(), paths);
+        case OpCode.error:
+            return true;
+        case OpCode.multi:
+            for (Txn subtxn : ((MultiTxn) txn).getTxns()) {
+                Record record;
+                switch (subtxn.getType()) {
+                case OpCode.create:
+                    record = new CreateTxn();
+                    break;
+                case OpCode.createTTL:
+                    record = new CreateTTLTxn();
+                    break;
+                case OpCode.createContainer:
+                    record = new CreateContainerTxn();
+                    break;
+                case OpCode.delete:
+                case OpCode.deleteContainer:
+                    record = new DeleteTxn();
+                    break;
+                case OpCode.setData:
+                    record = new SetDataTxn();
+                    break;
+                case OpCode.check:
+                    record = new CheckVersionTxn();
+                    break;
+                case OpCode.error:
+                    continue;
+                default:
+                    return false;
+                }
+                ByteBufferInputStream.byteBuffer2Record(ByteBuffer.wrap(subtxn.getData()), record);
+                if (!addTxnPaths(subtxn.getType(), record, paths)) {
+                    return false;
+                }
+            }
+            return true;
+        default:
+            return false;
+        }
+        return addPath(path, paths) && addPath(path.substring(0, path.lastIndexOf('/')), paths);
+    }
+
+    private static boolean addPath(String path, Set<String> paths) {
+        if (path.equals(Quotas.procZookeeper) || path.startsWith(Quotas.procZookeeper + "/")) {
+            // the quota and config nodes
+            return false;
+        }
+        paths.add(path);
+        return true;
+    }
+
     private static void initBatchSizes() {
         maxReadBatchSize = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE, -1);
         maxCommitBatchSize = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE, 1);
@@ -490,6 +767,9 @@ private static void initBatchSizes() {
             ("Configuring CommitProcessor with readBatchSize {} commitBatchSize {}",
              maxReadBatchSize,
              maxCommitBatchSize);
+
+        parallelApplyEnabled = Boolean.getBoolean(ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY_ENABLED);
+        LOG.info("Configuring CommitProcessor with parallelApplyEnabled {}", parallelApplyEnabled);
     }
 
     private static void processCommitMetrics(Request request, boolean isWrite) {
@@ -532,6 +812,15 @@ public static void setMaxCommitBatchSize(int size) {
         }
     }
 
+    public static boolean isParallelApplyEnabled() {
+        return parallelApplyEnabled;
+    }
+
+    public static void setParallelApplyEnabled(boolean enabled) {
+        parallelApplyEnabled = enabled;
+        LOG.info("Configuring CommitProcessor with parallelApplyEnabled {}", parallelApplyEnabled);
+    }
+
     /**
      * CommitWorkRequest is a small wrapper class to allow
      * downstream processing to be run using the WorkerService
@@ -576,6 +865,38 @@ public void doWork() throws RequestProcessorException {
 
     }
 
+    /**
+     * ApplyWorkRequest applies the txn of a committed write with a worker
+     * thread, see {@link #scheduleApply(Request, boolean)}.
+     */
+    private class ApplyWorkRequest extends WorkerService.WorkRequest {
+
+        private final Request request;
+
+        ApplyWorkRequest(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void cleanup() {
+            if (!stopped) {
+                LOG.error("Exception thrown while applying a txn, unable to continue.");
+                CommitProcessor.this.halt();
+            }
+        }
+
+        public void doWork() {
+            try {
+                zks.applyTxn(request);
+            } finally {
+                if (numRequestsProcessing.decrementAndGet() == 0) {
+                    wakeupOnEmpty();
+                }
+            }
+        }
+
+    }
+
     @SuppressFBWarnings("NN_NAKED_NOTIFY")
     private synchronized void wakeup() {
         notifyAll();
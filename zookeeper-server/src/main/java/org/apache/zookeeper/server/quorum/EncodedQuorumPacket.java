@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Id;
+
+/**
+ * A QuorumPacket which is encoded once, when it is created, and written
+ * verbatim by every {@link LearnerHandler} it is queued to, instead of being
+ * serialized again for each learner.
+ * <p>
+ * The packet is shared by the handlers, so it cannot be modified.
+ */
+public class EncodedQuorumPacket extends QuorumPacket {
+
+    private final byte[] encoded;
+
+    public EncodedQuorumPacket(int type, long zxid, byte[] data) {
+        super(type, zxid, data, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24 + (data == null ? 0 : data.length));
+        try {
+            BinaryOutputArchive.getArchive(out).writeRecord(this, "packet");
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        encoded = out.toByteArray();
+    }
+
+    /**
+     * Write the packet as {@link BinaryOutputArchive#writeRecord} would.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(encoded);
+    }
+
+    public int getEncodedLength() {
+        return encoded.length;
+    }
+
+    @Override
+    public void setType(int type) {
+        throw new UnsupportedOperationException("EncodedQuorumPacket is immutable");
+    }
+
+    @Override
+    public void setZxid(long zxid) {
+        throw new UnsupportedOperationException("EncodedQuorumPacket is immutable");
+    }
+
+    @Override
+    public void setData(byte[] data) {
+        throw new UnsupportedOperationException("EncodedQuorumPacket is immutable");
+    }
+
+    @Override
+    public void setAuthinfo(List<Id> authinfo) {
+        throw new UnsupportedOperationException("EncodedQuorumPacket is immutable");
+    }
+
+}
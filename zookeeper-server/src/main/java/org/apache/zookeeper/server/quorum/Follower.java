@@ -19,11 +19,13 @@
 package org.apache.zookeeper.server.quorum;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
@@ -74,6 +76,10 @@ void followLeader() throws InterruptedException {
         long electionTimeTaken = self.end_fle - self.start_fle;
         self.setElectionTimeTaken(electionTimeTaken);
         ServerMetrics.getMetrics().ELECTION_TIME.add(electionTimeTaken);
+        QuorumCnxManager qcm = self.getQuorumCnxManager();
+        if (qcm != null) {
+            ServerMetrics.getMetrics().ELECTION_TIME_PER_TRANSPORT.add(qcm.getTransportName(), electionTimeTaken);
+        }
         LOG.info("FOLLOWING - LEADER ELECTION TOOK - {} {}", electionTimeTaken, QuorumPeer.FLE_TIME_UNIT);
         self.start_fle = 0;
         self.end_fle = 0;
@@ -198,6 +204,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
                 ServerMetrics.getMetrics().OM_PROPOSAL_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
             }
             break;
+        case Leader.PROPOSALBATCH:
+            processProposalBatch(qp);
+            break;
         case Leader.COMMIT:
             ServerMetrics.getMetrics().LEARNER_COMMIT_RECEIVED_COUNT.add(1);
             fzk.commit(qp.getZxid());
@@ -240,12 +249,45 @@ protected void processPacket(QuorumPacket qp) throws Exception {
         case Leader.SYNC:
             fzk.sync();
             break;
+        case Leader.READINDEX:
+            fzk.readIndexAnswered(ByteBuffer.wrap(qp.getData()).getLong(), qp.getZxid());
+            break;
         default:
             LOG.warn("Unknown packet type: {}", LearnerHandler.packetToString(qp));
             break;
         }
     }
 
+    /**
+     * Ask the leader for its read index, only if {@link #isReadIndexSupported()}
+     * @param id the id of the request, sent back with the read index
+     * @throws IOException
+     */
+    void readIndex(long id) throws IOException {
+        writePacket(new QuorumPacket(Leader.READINDEX, id, null, null), true);
+    }
+
+    /**
+     * Handle the proposals of a PROPOSALBATCH packet as if they had been
+     * received one by one, then commit the pending txns up to the zxid of
+     * the batch. The commits of the batch are all after its proposals, see
+     * {@link Leader#PROPOSALBATCH}.
+     */
+    private void processProposalBatch(QuorumPacket qp) throws Exception {
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(qp.getData()));
+        int count = ia.readInt("count");
+        for (int i = 0; i < count; i++) {
+            QuorumPacket proposal = new QuorumPacket();
+            ia.readRecord(proposal, "packet");
+            processPacket(proposal);
+        }
+        long commitZxid = qp.getZxid();
+        Request pending;
+        while ((pending = fzk.pendingTxns.peek()) != null && pending.zxid <= commitZxid) {
+            processPacket(new QuorumPacket(Leader.COMMIT, pending.zxid, null, null));
+        }
+    }
+
     /**
      * The zxid of the last operation seen
      * @return zxid
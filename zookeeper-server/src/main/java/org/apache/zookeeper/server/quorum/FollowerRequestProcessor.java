@@ -66,7 +66,12 @@ public void run() {
             while (!finished) {
                 ServerMetrics.getMetrics().LEARNER_REQUEST_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
-                Request request = queuedRequests.take();
+                Request request = queuedRequests.poll();
+                if (request == null) {
+                    // send the requests batched meanwhile before waiting
+                    zks.getFollower().flushRequests();
+                    request = queuedRequests.take();
+                }
                 if (LOG.isTraceEnabled()) {
                     ZooTrace.logRequest(LOG, ZooTrace.CLIENT_REQUEST_TRACE_MASK, 'F', request, "");
                 }
@@ -98,6 +103,14 @@ public void run() {
                     zks.pendingSyncs.add(request);
                     zks.getFollower().request(request);
                     break;
+                case OpCode.readIndex:
+                    if (zks.getFollower().isReadIndexSupported()) {
+                        zks.readIndex(request);
+                    } else {
+                        zks.pendingSyncs.add(request);
+                        zks.getFollower().request(request);
+                    }
+                    break;
                 case OpCode.create:
                 case OpCode.create2:
                 case OpCode.createTTL:
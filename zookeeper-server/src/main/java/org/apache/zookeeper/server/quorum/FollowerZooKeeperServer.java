@@ -19,11 +19,14 @@
 package org.apache.zookeeper.server.quorum;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import javax.management.JMException;
 import org.apache.jute.Record;
-import org.apache.zookeeper.jmx.MBeanRegistry;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.metrics.MetricsContext;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.FinalRequestProcessor;
@@ -54,6 +57,23 @@ public class FollowerZooKeeperServer extends LearnerZooKeeperServer {
      * Pending sync requests
      */ ConcurrentLinkedQueue<Request> pendingSyncs;
 
+    /*
+     * Read index requests not asked to the leader yet, and those waiting for
+     * its answer. Only one READINDEX is in flight, the requests received
+     * meanwhile are asked together with the next one.
+     */
+    private List<Request> queuedReadIndexes = new ArrayList<>();
+    private List<Request> sentReadIndexes = new ArrayList<>();
+    private long readIndexId;
+
+    /*
+     * Read index requests answered by the leader, by read index, waiting for
+     * the txns up to it to be committed. Only used by the thread following
+     * the leader, as lastCommittedZxid.
+     */
+    private final TreeMap<Long, List<Request>> readIndexWaits = new TreeMap<>();
+    private long lastCommittedZxid;
+
     /**
      * @throws IOException
      */
@@ -69,7 +89,7 @@ public Follower getFollower() {
     @Override
     protected void setupRequestProcessors() {
         RequestProcessor finalProcessor = new FinalRequestProcessor(this);
-        commitProcessor = new CommitProcessor(finalProcessor, Long.toString(getServerId()), true, getZooKeeperServerListener());
+        commitProcessor = new CommitProcessor(finalProcessor, Long.toString(getServerId()), true, getZooKeeperServerListener(), this);
         commitProcessor.start();
         firstProcessor = new FollowerRequestProcessor(this, commitProcessor);
         ((FollowerRequestProcessor) firstProcessor).start();
@@ -108,6 +128,64 @@ public void commit(long zxid) {
         Request request = pendingTxns.remove();
         request.logLatency(ServerMetrics.getMetrics().COMMIT_PROPAGATION_LATENCY);
         commitProcessor.commit(request);
+        lastCommittedZxid = zxid;
+        if (!readIndexWaits.isEmpty()) {
+            commitReadIndexes();
+        }
+    }
+
+    /**
+     * Ask the leader for its read index on behalf of the request, which is
+     * committed once the txns up to the read index are.
+     */
+    public synchronized void readIndex(Request request) throws IOException {
+        queuedReadIndexes.add(request);
+        if (sentReadIndexes.isEmpty()) {
+            sendReadIndex();
+        }
+    }
+
+    private void sendReadIndex() throws IOException {
+        sentReadIndexes = queuedReadIndexes;
+        queuedReadIndexes = new ArrayList<>();
+        ServerMetrics.getMetrics().READ_INDEX_BATCH_SIZE.add(sentReadIndexes.size());
+        getFollower().readIndex(++readIndexId);
+    }
+
+    /**
+     * When a READINDEX message is received, this method is called with the
+     * read index of the leader for the requests of the READINDEX in flight.
+     * @param id - the id of the READINDEX in flight
+     * @param zxid - the read index
+     */
+    public void readIndexAnswered(long id, long zxid) throws IOException {
+        List<Request> answered;
+        synchronized (this) {
+            if (id != readIndexId || sentReadIndexes.isEmpty()) {
+                LOG.warn("Not expecting read index 0x{}", Long.toHexString(id));
+                return;
+            }
+            answered = sentReadIndexes;
+            sentReadIndexes = new ArrayList<>();
+            if (!queuedReadIndexes.isEmpty()) {
+                sendReadIndex();
+            }
+        }
+        readIndexWaits.computeIfAbsent(zxid, k -> new ArrayList<>()).addAll(answered);
+        commitReadIndexes();
+    }
+
+    private void commitReadIndexes() {
+        long committed = Math.max(lastCommittedZxid, getZKDatabase().getDataTreeLastProcessedZxid());
+        Iterator<List<Request>> iter = readIndexWaits.headMap(committed, true).values().iterator();
+        long now = Time.currentElapsedTime();
+        while (iter.hasNext()) {
+            for (Request request : iter.next()) {
+                ServerMetrics.getMetrics().READ_INDEX_LATENCY.add(now - request.createTime);
+                commitProcessor.commit(request);
+            }
+            iter.remove();
+        }
     }
 
     public synchronized void sync() {
@@ -141,27 +219,11 @@ public Learner getLearner() {
         return getFollower();
     }
 
-    /**
-     * Process a request received from external Learner through the LearnerMaster
-     * These requests have already passed through validation and checks for
-     * session upgrade and can be injected into the middle of the pipeline.
-     *
-     * @param request received from external Learner
-     */
+    @Override
     void processObserverRequest(Request request) {
         ((FollowerRequestProcessor) firstProcessor).processRequest(request, false);
     }
 
-    boolean registerJMX(LearnerHandlerBean handlerBean) {
-        try {
-            MBeanRegistry.getInstance().register(handlerBean, jmxServerBean);
-            return true;
-        } catch (JMException e) {
-            LOG.warn("Could not register connection", e);
-        }
-        return false;
-    }
-
     @Override
     protected void registerMetrics() {
         super.registerMetrics();
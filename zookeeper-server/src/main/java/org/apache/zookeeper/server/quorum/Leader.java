@@ -50,6 +50,7 @@
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import javax.security.sasl.SaslException;
@@ -92,6 +93,15 @@ public static class Proposal extends SyncedLearnerTracker {
         public QuorumPacket packet;
         public Request request;
 
+        /**
+         * The acks of a proposal are added by the LearnerHandler threads
+         * without holding the Leader lock.
+         */
+        @Override
+        protected Set<Long> newAckset(int size) {
+            return ConcurrentHashMap.newKeySet(size);
+        }
+
         @Override
         public String toString() {
             return packet.getType() + ", " + packet.getZxid() + ", " + request;
@@ -116,6 +126,112 @@ public static int getAckLoggingFrequency() {
         return ackLoggingFrequency;
     }
 
+    // count the acks of the proposals without holding the Leader lock, which
+    // is only taken to commit the proposals which have a quorum
+    public static final String CONCURRENT_ACK_PROCESSING_ENABLED = "zookeeper.leader.concurrentAckProcessingEnabled";
+    private static volatile boolean concurrentAckProcessingEnabled;
+
+    static {
+        concurrentAckProcessingEnabled = Boolean.parseBoolean(System.getProperty(CONCURRENT_ACK_PROCESSING_ENABLED, "true"));
+        LOG.info("{} = {}", CONCURRENT_ACK_PROCESSING_ENABLED, concurrentAckProcessingEnabled);
+    }
+
+    public static boolean isConcurrentAckProcessingEnabled() {
+        return concurrentAckProcessingEnabled;
+    }
+
+    public static void setConcurrentAckProcessingEnabled(boolean enabled) {
+        concurrentAckProcessingEnabled = enabled;
+        LOG.info("{} = {}", CONCURRENT_ACK_PROCESSING_ENABLED, concurrentAckProcessingEnabled);
+    }
+
+    /**
+     * The protocol version of the peers which can batch proposals: followers
+     * advertise it in their LearnerInfo, and the leader answers with it in
+     * LEADERINFO if it will send PROPOSALBATCH packets and expects cumulative
+     * ACKs. Older peers keep using 0x10000.
+     */
+    static final int BATCHING_PROTOCOL_VERSION = 0x10001;
+
+    public static final String PROPOSAL_BATCHING_ENABLED = "zookeeper.proposalBatchingEnabled";
+    private static volatile boolean proposalBatchingEnabled;
+
+    // the max number of PROPOSAL and COMMIT packets sent in one PROPOSALBATCH
+    public static final String MAX_PROPOSAL_BATCH_SIZE = "zookeeper.leader.maxProposalBatchSize";
+    private static volatile int maxProposalBatchSize;
+
+    static {
+        proposalBatchingEnabled = Boolean.parseBoolean(System.getProperty(PROPOSAL_BATCHING_ENABLED, "true"));
+        LOG.info("{} = {}", PROPOSAL_BATCHING_ENABLED, proposalBatchingEnabled);
+        maxProposalBatchSize = Integer.getInteger(MAX_PROPOSAL_BATCH_SIZE, 64);
+        LOG.info("{} = {}", MAX_PROPOSAL_BATCH_SIZE, maxProposalBatchSize);
+    }
+
+    public static boolean isProposalBatchingEnabled() {
+        return proposalBatchingEnabled;
+    }
+
+    public static void setProposalBatchingEnabled(boolean enabled) {
+        proposalBatchingEnabled = enabled;
+        LOG.info("{} = {}", PROPOSAL_BATCHING_ENABLED, proposalBatchingEnabled);
+    }
+
+    public static int getMaxProposalBatchSize() {
+        return maxProposalBatchSize;
+    }
+
+    public static void setMaxProposalBatchSize(int size) {
+        maxProposalBatchSize = size;
+        LOG.info("{} = {}", MAX_PROPOSAL_BATCH_SIZE, maxProposalBatchSize);
+    }
+
+    /**
+     * Set in the flags which follow the protocol version in LEADERINFO when
+     * the leader answers READINDEX packets. Older leaders only send the
+     * protocol version, and their followers serve a read index like a sync.
+     */
+    static final int READ_INDEX_FLAG = 0x1;
+
+    /**
+     * Set in the flags of LEADERINFO when the leader handles REQUESTBATCH
+     * packets. Learners of older leaders send one REQUEST per request.
+     */
+    static final int REQUEST_BATCH_FLAG = 0x2;
+
+    public static final String READ_INDEX_ENABLED = "zookeeper.readIndexEnabled";
+    private static volatile boolean readIndexEnabled;
+
+    // answer the read indexes without pinging the followers while a quorum
+    // answered a ping sent less than this many milliseconds ago, 0 disables
+    // the lease
+    public static final String READ_INDEX_LEASE_MS = "zookeeper.leader.readIndexLeaseMs";
+    private static volatile long readIndexLeaseMs;
+
+    static {
+        readIndexEnabled = Boolean.parseBoolean(System.getProperty(READ_INDEX_ENABLED, "true"));
+        LOG.info("{} = {}", READ_INDEX_ENABLED, readIndexEnabled);
+        readIndexLeaseMs = Long.getLong(READ_INDEX_LEASE_MS, 0);
+        LOG.info("{} = {}", READ_INDEX_LEASE_MS, readIndexLeaseMs);
+    }
+
+    public static boolean isReadIndexEnabled() {
+        return readIndexEnabled;
+    }
+
+    public static void setReadIndexEnabled(boolean enabled) {
+        readIndexEnabled = enabled;
+        LOG.info("{} = {}", READ_INDEX_ENABLED, readIndexEnabled);
+    }
+
+    public static long getReadIndexLeaseMs() {
+        return readIndexLeaseMs;
+    }
+
+    public static void setReadIndexLeaseMs(long leaseMs) {
+        readIndexLeaseMs = leaseMs;
+        LOG.info("{} = {}", READ_INDEX_LEASE_MS, readIndexLeaseMs);
+    }
+
     final LeaderZooKeeperServer zk;
 
     final QuorumPeer self;
@@ -430,6 +546,38 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
      */
     static final int INFORMANDACTIVATE = 19;
 
+    /**
+     * This message type carries several proposals and commits to a follower
+     * which negotiated {@link #BATCHING_PROTOCOL_VERSION}. The data is the
+     * number of proposals followed by the PROPOSAL packets, and the zxid is
+     * the last committed zxid, or 0 if the batch commits nothing.
+     */
+    static final int PROPOSALBATCH = 20;
+
+    /**
+     * This message type carries a chunk of the snapshot file announced by a
+     * SNAP packet with data, see {@link SnapshotTransfer}. The zxid is the
+     * offset of the chunk in the file.
+     */
+    static final int SNAPCHUNK = 21;
+
+    /**
+     * This message type is sent by a follower to ask for the read index of
+     * the leader, the zxid is the id of the request. The leader answers with
+     * the same type once a quorum confirmed it still leads: the zxid is the
+     * zxid it had last committed when it received the request, and the data
+     * the id of the request.
+     */
+    static final int READINDEX = 22;
+
+    /**
+     * This message type carries several requests forwarded by a learner
+     * which saw {@link #REQUEST_BATCH_FLAG} in LEADERINFO. The data is the
+     * number of requests followed by their REQUEST packets, which are
+     * handled in order.
+     */
+    static final int REQUESTBATCH = 23;
+
     final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<Long, Proposal>();
 
     private final ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<Proposal>();
@@ -560,7 +708,7 @@ private void acceptConnections() throws IOException {
 
     // when a reconfig occurs where the leader is removed or becomes an observer,
     // it does not commit ops after committing the reconfig
-    boolean allowedToCommit = true;
+    volatile boolean allowedToCommit = true;
 
     /**
      * Timestamp when this leader started serving request (Quorum is running)
@@ -585,6 +733,10 @@ void lead() throws IOException, InterruptedException {
         long electionTimeTaken = self.end_fle - self.start_fle;
         self.setElectionTimeTaken(electionTimeTaken);
         ServerMetrics.getMetrics().ELECTION_TIME.add(electionTimeTaken);
+        QuorumCnxManager qcm = self.getQuorumCnxManager();
+        if (qcm != null) {
+            ServerMetrics.getMetrics().ELECTION_TIME_PER_TRANSPORT.add(qcm.getTransportName(), electionTimeTaken);
+        }
         LOG.info("LEADING - LEADER ELECTION TOOK - {} {}", electionTimeTaken, QuorumPeer.FLE_TIME_UNIT);
         self.start_fle = 0;
         self.end_fle = 0;
@@ -986,16 +1138,47 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
         return true;
     }
 
+    @Override
+    public void processCumulativeAck(long sid, long lastAckedZxid, long zxid, SocketAddress followerAddr) {
+        if ((zxid & 0xffffffffL) == 0) {
+            // the ack of UPTODATE
+            return;
+        }
+        long epoch = ZxidUtils.getEpochFromZxid(zxid);
+        long from = Math.max(lastAckedZxid, lastCommitted) + 1;
+        if (ZxidUtils.getEpochFromZxid(from) < epoch) {
+            from = ZxidUtils.makeZxid(epoch, 1);
+        }
+        // the zxids proposed in an epoch are consecutive
+        for (long z = from; z <= zxid; z++) {
+            processAck(sid, z, followerAddr);
+        }
+    }
+
     /**
      * Keep a count of acks that are received by the leader for a particular
-     * proposal
+     * proposal. The ack is added to the tracker of the proposal without
+     * holding the Leader lock, which is only taken to commit the proposals
+     * which have a quorum, in order.
      *
      * @param sid is the id of the server that sent the ack
      * @param zxid is the zxid of the proposal sent out
      * @param followerAddr
      */
     @Override
-    public synchronized void processAck(long sid, long zxid, SocketAddress followerAddr) {
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {
+        if (concurrentAckProcessingEnabled) {
+            countAck(sid, zxid, followerAddr);
+            return;
+        }
+        long start = System.nanoTime();
+        synchronized (this) {
+            ServerMetrics.getMetrics().LEADER_ACK_LOCK_WAIT_TIME.add((System.nanoTime() - start) / 1000);
+            countAck(sid, zxid, followerAddr);
+        }
+    }
+
+    private void countAck(long sid, long zxid, SocketAddress followerAddr) {
         if (!allowedToCommit) {
             return; // last op committed was a leader change - from now on
         }
@@ -1032,7 +1215,10 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
         }
         Proposal p = outstandingProposals.get(zxid);
         if (p == null) {
-            LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
+            // the proposal may have been committed since lastCommitted was read
+            if (zxid > lastProposed) {
+                LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
+            }
             return;
         }
 
@@ -1042,7 +1228,60 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
 
         p.addAck(sid);
 
-        boolean hasCommitted = tryToCommit(p, zxid, followerAddr);
+        if (p.hasAllQuorums()) {
+            commitQuorumProposals();
+        }
+    }
+
+    /**
+     * Commit, in order, the outstanding proposals which have a quorum. Only
+     * one thread commits at a time: a thread finding another one committing
+     * leaves the proposal it completed to it, and returns. A failed pass
+     * does not end the loop, since the acks counted meanwhile were left to
+     * this thread, the failure is thrown once they are drained.
+     */
+    private void commitQuorumProposals() {
+        if (pendingCommits.getAndIncrement() > 0) {
+            ServerMetrics.getMetrics().LEADER_COMMITS_COALESCED.add(1);
+            return;
+        }
+        RuntimeException failure = null;
+        int pending = 1;
+        do {
+            long start = System.nanoTime();
+            synchronized (this) {
+                if (concurrentAckProcessingEnabled) {
+                    ServerMetrics.getMetrics().LEADER_ACK_LOCK_WAIT_TIME.add((System.nanoTime() - start) / 1000);
+                }
+                try {
+                    commitInOrder();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            pending = pendingCommits.addAndGet(-pending);
+        } while (pending > 0);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // called with the Leader lock held
+    private void commitInOrder() {
+        long zxid = lastCommitted + 1;
+        Proposal p = outstandingProposals.get(zxid);
+        if (p == null) {
+            if (outstandingProposals.isEmpty()) {
+                return;
+            }
+            // not expected, lastCommitted + 1 is the first outstanding proposal
+            zxid = Collections.min(outstandingProposals.keySet());
+            p = outstandingProposals.get(zxid);
+        }
 
         // If p is a reconfiguration, multiple other operations may be ready to be committed,
         // since operations wait for different sets of acks.
@@ -1051,17 +1290,10 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
         // pending all wait for a quorum of old and new config, so its not possible to get enough acks
         // for an operation without getting enough acks for preceding ops. But in the future if multiple
         // concurrent reconfigs are allowed, this can happen and then we need to check whether some pending
-        // ops may already have enough acks and can be committed, which is what this code does.
-
-        if (hasCommitted && p.request != null && p.request.getHdr().getType() == OpCode.reconfig) {
-            long curZxid = zxid;
-            while (allowedToCommit && hasCommitted && p != null) {
-                curZxid++;
-                p = outstandingProposals.get(curZxid);
-                if (p != null) {
-                    hasCommitted = tryToCommit(p, curZxid, null);
-                }
-            }
+        // ops may already have enough acks and can be committed, which is what this loop does.
+        while (allowedToCommit && p != null && tryToCommit(p, zxid, null)) {
+            zxid++;
+            p = outstandingProposals.get(zxid);
         }
     }
 
@@ -1153,7 +1385,11 @@ void sendObserverPacket(QuorumPacket qp) {
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
+
+    // the number of requests to commit the proposals with a quorum received
+    // while a thread is committing them
+    private final AtomicInteger pendingCommits = new AtomicInteger();
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -1164,7 +1400,7 @@ public void commit(long zxid) {
         synchronized (this) {
             lastCommitted = zxid;
         }
-        QuorumPacket qp = new QuorumPacket(Leader.COMMIT, zxid, null, null);
+        QuorumPacket qp = new EncodedQuorumPacket(Leader.COMMIT, zxid, null);
         sendPacket(qp);
         ServerMetrics.getMetrics().COMMIT_COUNT.add(1);
     }
@@ -1187,7 +1423,7 @@ public void commitAndActivate(long zxid, long designatedLeader) {
      * Create an inform packet and send it to all observers.
      */
     public void inform(Proposal proposal) {
-        QuorumPacket qp = new QuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData(), null);
+        QuorumPacket qp = new EncodedQuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData());
         sendObserverPacket(qp);
     }
 
@@ -1207,7 +1443,7 @@ public void informAndActivate(Proposal proposal, long designatedLeader) {
         sendObserverPacket(buildInformAndActivePacket(proposal.request.zxid, designatedLeader, proposal.packet.getData()));
     }
 
-    long lastProposed;
+    volatile long lastProposed;
 
     @Override
     public synchronized long getLastProposed() {
@@ -1253,7 +1489,7 @@ public Proposal propose(Request request) throws XidRolloverException {
 
         byte[] data = SerializeUtils.serializeRequest(request);
         proposalStats.setLastBufferSize(data.length);
-        QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
+        QuorumPacket pp = new EncodedQuorumPacket(Leader.PROPOSAL, request.zxid, data);
 
         Proposal p = new Proposal();
         p.packet = pp;
@@ -1302,6 +1538,142 @@ public void sendSync(LearnerSyncRequest r) {
         r.fh.queuePacket(qp);
     }
 
+    /**
+     * A read index asked by a follower, or by a client of the leader, which
+     * is answered once a quorum answered a ping sent after it was received.
+     */
+    private static class ReadIndex {
+
+        final LearnerHandler handler;
+        final long id;
+        final Request request;
+        final long zxid;
+        final long receivedNanos;
+
+        ReadIndex(LearnerHandler handler, long id, Request request, long zxid, long receivedNanos) {
+            this.handler = handler;
+            this.id = id;
+            this.request = request;
+            this.zxid = zxid;
+            this.receivedNanos = receivedNanos;
+        }
+
+    }
+
+    // the read indexes waiting for a quorum to confirm the leader, in the
+    // order they were received
+    private final List<ReadIndex> pendingReadIndexes = new ArrayList<>();
+
+    // when the followers were last pinged to confirm the pending read indexes
+    private volatile long readIndexPingNanos = System.nanoTime();
+
+    @Override
+    void processReadIndex(LearnerHandler learnerHandler, long id) {
+        readIndex(learnerHandler, id, null);
+    }
+
+    /**
+     * Process a read index asked by a client of the leader: the request is
+     * committed once a quorum confirmed the leader still leads.
+     *
+     * @param request the request
+     */
+    public void processReadIndex(Request request) {
+        if (!isReadIndexEnabled()) {
+            // served like a sync on the leader
+            answerReadIndex(new ReadIndex(null, 0, request, lastCommitted, System.nanoTime()));
+            return;
+        }
+        readIndex(null, 0, request);
+    }
+
+    private void readIndex(LearnerHandler handler, long id, Request request) {
+        long leaseNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(readIndexLeaseMs, (long) self.tickTime * self.syncLimit));
+        if (leaseNanos > 0) {
+            long zxid = lastCommitted;
+            long now = System.nanoTime();
+            if (isQuorumPingedSince(now - leaseNanos)) {
+                ServerMetrics.getMetrics().READ_INDEX_LEASE_HITS.add(1);
+                answerReadIndex(new ReadIndex(handler, id, request, zxid, now));
+                return;
+            }
+        }
+        long receivedNanos;
+        synchronized (pendingReadIndexes) {
+            receivedNanos = System.nanoTime();
+            pendingReadIndexes.add(new ReadIndex(handler, id, request, lastCommitted, receivedNanos));
+        }
+        if (readIndexPingNanos - receivedNanos < 0) {
+            // the pings sent before the read index was received cannot
+            // confirm it, the next ones confirm all the pending read indexes
+            readIndexPingNanos = System.nanoTime();
+            for (LearnerHandler f : getForwardingFollowers()) {
+                f.sendPing();
+            }
+        }
+        // the leader may be a quorum on its own
+        pingAnswered(null);
+    }
+
+    @Override
+    void pingAnswered(LearnerHandler learnerHandler) {
+        List<ReadIndex> confirmed = new ArrayList<>();
+        synchronized (pendingReadIndexes) {
+            Iterator<ReadIndex> iter = pendingReadIndexes.iterator();
+            while (iter.hasNext()) {
+                ReadIndex readIndex = iter.next();
+                if (!isQuorumPingedSince(readIndex.receivedNanos)) {
+                    // nor are the read indexes received after it
+                    break;
+                }
+                confirmed.add(readIndex);
+                iter.remove();
+            }
+        }
+        long now = System.nanoTime();
+        for (ReadIndex readIndex : confirmed) {
+            ServerMetrics.getMetrics().READ_INDEX_CONFIRM_TIME.add((now - readIndex.receivedNanos) / 1000);
+            answerReadIndex(readIndex);
+        }
+    }
+
+    /**
+     * @return true if a quorum of the current (and potentially next pending)
+     * view answered a ping sent at nanos or later
+     */
+    private boolean isQuorumPingedSince(long nanos) {
+        SyncedLearnerTracker pingedSet = new SyncedLearnerTracker();
+        pingedSet.addQuorumVerifier(self.getQuorumVerifier());
+        if (self.getLastSeenQuorumVerifier() != null
+            && self.getLastSeenQuorumVerifier().getVersion() > self.getQuorumVerifier().getVersion()) {
+            pingedSet.addQuorumVerifier(self.getLastSeenQuorumVerifier());
+        }
+        pingedSet.addAck(self.getId());
+        if (pingedSet.hasAllQuorums()) {
+            return true;
+        }
+        for (LearnerHandler f : getForwardingFollowers()) {
+            if (f.isPingAnsweredSince(nanos)) {
+                pingedSet.addAck(f.getSid());
+            }
+        }
+        return pingedSet.hasAllQuorums();
+    }
+
+    private void answerReadIndex(ReadIndex readIndex) {
+        if (readIndex.handler != null) {
+            byte[] data = new byte[8];
+            ByteBuffer.wrap(data).putLong(readIndex.id);
+            readIndex.handler.queuePacket(new QuorumPacket(Leader.READINDEX, readIndex.zxid, data, null));
+        } else {
+            // the txns up to the read index are all given to the commit
+            // processor by the thread which holds the lock
+            synchronized (this) {
+                zk.commitProcessor.commit(readIndex.request);
+            }
+        }
+    }
+
     /**
      * lets the leader know that a follower is capable of following and is done
      * syncing
@@ -1618,6 +1990,12 @@ public static String getPacketType(int packetType) {
             return "TRUNC";
         case SNAP:
             return "SNAP";
+        case SNAPCHUNK:
+            return "SNAPCHUNK";
+        case READINDEX:
+            return "READINDEX";
+        case REQUESTBATCH:
+            return "REQUESTBATCH";
         case OBSERVERINFO:
             return "OBSERVERINFO";
         case NEWLEADER:
@@ -30,7 +30,9 @@
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -81,6 +83,8 @@ static class PacketInFlight {
         TxnHeader hdr;
         Record rec;
         TxnDigest digest;
+        // the size of the packet, while buffered during a sync
+        int size;
 
     }
 
@@ -106,6 +110,47 @@ public Socket getSocket() {
     /** the protocol version of the leader */
     protected int leaderProtocolVersion = 0x01;
 
+    /**
+     * @return true if the leader expects one ACK for all the proposals
+     * logged by a flush, instead of one per proposal
+     */
+    boolean isCumulativeAck() {
+        return leaderProtocolVersion >= Leader.BATCHING_PROTOCOL_VERSION;
+    }
+
+    /**
+     * @return the protocol version advertised to the leader in LearnerInfo
+     */
+    int getProtocolVersion() {
+        return Leader.isProposalBatchingEnabled() ? Leader.BATCHING_PROTOCOL_VERSION : 0x10000;
+    }
+
+    /** the flags which follow the protocol version of the leader */
+    protected int leaderFlags;
+
+    /**
+     * @return true if the leader answers READINDEX packets
+     */
+    boolean isReadIndexSupported() {
+        return (leaderFlags & Leader.READ_INDEX_FLAG) != 0;
+    }
+
+    /**
+     * @return true if the requests are forwarded to the leader in
+     * REQUESTBATCH packets
+     */
+    boolean isRequestBatching() {
+        return requestBatchingEnabled && (leaderFlags & Leader.REQUEST_BATCH_FLAG) != 0;
+    }
+
+    /*
+     * The REQUEST packets queued by request() until flushRequests() sends
+     * them, and the requests they forward.
+     */
+    private final List<QuorumPacket> requestBatch = new ArrayList<>();
+    private final List<Request> batchedRequests = new ArrayList<>();
+    private int requestBatchBytes;
+
     private static final int BUFFERED_MESSAGE_SIZE = 10;
     protected final MessageTracker messageTracker = new MessageTracker(BUFFERED_MESSAGE_SIZE);
 
@@ -126,11 +171,71 @@ public Socket getSocket() {
     public static final boolean closeSocketAsync = Boolean
         .parseBoolean(ConfigUtils.getPropertyBackwardCompatibleWay(LEARNER_CLOSE_SOCKET_ASYNC));
 
+    public static final String LEARNER_REQUEST_BATCHING_ENABLED = "zookeeper.learner.requestBatchingEnabled";
+    private static volatile boolean requestBatchingEnabled =
+        Boolean.parseBoolean(System.getProperty(LEARNER_REQUEST_BATCHING_ENABLED, "true"));
+
+    // the max number of requests forwarded in one REQUESTBATCH
+    public static final String LEARNER_MAX_REQUEST_BATCH_SIZE = "zookeeper.learner.maxRequestBatchSize";
+    private static volatile int maxRequestBatchSize = Integer.getInteger(LEARNER_MAX_REQUEST_BATCH_SIZE, 64);
+
+    /** bound the batch well below jute.maxbuffer of the leader */
+    private static final int MAX_REQUEST_BATCH_BYTES = BinaryInputArchive.maxBuffer / 2;
+
+    // log and apply the committed txns of a DIFF as they are received,
+    // instead of buffering them until the NEWLEADER and the UPTODATE
+    public static final String LEARNER_DIFF_SYNC_STREAMING_ENABLED = "zookeeper.learner.diffSyncStreamingEnabled";
+    private static volatile boolean diffSyncStreamingEnabled = Boolean.getBoolean(LEARNER_DIFF_SYNC_STREAMING_ENABLED);
+
+    // the number of txns logged between two flushes of the txn log, when streaming a DIFF
+    public static final String LEARNER_DIFF_SYNC_STREAMING_BATCH_SIZE = "zookeeper.learner.diffSyncStreamingBatchSize";
+    private static volatile int diffSyncStreamingBatchSize = Integer.getInteger(LEARNER_DIFF_SYNC_STREAMING_BATCH_SIZE, 1000);
+
     static {
         LOG.info("leaderConnectDelayDuringRetryMs: {}", leaderConnectDelayDuringRetryMs);
         LOG.info("TCP NoDelay set to: {}", nodelay);
         LOG.info("{} = {}", LEARNER_ASYNC_SENDING, asyncSending);
         LOG.info("{} = {}", LEARNER_CLOSE_SOCKET_ASYNC, closeSocketAsync);
+        LOG.info("{} = {}", LEARNER_REQUEST_BATCHING_ENABLED, requestBatchingEnabled);
+        LOG.info("{} = {}", LEARNER_MAX_REQUEST_BATCH_SIZE, maxRequestBatchSize);
+        LOG.info("{} = {}", LEARNER_DIFF_SYNC_STREAMING_ENABLED, diffSyncStreamingEnabled);
+        LOG.info("{} = {}", LEARNER_DIFF_SYNC_STREAMING_BATCH_SIZE, diffSyncStreamingBatchSize);
+    }
+
+    public static boolean isRequestBatchingEnabled() {
+        return requestBatchingEnabled;
+    }
+
+    public static void setRequestBatchingEnabled(boolean enabled) {
+        requestBatchingEnabled = enabled;
+        LOG.info("{} = {}", LEARNER_REQUEST_BATCHING_ENABLED, requestBatchingEnabled);
+    }
+
+    public static int getMaxRequestBatchSize() {
+        return maxRequestBatchSize;
+    }
+
+    public static void setMaxRequestBatchSize(int size) {
+        maxRequestBatchSize = size;
+        LOG.info("{} = {}", LEARNER_MAX_REQUEST_BATCH_SIZE, maxRequestBatchSize);
+    }
+
+    public static boolean isDiffSyncStreamingEnabled() {
+        return diffSyncStreamingEnabled;
+    }
+
+    public static void setDiffSyncStreamingEnabled(boolean enabled) {
+        diffSyncStreamingEnabled = enabled;
+        LOG.info("{} = {}", LEARNER_DIFF_SYNC_STREAMING_ENABLED, diffSyncStreamingEnabled);
+    }
+
+    public static int getDiffSyncStreamingBatchSize() {
+        return diffSyncStreamingBatchSize;
+    }
+
+    public static void setDiffSyncStreamingBatchSize(int size) {
+        diffSyncStreamingBatchSize = size;
+        LOG.info("{} = {}", LEARNER_DIFF_SYNC_STREAMING_BATCH_SIZE, diffSyncStreamingBatchSize);
     }
 
     final ConcurrentHashMap<Long, ServerCnxn> pendingRevalidations = new ConcurrentHashMap<Long, ServerCnxn>();
@@ -238,7 +343,9 @@ void readPacket(QuorumPacket pp) throws IOException {
     }
 
     /**
-     * send a request packet to the leader
+     * send a request packet to the leader. If the leader handles
+     * REQUESTBATCH packets, the packet is queued until flushRequests() is
+     * called or the batch is full.
      *
      * @param request
      *                the request from the client
@@ -253,7 +360,9 @@ void request(Request request) throws IOException {
         DataOutputStream oa = new DataOutputStream(baos);
         oa.writeLong(request.sessionId);
         oa.writeInt(request.cxid);
-        oa.writeInt(request.type);
+        // a read index which is not asked to the leader with READINDEX is
+        // served like a sync, which any leader understands
+        oa.writeInt(request.type == OpCode.readIndex ? OpCode.sync : request.type);
         if (request.request != null) {
             request.request.rewind();
             int len = request.request.remaining();
@@ -264,7 +373,59 @@ void request(Request request) throws IOException {
         }
         oa.close();
         QuorumPacket qp = new QuorumPacket(Leader.REQUEST, -1, baos.toByteArray(), request.authInfo);
-        writePacket(qp, true);
+        if (!isRequestBatching()) {
+            writePacket(qp, true);
+            ServerMetrics.getMetrics().LEARNER_REQUEST_FORWARD_LATENCY.add(Time.currentElapsedTime() - request.createTime);
+            return;
+        }
+        synchronized (requestBatch) {
+            // the size of the packet in the batch, without its authinfo
+            int size = qp.getData().length + 20;
+            if (!requestBatch.isEmpty()
+                && (requestBatch.size() >= maxRequestBatchSize || requestBatchBytes + size > MAX_REQUEST_BATCH_BYTES)) {
+                flushRequests();
+            }
+            requestBatch.add(qp);
+            batchedRequests.add(request);
+            requestBatchBytes += size;
+        }
+    }
+
+    /**
+     * Send the requests queued by request() to the leader, in one
+     * REQUESTBATCH packet if there are several. The request processors call
+     * it whenever they have no more requests queued, so the batches hold
+     * the requests received while the previous ones were forwarded.
+     *
+     * @throws IOException
+     */
+    void flushRequests() throws IOException {
+        synchronized (requestBatch) {
+            if (requestBatch.isEmpty()) {
+                return;
+            }
+            QuorumPacket qp;
+            if (requestBatch.size() == 1) {
+                qp = requestBatch.get(0);
+            } else {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(requestBatchBytes + 4);
+                BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+                boa.writeInt(requestBatch.size(), "count");
+                for (QuorumPacket request : requestBatch) {
+                    boa.writeRecord(request, "packet");
+                }
+                qp = new QuorumPacket(Leader.REQUESTBATCH, -1, baos.toByteArray(), null);
+            }
+            writePacket(qp, true);
+            ServerMetrics.getMetrics().LEARNER_REQUEST_BATCH_SIZE.add(requestBatch.size());
+            long now = Time.currentElapsedTime();
+            for (Request request : batchedRequests) {
+                ServerMetrics.getMetrics().LEARNER_REQUEST_FORWARD_LATENCY.add(now - request.createTime);
+            }
+            requestBatch.clear();
+            batchedRequests.clear();
+            requestBatchBytes = 0;
+        }
     }
 
     /**
@@ -495,10 +656,14 @@ protected long registerWithLeader(int pktType) throws IOException {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getId(), 0x10000, self.getQuorumVerifier().getVersion());
+        LearnerInfo li = new LearnerInfo(self.getId(), getProtocolVersion(), self.getQuorumVerifier().getVersion());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
+        if (SnapshotTransfer.isEnabled()) {
+            // a learner which can receive a snapshot file tells which transfer it can resume
+            SnapshotTransfer.writeResumeState(self.getTxnFactory().getSnapDir(), new DataOutputStream(bsid));
+        }
         qp.setData(bsid.toByteArray());
 
         writePacket(qp, true);
@@ -506,7 +671,9 @@ protected long registerWithLeader(int pktType) throws IOException {
         final long newEpoch = ZxidUtils.getEpochFromZxid(qp.getZxid());
         if (qp.getType() == Leader.LEADERINFO) {
             // we are connected to a 1.0 server so accept the new epoch and read the next packet
-            leaderProtocolVersion = ByteBuffer.wrap(qp.getData()).getInt();
+            ByteBuffer leaderInfo = ByteBuffer.wrap(qp.getData());
+            leaderProtocolVersion = leaderInfo.getInt();
+            leaderFlags = leaderInfo.remaining() >= 4 ? leaderInfo.getInt() : 0;
             byte[] epochBytes = new byte[4];
             final ByteBuffer wrappedEpochBytes = ByteBuffer.wrap(epochBytes);
             if (newEpoch > self.getAcceptedEpoch()) {
@@ -557,9 +724,16 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
         // For SNAP and TRUNC the snapshot is needed to save that history
         boolean snapshotNeeded = true;
         boolean syncSnapshot = false;
+        // log and apply the committed txns of the DIFF up to the NEWLEADER as they are received
+        boolean streamDiff = false;
         readPacket(qp);
+        long phaseStartTime = Time.currentElapsedTime();
         Deque<Long> packetsCommitted = new ArrayDeque<>();
         Deque<PacketInFlight> packetsNotCommitted = new ArrayDeque<>();
+        // the size of the txns in packetsNotCommitted
+        long bufferedBytes = 0;
+        long peakBufferedBytes = 0;
+        int unflushedTxns = 0;
         synchronized (zk) {
             if (qp.getType() == Leader.DIFF) {
                 LOG.info("Getting a diff from the leader 0x{}", Long.toHexString(qp.getZxid()));
@@ -570,13 +744,25 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                     syncSnapshot = true;
                 } else {
                     snapshotNeeded = false;
+                    streamDiff = diffSyncStreamingEnabled;
                 }
             } else if (qp.getType() == Leader.SNAP) {
                 self.setSyncMode(QuorumPeer.SyncMode.SNAP);
                 LOG.info("Getting a snapshot from leader 0x{}", Long.toHexString(qp.getZxid()));
-                // The leader is going to dump the database
-                // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                if (qp.getData() != null) {
+                    // The leader is going to send a snapshot file in chunks
+                    // db is clear as part of deserializeSnapshot()
+                    SnapshotTransfer.receive(this, qp, self.getTxnFactory().getSnapDir(), zk.getZKDatabase());
+                } else {
+                    // The leader is going to dump the database
+                    // db is clear as part of deserializeSnapshot()
+                    zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                    String signature = leaderIs.readString("signature");
+                    if (!signature.equals("BenWasHere")) {
+                        LOG.error("Missing signature. Got {}", signature);
+                        throw new IOException("Missing signature");
+                    }
+                }
                 // ZOOKEEPER-2819: overwrite config node content extracted
                 // from leader snapshot with local config, to avoid potential
                 // inconsistency of config node content during rolling restart.
@@ -584,11 +770,6 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                     LOG.debug("Reset config node content from local config after deserialization of snapshot.");
                     zk.getZKDatabase().initConfigInZKDatabase(self.getQuorumVerifier());
                 }
-                String signature = leaderIs.readString("signature");
-                if (!signature.equals("BenWasHere")) {
-                    LOG.error("Missing signature. Got {}", signature);
-                    throw new IOException("Missing signature");
-                }
                 zk.getZKDatabase().setlastProcessedZxid(qp.getZxid());
 
                 // immediately persist the latest snapshot when there is txn log gap
@@ -609,6 +790,7 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                 LOG.error("Got unexpected packet from leader: {}, exiting ... ", LearnerHandler.packetToString(qp));
                 ServiceUtils.requestSystemExit(ExitCode.QUORUM_PACKET_ERROR.getValue());
             }
+            String syncPhase = self.getSyncMode().name().toLowerCase();
             zk.getZKDatabase().initConfigInZKDatabase(self.getQuorumVerifier());
             zk.createSessionTracker();
 
@@ -633,6 +815,7 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                     pif.hdr = logEntry.getHeader();
                     pif.rec = logEntry.getTxn();
                     pif.digest = logEntry.getDigest();
+                    pif.size = qp.getData().length;
                     if (pif.hdr.getZxid() != lastQueued + 1) {
                         LOG.warn(
                             "Got zxid 0x{} expected 0x{}",
@@ -648,6 +831,8 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                     }
 
                     packetsNotCommitted.add(pif);
+                    bufferedBytes += pif.size;
+                    peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes);
                     break;
                 case Leader.COMMIT:
                 case Leader.COMMITANDACTIVATE:
@@ -662,15 +847,20 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                             throw new Exception("changes proposed in reconfig");
                         }
                     }
-                    if (!writeToTxnLog) {
+                    if (!writeToTxnLog || streamDiff) {
                         if (pif.hdr.getZxid() != qp.getZxid()) {
                             LOG.warn(
                                 "Committing 0x{}, but next proposal is 0x{}",
                                 Long.toHexString(qp.getZxid()),
                                 Long.toHexString(pif.hdr.getZxid()));
                         } else {
-                            zk.processTxn(pif.hdr, pif.rec);
+                            if (streamDiff) {
+                                unflushedTxns = applyDiffTxn(pif, unflushedTxns);
+                            } else {
+                                zk.processTxn(pif.hdr, pif.rec);
+                            }
                             packetsNotCommitted.remove();
+                            bufferedBytes -= pif.size;
                         }
                     } else {
                         packetsCommitted.add(qp.getZxid());
@@ -699,6 +889,7 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                         packet.rec = logEntry.getTxn();
                         packet.hdr = logEntry.getHeader();
                         packet.digest = logEntry.getDigest();
+                        packet.size = qp.getData().length;
                         // Log warning message if txn comes out-of-order
                         if (packet.hdr.getZxid() != lastQueued + 1) {
                             LOG.warn(
@@ -708,12 +899,16 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                         }
                         lastQueued = packet.hdr.getZxid();
                     }
-                    if (!writeToTxnLog) {
+                    if (streamDiff) {
+                        unflushedTxns = applyDiffTxn(packet, unflushedTxns);
+                    } else if (!writeToTxnLog) {
                         // Apply to db directly if we haven't taken the snapshot
                         zk.processTxn(packet.hdr, packet.rec);
                     } else {
                         packetsNotCommitted.add(packet);
                         packetsCommitted.add(qp.getZxid());
+                        bufferedBytes += packet.size;
+                        peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes);
                     }
 
                     break;
@@ -725,12 +920,20 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                             throw new Exception("changes proposed in reconfig");
                         }
                     }
+                    if (streamDiff) {
+                        zk.getZKDatabase().commit();
+                        streamDiff = false;
+                    }
                     if (isPreZAB1_0) {
                         zk.takeSnapshot(syncSnapshot);
                         self.setCurrentEpoch(newEpoch);
+                        // the snapshot file received from the leader is no longer needed
+                        SnapshotTransfer.deleteSpools(self.getTxnFactory().getSnapDir(), null);
                     }
                     self.setZooKeeperServer(zk);
                     self.adminServer.setZooKeeperServer(zk);
+                    ServerMetrics.getMetrics().LEARNER_SYNC_PHASE_TIME.add(syncPhase, Time.currentElapsedTime() - phaseStartTime);
+                    ServerMetrics.getMetrics().LEARNER_SYNC_PEAK_BUFFERED_BYTES.add(peakBufferedBytes);
                     break outerLoop;
                 case Leader.NEWLEADER: // Getting NEWLEADER here instead of in discovery
                     // means this is Zab 1.0
@@ -745,9 +948,21 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                         }
                     }
 
+                    if (streamDiff) {
+                        // the streamed txns are logged before the NEWLEADER is acknowledged
+                        zk.getZKDatabase().commit();
+                        streamDiff = false;
+                    }
+                    long now = Time.currentElapsedTime();
+                    ServerMetrics.getMetrics().LEARNER_SYNC_PHASE_TIME.add(syncPhase, now - phaseStartTime);
+                    phaseStartTime = now;
+                    syncPhase = "uptodate";
+
                     if (snapshotNeeded) {
                         zk.takeSnapshot(syncSnapshot);
                     }
+                    // the snapshot file received from the leader is no longer needed
+                    SnapshotTransfer.deleteSpools(self.getTxnFactory().getSnapDir(), null);
 
                     self.setCurrentEpoch(newEpoch);
                     writeToTxnLog = true;
@@ -764,6 +979,7 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                             fzk.logRequest(p.hdr, p.rec, p.digest);
                         }
                         packetsNotCommitted.clear();
+                        bufferedBytes = 0;
                     }
 
                     writePacket(new QuorumPacket(Leader.ACK, newLeaderZxid, null, null), true);
@@ -820,6 +1036,27 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
         }
     }
 
+    /**
+     * Log and apply a committed txn of a streamed DIFF, the txn log is flushed
+     * every {@link #getDiffSyncStreamingBatchSize()} txns. The request
+     * processors are not started yet, so the log is only written by the
+     * learner thread.
+     *
+     * @return the number of txns logged since the last flush
+     */
+    private int applyDiffTxn(PacketInFlight pif, int unflushedTxns) throws IOException {
+        Request request = new Request(pif.hdr.getClientId(), pif.hdr.getCxid(), pif.hdr.getType(), pif.hdr, pif.rec, pif.hdr.getZxid());
+        request.setTxnDigest(pif.digest);
+        zk.getZKDatabase().append(request);
+        zk.processTxn(pif.hdr, pif.rec);
+        zk.getZKDatabase().addCommittedProposal(request);
+        if (++unflushedTxns < diffSyncStreamingBatchSize) {
+            return unflushedTxns;
+        }
+        zk.getZKDatabase().commit();
+        return 0;
+    }
+
     protected void revalidate(QuorumPacket qp) throws IOException {
         ByteArrayInputStream bis = new ByteArrayInputStream(qp.getData());
         DataInputStream dis = new DataInputStream(bis);
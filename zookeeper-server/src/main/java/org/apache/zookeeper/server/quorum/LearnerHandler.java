@@ -23,11 +23,15 @@
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
@@ -110,6 +114,10 @@ int getVersion() {
         return version;
     }
 
+    boolean isBatchingNegotiated() {
+        return batchingNegotiated;
+    }
+
     /**
      * The packets to be sent to the learner
      */
@@ -190,6 +198,20 @@ public synchronized void updateAck(long zxid) {
             }
         }
 
+        public synchronized void updateCumulativeAck(long zxid) {
+            if (nextZxid != 0 && nextZxid <= zxid) {
+                currentTime = 0;
+                currentZxid = 0;
+                nextTime = 0;
+                nextZxid = 0;
+            } else if (currentZxid != 0 && currentZxid <= zxid) {
+                currentTime = nextTime;
+                currentZxid = nextZxid;
+                nextTime = 0;
+                nextZxid = 0;
+            }
+        }
+
         public synchronized boolean check(long time) {
             if (currentTime == 0) {
                 return true;
@@ -229,6 +251,98 @@ public boolean equals(Object o) {
 
     }
 
+    /**
+     * PROPOSAL and COMMIT packets sent as one PROPOSALBATCH packet. The
+     * proposals are written as they were encoded by the leader, and the
+     * commits only as the zxid of the last one.
+     */
+    private static class ProposalBatch extends QuorumPacket {
+
+        /** bound the batch well below jute.maxbuffer of the learner */
+        private static final int MAX_BATCH_BYTES = BinaryInputArchive.maxBuffer / 2;
+
+        private final List<EncodedQuorumPacket> proposals = new ArrayList<>();
+        private int packetCount;
+        private int dataLength = 4;
+
+        ProposalBatch() {
+            super(Leader.PROPOSALBATCH, 0, null, null);
+        }
+
+        static boolean isBatchable(QuorumPacket p) {
+            return p != null
+                   && ((p.getType() == Leader.PROPOSAL && p instanceof EncodedQuorumPacket)
+                       || (p.getType() == Leader.COMMIT && p.getData() == null));
+        }
+
+        boolean canAdd(QuorumPacket p) {
+            return isBatchable(p)
+                   && (p.getType() == Leader.COMMIT
+                       || dataLength + ((EncodedQuorumPacket) p).getEncodedLength() <= MAX_BATCH_BYTES);
+        }
+
+        void add(QuorumPacket p) {
+            if (p.getType() == Leader.PROPOSAL) {
+                EncodedQuorumPacket proposal = (EncodedQuorumPacket) p;
+                proposals.add(proposal);
+                dataLength += proposal.getEncodedLength();
+            } else {
+                setZxid(p.getZxid());
+            }
+            packetCount++;
+        }
+
+        int size() {
+            return packetCount;
+        }
+
+        long getLastZxid() {
+            long zxid = getZxid();
+            if (!proposals.isEmpty()) {
+                zxid = Math.max(zxid, proposals.get(proposals.size() - 1).getZxid());
+            }
+            return zxid;
+        }
+
+        /**
+         * Write the batch as {@link BinaryOutputArchive#writeRecord} would
+         * write a QuorumPacket of this type, zxid and data.
+         */
+        void writeTo(BinaryOutputArchive oa, OutputStream out) throws IOException {
+            oa.writeInt(Leader.PROPOSALBATCH, "type");
+            oa.writeLong(getZxid(), "zxid");
+            oa.writeInt(dataLength, "len");
+            oa.writeInt(proposals.size(), "count");
+            for (EncodedQuorumPacket proposal : proposals) {
+                proposal.writeTo(out);
+            }
+            // no authinfo
+            oa.writeInt(-1, "authinfo");
+        }
+
+    }
+
+    /**
+     * Whether the learner negotiated {@link Leader#BATCHING_PROTOCOL_VERSION},
+     * it then handles PROPOSALBATCH packets once it is up to date, and sends
+     * cumulative ACKs.
+     */
+    private boolean batchingNegotiated;
+
+    private long lastAckedZxid;
+
+    /*
+     * When the pings not answered yet were sent, in order. The pings are only
+     * tracked from UPTODATE on, since the learner does not answer those it
+     * receives while it syncs.
+     */
+    private final Queue<Long> pingSendTimes = new ArrayDeque<>();
+    private boolean pingsTracked;
+
+    // when the last answered ping was sent, if pingAnswered
+    private volatile long lastPingAnswerNanos;
+    private volatile boolean pingAnswered;
+
     private BinaryInputArchive ia;
 
     private BinaryOutputArchive oa;
@@ -273,6 +387,19 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
      */
     private LearnerSyncThrottler syncThrottler = null;
 
+    /**
+     * Whether the learner can receive a snapshot file in chunks, and the
+     * transfer it can resume, see {@link SnapshotTransfer}
+     */
+    private boolean chunkedSnapSync;
+    private long snapResumeId;
+    private long snapResumeOffset;
+
+    /**
+     * The snapshot file to send, if the snapshot is not serialized on the socket
+     */
+    private SnapshotTransfer snapshotTransfer;
+
     LearnerHandler(Socket sock, BufferedInputStream bufferedInput, LearnerMaster learnerMaster) throws IOException {
         super("LearnerHandler-" + sock.getRemoteSocketAddress());
         this.sock = sock;
@@ -326,13 +453,21 @@ public LearnerType getLearnerType() {
      * @throws InterruptedException
      */
     private void sendPackets() throws InterruptedException {
+        // the learner only handles batches once it is up to date
+        boolean batching = false;
+        QuorumPacket next = null;
         while (true) {
             try {
                 QuorumPacket p;
-                p = queuedPackets.poll();
-                if (p == null) {
-                    bufferedOutput.flush();
-                    p = queuedPackets.take();
+                if (next != null) {
+                    p = next;
+                    next = null;
+                } else {
+                    p = queuedPackets.poll();
+                    if (p == null) {
+                        bufferedOutput.flush();
+                        p = queuedPackets.take();
+                    }
                 }
 
                 ServerMetrics.getMetrics().LEARNER_HANDLER_QP_SIZE.add(Long.toString(this.sid), queuedPackets.size());
@@ -350,6 +485,21 @@ private void sendPackets() throws InterruptedException {
                     break;
                 }
 
+                long zxid = p.getZxid();
+                if (batching && ProposalBatch.isBatchable(p) && ProposalBatch.isBatchable(queuedPackets.peek())) {
+                    ProposalBatch batch = new ProposalBatch();
+                    batch.add(p);
+                    next = fillBatch(batch);
+                    if (batch.size() > 1) {
+                        ServerMetrics.getMetrics().PROPOSAL_BATCH_SIZE.add(batch.size());
+                        for (QuorumPacket proposal : batch.proposals) {
+                            syncLimitCheck.updateProposal(proposal.getZxid(), System.nanoTime());
+                        }
+                        p = batch;
+                        zxid = batch.getLastZxid();
+                    }
+                }
+
                 if (p.getType() == Leader.PROPOSAL) {
                     syncLimitCheck.updateProposal(p.getZxid(), System.nanoTime());
                 }
@@ -362,12 +512,21 @@ private void sendPackets() throws InterruptedException {
                 }
 
                 // Log the zxid of the last request, if it is a valid zxid.
-                if (p.getZxid() > 0) {
-                    lastZxid = p.getZxid();
+                if (zxid > 0) {
+                    lastZxid = zxid;
+                }
+                if (p instanceof ProposalBatch) {
+                    ((ProposalBatch) p).writeTo(oa, bufferedOutput);
+                } else if (p instanceof EncodedQuorumPacket) {
+                    ((EncodedQuorumPacket) p).writeTo(bufferedOutput);
+                } else {
+                    oa.writeRecord(p, "packet");
                 }
-                oa.writeRecord(p, "packet");
                 packetsSent.incrementAndGet();
                 messageTracker.trackSent(p.getType());
+                if (p.getType() == Leader.UPTODATE) {
+                    batching = batchingNegotiated;
+                }
             } catch (IOException e) {
                 LOG.error("Exception while sending packets in LearnerHandler", e);
                 // this will cause everything to shutdown on
@@ -379,6 +538,31 @@ private void sendPackets() throws InterruptedException {
         }
     }
 
+    /**
+     * Move the PROPOSAL and COMMIT packets at the head of the queue to the
+     * batch, until it is full.
+     *
+     * @return a packet which has been taken from the queue but is not part
+     * of the batch, or null
+     */
+    private QuorumPacket fillBatch(ProposalBatch batch) {
+        int maxBatchSize = Leader.getMaxProposalBatchSize();
+        while (batch.size() < maxBatchSize) {
+            QuorumPacket p = queuedPackets.peek();
+            if (!batch.canAdd(p)) {
+                break;
+            }
+            QuorumPacket polled = queuedPackets.poll();
+            if (polled != p) {
+                // the queue was cleared in between
+                return polled;
+            }
+            queuedPacketsSize.addAndGet(-packetSize(p));
+            batch.add(p);
+        }
+        return null;
+    }
+
     public static String packetToString(QuorumPacket p) {
         String type;
         String mess = null;
@@ -402,6 +586,9 @@ public static String packetToString(QuorumPacket p) {
         case Leader.PROPOSAL:
             type = "PROPOSAL";
             break;
+        case Leader.PROPOSALBATCH:
+            type = "PROPOSALBATCH";
+            break;
         case Leader.REQUEST:
             type = "REQUEST";
             break;
@@ -429,6 +616,15 @@ public static String packetToString(QuorumPacket p) {
         case Leader.SNAP:
             type = "SNAP";
             break;
+        case Leader.SNAPCHUNK:
+            type = "SNAPCHUNK";
+            break;
+        case Leader.READINDEX:
+            type = "READINDEX";
+            break;
+        case Leader.REQUESTBATCH:
+            type = "REQUESTBATCH";
+            break;
         case Leader.ACKEPOCH:
             type = "ACKEPOCH";
             break;
@@ -496,6 +692,11 @@ public void run() {
                         throw new IOException("Follower is ahead of the leader (has a later activated configuration)");
                     }
                 }
+                if (learnerInfoData.length >= 36) {
+                    chunkedSnapSync = true;
+                    snapResumeId = bbsid.getLong();
+                    snapResumeOffset = bbsid.getLong();
+                }
             } else {
                 this.sid = learnerMaster.getAndDecrementFollowerCounter();
             }
@@ -531,8 +732,14 @@ public void run() {
                 // fake the message
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             } else {
-                byte[] ver = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                batchingNegotiated = Leader.isProposalBatchingEnabled()
+                                     && getVersion() >= Leader.BATCHING_PROTOCOL_VERSION
+                                     && learnerType == LearnerType.PARTICIPANT;
+                boolean readIndex = Leader.isReadIndexEnabled() && learnerType == LearnerType.PARTICIPANT;
+                byte[] ver = new byte[8];
+                ByteBuffer.wrap(ver)
+                          .putInt(batchingNegotiated ? Leader.BATCHING_PROTOCOL_VERSION : 0x10000)
+                          .putInt((readIndex ? Leader.READ_INDEX_FLAG : 0) | Leader.REQUEST_BATCH_FLAG);
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 messageTracker.trackSent(Leader.LEADERINFO);
@@ -564,24 +771,44 @@ public void run() {
                 syncThrottler.beginSync(exemptFromThrottle);
                 ServerMetrics.getMetrics().INFLIGHT_SNAP_COUNT.add(syncThrottler.getSyncInProgress());
                 try {
-                    long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
-                    messageTracker.trackSent(Leader.SNAP);
-                    bufferedOutput.flush();
+                    if (snapshotTransfer != null) {
+                        // the txns following the snapshot file are already queued
+                        oa.writeRecord(
+                            new QuorumPacket(Leader.SNAP, snapshotTransfer.getZxid(), snapshotTransfer.getHeader(), null),
+                            "packet");
+                        messageTracker.trackSent(Leader.SNAP);
 
-                    LOG.info(
-                        "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
-                            + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
-                            + "snapshot sync was {} from throttle",
-                        Long.toHexString(peerLastZxid),
-                        Long.toHexString(leaderLastZxid),
-                        Long.toHexString(zxidToSend),
-                        syncThrottler.getSyncInProgress(),
-                        exemptFromThrottle ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
-                    oa.writeString("BenWasHere", "signature");
-                    bufferedOutput.flush();
+                        LOG.info(
+                            "Sending snapshot file {} from offset {}, last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "{} concurrent snapshot sync, snapshot sync was {} from throttle",
+                            snapshotTransfer.getFileName(),
+                            snapshotTransfer.getOffset(),
+                            Long.toHexString(peerLastZxid),
+                            Long.toHexString(leaderLastZxid),
+                            syncThrottler.getSyncInProgress(),
+                            exemptFromThrottle ? "exempt" : "not exempt");
+                        snapshotTransfer.send(oa, bufferedOutput, syncThrottler);
+                        snapshotTransfer = null;
+                    } else {
+                        long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
+                        oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+                        messageTracker.trackSent(Leader.SNAP);
+                        bufferedOutput.flush();
+
+                        LOG.info(
+                            "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
+                                + "snapshot sync was {} from throttle",
+                            Long.toHexString(peerLastZxid),
+                            Long.toHexString(leaderLastZxid),
+                            Long.toHexString(zxidToSend),
+                            syncThrottler.getSyncInProgress(),
+                            exemptFromThrottle ? "exempt" : "not exempt");
+                        // Dump data to peer
+                        learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                        oa.writeString("BenWasHere", "signature");
+                        bufferedOutput.flush();
+                    }
                 } finally {
                     ServerMetrics.getMetrics().SNAP_COUNT.add(1);
                 }
@@ -649,7 +876,10 @@ public void run() {
             // using the data
             //
             LOG.debug("Sending UPTODATE message to {}", sid);
-            queuedPackets.add(new QuorumPacket(Leader.UPTODATE, -1, null, null));
+            synchronized (pingSendTimes) {
+                queuedPackets.add(new QuorumPacket(Leader.UPTODATE, -1, null, null));
+                pingsTracked = true;
+            }
 
             while (true) {
                 qp = new QuorumPacket();
@@ -667,18 +897,21 @@ public void run() {
 
                 packetsReceived.incrementAndGet();
 
-                ByteBuffer bb;
-                long sessionId;
-                int cxid;
-                int type;
-
                 switch (qp.getType()) {
                 case Leader.ACK:
                     if (this.learnerType == LearnerType.OBSERVER) {
                         LOG.debug("Received ACK from Observer {}", this.sid);
                     }
-                    syncLimitCheck.updateAck(qp.getZxid());
-                    learnerMaster.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
+                    if (batchingNegotiated) {
+                        syncLimitCheck.updateCumulativeAck(qp.getZxid());
+                        learnerMaster.processCumulativeAck(this.sid, lastAckedZxid, qp.getZxid(), sock.getLocalSocketAddress());
+                        if ((qp.getZxid() & 0xffffffffL) != 0) {
+                            lastAckedZxid = qp.getZxid();
+                        }
+                    } else {
+                        syncLimitCheck.updateAck(qp.getZxid());
+                        learnerMaster.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
+                    }
                     break;
                 case Leader.PING:
                     // Process the touches
@@ -689,26 +922,34 @@ public void run() {
                         int to = dis.readInt();
                         learnerMaster.touch(sess, to);
                     }
+                    Long sendTime;
+                    synchronized (pingSendTimes) {
+                        sendTime = pingSendTimes.poll();
+                    }
+                    if (sendTime != null) {
+                        lastPingAnswerNanos = sendTime;
+                        pingAnswered = true;
+                        learnerMaster.pingAnswered(this);
+                    }
+                    break;
+                case Leader.READINDEX:
+                    learnerMaster.processReadIndex(this, qp.getZxid());
                     break;
                 case Leader.REVALIDATE:
                     ServerMetrics.getMetrics().REVALIDATE_COUNT.add(1);
                     learnerMaster.revalidateSession(qp, this);
                     break;
                 case Leader.REQUEST:
-                    bb = ByteBuffer.wrap(qp.getData());
-                    sessionId = bb.getLong();
-                    cxid = bb.getInt();
-                    type = bb.getInt();
-                    bb = bb.slice();
-                    Request si;
-                    if (type == OpCode.sync) {
-                        si = new LearnerSyncRequest(this, sessionId, cxid, type, bb, qp.getAuthinfo());
-                    } else {
-                        si = new Request(null, sessionId, cxid, type, bb, qp.getAuthinfo());
+                    submitRequest(qp);
+                    break;
+                case Leader.REQUESTBATCH:
+                    BinaryInputArchive bia = BinaryInputArchive.getArchive(new ByteArrayInputStream(qp.getData()));
+                    int count = bia.readInt("count");
+                    for (int i = 0; i < count; i++) {
+                        QuorumPacket request = new QuorumPacket();
+                        bia.readRecord(request, "packet");
+                        submitRequest(request);
                     }
-                    si.setOwner(this);
-                    learnerMaster.submitLearnerRequest(si);
-                    requestsReceived.incrementAndGet();
                     break;
                 default:
                     LOG.warn("unexpected quorum packet, type: {}", packetToString(qp));
@@ -918,6 +1159,23 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
             }
             if (needSnap) {
                 currentZxid = db.getDataTreeLastProcessedZxid();
+                snapshotTransfer = null;
+                if (chunkedSnapSync && SnapshotTransfer.isEnabled()) {
+                    SnapshotTransfer transfer = SnapshotTransfer.find(db, snapResumeId, snapResumeOffset);
+                    if (transfer != null) {
+                        long queuedZxid = queueProposalsSinceSnapshot(db, transfer.getZxid(), minCommittedLog, maxCommittedLog);
+                        if (queuedZxid >= 0) {
+                            snapshotTransfer = transfer;
+                            currentZxid = queuedZxid;
+                        } else {
+                            LOG.info(
+                                "Unable to send the txns following snapshot {} to peer sid: {}, serializing the database instead",
+                                transfer.getFileName(),
+                                getSid());
+                            queuedPackets.clear();
+                        }
+                    }
+                }
             }
 
             LOG.debug("Start forwarding 0x{} for peer sid: {}", Long.toHexString(currentZxid), getSid());
@@ -936,6 +1194,38 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
         return needSnap;
     }
 
+    /**
+     * Queue the committed proposals which follow a snapshot file sent to the
+     * learner, as for a DIFF from the zxid of the snapshot, but without the
+     * DIFF packet since the learner gets a SNAP.
+     *
+     * @return the zxid of the last queued proposal, or -1 if the history of
+     * the learnerMaster does not go back to the snapshot
+     */
+    private long queueProposalsSinceSnapshot(ZKDatabase db, long snapZxid, long minCommittedLog, long maxCommittedLog) {
+        needOpPacket = false;
+        if (snapZxid >= minCommittedLog) {
+            return queueCommittedProposals(db.getCommittedLog().iterator(), snapZxid, null, maxCommittedLog);
+        }
+        long queuedZxid;
+        // unlike a DIFF, the txnlog is not limited by the size of the snapshot
+        Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(snapZxid, 0);
+        try {
+            if (!txnLogItr.hasNext()) {
+                return -1;
+            }
+            queuedZxid = queueCommittedProposals(txnLogItr, snapZxid, minCommittedLog, maxCommittedLog);
+        } finally {
+            if (txnLogItr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) txnLogItr).close();
+            }
+        }
+        if (queuedZxid < minCommittedLog) {
+            return -1;
+        }
+        return queueCommittedProposals(db.getCommittedLog().iterator(), queuedZxid, null, maxCommittedLog);
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
@@ -1069,17 +1359,58 @@ public void ping() {
         if (!sendingThreadStarted) {
             return;
         }
-        long id;
         if (syncLimitCheck.check(System.nanoTime())) {
-            id = learnerMaster.getLastProposed();
-            QuorumPacket ping = new QuorumPacket(Leader.PING, id, null, null);
-            queuePacket(ping);
+            sendPing();
         } else {
             LOG.warn("Closing connection to peer due to transaction timeout.");
             shutdown();
         }
     }
 
+    /**
+     * Ping the learner, without checking it keeps up with the proposals.
+     */
+    void sendPing() {
+        if (!sendingThreadStarted) {
+            return;
+        }
+        long id = learnerMaster.getLastProposed();
+        QuorumPacket ping = new QuorumPacket(Leader.PING, id, null, null);
+        synchronized (pingSendTimes) {
+            if (pingsTracked) {
+                pingSendTimes.add(System.nanoTime());
+            }
+            queuePacket(ping);
+        }
+    }
+
+    /**
+     * @return true if the learner answered a ping sent at nanos or later
+     */
+    boolean isPingAnsweredSince(long nanos) {
+        return pingAnswered && lastPingAnswerNanos - nanos >= 0;
+    }
+
+    /**
+     * Submit a request forwarded by the learner, alone or in a REQUESTBATCH.
+     */
+    private void submitRequest(QuorumPacket qp) {
+        ByteBuffer bb = ByteBuffer.wrap(qp.getData());
+        long sessionId = bb.getLong();
+        int cxid = bb.getInt();
+        int type = bb.getInt();
+        bb = bb.slice();
+        Request si;
+        if (type == OpCode.sync) {
+            si = new LearnerSyncRequest(this, sessionId, cxid, type, bb, qp.getAuthinfo());
+        } else {
+            si = new Request(null, sessionId, cxid, type, bb, qp.getAuthinfo());
+        }
+        si.setOwner(this);
+        learnerMaster.submitLearnerRequest(si);
+        requestsReceived.incrementAndGet();
+    }
+
     /**
      * Queue leader packet of a given type
      * @param type
@@ -1106,6 +1437,9 @@ static long packetSize(QuorumPacket p) {
         if (data != null) {
             size += data.length;
         }
+        if (p instanceof EncodedQuorumPacket) {
+            size += ((EncodedQuorumPacket) p).getEncodedLength();
+        }
         return size;
     }
 
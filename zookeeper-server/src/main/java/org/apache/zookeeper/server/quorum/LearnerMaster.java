@@ -42,18 +42,28 @@ public abstract class LearnerMaster {
     private static final String MAX_CONCURRENT_DIFF_SYNCS = "zookeeper.leader.maxConcurrentDiffSyncs";
     private static final int DEFAULT_CONCURRENT_DIFF_SYNCS;
 
+    // Cap the bandwidth of each snapshot sent to a learner, 0 for no limit
+    private static final String MAX_SNAP_SYNC_BYTES_PER_SEC = "zookeeper.leader.maxSnapSyncBytesPerSec";
+    private static final long DEFAULT_SNAP_SYNC_BYTES_PER_SEC;
+
     static {
         DEFAULT_CONCURRENT_SNAPSYNCS = Integer.getInteger(MAX_CONCURRENT_SNAPSYNCS, 10);
         LOG.info("{} = {}", MAX_CONCURRENT_SNAPSYNCS, DEFAULT_CONCURRENT_SNAPSYNCS);
 
         DEFAULT_CONCURRENT_DIFF_SYNCS = Integer.getInteger(MAX_CONCURRENT_DIFF_SYNCS, 100);
         LOG.info("{} = {}", MAX_CONCURRENT_DIFF_SYNCS, DEFAULT_CONCURRENT_DIFF_SYNCS);
+
+        DEFAULT_SNAP_SYNC_BYTES_PER_SEC = Long.getLong(MAX_SNAP_SYNC_BYTES_PER_SEC, 0);
+        LOG.info("{} = {}", MAX_SNAP_SYNC_BYTES_PER_SEC, DEFAULT_SNAP_SYNC_BYTES_PER_SEC);
     }
 
     private volatile int maxConcurrentSnapSyncs = DEFAULT_CONCURRENT_SNAPSYNCS;
     private volatile int maxConcurrentDiffSyncs = DEFAULT_CONCURRENT_DIFF_SYNCS;
 
     private final LearnerSyncThrottler learnerSnapSyncThrottler = new LearnerSyncThrottler(maxConcurrentSnapSyncs, LearnerSyncThrottler.SyncType.SNAP);
+    {
+        learnerSnapSyncThrottler.setMaxBytesPerSec(DEFAULT_SNAP_SYNC_BYTES_PER_SEC);
+    }
 
     private final LearnerSyncThrottler learnerDiffSyncThrottler = new LearnerSyncThrottler(maxConcurrentDiffSyncs, LearnerSyncThrottler.SyncType.DIFF);
 
@@ -67,6 +77,15 @@ public void setMaxConcurrentSnapSyncs(int maxConcurrentSnapSyncs) {
         learnerSnapSyncThrottler.setMaxConcurrentSyncs(maxConcurrentSnapSyncs);
     }
 
+    public long getMaxSnapSyncBytesPerSec() {
+        return learnerSnapSyncThrottler.getMaxBytesPerSec();
+    }
+
+    public void setMaxSnapSyncBytesPerSec(long maxBytesPerSec) {
+        LOG.info("Set maxSnapSyncBytesPerSec to {}", maxBytesPerSec);
+        learnerSnapSyncThrottler.setMaxBytesPerSec(maxBytesPerSec);
+    }
+
     public int getMaxConcurrentDiffSyncs() {
         return maxConcurrentDiffSyncs;
     }
@@ -188,6 +207,35 @@ public LearnerSyncThrottler getLearnerDiffSyncThrottler() {
      */
     abstract void processAck(long sid, long zxid, SocketAddress localSocketAddress);
 
+    /**
+     * handle a cumulative ack packet, which acknowledges all the proposals
+     * after the previous ack of the learner
+     * @param sid leader id
+     * @param lastAckedZxid zxid of the previous ack
+     * @param zxid packet zxid
+     * @param localSocketAddress forwarder's address
+     */
+    void processCumulativeAck(long sid, long lastAckedZxid, long zxid, SocketAddress localSocketAddress) {
+        processAck(sid, zxid, localSocketAddress);
+    }
+
+    /**
+     * handle a read index packet, only sent to a leader which advertised
+     * {@link Leader#READ_INDEX_FLAG}
+     * @param learnerHandler learner
+     * @param id id of the request, to send back with the read index
+     */
+    void processReadIndex(LearnerHandler learnerHandler, long id) {
+        LOG.warn("Ignoring read index request 0x{} of learner {}", Long.toHexString(id), learnerHandler.getSid());
+    }
+
+    /**
+     * called when a learner answers a ping sent by {@link LearnerHandler#sendPing()}
+     * @param learnerHandler learner
+     */
+    void pingAnswered(LearnerHandler learnerHandler) {
+    }
+
     /**
      * mark session as alive
      * @param sess session id
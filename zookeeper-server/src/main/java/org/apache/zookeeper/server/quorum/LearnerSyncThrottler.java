@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,7 +27,9 @@
  * observers and followers or from a follower to observers.  {@link LearnerHandler}
  * objects should call {@link #beginSync(boolean)} before sending a sync and
  * {@link #endSync()} after finishing, successfully or not.
- *
+ * <p>
+ * It can also cap the bandwidth of each transfer, the sender calls
+ * {@link #throttleTransfer(long, long)} as it writes the data.
  */
 public class LearnerSyncThrottler {
 
@@ -37,6 +40,9 @@ public class LearnerSyncThrottler {
 
     private volatile int maxConcurrentSyncs;
 
+    // the max number of bytes per second sent by a transfer, 0 for no limit
+    private volatile long maxBytesPerSec;
+
     public enum SyncType {
         DIFF,
         SNAP
@@ -107,6 +113,33 @@ public void endSync() {
         }
     }
 
+    /**
+     * Pause the calling transfer until it is back under the bandwidth cap.
+     *
+     * @param bytesSent the number of bytes the transfer has sent so far
+     * @param startNanos the {@link System#nanoTime()} of the start of the transfer
+     * @throws InterruptedException if the thread is interrupted while paused
+     */
+    public void throttleTransfer(long bytesSent, long startNanos) throws InterruptedException {
+        long maxBytesPerSec = this.maxBytesPerSec;
+        if (maxBytesPerSec <= 0) {
+            return;
+        }
+        long expectedNanos = (long) (bytesSent * (double) TimeUnit.SECONDS.toNanos(1) / maxBytesPerSec);
+        long pauseNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (pauseNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(pauseNanos);
+        }
+    }
+
+    public long getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    public void setMaxBytesPerSec(long maxBytesPerSec) {
+        this.maxBytesPerSec = maxBytesPerSec;
+    }
+
     public void setMaxConcurrentSyncs(int maxConcurrentSyncs) {
         this.maxConcurrentSyncs = maxConcurrentSyncs;
     }
@@ -0,0 +1,690 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.apache.zookeeper.server.quorum.auth.QuorumAuthLearner;
+import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
+import org.apache.zookeeper.util.CircularBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A QuorumCnxManager which handles the connections to the other peers with a
+ * few event loops, instead of a SendWorker and a RecvWorker thread per peer
+ * and a thread per connection attempt. The connections to the peers are all
+ * attempted at once with non-blocking connects. The initial message and the
+ * messages are the same as with blocking sockets, and so is the rule which
+ * decides which of two peers keeps the connection, so both kinds of peers
+ * can be mixed in an ensemble.
+ *
+ * The listener still accepts the connections, with one thread per election
+ * address, and hands them to the event loops. Quorum TLS and SASL need
+ * blocking sockets, so they are not supported, see
+ * {@link QuorumPeer#createCnxnManager()}.
+ */
+public class NioQuorumCnxManager extends QuorumCnxManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NioQuorumCnxManager.class);
+
+    public static final String NIO_TRANSPORT_ENABLED = "zookeeper.quorum.nioTransportEnabled";
+    private static volatile boolean nioTransportEnabled;
+
+    // the number of event loops handling the connections to the peers
+    public static final String NIO_TRANSPORT_THREADS = "zookeeper.quorum.nioTransportThreads";
+    private static volatile int nioTransportThreads;
+
+    static {
+        nioTransportEnabled = Boolean.getBoolean(NIO_TRANSPORT_ENABLED);
+        LOG.info("{} = {}", NIO_TRANSPORT_ENABLED, nioTransportEnabled);
+        nioTransportThreads = Integer.getInteger(NIO_TRANSPORT_THREADS, 2);
+        LOG.info("{} = {}", NIO_TRANSPORT_THREADS, nioTransportThreads);
+    }
+
+    public static boolean isNioTransportEnabled() {
+        return nioTransportEnabled;
+    }
+
+    public static void setNioTransportEnabled(boolean enabled) {
+        nioTransportEnabled = enabled;
+        LOG.info("{} = {}", NIO_TRANSPORT_ENABLED, nioTransportEnabled);
+    }
+
+    public static int getNioTransportThreads() {
+        return nioTransportThreads;
+    }
+
+    public static void setNioTransportThreads(int threads) {
+        nioTransportThreads = threads;
+        LOG.info("{} = {}", NIO_TRANSPORT_THREADS, nioTransportThreads);
+    }
+
+    // how often the event loops check the connect and handshake timeouts
+    private static final long SELECT_TIMEOUT_MS = 100;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /*
+     * The established connections by server id, and the ids of the servers
+     * this server is connecting to.
+     */
+    private final ConcurrentHashMap<Long, Connection> connections = new ConcurrentHashMap<>();
+    private final Set<Long> connecting = ConcurrentHashMap.newKeySet();
+
+    // the number of failed attempts to connect to each server, to try its
+    // election addresses in turn
+    private final Map<Long, Integer> failedAttempts = new ConcurrentHashMap<>();
+
+    public NioQuorumCnxManager(QuorumPeer self, final long mySid, Map<Long, QuorumPeer.QuorumServer> view,
+        QuorumAuthServer authServer, QuorumAuthLearner authLearner, int socketTimeout, boolean listenOnAllIPs,
+        int quorumCnxnThreadsSize) throws IOException {
+        super(self, mySid, view, authServer, authLearner, socketTimeout, listenOnAllIPs, quorumCnxnThreadsSize, false);
+        loops = new EventLoop[Math.max(1, nioTransportThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    private EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    String getTransportName() {
+        return "nio";
+    }
+
+    /**
+     * The accepted sockets of a channel server socket have a channel which
+     * is handed to the event loops.
+     */
+    @Override
+    ServerSocket newServerSocket() throws IOException {
+        return ServerSocketChannel.open().socket();
+    }
+
+    @Override
+    public void receiveConnection(final Socket sock) {
+        SocketChannel channel = sock.getChannel();
+        if (channel == null) {
+            LOG.error("Connection from {} has no channel, closing it", sock.getRemoteSocketAddress());
+            closeSocket(sock);
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            LOG.warn("Cannot configure connection from {}", sock.getRemoteSocketAddress(), e);
+            closeSocket(sock);
+            return;
+        }
+        EventLoop loop = nextLoop();
+        loop.register(new Connection(loop, channel, null, socketTimeout));
+    }
+
+    @Override
+    public void receiveConnectionAsync(final Socket sock) {
+        receiveConnection(sock);
+    }
+
+    @Override
+    public void initiateConnection(final MultipleAddresses electionAddr, final Long sid) {
+        initiateConnectionAsync(electionAddr, sid);
+    }
+
+    @Override
+    public boolean initiateConnectionAsync(final MultipleAddresses electionAddr, final Long sid) {
+        if (shutdown) {
+            return false;
+        }
+        if (!connecting.add(sid)) {
+            LOG.debug("Connection request to server id: {} is already in progress, so skipping this request", sid);
+            return true;
+        }
+        SocketChannel channel = null;
+        try {
+            List<InetSocketAddress> addresses = new ArrayList<>(electionAddr.getAllAddresses());
+            InetSocketAddress address = addresses.get(failedAttempts.getOrDefault(sid, 0) % addresses.size());
+            LOG.debug("Opening channel to server {} at {}", sid, address);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(tcpKeepAlive);
+            EventLoop loop = nextLoop();
+            Connection cnxn = new Connection(loop, channel, sid, cnxTO);
+            if (channel.connect(address)) {
+                cnxn.connected = true;
+            }
+            loop.register(cnxn);
+            return true;
+        } catch (UnresolvedAddressException | IOException e) {
+            LOG.warn("Cannot open channel to {} at election address {}", sid, electionAddr, e);
+            connectFailed(sid, true);
+            if (channel != null) {
+                closeSocket(channel.socket());
+            }
+            return false;
+        }
+    }
+
+    private void connectFailed(long sid, boolean unreachable) {
+        if (unreachable) {
+            failedAttempts.merge(sid, 1, Integer::sum);
+        }
+        connecting.remove(sid);
+    }
+
+    @Override
+    public void toSend(Long sid, ByteBuffer b) {
+        super.toSend(sid, b);
+        Connection cnxn = connections.get(sid);
+        if (cnxn != null) {
+            cnxn.loop.requestWrite(cnxn);
+        }
+    }
+
+    @Override
+    public boolean connectedToPeer(long peerSid) {
+        return connections.containsKey(peerSid);
+    }
+
+    @Override
+    public void softHalt() {
+        for (Connection cnxn : connections.values()) {
+            LOG.debug("Server {} is soft-halting connection towards: {}", self.getId(), cnxn.sid);
+            cnxn.close();
+        }
+    }
+
+    @Override
+    public void halt() {
+        super.halt();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                LOG.warn("Got interrupted before joining {}", loop.getName(), e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of event loops
+     */
+    @Override
+    public long getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * Handle the initial message of a connection received by this server, as
+     * the blocking transport does.
+     */
+    private void handleInitialMessage(Connection cnxn, long protocolVersion, byte[] data) throws IOException {
+        Long sid;
+        MultipleAddresses electionAddr = null;
+        if (protocolVersion >= 0) { // this is a server id and not a protocol version
+            sid = protocolVersion;
+        } else {
+            try {
+                InitialMessage init = InitialMessage.parse(protocolVersion, new DataInputStream(new ByteArrayInputStream(data)));
+                sid = init.sid;
+                if (!init.electionAddr.isEmpty()) {
+                    electionAddr = new MultipleAddresses(init.electionAddr,
+                            Duration.ofMillis(self.getMultiAddressReachabilityCheckTimeoutMs()));
+                }
+                LOG.debug("Initial message parsed by {}: {}", self.getId(), init);
+            } catch (InitialMessage.InitialMessageException ex) {
+                LOG.error("Initial message parsing error!", ex);
+                cnxn.close();
+                return;
+            }
+        }
+
+        if (sid == QuorumPeer.OBSERVER_ID) {
+            /*
+             * Choose identifier at random. We need a value to identify
+             * the connection.
+             */
+            sid = observerCounter.getAndDecrement();
+            LOG.info("Setting arbitrary identifier to observer: {}", sid);
+        }
+
+        //If wins the challenge, then close the new connection.
+        if (sid < self.getId()) {
+            Connection old = connections.get(sid);
+            if (old != null) {
+                old.close();
+            }
+            LOG.debug("Create new connection to server: {}", sid);
+            cnxn.close();
+            if (electionAddr != null) {
+                connectOne(sid, electionAddr);
+            } else {
+                connectOne(sid);
+            }
+        } else if (sid == self.getId()) {
+            // we saw this case in ZOOKEEPER-2164
+            LOG.warn("We got a connection request from a server with our own ID. "
+                     + "This should be either a configuration error, or a bug.");
+            cnxn.close();
+        } else {
+            cnxn.established(sid);
+        }
+    }
+
+    /**
+     * A connection to a peer, only used by the thread of its event loop
+     * once registered, but for {@link #close()} and the write requests.
+     */
+    private class Connection {
+
+        final EventLoop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+
+        /** the id of the peer, null until the initial message is received */
+        Long sid;
+        final boolean outbound;
+        boolean connected;
+        boolean initialMessageSent;
+        boolean established;
+        volatile boolean closed;
+
+        final long startTime = Time.currentElapsedTime();
+        final long deadline;
+
+        // the initial message or the message being written
+        ByteBuffer writeBuffer;
+
+        // the protocol version, then the rest of the initial message, then
+        // the length and the body of each message
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer body;
+        long protocolVersion;
+
+        Connection(EventLoop loop, SocketChannel channel, Long sid, int timeoutMs) {
+            this.loop = loop;
+            this.channel = channel;
+            this.sid = sid;
+            this.outbound = sid != null;
+            this.deadline = startTime + timeoutMs;
+        }
+
+        void register(Selector selector) throws IOException {
+            if (!outbound) {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } else if (connected) {
+                key = channel.register(selector, 0, this);
+                finishConnect();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        void handle() throws IOException {
+            if (key.isConnectable()) {
+                finishConnect();
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isWritable()) {
+                write();
+            }
+        }
+
+        private void finishConnect() throws IOException {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            // write() asks for OP_WRITE if the initial message does not fit
+            // in the socket, it is not written again on OP_CONNECT
+            key.interestOps(0);
+            connected = true;
+            failedAttempts.remove(sid);
+            LOG.debug("Connected to server {} using election address: {}", sid, channel.getRemoteAddress());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(baos);
+            writeInitialMessage(dout);
+            dout.flush();
+            writeBuffer = ByteBuffer.wrap(baos.toByteArray());
+            write();
+        }
+
+        /**
+         * Called once the initial message of a connection initiated by this
+         * server is written.
+         */
+        private void initialMessageSent() {
+            initialMessageSent = true;
+            connecting.remove(sid);
+            // If lost the challenge, then drop the new connection
+            if (sid > self.getId()) {
+                LOG.info("Have smaller server identifier, so dropping the connection: (myId:{} --> sid:{})", self.getId(), sid);
+                close();
+            } else {
+                LOG.debug("Have larger server identifier, so keeping the connection: (myId:{} --> sid:{})", self.getId(), sid);
+                ServerMetrics.getMetrics().QUORUM_CONNECTION_TIME.add(Time.currentElapsedTime() - startTime);
+                established(sid);
+            }
+        }
+
+        void established(long sid) {
+            this.sid = sid;
+            established = true;
+            Connection old = connections.put(sid, this);
+            if (old != null) {
+                old.close();
+            }
+            if (closed) {
+                // closed meanwhile by softHalt
+                connections.remove(sid, this);
+                return;
+            }
+            BlockingQueue<ByteBuffer> bq = queueSendMap.computeIfAbsent(sid, serverId -> new CircularBlockingQueue<>(SEND_CAPACITY));
+            /*
+             * If there is nothing in the queue to send, then we send the
+             * last message to ensure that it was received by the peer, as
+             * the SendWorker does.
+             */
+            if (bq.isEmpty()) {
+                ByteBuffer b = lastMessageSent.get(sid);
+                if (b != null) {
+                    LOG.debug("Attempting to send lastMessage to sid={}", sid);
+                    writeBuffer = frame(b);
+                }
+            }
+            header.clear().limit(4);
+            key.interestOps(SelectionKey.OP_READ);
+            try {
+                write();
+            } catch (IOException e) {
+                LOG.warn("Connection broken for id {}, my id = {}", sid, mySid, e);
+                close();
+            }
+        }
+
+        private ByteBuffer frame(ByteBuffer b) {
+            ByteBuffer frame = ByteBuffer.allocate(4 + b.array().length);
+            frame.putInt(b.capacity());
+            frame.put(b.array());
+            frame.flip();
+            return frame;
+        }
+
+        /**
+         * Write the pending buffer, then the messages queued for the peer
+         * once established, until the socket is full.
+         */
+        void write() throws IOException {
+            while (!closed) {
+                if (writeBuffer == null || !writeBuffer.hasRemaining()) {
+                    if (!established) {
+                        if (writeBuffer != null) {
+                            writeBuffer = null;
+                            initialMessageSent();
+                        }
+                        return;
+                    }
+                    BlockingQueue<ByteBuffer> bq = queueSendMap.get(sid);
+                    ByteBuffer b = bq == null ? null : bq.poll();
+                    if (b == null) {
+                        writeBuffer = null;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    lastMessageSent.put(sid, b);
+                    writeBuffer = frame(b);
+                }
+                channel.write(writeBuffer);
+                if (writeBuffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            while (!closed) {
+                ByteBuffer buffer = body != null ? body : header;
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    throw new IOException("Channel eof");
+                }
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                if (!established) {
+                    readInitialMessage();
+                } else if (body == null) {
+                    header.flip();
+                    int length = header.getInt();
+                    if (length <= 0 || length > PACKETMAXSIZE) {
+                        throw new IOException("Received packet with invalid packet: " + length);
+                    }
+                    body = ByteBuffer.allocate(length);
+                } else {
+                    addToRecvQueue(new Message(ByteBuffer.wrap(body.array()), sid));
+                    body = null;
+                    header.clear().limit(4);
+                }
+            }
+        }
+
+        /**
+         * Read the protocol version, then the id and the length of the
+         * addresses, then the addresses.
+         */
+        private void readInitialMessage() throws IOException {
+            if (body == null) {
+                header.flip();
+                protocolVersion = header.getLong();
+                if (protocolVersion >= 0) {
+                    handleInitialMessage(this, protocolVersion, null);
+                    return;
+                }
+                body = ByteBuffer.allocate(12);
+            } else if (body.capacity() == 12) {
+                body.flip();
+                body.getLong();
+                int remaining = body.getInt();
+                if (remaining <= 0 || remaining > maxBuffer) {
+                    LOG.error("Initial message parsing error! Unreasonable buffer length: {}", remaining);
+                    close();
+                    return;
+                }
+                ByteBuffer full = ByteBuffer.allocate(12 + remaining);
+                full.put(body.array());
+                body = full;
+            } else {
+                byte[] data = body.array();
+                body = null;
+                handleInitialMessage(this, protocolVersion, data);
+            }
+        }
+
+        void checkTimeout(long now) {
+            if (!established && now - deadline >= 0) {
+                LOG.warn("Timed out {} server {}", outbound ? "connecting to" : "waiting for the initial message of",
+                         sid != null ? sid : channel.socket().getRemoteSocketAddress());
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            closeSocket(channel.socket());
+            if (sid != null) {
+                if (established) {
+                    connections.remove(sid, this);
+                } else if (outbound && !initialMessageSent) {
+                    connectFailed(sid, !connected);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Thread which selects on some of the connections, and reads and writes
+     * their messages.
+     */
+    private class EventLoop extends ZooKeeperThread {
+
+        final Selector selector;
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> writeRequests = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int id) throws IOException {
+            super("QuorumCnxEventLoop-" + mySid + "-" + id);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(Connection cnxn) {
+            registrations.add(cnxn);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection cnxn) {
+            writeRequests.add(cnxn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    selector.select(SELECT_TIMEOUT_MS);
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection cnxn = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            cnxn.close();
+                            continue;
+                        }
+                        handle(cnxn);
+                    }
+                    Connection cnxn;
+                    while ((cnxn = registrations.poll()) != null) {
+                        try {
+                            cnxn.register(selector);
+                        } catch (IOException e) {
+                            LOG.warn("Cannot register connection to {}", cnxn.sid, e);
+                            cnxn.close();
+                        }
+                    }
+                    while ((cnxn = writeRequests.poll()) != null) {
+                        if (cnxn.established && !cnxn.closed) {
+                            try {
+                                cnxn.write();
+                            } catch (IOException e) {
+                                LOG.warn("Connection broken for id {}, my id = {}", cnxn.sid, mySid, e);
+                                cnxn.close();
+                            }
+                        }
+                    }
+                    long now = Time.currentElapsedTime();
+                    for (SelectionKey key : selector.keys()) {
+                        ((Connection) key.attachment()).checkTimeout(now);
+                    }
+                }
+            } catch (Exception e) {
+                LOG.error("Unexpected exception in {}", getName(), e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                Connection cnxn;
+                while ((cnxn = registrations.poll()) != null) {
+                    cnxn.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.warn("Ignoring exception while closing selector", e);
+                }
+                LOG.info("{} exited loop", getName());
+            }
+        }
+
+        private void handle(Connection cnxn) {
+            try {
+                cnxn.handle();
+            } catch (IOException e) {
+                if (cnxn.outbound && !cnxn.established) {
+                    LOG.warn("Cannot open channel to {}", cnxn.sid, e);
+                } else {
+                    LOG.warn("Connection broken for id {}, my id = {}", cnxn.sid, mySid, e);
+                }
+                cnxn.close();
+            } catch (RuntimeException e) {
+                LOG.warn("Ignoring unexpected runtime exception", e);
+                cnxn.close();
+            }
+        }
+
+    }
+
+}
@@ -20,6 +20,10 @@
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.jute.Record;
@@ -65,15 +69,36 @@ public class Observer extends Learner {
      */
     public static final String OBSERVER_ELECTION_DELAY_MS = "zookeeper.observer.election.DelayMs";
 
+    /**
+     * Let an Observer with an observerMasterPort host Observers as well, like
+     * a Follower does, forwarding them the INFORMs it receives. Default is false.
+     */
+    public static final String OBSERVER_RELAY_ENABLED = "zookeeper.observer.relayEnabled";
+
+    /**
+     * Comma separated ids of the Observers hosting Observers an Observer syncs
+     * with, before the voting members, when observerMasterPort is set. Default
+     * is empty, the Observer syncs with the voting members.
+     */
+    public static final String OBSERVER_RELAY_MASTERS = "zookeeper.observer.relayMasters";
+
     private static final long reconnectDelayMs;
 
     private static volatile long observerElectionDelayMs;
 
+    private static volatile boolean relayEnabled;
+
+    private static volatile Set<Long> relayMasters;
+
     static {
         reconnectDelayMs = Long.getLong(OBSERVER_RECONNECT_DELAY_MS, 0);
         LOG.info("{} = {}", OBSERVER_RECONNECT_DELAY_MS, reconnectDelayMs);
         observerElectionDelayMs = Long.getLong(OBSERVER_ELECTION_DELAY_MS, 200);
         LOG.info("{} = {}", OBSERVER_ELECTION_DELAY_MS , observerElectionDelayMs);
+        relayEnabled = Boolean.getBoolean(OBSERVER_RELAY_ENABLED);
+        LOG.info("{} = {}", OBSERVER_RELAY_ENABLED, relayEnabled);
+        relayMasters = parseRelayMasters(System.getProperty(OBSERVER_RELAY_MASTERS, ""));
+        LOG.info("{} = {}", OBSERVER_RELAY_MASTERS, relayMasters);
     }
 
     /**
@@ -83,6 +108,11 @@ public class Observer extends Learner {
 
     private QuorumPeer.QuorumServer currentLearnerMaster = null;
 
+    /**
+     * hosts the downstream Observers, when {@link #isRelayEnabled()}
+     */
+    private volatile ObserverMaster om;
+
     Observer(QuorumPeer self, ObserverZooKeeperServer observerZooKeeperServer) {
         this.self = self;
         this.zk = observerZooKeeperServer;
@@ -123,6 +153,14 @@ void observeLeader() throws Exception {
                 completedSync = true;
                 final long syncTime = Time.currentElapsedTime() - startTime;
                 ServerMetrics.getMetrics().OBSERVER_SYNC_TIME.add(syncTime);
+                if (relayEnabled && self.getObserverMasterPort() > 0) {
+                    LOG.info("Starting ObserverMaster");
+
+                    om = new ObserverMaster(self, (ObserverZooKeeperServer) zk, self.getObserverMasterPort());
+                    om.start();
+                } else {
+                    om = null;
+                }
                 QuorumPacket qp = new QuorumPacket();
                 while (this.isRunning() && nextLearnerMaster.get() == null) {
                     readPacket(qp);
@@ -136,6 +174,9 @@ void observeLeader() throws Exception {
                 pendingRevalidations.clear();
             }
         } finally {
+            if (om != null) {
+                om.stop();
+            }
             currentLearnerMaster = null;
             zk.unregisterJMX(this);
             if (connectTime != 0) {
@@ -194,7 +235,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             LOG.error("Received an UPTODATE message after Observer started");
             break;
         case Leader.REVALIDATE:
-            revalidate(qp);
+            if (om == null || !om.revalidateLearnerSession(qp)) {
+                revalidate(qp);
+            }
             break;
         case Leader.SYNC:
             ((ObserverZooKeeperServer) zk).sync();
@@ -210,6 +253,11 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             request.setTxnDigest(digest);
             ObserverZooKeeperServer obs = (ObserverZooKeeperServer) zk;
             obs.commitRequest(request);
+            if (om != null) {
+                final long startTime = Time.currentElapsedTime();
+                om.informReceived(qp);
+                ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
+            }
             break;
         case Leader.INFORMANDACTIVATE:
             // get new designated leader from (current) leader's message
@@ -232,6 +280,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
 
             obs.commitRequest(request);
 
+            if (om != null) {
+                om.informReceived(qp);
+            }
             if (majorChange) {
                 throw new Exception("changes proposed in reconfig");
             }
@@ -298,6 +349,26 @@ public QuorumPeer.QuorumServer getCurrentLearnerMaster() {
         return currentLearnerMaster;
     }
 
+    public Integer getSyncedObserverSize() {
+        ObserverMaster master = om;
+        return master == null ? null : master.getNumActiveObservers();
+    }
+
+    public Iterable<Map<String, Object>> getSyncedObserversInfo() {
+        ObserverMaster master = om;
+        if (master != null && master.getNumActiveObservers() > 0) {
+            return master.getActiveObservers();
+        }
+        return Collections.emptySet();
+    }
+
+    public void resetObserverConnectionStats() {
+        ObserverMaster master = om;
+        if (master != null && master.getNumActiveObservers() > 0) {
+            master.resetObserverConnectionStats();
+        }
+    }
+
     public static long getObserverElectionDelayMs() {
         return observerElectionDelayMs;
     }
@@ -307,5 +378,42 @@ public static void setObserverElectionDelayMs(long electionDelayMs) {
         LOG.info("{} = {}", OBSERVER_ELECTION_DELAY_MS, observerElectionDelayMs);
     }
 
+    public static boolean isRelayEnabled() {
+        return relayEnabled;
+    }
+
+    public static void setRelayEnabled(boolean enabled) {
+        relayEnabled = enabled;
+        LOG.info("{} = {}", OBSERVER_RELAY_ENABLED, relayEnabled);
+    }
+
+    public static Set<Long> getRelayMasters() {
+        return relayMasters;
+    }
+
+    /**
+     * Takes effect the next time the list of learner masters is refreshed.
+     */
+    public static void setRelayMasters(String masters) {
+        relayMasters = parseRelayMasters(masters);
+        LOG.info("{} = {}", OBSERVER_RELAY_MASTERS, relayMasters);
+    }
+
+    private static Set<Long> parseRelayMasters(String masters) {
+        Set<Long> ids = new HashSet<>();
+        for (String id : masters.split(",")) {
+            id = id.trim();
+            if (id.isEmpty()) {
+                continue;
+            }
+            try {
+                ids.add(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring invalid relay observer id {}", id);
+            }
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
 }
 
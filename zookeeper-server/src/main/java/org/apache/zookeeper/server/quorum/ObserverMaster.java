@@ -51,6 +51,9 @@
  * Used by Followers to host Observers. This reduces the network load on the Leader process by pushing
  * the responsibility for keeping Observers in sync off the leading peer.
  *
+ * An Observer may host Observers as well when {@link Observer#isRelayEnabled()}, forwarding the INFORMs
+ * it receives from its own learner master, so that Observers can be organized in relay tiers.
+ *
  * It is expected that Observers will continue to perform the initial vetting of clients and requests.
  * Observers send the request to the follower where it is received by an ObserverMaster.
  *
@@ -71,7 +74,7 @@ public class ObserverMaster extends LearnerMaster implements Runnable {
     private final AtomicLong followerCounter = new AtomicLong(-1);
 
     private QuorumPeer self;
-    private FollowerZooKeeperServer zks;
+    private LearnerZooKeeperServer zks;
     private int port;
 
     private Set<LearnerHandler> activeObservers = Collections.newSetFromMap(new ConcurrentHashMap<LearnerHandler, Boolean>());
@@ -145,7 +148,7 @@ public void run() {
         }
     };
 
-    ObserverMaster(QuorumPeer self, FollowerZooKeeperServer zks, int port) {
+    ObserverMaster(QuorumPeer self, LearnerZooKeeperServer zks, int port) {
         this.self = self;
         this.zks = zks;
         this.port = port;
@@ -353,7 +356,7 @@ public QuorumAuthServer getQuorumAuthServer() {
     }
 
     void proposalReceived(QuorumPacket qp) {
-        proposedPkts.add(new QuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
+        proposedPkts.add(new EncodedQuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData()));
     }
 
     private synchronized QuorumPacket removeProposedPacket(long zxid) {
@@ -413,6 +416,19 @@ synchronized void proposalCommitted(long zxid) {
         sendPacket(pkt);
     }
 
+    /**
+     * Forward an INFORM or INFORMANDACTIVATE received by the Observer hosting
+     * this ObserverMaster, the txn is committed already.
+     */
+    synchronized void informReceived(QuorumPacket qp) {
+        QuorumPacket pkt = new EncodedQuorumPacket(
+            qp.getType(),
+            qp.getZxid(),
+            Arrays.copyOf(qp.getData(), qp.getData().length));
+        cacheCommittedPacket(pkt);
+        sendPacket(pkt);
+    }
+
     synchronized void informAndActivate(long zxid, long suggestedLeaderId) {
         QuorumPacket pkt = removeProposedPacket(zxid);
         if (pkt == null) {
@@ -67,7 +67,12 @@ public void run() {
             while (!finished) {
                 ServerMetrics.getMetrics().LEARNER_REQUEST_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
-                Request request = queuedRequests.take();
+                Request request = queuedRequests.poll();
+                if (request == null) {
+                    // send the requests batched meanwhile before waiting
+                    zks.getObserver().flushRequests();
+                    request = queuedRequests.take();
+                }
                 if (LOG.isTraceEnabled()) {
                     ZooTrace.logRequest(LOG, ZooTrace.CLIENT_REQUEST_TRACE_MASK, 'F', request, "");
                 }
@@ -93,9 +98,10 @@ public void run() {
                 // other quorum operations, sync also follows this code
                 // path, but different from others, we need to keep track
                 // of the sync operations this Observer has pending, so we
-                // add it to pendingSyncs.
+                // add it to pendingSyncs. A read index is served like a sync.
                 switch (request.type) {
                 case OpCode.sync:
+                case OpCode.readIndex:
                     zks.pendingSyncs.add(request);
                     zks.getObserver().request(request);
                     break;
@@ -133,22 +139,28 @@ public void run() {
      * Simply queue the request, which will be processed in FIFO order.
      */
     public void processRequest(Request request) {
+        processRequest(request, true);
+    }
+
+    void processRequest(Request request, boolean checkForUpgrade) {
         if (!finished) {
-            Request upgradeRequest = null;
-            try {
-                upgradeRequest = zks.checkUpgradeSession(request);
-            } catch (KeeperException ke) {
-                if (request.getHdr() != null) {
-                    request.getHdr().setType(OpCode.error);
-                    request.setTxn(new ErrorTxn(ke.code().intValue()));
+            if (checkForUpgrade) {
+                Request upgradeRequest = null;
+                try {
+                    upgradeRequest = zks.checkUpgradeSession(request);
+                } catch (KeeperException ke) {
+                    if (request.getHdr() != null) {
+                        request.getHdr().setType(OpCode.error);
+                        request.setTxn(new ErrorTxn(ke.code().intValue()));
+                    }
+                    request.setException(ke);
+                    LOG.info("Error creating upgrade request", ke);
+                } catch (IOException ie) {
+                    LOG.error("Unexpected error in upgrade", ie);
+                }
+                if (upgradeRequest != null) {
+                    queuedRequests.add(upgradeRequest);
                 }
-                request.setException(ke);
-                LOG.info("Error creating upgrade request", ke);
-            } catch (IOException ie) {
-                LOG.error("Unexpected error in upgrade", ie);
-            }
-            if (upgradeRequest != null) {
-                queuedRequests.add(upgradeRequest);
             }
             queuedRequests.add(request);
         }
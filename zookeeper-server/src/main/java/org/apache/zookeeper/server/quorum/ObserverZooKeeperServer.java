@@ -80,6 +80,11 @@ public void commitRequest(Request request) {
         commitProcessor.commit(request);
     }
 
+    @Override
+    void processObserverRequest(Request request) {
+        ((ObserverRequestProcessor) firstProcessor).processRequest(request, false);
+    }
+
     /**
      * Set up the request processors for an Observer:
      * firstProcesor-&gt;commitProcessor-&gt;finalProcessor
@@ -90,7 +95,7 @@ protected void setupRequestProcessors() {
         // Observers to, for example, remove the disk sync requirements.
         // Currently, they behave almost exactly the same as followers.
         RequestProcessor finalProcessor = new FinalRequestProcessor(this);
-        commitProcessor = new CommitProcessor(finalProcessor, Long.toString(getServerId()), true, getZooKeeperServerListener());
+        commitProcessor = new CommitProcessor(finalProcessor, Long.toString(getServerId()), true, getZooKeeperServerListener(), this);
         commitProcessor.start();
         firstProcessor = new ObserverRequestProcessor(this, commitProcessor);
         ((ObserverRequestProcessor) firstProcessor).start();
@@ -119,6 +124,10 @@ public synchronized void sync() {
         }
 
         Request r = pendingSyncs.remove();
+        if (r instanceof LearnerSyncRequest) {
+            LearnerSyncRequest lsr = (LearnerSyncRequest) r;
+            lsr.fh.queuePacket(new QuorumPacket(Leader.SYNC, 0, null, null));
+        }
         commitProcessor.commit(r);
     }
 
@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.ServerMetrics;
@@ -79,7 +80,10 @@ public void processRequest(Request request) throws RequestProcessorException {
             if (shouldForwardToNextProcessor(request)) {
                 nextProcessor.processRequest(request);
             }
-            if (request.getHdr() != null) {
+            if (request.type == OpCode.readIndex && !request.isThrottled()) {
+                // the commit processor holds it until the leader commits it
+                zks.getLeader().processReadIndex(request);
+            } else if (request.getHdr() != null) {
                 // We need to sync and get consensus on any transactions
                 try {
                     zks.getLeader().propose(request);
@@ -62,8 +62,10 @@
 import java.util.stream.Collectors;
 import javax.net.ssl.SSLSocket;
 import org.apache.zookeeper.common.NetUtils;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.common.X509Exception;
 import org.apache.zookeeper.server.ExitCode;
+import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig.ConfigException;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthLearner;
@@ -114,7 +116,7 @@ public class QuorumCnxManager {
      * Negative counter for observer server ids.
      */
 
-    private AtomicLong observerCounter = new AtomicLong(-1);
+    final AtomicLong observerCounter = new AtomicLong(-1);
 
     /*
      * Protocol identifier used among peers (must be a negative number for backward compatibility reasons)
@@ -133,7 +135,7 @@ public class QuorumCnxManager {
      * Connection time out value in milliseconds
      */
 
-    private int cnxTO = 5000;
+    int cnxTO = 5000;
 
     final QuorumPeer self;
 
@@ -185,7 +187,7 @@ public class QuorumCnxManager {
     /*
      * Socket options for TCP keepalive
      */
-    private final boolean tcpKeepAlive = Boolean.getBoolean("zookeeper.tcpKeepAlive");
+    final boolean tcpKeepAlive = Boolean.getBoolean("zookeeper.tcpKeepAlive");
 
 
     /*
@@ -372,6 +374,7 @@ public void testInitiateConnection(long sid) {
      * connection if it loses challenge. Otherwise, it keeps the connection.
      */
     public void initiateConnection(final MultipleAddresses electionAddr, final Long sid) {
+        long startTime = Time.currentElapsedTime();
         Socket sock = null;
         try {
             LOG.debug("Opening channel to server {}", sid);
@@ -404,7 +407,9 @@ public void initiateConnection(final MultipleAddresses electionAddr, final Long
         }
 
         try {
-            startConnection(sock, sid);
+            if (startConnection(sock, sid)) {
+                ServerMetrics.getMetrics().QUORUM_CONNECTION_TIME.add(Time.currentElapsedTime() - startTime);
+            }
         } catch (IOException e) {
             LOG.error(
               "Exception while connecting, id: {}, addr: {}, closing learner connection",
@@ -474,25 +479,7 @@ private boolean startConnection(Socket sock, Long sid) throws IOException {
             dout = new DataOutputStream(buf);
 
             // Sending id and challenge
-
-            // First sending the protocol version (in other words - message type).
-            // For backward compatibility reasons we stick to the old protocol version, unless the MultiAddress
-            // feature is enabled. During rolling upgrade, we must make sure that all the servers can
-            // understand the protocol version we use to avoid multiple partitions. see ZOOKEEPER-3720
-            long protocolVersion = self.isMultiAddressEnabled() ? PROTOCOL_VERSION_V2 : PROTOCOL_VERSION_V1;
-            dout.writeLong(protocolVersion);
-            dout.writeLong(self.getId());
-
-            // now we send our election address. For the new protocol version, we can send multiple addresses.
-            Collection<InetSocketAddress> addressesToSend = protocolVersion == PROTOCOL_VERSION_V2
-                    ? self.getElectionAddress().getAllAddresses()
-                    : Arrays.asList(self.getElectionAddress().getOne());
-
-            String addr = addressesToSend.stream()
-                    .map(NetUtils::formatInetAddr).collect(Collectors.joining("|"));
-            byte[] addr_bytes = addr.getBytes();
-            dout.writeInt(addr_bytes.length);
-            dout.write(addr_bytes);
+            writeInitialMessage(dout);
             dout.flush();
 
             din = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
@@ -539,6 +526,30 @@ private boolean startConnection(Socket sock, Long sid) throws IOException {
         return false;
     }
 
+    /**
+     * Write the initial message of a connection initiated by this server.
+     */
+    void writeInitialMessage(DataOutputStream dout) throws IOException {
+        // First sending the protocol version (in other words - message type).
+        // For backward compatibility reasons we stick to the old protocol version, unless the MultiAddress
+        // feature is enabled. During rolling upgrade, we must make sure that all the servers can
+        // understand the protocol version we use to avoid multiple partitions. see ZOOKEEPER-3720
+        long protocolVersion = self.isMultiAddressEnabled() ? PROTOCOL_VERSION_V2 : PROTOCOL_VERSION_V1;
+        dout.writeLong(protocolVersion);
+        dout.writeLong(self.getId());
+
+        // now we send our election address. For the new protocol version, we can send multiple addresses.
+        Collection<InetSocketAddress> addressesToSend = protocolVersion == PROTOCOL_VERSION_V2
+                ? self.getElectionAddress().getAllAddresses()
+                : Arrays.asList(self.getElectionAddress().getOne());
+
+        String addr = addressesToSend.stream()
+                .map(NetUtils::formatInetAddr).collect(Collectors.joining("|"));
+        byte[] addr_bytes = addr.getBytes();
+        dout.writeInt(addr_bytes.length);
+        dout.write(addr_bytes);
+    }
+
     /**
      * If this server receives a connection request, then it gives up on the new
      * connection if it wins. Notice that it checks whether it has a connection
@@ -716,13 +727,14 @@ public void toSend(Long sid, ByteBuffer b) {
      *  @return boolean success indication
      */
     synchronized boolean connectOne(long sid, MultipleAddresses electionAddr) {
-        if (senderWorkerMap.get(sid) != null) {
+        if (connectedToPeer(sid)) {
             LOG.debug("There is a connection already for server {}", sid);
-            if (self.isMultiAddressEnabled() && electionAddr.size() > 1 && self.isMultiAddressReachabilityCheckEnabled()) {
+            SendWorker sw = senderWorkerMap.get(sid);
+            if (sw != null && self.isMultiAddressEnabled() && electionAddr.size() > 1 && self.isMultiAddressReachabilityCheckEnabled()) {
                 // since ZOOKEEPER-3188 we can use multiple election addresses to reach a server. It is possible, that the
                 // one we are using is already dead and we need to clean-up, so when we will create a new connection
                 // then we will choose an other one, which is actually reachable
-                senderWorkerMap.get(sid).asyncValidateIfSocketIsStillReachable();
+                sw.asyncValidateIfSocketIsStillReachable();
             }
             return true;
         }
@@ -740,13 +752,14 @@ synchronized boolean connectOne(long sid, MultipleAddresses electionAddr) {
      *  @param sid  server id
      */
     synchronized void connectOne(long sid) {
-        if (senderWorkerMap.get(sid) != null) {
+        if (connectedToPeer(sid)) {
             LOG.debug("There is a connection already for server {}", sid);
-            if (self.isMultiAddressEnabled() && self.isMultiAddressReachabilityCheckEnabled()) {
+            SendWorker sw = senderWorkerMap.get(sid);
+            if (sw != null && self.isMultiAddressEnabled() && self.isMultiAddressReachabilityCheckEnabled()) {
                 // since ZOOKEEPER-3188 we can use multiple election addresses to reach a server. It is possible, that the
                 // one we are using is already dead and we need to clean-up, so when we will create a new connection
                 // then we will choose an other one, which is actually reachable
-                senderWorkerMap.get(sid).asyncValidateIfSocketIsStillReachable();
+                sw.asyncValidateIfSocketIsStillReachable();
             }
             return;
         }
@@ -862,7 +875,7 @@ private void setSockOpts(Socket sock) throws SocketException {
      * @param sock
      *            Reference to socket
      */
-    private void closeSocket(Socket sock) {
+    void closeSocket(Socket sock) {
         if (sock == null) {
             return;
         }
@@ -874,6 +887,20 @@ private void closeSocket(Socket sock) {
         }
     }
 
+    /**
+     * @return a new unbound plain server socket for the listener
+     */
+    ServerSocket newServerSocket() throws IOException {
+        return new ServerSocket();
+    }
+
+    /**
+     * @return the name of the transport, to break down the election metrics
+     */
+    String getTransportName() {
+        return "blocking";
+    }
+
     /**
      * Return number of worker threads
      */
@@ -1133,7 +1160,7 @@ private ServerSocket createNewServerSocket() throws IOException {
                     LOG.info("Creating TLS-only quorum server socket");
                     socket = new UnifiedServerSocket(self.getX509Util(), false);
                 } else {
-                    socket = new ServerSocket();
+                    socket = newServerSocket();
                 }
 
                 socket.setReuseAddress(true);
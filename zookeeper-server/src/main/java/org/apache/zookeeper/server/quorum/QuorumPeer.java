@@ -2339,14 +2339,28 @@ private void updateObserverMasterList() {
         }
         observerMasters.clear();
         StringBuilder sb = new StringBuilder();
+        // the relay observers are tried first, the voting members remain the
+        // fallback when none of them can be synced with
+        List<QuorumServer> relays = new ArrayList<>();
+        Set<Long> relayMasters = Observer.getRelayMasters();
+        for (QuorumServer server : quorumVerifier.getObservingMembers().values()) {
+            if (server.id != getId() && relayMasters.contains(server.id)) {
+                InetAddress address = server.addr.getReachableOrOne().getAddress();
+                relays.add(new QuorumServer(server.id, new InetSocketAddress(address, observerMasterPort)));
+            }
+        }
+        Collections.shuffle(relays);
         for (QuorumServer server : quorumVerifier.getVotingMembers().values()) {
             InetAddress address = server.addr.getReachableOrOne().getAddress();
             InetSocketAddress addr = new InetSocketAddress(address, observerMasterPort);
             observerMasters.add(new QuorumServer(server.id, addr));
-            sb.append(addr).append(",");
         }
-        LOG.info("Updated learner master list to be {}", sb.toString());
         Collections.shuffle(observerMasters);
+        observerMasters.addAll(0, relays);
+        for (QuorumServer server : observerMasters) {
+            sb.append(server.addr.getReachableOrOne()).append(",");
+        }
+        LOG.info("Updated learner master list to be {}", sb.toString());
         // Reset the internal index of the observerMaster when
         // the observerMaster List is refreshed
         nextObserverMaster = 0;
@@ -2589,6 +2603,26 @@ private boolean isQuorumLearnerSaslAuthRequired() {
     public QuorumCnxManager createCnxnManager() {
         int timeout = quorumCnxnTimeoutMs > 0 ? quorumCnxnTimeoutMs : this.tickTime * this.syncLimit;
         LOG.info("Using {}ms as the quorum cnxn socket timeout", timeout);
+        if (NioQuorumCnxManager.isNioTransportEnabled()) {
+            if (isSslQuorum() || isQuorumSaslAuthEnabled()) {
+                LOG.warn("{} is not supported with quorum TLS or SASL, using blocking sockets",
+                         NioQuorumCnxManager.NIO_TRANSPORT_ENABLED);
+            } else {
+                try {
+                    return new NioQuorumCnxManager(
+                        this,
+                        this.getId(),
+                        this.getView(),
+                        this.authServer,
+                        this.authLearner,
+                        timeout,
+                        this.getQuorumListenOnAllIPs(),
+                        this.quorumCnxnThreadsSize);
+                } catch (IOException e) {
+                    LOG.warn("Cannot create the non-blocking quorum transport, using blocking sockets", e);
+                }
+            }
+        }
         return new QuorumCnxManager(
             this,
             this.getId(),
@@ -2618,6 +2652,8 @@ public boolean isReconfigEnabled() {
             return leader.getObservingLearners().size();
         } else if (follower != null) {
             return follower.getSyncedObserverSize();
+        } else if (observer != null) {
+            return observer.getSyncedObserverSize();
         } else {
             return null;
         }
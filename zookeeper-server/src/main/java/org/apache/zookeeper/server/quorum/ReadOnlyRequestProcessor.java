@@ -75,6 +75,7 @@ public void run() {
                 // filter read requests
                 switch (request.type) {
                 case OpCode.sync:
+                case OpCode.readIndex:
                 case OpCode.create:
                 case OpCode.create2:
                 case OpCode.createTTL:
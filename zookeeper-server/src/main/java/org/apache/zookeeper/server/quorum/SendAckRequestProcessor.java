@@ -37,8 +37,21 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
         this.learner = peer;
     }
 
+    /**
+     * The zxid to ACK on the next flush if the leader expects cumulative
+     * ACKs, or -1
+     */
+    private long pendingAckZxid = -1;
+
     public void processRequest(Request si) {
         if (si.type != OpCode.sync) {
+            if (learner.isCumulativeAck()) {
+                si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
+                synchronized (this) {
+                    pendingAckZxid = si.getHdr().getZxid();
+                }
+                return;
+            }
             QuorumPacket qp = new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null, null);
             try {
                 si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
@@ -59,8 +72,16 @@ public void processRequest(Request si) {
     }
 
     public void flush() throws IOException {
+        QuorumPacket ack = null;
+        synchronized (this) {
+            if (pendingAckZxid != -1) {
+                // acknowledges all the proposals up to this one
+                ack = new QuorumPacket(Leader.ACK, pendingAckZxid, null, null);
+                pendingAckZxid = -1;
+            }
+        }
         try {
-            learner.writePacket(null, true);
+            learner.writePacket(ack, true);
         } catch (IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
             try {
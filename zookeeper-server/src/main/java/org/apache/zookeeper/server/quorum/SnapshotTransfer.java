@@ -0,0 +1,399 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileHeader;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.SnapStream.StreamMode;
+import org.apache.zookeeper.server.persistence.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Sends a snapshot file of the learner master to a learner in checksummed,
+ * optionally compressed, chunks, instead of serializing the data tree on the
+ * socket. The learner master then sends the txns which follow the snapshot,
+ * from its txnlog and committed log, as it does for a DIFF.
+ * <p>
+ * The learner writes the chunks to a spool file in its snapshot directory,
+ * named after the id of the transfer. If the connection drops, it reports
+ * the id and the length of the spool file when it registers again, and the
+ * transfer resumes from there if the learner master still has the same
+ * snapshot file. Once complete, the spool is loaded with the integrity
+ * checks of a snapshot restored from disk, and kept until the learner has
+ * taken its own snapshot.
+ */
+public class SnapshotTransfer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotTransfer.class);
+
+    public static final String CHUNKED_SNAP_SYNC_ENABLED = "zookeeper.chunkedSnapSyncEnabled";
+
+    public static final String SNAP_SYNC_CHUNK_SIZE = "zookeeper.snapSyncChunkSize";
+
+    public static final String SNAP_SYNC_COMPRESSION_ENABLED = "zookeeper.snapSyncCompressionEnabled";
+
+    static final String SPOOL_FILE_PREFIX = "snapsync";
+
+    // the number of recent snapshots a transfer can resume from
+    private static final int RESUMABLE_SNAPSHOTS = 3;
+
+    private static final byte CHUNK_SNAPPY = 1;
+
+    // flags, length and checksum of the chunk
+    private static final int CHUNK_HEADER_SIZE = 1 + 4 + 8;
+
+    private static volatile boolean enabled;
+
+    private static volatile int chunkSize;
+
+    private static volatile boolean compressionEnabled;
+
+    static {
+        enabled = Boolean.parseBoolean(System.getProperty(CHUNKED_SNAP_SYNC_ENABLED, "true"));
+        LOG.info("{} = {}", CHUNKED_SNAP_SYNC_ENABLED, enabled);
+        // a chunk has to fit in the max buffer of the learner
+        chunkSize = Math.min(Integer.getInteger(SNAP_SYNC_CHUNK_SIZE, 512 * 1024), BinaryInputArchive.maxBuffer / 2);
+        LOG.info("{} = {}", SNAP_SYNC_CHUNK_SIZE, chunkSize);
+        compressionEnabled = Boolean.parseBoolean(System.getProperty(SNAP_SYNC_COMPRESSION_ENABLED, "true"));
+        LOG.info("{} = {}", SNAP_SYNC_COMPRESSION_ENABLED, compressionEnabled);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        SnapshotTransfer.enabled = enabled;
+        LOG.info("{} = {}", CHUNKED_SNAP_SYNC_ENABLED, enabled);
+    }
+
+    public static boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public static void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+        LOG.info("{} = {}", SNAP_SYNC_COMPRESSION_ENABLED, compressionEnabled);
+    }
+
+    private final File file;
+    private final long id;
+    private final long zxid;
+    private final long length;
+    private final long offset;
+
+    private SnapshotTransfer(File file, long id, long zxid, long offset) {
+        this.file = file;
+        this.id = id;
+        this.zxid = zxid;
+        this.length = file.length();
+        this.offset = offset;
+    }
+
+    /**
+     * Find the snapshot file to send to a learner: the one it started to
+     * receive if it is still there, the most recent one otherwise.
+     *
+     * @param db the database of the learner master
+     * @param resumeId the id of the transfer the learner can resume, 0 if none
+     * @param resumeOffset the number of bytes the learner has received
+     * @return the transfer, or null if there is no snapshot file to send
+     */
+    static SnapshotTransfer find(ZKDatabase db, long resumeId, long resumeOffset) {
+        List<File> snaps = db.findNValidSnapshots(RESUMABLE_SNAPSHOTS);
+        if (snaps.isEmpty()) {
+            return null;
+        }
+        File snap = snaps.get(0);
+        long offset = 0;
+        for (File candidate : snaps) {
+            if (resumeId != 0 && transferId(candidate) == resumeId && resumeOffset <= candidate.length()) {
+                snap = candidate;
+                offset = resumeOffset;
+                break;
+            }
+        }
+        if (!isSelfContained(snap)) {
+            return null;
+        }
+        long zxid = Util.getZxidFromName(snap.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+        return new SnapshotTransfer(snap, transferId(snap), zxid, offset);
+    }
+
+    private static long transferId(File snap) {
+        // a snapshot file does not change once it is valid
+        long id = snap.getName().hashCode();
+        id = 31 * id + snap.length();
+        id = 31 * id + snap.lastModified();
+        return id;
+    }
+
+    /**
+     * The segments of a partitioned snapshot are separate files, such a
+     * snapshot is serialized on the socket instead.
+     */
+    private static boolean isSelfContained(File snap) {
+        try (CheckedInputStream is = SnapStream.getInputStream(snap)) {
+            FileHeader header = new FileHeader();
+            header.deserialize(BinaryInputArchive.getArchive(is), "fileheader");
+            return SnapStream.Layout.fromVersion(header.getVersion()) != SnapStream.Layout.PARTITIONED;
+        } catch (IOException e) {
+            LOG.warn("Unable to read the header of snapshot {}", snap, e);
+            return false;
+        }
+    }
+
+    long getZxid() {
+        return zxid;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    String getFileName() {
+        return file.getName();
+    }
+
+    /**
+     * The data of the SNAP packet announcing the transfer.
+     */
+    byte[] getHeader() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bos)) {
+            dos.writeLong(id);
+            dos.writeLong(length);
+            dos.writeLong(offset);
+            dos.writeUTF(file.getName());
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Send the chunks of the snapshot file following the offset.
+     *
+     * @param oa the archive of the learner socket
+     * @param out the stream under the archive, flushed once done
+     * @param throttler caps the bandwidth of the transfer
+     */
+    void send(OutputArchive oa, OutputStream out, LearnerSyncThrottler throttler) throws IOException, InterruptedException {
+        // a compressed snapshot file does not compress further
+        boolean compress = compressionEnabled && SnapStream.getStreamMode(file.getName()) == StreamMode.CHECKED;
+        byte[] buf = new byte[chunkSize];
+        long startNanos = System.nanoTime();
+        long sent = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            long position = offset;
+            while (position < length) {
+                int len = (int) Math.min(buf.length, length - position);
+                raf.readFully(buf, 0, len);
+                byte[] chunk = encodeChunk(buf, len, compress);
+                oa.writeRecord(new QuorumPacket(Leader.SNAPCHUNK, position, chunk, null), "packet");
+                position += len;
+                sent += chunk.length;
+                throttler.throttleTransfer(sent, startNanos);
+            }
+        }
+        out.flush();
+        ServerMetrics.getMetrics().SNAP_SYNC_CHUNKED_BYTES.add(sent);
+        ServerMetrics.getMetrics().SNAP_SYNC_RESUMED_BYTES.add(offset);
+    }
+
+    private static byte[] encodeChunk(byte[] buf, int len, boolean compress) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, len);
+        byte flags = 0;
+        byte[] payload = buf;
+        int payloadLength = len;
+        if (compress) {
+            byte[] compressed = new byte[Snappy.maxCompressedLength(len)];
+            int compressedLength = Snappy.compress(buf, 0, len, compressed, 0);
+            if (compressedLength < len) {
+                flags = CHUNK_SNAPPY;
+                payload = compressed;
+                payloadLength = compressedLength;
+            }
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_SIZE + payloadLength);
+        chunk.put(flags);
+        chunk.putInt(len);
+        chunk.putLong(crc.getValue());
+        chunk.put(payload, 0, payloadLength);
+        return chunk.array();
+    }
+
+    /**
+     * Append the transfer the learner can resume to its LearnerInfo: the id
+     * of the transfer and the length of the spool file, or zeros.
+     */
+    static void writeResumeState(File snapDir, DataOutputStream dos) throws IOException {
+        File spool = findSpool(snapDir);
+        if (spool == null) {
+            dos.writeLong(0);
+            dos.writeLong(0);
+            return;
+        }
+        String[] parts = spool.getName().split("\\.");
+        long id = Long.parseUnsignedLong(parts[1], 16);
+        LOG.info("Asking to resume snapshot transfer 0x{} at offset {}", Long.toHexString(id), spool.length());
+        dos.writeLong(id);
+        dos.writeLong(spool.length());
+    }
+
+    private static File findSpool(File snapDir) {
+        File[] spools = snapDir.listFiles((dir, name) -> name.startsWith(SPOOL_FILE_PREFIX + "."));
+        if (spools == null || spools.length == 0) {
+            return null;
+        }
+        File spool = spools[0];
+        for (File f : spools) {
+            if (f.lastModified() > spool.lastModified()) {
+                spool = f;
+            }
+        }
+        return spool;
+    }
+
+    /**
+     * Delete the spool files of the snapshot directory, once the learner no
+     * longer needs them.
+     *
+     * @param keep a spool to keep, or null
+     */
+    static void deleteSpools(File snapDir, File keep) {
+        File[] spools = snapDir.listFiles((dir, name) -> name.startsWith(SPOOL_FILE_PREFIX + "."));
+        if (spools == null) {
+            return;
+        }
+        for (File spool : spools) {
+            if (!spool.equals(keep)) {
+                deleteSpool(spool);
+            }
+        }
+    }
+
+    private static void deleteSpool(File spool) {
+        if (spool.exists() && !spool.delete()) {
+            LOG.warn("Unable to delete snapshot spool {}", spool);
+        }
+    }
+
+    /**
+     * Receive the snapshot file announced by a SNAP packet, and load it in
+     * the database.
+     *
+     * @param learner the learner reading the chunks
+     * @param snap the SNAP packet
+     * @param snapDir the snapshot directory of the learner
+     * @param db the database to load the snapshot in
+     */
+    static void receive(Learner learner, QuorumPacket snap, File snapDir, ZKDatabase db) throws IOException {
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(snap.getData()));
+        long id = header.readLong();
+        long length = header.readLong();
+        long offset = header.readLong();
+        String name = header.readUTF();
+
+        File spool = new File(snapDir, SPOOL_FILE_PREFIX + "." + Long.toHexString(id)
+                                       + SnapStream.getStreamMode(name).getFileExtension());
+        deleteSpools(snapDir, spool);
+        if (offset > 0 && spool.length() != offset) {
+            deleteSpool(spool);
+            throw new IOException("Unable to resume snapshot transfer at " + offset
+                                  + ", the spool " + spool + " has " + spool.length() + " bytes");
+        }
+        LOG.info("Receiving snapshot {} of the leader, {} bytes from offset {}", name, length, offset);
+
+        try (RandomAccessFile raf = new RandomAccessFile(spool, "rw")) {
+            raf.setLength(offset);
+            raf.seek(offset);
+            QuorumPacket qp = new QuorumPacket();
+            long position = offset;
+            while (position < length) {
+                learner.readPacket(qp);
+                if (qp.getType() != Leader.SNAPCHUNK || qp.getZxid() != position) {
+                    throw new IOException("Expected the snapshot chunk at offset " + position
+                                          + ", got " + LearnerHandler.packetToString(qp));
+                }
+                position += decodeChunk(qp.getData(), raf);
+            }
+        }
+
+        try {
+            db.deserializeSnapshot(spool, snap.getZxid());
+        } catch (IOException e) {
+            // start over on the next sync
+            deleteSpool(spool);
+            throw e;
+        }
+    }
+
+    private static int decodeChunk(byte[] data, RandomAccessFile out) throws IOException {
+        ByteBuffer chunk = ByteBuffer.wrap(data);
+        byte flags = chunk.get();
+        int len = chunk.getInt();
+        long checksum = chunk.getLong();
+        byte[] buf;
+        int off;
+        if ((flags & CHUNK_SNAPPY) != 0) {
+            buf = new byte[len];
+            off = 0;
+            if (Snappy.uncompress(data, CHUNK_HEADER_SIZE, data.length - CHUNK_HEADER_SIZE, buf, 0) != len) {
+                throw new IOException("Corrupted snapshot chunk, bad length");
+            }
+        } else {
+            buf = data;
+            off = CHUNK_HEADER_SIZE;
+            if (data.length - CHUNK_HEADER_SIZE != len) {
+                throw new IOException("Corrupted snapshot chunk, bad length");
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf, off, len);
+        if (crc.getValue() != checksum) {
+            throw new IOException("Corrupted snapshot chunk, bad checksum");
+        }
+        out.write(buf, off, len);
+        return len;
+    }
+
+}
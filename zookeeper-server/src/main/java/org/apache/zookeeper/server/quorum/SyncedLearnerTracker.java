@@ -20,6 +20,7 @@
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Set;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 
 public class SyncedLearnerTracker {
@@ -27,7 +28,16 @@ public class SyncedLearnerTracker {
     protected ArrayList<QuorumVerifierAcksetPair> qvAcksetPairs = new ArrayList<QuorumVerifierAcksetPair>();
 
     public void addQuorumVerifier(QuorumVerifier qv) {
-        qvAcksetPairs.add(new QuorumVerifierAcksetPair(qv, new HashSet<Long>(qv.getVotingMembers().size())));
+        qvAcksetPairs.add(new QuorumVerifierAcksetPair(qv, newAckset(qv.getVotingMembers().size())));
+    }
+
+    /**
+     * Create the set collecting the acks of the members of a quorum verifier.
+     * The acks of a tracker shared by several threads have to be collected
+     * in a concurrent set.
+     */
+    protected Set<Long> newAckset(int size) {
+        return new HashSet<Long>(size);
     }
 
     public boolean addAck(Long sid) {
@@ -72,9 +82,9 @@ public String ackSetsToString() {
     public static class QuorumVerifierAcksetPair {
 
         private final QuorumVerifier qv;
-        private final HashSet<Long> ackset;
+        private final Set<Long> ackset;
 
-        public QuorumVerifierAcksetPair(QuorumVerifier qv, HashSet<Long> ackset) {
+        public QuorumVerifierAcksetPair(QuorumVerifier qv, Set<Long> ackset) {
             this.qv = qv;
             this.ackset = ackset;
         }
@@ -83,7 +93,7 @@ public QuorumVerifier getQuorumVerifier() {
             return this.qv;
         }
 
-        public HashSet<Long> getAckset() {
+        public Set<Long> getAckset() {
             return this.ackset;
         }
 
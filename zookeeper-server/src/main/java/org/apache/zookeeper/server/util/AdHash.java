@@ -28,7 +28,11 @@
  */
 public class AdHash {
 
-    /* we use 64 bits so that we can be fast an efficient */
+    /*
+     * we use 64 bits so that we can be fast an efficient. It is updated
+     * under the lock as txns touching different nodes can be applied
+     * concurrently.
+     */
     private volatile long hash;
 
     /**
@@ -37,7 +41,7 @@ public class AdHash {
      * @param digest the value to add on
      * @return the AdHash itself for chained operations
      */
-    public AdHash addDigest(long digest) {
+    public synchronized AdHash addDigest(long digest) {
         hash += digest;
         return this;
     }
@@ -48,7 +52,7 @@ public AdHash addDigest(long digest) {
      * @param digest the value to remove
      * @return the AdHash itself for chained operations
      */
-    public AdHash removeDigest(long digest) {
+    public synchronized AdHash removeDigest(long digest) {
         hash -= digest;
         return this;
     }
@@ -28,7 +28,9 @@
 import static org.apache.zookeeper.ZooDefs.OpCode.getACL;
 import static org.apache.zookeeper.ZooDefs.OpCode.getChildren;
 import static org.apache.zookeeper.ZooDefs.OpCode.getChildren2;
+import static org.apache.zookeeper.ZooDefs.OpCode.getChildrenPage;
 import static org.apache.zookeeper.ZooDefs.OpCode.getData;
+import static org.apache.zookeeper.ZooDefs.OpCode.getSubtree;
 import static org.apache.zookeeper.ZooDefs.OpCode.removeWatches;
 import static org.apache.zookeeper.ZooDefs.OpCode.setACL;
 import static org.apache.zookeeper.ZooDefs.OpCode.setData;
@@ -128,6 +130,8 @@ public RequestPathMetricsCollector(boolean accurateMode) {
         requestsMap.put(Request.op2String(setACL), new PathStatsQueue(setACL));
         requestsMap.put(Request.op2String(getChildren), new PathStatsQueue(getChildren));
         requestsMap.put(Request.op2String(getChildren2), new PathStatsQueue(getChildren2));
+        requestsMap.put(Request.op2String(getChildrenPage), new PathStatsQueue(getChildrenPage));
+        requestsMap.put(Request.op2String(getSubtree), new PathStatsQueue(getSubtree));
         requestsMap.put(Request.op2String(checkWatches), new PathStatsQueue(checkWatches));
         requestsMap.put(Request.op2String(removeWatches), new PathStatsQueue(removeWatches));
         requestsMap.put(Request.op2String(setWatches2), new PathStatsQueue(setWatches2));
@@ -18,19 +18,24 @@
 
 package org.apache.zookeeper.server.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.SnapshotChunkWriter;
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.ZooKeeperServer;
 import org.apache.zookeeper.server.ZooTrace;
@@ -56,12 +61,19 @@ public class SerializeUtils {
     private static final Logger LOG = LoggerFactory.getLogger(SerializeUtils.class);
 
     public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
+        return deserializeTxn(ByteBuffer.wrap(txnBytes));
+    }
+
+    /**
+     * Deserialize a txn from the remaining bytes of the buffer, e.g. a slice
+     * of a memory mapped log file, without copying them to an array first.
+     */
+    public static TxnLogEntry deserializeTxn(ByteBuffer txnBuffer) throws IOException {
         TxnHeader hdr = new TxnHeader();
-        final ByteArrayInputStream bais = new ByteArrayInputStream(txnBytes);
-        InputArchive ia = BinaryInputArchive.getArchive(bais);
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteBufferInputStream(txnBuffer));
 
         hdr.deserialize(ia, "hdr");
-        bais.mark(bais.available());
+        txnBuffer.mark();
         Record txn = null;
         switch (hdr.getType()) {
         case OpCode.createSession:
@@ -110,7 +122,7 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
                 // perhaps this is a V0 Create
                 if (hdr.getType() == OpCode.create) {
                     CreateTxn create = (CreateTxn) txn;
-                    bais.reset();
+                    txnBuffer.reset();
                     CreateTxnV0 createv0 = new CreateTxnV0();
                     createv0.deserialize(ia, "txn");
                     // cool now make it V1. a -1 parentCVersion will
@@ -145,6 +157,38 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
     }
 
     public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    /**
+     * Same as {@link #deserializeSnapshot(DataTree, InputArchive, Map)} for
+     * the chunked layout, the chunks are decoded on the given executor.
+     */
+    public static void deserializeChunkedSnapshot(
+        DataTree dt,
+        InputArchive ia,
+        Map<Long, Integer> sessions,
+        ExecutorService executor) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserializeChunked(ia, executor);
+    }
+
+    /**
+     * Read the sessions, the ACLs and the root node of a partitioned
+     * snapshot. The root chunk is decoded on the given executor.
+     */
+    public static List<Future<List<SnapshotChunkWriter.DecodedChunk>>> deserializePartitionedSnapshotHead(
+        DataTree dt,
+        InputArchive ia,
+        Map<Long, Integer> sessions,
+        ExecutorService executor) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserializeAcls(ia);
+        return dt.readChunks(ia, executor);
+    }
+
+    private static void deserializeSessions(InputArchive ia, Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -158,17 +202,46 @@ public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, I
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * Same as {@link #serializeSnapshot(DataTree, OutputArchive, Map)} but
+     * writes the nodes in independently decodable chunks.
+     */
+    public static void serializeChunkedSnapshot(
+        DataTree dt,
+        OutputArchive oa,
+        Map<Long, Integer> sessions,
+        int chunkSize) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeChunked(oa, chunkSize);
+    }
+
+    /**
+     * Write the sessions, the ACLs and the root node of a partitioned
+     * snapshot, the subtrees of the root are written to segment files.
+     */
+    public static void serializePartitionedSnapshotHead(
+        DataTree dt,
+        OutputArchive oa,
+        Map<Long, Integer> sessions,
+        int chunkSize) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializePartitionHead(oa, chunkSize);
+    }
+
+    private static void serializeSessions(OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
     public static byte[] serializeRequest(Request request) {
@@ -0,0 +1,577 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch manager where adding, removing and triggering watches never wait
+ * for each other, for servers with many watches and bursty writes where the
+ * locks of WatchManager and WatchManagerOptimized are contended.
+ *
+ * Changes made compared to WatchManagerOptimized:
+ *
+ * - The watchers get their id from a concurrent registry instead of BitMap
+ * - The ids watching a path are a sorted array which is never modified, it
+ *   is replaced with compare and set, so a trigger works on a snapshot of
+ *   the watchers of a path without holding any lock
+ * - A trigger closes the array of the path, registrations racing with it
+ *   start a new one
+ * - Persistent and recursive watches are supported, like in WatchManager
+ *
+ * The dead watchers are lazily cleaned up by the WatcherCleaner, and their
+ * ids are only reused after {@link #ID_REUSE_DELAY_MS}.
+ */
+public class WatchManagerLockFree implements IWatchManager, IDeadWatcherListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerLockFree.class);
+
+    /**
+     * How long the id of a dead watcher is put aside before being reused, it
+     * must outlast an addWatch which raced with the close of the connection.
+     */
+    static final long ID_REUSE_DELAY_MS = 10000;
+
+    /** the ids of a path which has been triggered or emptied */
+    private static final int[] CLOSED = new int[0];
+
+    private final ConcurrentHashMap<String, PathWatches> pathWatches = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Watcher, Integer> watcherIds = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Integer, Watcher> idWatchers = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<FreedId> freedIds = new ConcurrentLinkedQueue<>();
+
+    private final WatcherModeManager watcherModeManager = new WatcherModeManager();
+
+    // used to lazily remove the dead watchers
+    private final WatcherCleaner watcherCleaner;
+
+    private static final class PathWatches {
+
+        private static final AtomicReferenceFieldUpdater<PathWatches, int[]> IDS =
+            AtomicReferenceFieldUpdater.newUpdater(PathWatches.class, int[].class, "ids");
+
+        volatile int[] ids;
+
+        PathWatches(int[] ids) {
+            this.ids = ids;
+        }
+
+        boolean replace(int[] expect, int[] update) {
+            return IDS.compareAndSet(this, expect, update);
+        }
+
+    }
+
+    private static final class FreedId {
+
+        final int id;
+        final long time;
+
+        FreedId(int id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+
+    }
+
+    public WatchManagerLockFree() {
+        watcherCleaner = new WatcherCleaner(this);
+        watcherCleaner.start();
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher) {
+        return addWatch(path, watcher, WatcherMode.DEFAULT_WATCHER_MODE);
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode) {
+        if (isDeadWatcher(watcher)) {
+            LOG.debug("Ignoring addWatch with closed cnxn");
+            return false;
+        }
+        int id = idOf(watcher);
+        // The mode is set first, a trigger which sees the id sees its mode
+        watcherModeManager.setWatcherMode(watcher, path, watcherMode);
+        boolean added = add(path, id);
+        if (isDeadWatcher(watcher)) {
+            // The cnxn was closed meanwhile and the cleaner may already have
+            // gone through this path, remove the watch ourselves.
+            remove(path, id);
+            watcherModeManager.removeWatcher(watcher, path);
+            removeWatcher(watcher);
+            return false;
+        }
+        return added;
+    }
+
+    private int idOf(Watcher watcher) {
+        Integer id = watcherIds.get(watcher);
+        if (id != null) {
+            return id;
+        }
+        return watcherIds.computeIfAbsent(watcher, w -> {
+            int newId = allocateId();
+            idWatchers.put(newId, w);
+            return newId;
+        });
+    }
+
+    private int allocateId() {
+        FreedId freed = freedIds.peek();
+        if (freed != null
+            && Time.currentElapsedTime() - freed.time >= ID_REUSE_DELAY_MS
+            && freedIds.remove(freed)) {
+            return freed.id;
+        }
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * @return true if the id was not watching the path yet
+     */
+    private boolean add(String path, int id) {
+        while (true) {
+            PathWatches watches = pathWatches.get(path);
+            if (watches == null) {
+                if (pathWatches.putIfAbsent(path, new PathWatches(new int[] {id})) == null) {
+                    return true;
+                }
+                continue;
+            }
+            int[] ids = watches.ids;
+            if (ids == CLOSED) {
+                pathWatches.remove(path, watches);
+                continue;
+            }
+            int i = Arrays.binarySearch(ids, id);
+            if (i >= 0) {
+                return false;
+            }
+            i = -i - 1;
+            int[] updated = new int[ids.length + 1];
+            System.arraycopy(ids, 0, updated, 0, i);
+            updated[i] = id;
+            System.arraycopy(ids, i, updated, i + 1, ids.length - i);
+            if (watches.replace(ids, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the id was watching the path
+     */
+    private boolean remove(String path, int id) {
+        while (true) {
+            PathWatches watches = pathWatches.get(path);
+            if (watches == null) {
+                return false;
+            }
+            int[] ids = watches.ids;
+            if (ids == CLOSED) {
+                pathWatches.remove(path, watches);
+                continue;
+            }
+            int i = Arrays.binarySearch(ids, id);
+            if (i < 0) {
+                return false;
+            }
+            int[] updated = CLOSED;
+            if (ids.length > 1) {
+                updated = new int[ids.length - 1];
+                System.arraycopy(ids, 0, updated, 0, i);
+                System.arraycopy(ids, i + 1, updated, i, ids.length - i - 1);
+            }
+            if (watches.replace(ids, updated)) {
+                if (updated == CLOSED) {
+                    pathWatches.remove(path, watches);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Used in the OpCode.checkWatches, which is a read operation, it works
+     * on a snapshot of the watchers of each path.
+     */
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        Integer id = watcherIds.get(watcher);
+        if (id == null) {
+            return false;
+        }
+        PathParentIterator pathParentIterator = getPathParentIterator(path);
+        for (String localPath : pathParentIterator.asIterable()) {
+            PathWatches watches = pathWatches.get(localPath);
+            if (watches == null || Arrays.binarySearch(watches.ids, id) < 0) {
+                continue;
+            }
+            if (!pathParentIterator.atParentPath()
+                || watcherModeManager.getWatcherMode(watcher, localPath).isRecursive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        Integer id = watcherIds.get(watcher);
+        if (id == null || !remove(path, id)) {
+            return false;
+        }
+        watcherModeManager.removeWatcher(watcher, path);
+        return true;
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        // This is only called once the cnxn of the watcher has been marked
+        // as stale, so the watches added from now on are removed by
+        // addWatch itself.
+        Integer id = watcherIds.get(watcher);
+        if (id != null) {
+            watcherCleaner.addDeadWatcher(id);
+        }
+    }
+
+    /**
+     * Entry for WatcherCleaner to remove dead watchers
+     *
+     * @param deadWatchers the watchers need to be removed
+     */
+    @Override
+    public void processDeadWatchers(Set<Integer> deadWatchers) {
+        for (Entry<String, PathWatches> e : pathWatches.entrySet()) {
+            removeAll(e.getKey(), e.getValue(), deadWatchers);
+        }
+        long now = Time.currentElapsedTime();
+        for (Integer id : deadWatchers) {
+            Watcher watcher = idWatchers.remove(id);
+            if (watcher != null) {
+                watcherIds.remove(watcher, id);
+                freedIds.add(new FreedId(id, now));
+            }
+        }
+    }
+
+    private void removeAll(String path, PathWatches watches, Set<Integer> deadWatchers) {
+        while (true) {
+            int[] ids = watches.ids;
+            int[] remaining = new int[ids.length];
+            int count = 0;
+            for (int id : ids) {
+                if (!deadWatchers.contains(id)) {
+                    remaining[count++] = id;
+                }
+            }
+            if (count == ids.length) {
+                return;
+            }
+            int[] updated = count == 0 ? CLOSED : Arrays.copyOf(remaining, count);
+            if (watches.replace(ids, updated)) {
+                if (updated == CLOSED) {
+                    pathWatches.remove(path, watches);
+                }
+                if (!watcherModeManager.isEmpty()) {
+                    for (int id : ids) {
+                        Watcher watcher = idWatchers.get(id);
+                        if (watcher != null && deadWatchers.contains(id)) {
+                            watcherModeManager.removeWatcher(watcher, path);
+                        }
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet suppress) {
+        WatchedEvent e = new WatchedEvent(type, KeeperState.SyncConnected, path);
+        Set<Watcher> watchers = new HashSet<>();
+        PathParentIterator pathParentIterator = getPathParentIterator(path);
+        for (String localPath : pathParentIterator.asIterable()) {
+            PathWatches watches = pathWatches.get(localPath);
+            if (watches == null) {
+                continue;
+            }
+            if (pathParentIterator.atParentPath()) {
+                collectRecursive(localPath, watches.ids, type, watchers);
+            } else {
+                collect(localPath, watches, type, watchers);
+            }
+        }
+        if (watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK, "No watchers for " + path);
+            }
+            return null;
+        }
+
+        int triggeredWatches = 0;
+        for (Watcher w : watchers) {
+            if (suppress != null && suppress.contains(w)) {
+                continue;
+            }
+            // skip dead watcher
+            if (isDeadWatcher(w)) {
+                continue;
+            }
+            w.process(e);
+            triggeredWatches++;
+        }
+
+        updateMetrics(type, triggeredWatches);
+        return new WatcherOrBitSet(watchers);
+    }
+
+    /**
+     * Take the watchers of the triggered path, only the persistent ones are
+     * left in place.
+     */
+    private void collect(String path, PathWatches watches, EventType type, Set<Watcher> watchers) {
+        while (true) {
+            int[] ids = watches.ids;
+            if (ids == CLOSED) {
+                return;
+            }
+            // An addWatch sets the mode before adding the id, so if the id
+            // is in this snapshot its mode is visible too.
+            boolean checkModes = !watcherModeManager.isEmpty();
+            int[] persistent = new int[checkModes ? ids.length : 0];
+            int persistentCount = 0;
+            Set<Watcher> fired = new HashSet<>();
+            for (int id : ids) {
+                Watcher watcher = idWatchers.get(id);
+                if (watcher == null) {
+                    continue;
+                }
+                if (checkModes) {
+                    WatcherMode watcherMode = watcherModeManager.getWatcherMode(watcher, path);
+                    if (watcherMode.isPersistent()) {
+                        persistent[persistentCount++] = id;
+                    }
+                    if (watcherMode.isRecursive() && type == EventType.NodeChildrenChanged) {
+                        continue;
+                    }
+                }
+                fired.add(watcher);
+            }
+            int[] updated = persistentCount == 0 ? CLOSED : Arrays.copyOf(persistent, persistentCount);
+            if (watches.replace(ids, updated)) {
+                if (updated == CLOSED) {
+                    pathWatches.remove(path, watches);
+                }
+                watchers.addAll(fired);
+                return;
+            }
+        }
+    }
+
+    private void collectRecursive(String path, int[] ids, EventType type, Set<Watcher> watchers) {
+        if (type == EventType.NodeChildrenChanged) {
+            return;
+        }
+        for (int id : ids) {
+            Watcher watcher = idWatchers.get(id);
+            if (watcher != null && watcherModeManager.getWatcherMode(watcher, path).isRecursive()) {
+                watchers.add(watcher);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (PathWatches watches : pathWatches.values()) {
+            size += watches.ids.length;
+        }
+        return size;
+    }
+
+    @Override
+    public void shutdown() {
+        if (watcherCleaner != null) {
+            watcherCleaner.shutdown();
+        }
+    }
+
+    void updateMetrics(final EventType type, int size) {
+        switch (type) {
+        case NodeCreated:
+            ServerMetrics.getMetrics().NODE_CREATED_WATCHER.add(size);
+            break;
+
+        case NodeDeleted:
+            ServerMetrics.getMetrics().NODE_DELETED_WATCHER.add(size);
+            break;
+
+        case NodeDataChanged:
+            ServerMetrics.getMetrics().NODE_CHANGED_WATCHER.add(size);
+            break;
+
+        case NodeChildrenChanged:
+            ServerMetrics.getMetrics().NODE_CHILDREN_WATCHER.add(size);
+            break;
+        default:
+            // Other types not logged.
+            break;
+        }
+    }
+
+    boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
+    int pathSize() {
+        return pathWatches.size();
+    }
+
+    @Override
+    public int getRecursiveWatchQty() {
+        return watcherModeManager.getRecursiveQty();
+    }
+
+    private PathParentIterator getPathParentIterator(String path) {
+        if (watcherModeManager.getRecursiveQty() == 0) {
+            return PathParentIterator.forPathOnly(path);
+        }
+        return PathParentIterator.forAll(path);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        return new WatchesSummary(watcherIds.size(), pathSize(), size());
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<>();
+        for (Entry<Watcher, Set<String>> e : getWatcher2PathesMap().entrySet()) {
+            Long id = ((ServerCnxn) e.getKey()).getSessionId();
+            id2paths.put(id, e.getValue());
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<>();
+        for (Entry<String, PathWatches> e : pathWatches.entrySet()) {
+            int[] ids = e.getValue().ids;
+            Set<Long> sessionIds = new HashSet<>(ids.length);
+            for (int id : ids) {
+                Watcher watcher = idWatchers.get(id);
+                if (watcher instanceof ServerCnxn) {
+                    sessionIds.add(((ServerCnxn) watcher).getSessionId());
+                }
+            }
+            if (!sessionIds.isEmpty()) {
+                path2ids.put(e.getKey(), sessionIds);
+            }
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    /**
+     * May cause OOM if there are lots of watches, might better to forbid
+     * it in this class.
+     */
+    public Map<Watcher, Set<String>> getWatcher2PathesMap() {
+        Map<Watcher, Set<String>> watcher2paths = new HashMap<>();
+        for (Entry<String, PathWatches> e : pathWatches.entrySet()) {
+            for (int id : e.getValue().ids) {
+                Watcher watcher = idWatchers.get(id);
+                if (watcher != null) {
+                    watcher2paths.computeIfAbsent(watcher, w -> new HashSet<>()).add(e.getKey());
+                }
+            }
+        }
+        return watcher2paths;
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, PathWatches> e : pathWatches.entrySet()) {
+                pwriter.println(e.getKey());
+                for (int id : e.getValue().ids) {
+                    Watcher w = idWatchers.get(id);
+                    if (!(w instanceof ServerCnxn)) {
+                        continue;
+                    }
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn) w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Watcher, Set<String>> e : getWatcher2PathesMap().entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn) e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(watcherIds.size()).append(" connections watching ").append(pathSize()).append(" paths\n");
+        sb.append("Total watches:").append(size());
+        return sb.toString();
+    }
+
+}
@@ -76,6 +76,10 @@ void removeWatcher(Watcher watcher, String path) {
         adjustRecursiveQty(watcherModes.remove(new Key(watcher, path)), WatcherMode.DEFAULT_WATCHER_MODE);
     }
 
+    boolean isEmpty() {
+        return watcherModes.isEmpty();
+    }
+
     int getRecursiveQty() {
         return recursiveQty.get();
     }
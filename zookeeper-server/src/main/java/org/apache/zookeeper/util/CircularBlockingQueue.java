@@ -180,7 +180,13 @@ public int drainTo(Collection<? super E> c) {
 
   @Override
   public E poll() {
-    throw new UnsupportedOperationException();
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      return this.queue.poll();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
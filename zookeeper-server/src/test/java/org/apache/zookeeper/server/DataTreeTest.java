@@ -1,5 +1,7 @@
 package org.apache.zookeeper.server;
 
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.cli.AclParser;
@@ -7,9 +9,17 @@
 import org.apache.zookeeper.data.Stat;
 import org.junit.jupiter.api.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class DataTreeTest {
@@ -263,6 +273,148 @@ public void testDeleteCachedDataSize() throws KeeperException.NoNodeException, K
         Assertions.assertEquals(nodeDataSize, this.tree.cachedApproximateDataSize());
     }
 
+    @Test
+    public void testChunkedSerializeDeserialize() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            this.tree.createNode("/n" + i, getRandomData(100), null, 0, 1, i + 1, 1);
+            this.tree.createNode("/n" + i + "/c", null, null, 0x12L, 1, i + 1, 1);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        this.tree.serializeChunked(BinaryOutputArchive.getArchive(baos), 512);
+
+        DataTree restored = new DataTree();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            restored.deserializeChunked(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())), executor);
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(this.tree.getNodeCount(), restored.getNodeCount());
+        Assertions.assertEquals(this.tree.getTreeDigest(), restored.getTreeDigest());
+        Assertions.assertEquals(50, restored.getEphemerals(0x12L).size());
+        Assertions.assertEquals(this.tree.getNode("/n7").getChildren(), restored.getNode("/n7").getChildren());
+    }
+
+    @Test
+    public void testChunkedSerializeLargeNode() throws Exception {
+        // fill most of a chunk before a node about as large as a request may be
+        for (int i = 0; i < 40; i++) {
+            this.tree.createNode("/n" + i, getRandomData(10 * 1024), null, 0, 1, i + 1, 1);
+        }
+        byte[] large = getRandomData(BinaryInputArchive.maxBuffer - 1024);
+        this.tree.createNode("/n40", large, null, 0, 1, 41, 1);
+        this.tree.createNode("/n41", getRandomData(100), null, 0, 1, 42, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        this.tree.serializeChunked(BinaryOutputArchive.getArchive(baos), Integer.MAX_VALUE);
+
+        DataTree restored = new DataTree();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // with the smallest zookeeper.jute.maxbuffer.extrasize
+            BinaryInputArchive ia = new BinaryInputArchive(
+                new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), BinaryInputArchive.maxBuffer, 1024);
+            restored.deserializeChunked(ia, executor);
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(this.tree.getNodeCount(), restored.getNodeCount());
+        Assertions.assertEquals(this.tree.getTreeDigest(), restored.getTreeDigest());
+        Assertions.assertArrayEquals(large, restored.getData("/n40", new Stat(), null));
+    }
+
+    @Test
+    public void testAllChildrenNumberAndEphemeralsByPrefix() throws Exception {
+        this.tree.createNode("/a", null, null, 0, 1, 1, 1);
+        this.tree.createNode("/a/b", null, null, 0, 1, 2, 2);
+        this.tree.createNode("/a/b/c", null, null, 0x12L, 1, 3, 3);
+        this.tree.createNode("/a/b/d", null, null, 0x12L, 1, 4, 4);
+        this.tree.createNode("/ab", null, null, 0x12L, 1, 5, 5);
+        Assertions.assertEquals(3, this.tree.getAllChildrenNumber("/a"));
+        Assertions.assertEquals(2, this.tree.getAllChildrenNumber("/a/b"));
+        Assertions.assertEquals(0, this.tree.getAllChildrenNumber("/ab"));
+        Assertions.assertEquals(2, this.tree.getAllChildrenNumber("/zookeeper"));
+        Assertions.assertEquals(Arrays.asList("/a/b/c", "/a/b/d", "/ab"), this.tree.getEphemerals(0x12L, "/a"));
+        Assertions.assertEquals(Arrays.asList("/a/b/c", "/a/b/d"), this.tree.getEphemerals(0x12L, "/a/"));
+
+        this.tree.deleteNode("/a/b/c", 6);
+        Assertions.assertEquals(2, this.tree.getAllChildrenNumber("/a"));
+        Assertions.assertEquals(Collections.singletonList("/a/b/d"), this.tree.getEphemerals(0x12L, "/a/"));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        this.tree.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        DataTree restored = new DataTree();
+        restored.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())), "tree");
+        Assertions.assertEquals(2, restored.getAllChildrenNumber("/a"));
+        Assertions.assertEquals(1, restored.getAllChildrenNumber("/a/b"));
+        Assertions.assertEquals(restored.getNodeCount() - 2, restored.getNode("/").getDescendants());
+        Assertions.assertEquals(Arrays.asList("/a/b/d", "/ab"), restored.getEphemerals(0x12L, "/a"));
+    }
+
+    @Test
+    public void testGetChildrenPage() throws Exception {
+        this.tree.createNode("/q", null, null, 0, 1, 1, 1);
+        for (int i = 0; i < 5; i++) {
+            this.tree.createNode(String.format("/q/lock-%010d", i), null, null, 0, 1, 2 + i, 2 + i);
+        }
+        this.tree.createNode("/q/other", null, null, 0, 1, 7, 7);
+
+        List<String> page = new ArrayList<>();
+        String cursor = this.tree.getChildrenPage("/q", "lock-", -1, -1, null, 2, Integer.MAX_VALUE, page, null, null);
+        Assertions.assertEquals(Arrays.asList("lock-0000000000", "lock-0000000001"), page);
+        Assertions.assertEquals("lock-0000000001", cursor);
+
+        // a child created or deleted between two pages does not shift the next one
+        this.tree.deleteNode("/q/lock-0000000000", 8);
+        page.clear();
+        Stat stat = new Stat();
+        cursor = this.tree.getChildrenPage("/q", "lock-", -1, -1, cursor, 3, Integer.MAX_VALUE, page, stat, null);
+        Assertions.assertEquals(Arrays.asList("lock-0000000002", "lock-0000000003", "lock-0000000004"), page);
+        Assertions.assertEquals("", cursor);
+        Assertions.assertEquals(5, stat.getNumChildren());
+
+        page.clear();
+        cursor = this.tree.getChildrenPage("/q", "lock-", 2, 3, null, 0, Integer.MAX_VALUE, page, null, null);
+        Assertions.assertEquals(Arrays.asList("lock-0000000002", "lock-0000000003"), page);
+        Assertions.assertEquals("", cursor);
+
+        // the size of the names bounds the page too
+        page.clear();
+        cursor = this.tree.getChildrenPage("/q", null, -1, -1, null, 0, 25, page, null, null);
+        Assertions.assertEquals(Collections.singletonList("lock-0000000001"), page);
+        Assertions.assertEquals("lock-0000000001", cursor);
+    }
+
+    @Test
+    public void testResponseCacheInvalidatedByNodeChanges() throws Exception {
+        ResponseCache cache = new ResponseCache(400, "getData");
+        this.tree.addNodeChangeListener(cache);
+        this.tree.createNode("/abc", getRandomData(10), null, 0, 1, 1, 1);
+
+        Stat stat = new Stat();
+        this.tree.getData("/abc", stat, null);
+        byte[] response = new byte[] {1};
+        cache.put("/abc", response, stat, this.tree.getNode("/abc"));
+        Assertions.assertEquals(ByteBuffer.wrap(response), cache.get("/abc"));
+
+        this.tree.setData("/abc", getRandomData(10), 1, 2, 2);
+        Assertions.assertNull(cache.get("/abc"));
+
+        // a response read before the change is not cached
+        cache.put("/abc", response, stat, this.tree.getNode("/abc"));
+        Assertions.assertNull(cache.get("/abc"));
+
+        this.tree.getData("/abc", stat, null);
+        cache.put("/abc", response, stat, this.tree.getNode("/abc"));
+        this.tree.createNode("/abc/def", null, null, 0, 1, 3, 3);
+        Assertions.assertNull(cache.get("/abc"));
+
+        this.tree.getData("/", stat, null);
+        cache.put("/", response, stat, this.tree.getNode("/"));
+        this.tree.deleteNode("/abc/def", 4);
+        this.tree.deleteNode("/abc", 5);
+        Assertions.assertNull(cache.get("/"));
+        Assertions.assertEquals(0, cache.size());
+    }
 
     private static byte[] getRandomData(int length) {
         byte[] data = new byte[length];
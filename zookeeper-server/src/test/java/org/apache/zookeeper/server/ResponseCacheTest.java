@@ -0,0 +1,224 @@
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.jupiter.api.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResponseCacheTest {
+
+    private final DataNode node = new DataNode(new byte[0], -1L, new StatPersisted());
+
+    private final Stat stat = new Stat();
+
+    @BeforeEach
+    public void setUp() {
+        node.copyStat(stat);
+    }
+
+    private int put(ResponseCache cache, String path, int size) {
+        return cache.put(path, new byte[size], stat, node);
+    }
+
+    private static String path(int i) {
+        return String.format("/p%03d", i);
+    }
+
+    @Test
+    public void testEntryBound() {
+        // a single segment, evicting in insertion order
+        ResponseCache cache = new ResponseCache(10, "getData");
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(0, put(cache, path(i), 10));
+        }
+        for (int i = 10; i < 15; i++) {
+            Assertions.assertEquals(1, put(cache, path(i), 10));
+        }
+        Assertions.assertEquals(10, cache.size());
+        for (int i = 0; i < 15; i++) {
+            Assertions.assertEquals(i >= 5, cache.get(path(i)) != null, path(i));
+        }
+        // replacing an entry evicts nothing
+        Assertions.assertEquals(0, put(cache, path(14), 20));
+        Assertions.assertEquals(20, cache.get(path(14)).remaining());
+    }
+
+    @Test
+    public void testSecondChance() {
+        ResponseCache cache = new ResponseCache(10, "getData");
+        for (int i = 0; i < 10; i++) {
+            put(cache, path(i), 10);
+        }
+        Assertions.assertNotNull(cache.get(path(0)));
+        Assertions.assertNotNull(cache.get(path(2)));
+
+        // the referenced entries are passed over once
+        Assertions.assertEquals(1, put(cache, path(10), 10));
+        Assertions.assertEquals(1, put(cache, path(11), 10));
+        Assertions.assertEquals(1, put(cache, path(12), 10));
+        Assertions.assertNull(cache.get(path(1)));
+        Assertions.assertNull(cache.get(path(3)));
+        Assertions.assertNull(cache.get(path(4)));
+
+        // and evicted in turn after the entries put before them, unless
+        // referenced again
+        for (int i = 13; i < 20; i++) {
+            Assertions.assertEquals(1, put(cache, path(i), 10));
+        }
+        Assertions.assertNull(cache.get(path(10)));
+        Assertions.assertNull(cache.get(path(0)));
+        Assertions.assertNotNull(cache.get(path(2)));
+        Assertions.assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testByteBudget() {
+        // each entry weighs its response and twice the length of its path
+        ResponseCache cache = new ResponseCache(10, 1000, "getData");
+        for (int i = 0; i < 9; i++) {
+            Assertions.assertEquals(0, put(cache, path(i), 100 - 2 * path(i).length()));
+        }
+        Assertions.assertEquals(1, put(cache, path(9), 100 - 2 * path(9).length() + 1));
+        Assertions.assertNull(cache.get(path(0)));
+
+        // a large response evicts as many as needed
+        Assertions.assertEquals(5, put(cache, path(10), 500 - 2 * path(10).length()));
+        Assertions.assertEquals(5, cache.size());
+        Assertions.assertNotNull(cache.get(path(10)));
+
+        // one which does not fit is not cached
+        Assertions.assertEquals(0, put(cache, path(11), 1001));
+        Assertions.assertNull(cache.get(path(11)));
+        Assertions.assertEquals(5, cache.size());
+
+        // and a disabled cache caches nothing
+        Assertions.assertFalse(new ResponseCache(10, 0, "getData").isEnabled());
+        Assertions.assertFalse(new ResponseCache(0, "getData").isEnabled());
+    }
+
+    @Test
+    public void testEvictionAcrossSegments() {
+        // 4 segments of 16 entries and 1000 bytes
+        ResponseCache cache = new ResponseCache(64, 4000, "getData");
+        int evicted = 0;
+        for (int i = 0; i < 300; i++) {
+            evicted += put(cache, path(i), 10);
+        }
+        Assertions.assertTrue(cache.size() <= 64, cache.size() + " entries");
+        Assertions.assertEquals(300 - cache.size(), evicted);
+        int cached = 0;
+        for (int i = 0; i < 300; i++) {
+            if (cache.get(path(i)) != null) {
+                cached++;
+            }
+        }
+        Assertions.assertEquals(cache.size(), cached);
+
+        // the bytes are bounded per segment too
+        cache = new ResponseCache(64, 4000, "getData");
+        evicted = 0;
+        for (int i = 0; i < 300; i++) {
+            evicted += put(cache, path(i), 300);
+        }
+        Assertions.assertTrue(cache.size() <= 4 * 3, cache.size() + " entries");
+        Assertions.assertEquals(300 - cache.size(), evicted);
+    }
+
+    @Test
+    public void testClear() {
+        ResponseCache cache = new ResponseCache(10, "getData");
+        for (int i = 0; i < 10; i++) {
+            put(cache, path(i), 10);
+        }
+        cache.treeReplaced();
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertNull(cache.get(path(0)));
+        // the bounds are free again
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(0, put(cache, path(i), 10));
+        }
+        cache.clear();
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(0, put(cache, path(0), 10));
+        Assertions.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        ResponseCache cache = new ResponseCache(10, "getData");
+        byte[] response = {1, 2, 3};
+        cache.put("/a", response, stat, node);
+        ByteBuffer cached = cache.get("/a");
+        Assertions.assertEquals(ByteBuffer.wrap(response), cached);
+        Assertions.assertTrue(cached.isReadOnly());
+
+        cache.nodeChanged("/a");
+        Assertions.assertNull(cache.get("/a"));
+        Assertions.assertEquals(0, cache.size());
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(0, put(cache, path(i), 10));
+        }
+        // the node changed since the response was read
+        node.stat.setVersion(1);
+        Assertions.assertEquals(0, cache.put("/a", response, stat, node));
+        Assertions.assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void testConcurrentPutAndInvalidate() throws Exception {
+        ResponseCache cache = new ResponseCache(15, "getData");
+        int threads = 4;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger errors = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < 20000; i++) {
+                        String path = path(random.nextInt(50));
+                        switch (random.nextInt(3)) {
+                        case 0:
+                            put(cache, path, random.nextInt(50));
+                            break;
+                        case 1:
+                            cache.invalidate(path);
+                            break;
+                        default:
+                            cache.get(path);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.incrementAndGet();
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assertions.assertEquals(0, errors.get());
+        Assertions.assertTrue(cache.size() <= 15, cache.size() + " entries");
+
+        // the bounds still match the entries left
+        for (int i = 0; i < 50; i++) {
+            cache.invalidate(path(i));
+        }
+        Assertions.assertEquals(0, cache.size());
+        for (int i = 0; i < 15; i++) {
+            Assertions.assertEquals(0, put(cache, path(i), 10));
+        }
+        Assertions.assertEquals(1, put(cache, path(15), 10));
+        Assertions.assertEquals(15, cache.size());
+    }
+
+}
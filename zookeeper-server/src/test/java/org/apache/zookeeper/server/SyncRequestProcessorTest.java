@@ -0,0 +1,155 @@
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.TxnLog;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SyncRequestProcessorTest {
+
+    private final List<Request> appended = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger commits = new AtomicInteger();
+    /** number of appended requests which have been synced */
+    private volatile int durable;
+    private final CountDownLatch releaseFirstSync = new CountDownLatch(1);
+
+    private final List<Request> processed = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+
+    private SyncRequestProcessor processor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        ZKDatabase db = mock(ZKDatabase.class);
+        when(db.append(any(Request.class))).thenAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            if (request.getHdr() == null) {
+                return false;
+            }
+            appended.add(request);
+            return true;
+        });
+        when(db.startCommit()).thenAnswer(invocation -> {
+            int count = appended.size();
+            boolean first = commits.getAndIncrement() == 0;
+            return (TxnLog.PendingCommit) () -> {
+                if (first) {
+                    try {
+                        releaseFirstSync.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                durable = count;
+            };
+        });
+
+        ZooKeeperServer zks = mock(ZooKeeperServer.class);
+        when(zks.getZKDatabase()).thenReturn(db);
+        when(zks.getMaxBatchSize()).thenReturn(1000);
+        when(zks.getMaxWriteQueuePollTime()).thenReturn(1L);
+        when(zks.getTxnLogElapsedSyncTime()).thenReturn(1L);
+
+        RequestProcessor next = new RequestProcessor() {
+            @Override
+            public void processRequest(Request request) {
+                int index = appended.indexOf(request);
+                if (index >= durable) {
+                    violations.add("txn " + request.cxid + " passed on before it was synced");
+                }
+                processed.add(request);
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+
+        SyncRequestProcessor.setPipelinedFsync(true);
+        processor = new SyncRequestProcessor(zks, next);
+        processor.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        releaseFirstSync.countDown();
+        processor.shutdown();
+        SyncRequestProcessor.setPipelinedFsync(false);
+    }
+
+    private static Request write(int cxid) {
+        Request request = new Request(null, 1, cxid, ZooDefs.OpCode.setData, null, null);
+        request.setHdr(new TxnHeader(1, cxid, cxid, 0, ZooDefs.OpCode.setData));
+        request.setTxn(new SetDataTxn("/a", new byte[0], cxid));
+        return request;
+    }
+
+    private static Request read(int cxid) {
+        return new Request(null, 1, cxid, ZooDefs.OpCode.getData, null, null);
+    }
+
+    private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testRequestsArePassedOnOnlyOnceSynced() throws Exception {
+        List<Request> submitted = new ArrayList<>();
+        int writes = 1;
+        submitted.add(write(1));
+        processor.processRequest(submitted.get(0));
+        // the first batch is held in its fsync
+        waitFor("the first commit", () -> commits.get() == 1);
+
+        for (int cxid = 2; cxid <= 100; cxid++) {
+            Request request = cxid % 10 == 0 ? read(cxid) : write(cxid);
+            writes += request.getHdr() != null ? 1 : 0;
+            submitted.add(request);
+            processor.processRequest(request);
+        }
+        // the next batch is appended while the first one is being synced,
+        // reads are not passed on ahead of the writes queued before them
+        int appendedWrites = writes;
+        waitFor("appends during the sync", () -> appended.size() == appendedWrites);
+        Assertions.assertEquals(1, commits.get());
+        Assertions.assertTrue(processed.isEmpty(), "nothing is passed on before the fsync: " + processed);
+
+        releaseFirstSync.countDown();
+        waitFor("all requests", () -> processed.size() == submitted.size());
+
+        Assertions.assertEquals(Collections.emptyList(), violations);
+        Assertions.assertEquals(submitted, processed);
+        Assertions.assertTrue(commits.get() < submitted.size(), "requests are synced in batches");
+    }
+
+    @Test
+    public void testReadsBypassTheLogWhenIdle() throws Exception {
+        releaseFirstSync.countDown();
+        processor.processRequest(write(1));
+        waitFor("the write", () -> processed.size() == 1);
+        Request read = read(2);
+        processor.processRequest(read);
+        waitFor("the read", () -> processed.size() == 2);
+        Assertions.assertSame(read, processed.get(1));
+        Assertions.assertEquals(1, commits.get());
+        Assertions.assertEquals(Collections.emptyList(), violations);
+    }
+
+}
@@ -0,0 +1,220 @@
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+public class WatchEventBatchTest {
+
+    @TempDir
+    File dataDir;
+
+    private ZooKeeperServer zks;
+
+    /** watches /a/x and the children of /a */
+    private ServerCnxn cnxn1;
+
+    /** watches the children of /a */
+    private ServerCnxn cnxn2;
+
+    private final ByteBuffer[] event1 = {ByteBuffer.allocate(1)};
+    private final ByteBuffer[] event2 = {ByteBuffer.allocate(2)};
+    private final ByteBuffer[] event3 = {ByteBuffer.allocate(3)};
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        zks = new ZooKeeperServer(dataDir, dataDir, 3000);
+        cnxn1 = connection();
+        cnxn2 = connection();
+        DataTree tree = zks.getZKDatabase().getDataTree();
+        tree.createNode("/a", new byte[0], null, 0, 1, 1, 1);
+        tree.createNode("/a/x", new byte[0], null, 0, 1, 2, 2);
+        tree.getData("/a/x", new Stat(), cnxn1);
+        tree.getChildren("/a", null, cnxn1);
+        tree.getChildren("/a", null, cnxn2);
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        WatchEventBatch.setEnabled(true);
+    }
+
+    /**
+     * A connection sending its notifications with the methods of ServerCnxn,
+     * recording what it writes.
+     */
+    private ServerCnxn connection() {
+        ServerCnxn cnxn = mock(ServerCnxn.class, withSettings().useConstructor(zks).defaultAnswer(CALLS_REAL_METHODS));
+        doAnswer(invocation -> {
+            cnxn.sendNotification(((WatchedEvent) invocation.getArgument(0)).getWrapper());
+            return null;
+        }).when(cnxn).process(any());
+        return cnxn;
+    }
+
+    /**
+     * @return the number of buffers of each write to the connection
+     */
+    private static List<Integer> writes(ServerCnxn cnxn) {
+        return Mockito.mockingDetails(cnxn).getInvocations().stream()
+            .filter(invocation -> invocation.getMethod().getName().equals("sendBuffer"))
+            .map(invocation -> ((ByteBuffer[]) invocation.getRawArguments()[0]).length)
+            .collect(Collectors.toList());
+    }
+
+    private static Map<String, Object> metrics() {
+        Map<String, Object> values = new HashMap<>();
+        ServerMetrics.getMetrics().getMetricsProvider().dump(values::put);
+        return values;
+    }
+
+    private Request deleteRequest(ServerCnxn cnxn, String path, long zxid) {
+        Request request = new Request(cnxn, 1, 1, OpCode.delete, ByteBuffer.allocate(0), null);
+        request.setHdr(new TxnHeader(1, 1, zxid, 0, OpCode.delete));
+        request.setTxn(new DeleteTxn(path));
+        return request;
+    }
+
+    /**
+     * Queue the events like a txn applied by another thread, and detach them.
+     */
+    private WatchEventBatch applyOnOtherThread() throws Exception {
+        FutureTask<WatchEventBatch> task = new FutureTask<>(() -> {
+            WatchEventBatch.beginDetached();
+            // the batch of a txn nested in the detached one is not flushed
+            WatchEventBatch.begin();
+            Assertions.assertTrue(WatchEventBatch.defer(cnxn1, event1));
+            WatchEventBatch.end();
+            Assertions.assertTrue(WatchEventBatch.defer(cnxn2, event2));
+            Assertions.assertTrue(WatchEventBatch.defer(cnxn1, event3));
+            WatchEventBatch detached = WatchEventBatch.detach();
+            // the thread is no longer batching
+            Assertions.assertFalse(WatchEventBatch.defer(cnxn1, event1));
+            return detached;
+        });
+        new Thread(task).start();
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testOneWritePerConnection() {
+        zks.processTxn(new TxnHeader(1, 1, 3, 0, OpCode.delete), new DeleteTxn("/a/x"));
+
+        // the NodeDeleted and NodeChildrenChanged events of cnxn1 are written
+        // at once, a header and a body each
+        verify(cnxn1).sendNotifications(argThat(notifications -> notifications.size() == 2));
+        Assertions.assertEquals(Arrays.asList(4), writes(cnxn1));
+        verify(cnxn2).sendNotifications(argThat(notifications -> notifications.size() == 1));
+        Assertions.assertEquals(Arrays.asList(2), writes(cnxn2));
+
+        // and reported per flush
+        Map<String, Object> metrics = metrics();
+        Assertions.assertEquals(2L, metrics.get("cnt_watch_events_per_flush"));
+        Assertions.assertEquals(3L, metrics.get("sum_watch_events_per_flush"));
+        Assertions.assertEquals(2L, metrics.get("max_watch_events_per_flush"));
+    }
+
+    @Test
+    public void testFlushedBeforeResponse() throws Exception {
+        // the events wait for the outermost batch
+        WatchEventBatch.begin();
+        zks.processTxn(new TxnHeader(1, 1, 3, 0, OpCode.delete), new DeleteTxn("/a/x"));
+        Assertions.assertEquals(Arrays.asList(), writes(cnxn1));
+        WatchEventBatch.end();
+        Assertions.assertEquals(Arrays.asList(4), writes(cnxn1));
+
+        // the client of the txn gets its events before its response
+        zks.getZKDatabase().getDataTree().createNode("/a/x", new byte[0], null, 0, 1, 4, 4);
+        zks.getZKDatabase().getDataTree().getChildren("/a", null, cnxn1);
+        new FinalRequestProcessor(zks).processRequest(deleteRequest(cnxn1, "/a/x", 5));
+        InOrder order = inOrder(cnxn1);
+        order.verify(cnxn1).sendNotifications(argThat(notifications -> notifications.size() == 1));
+        order.verify(cnxn1).sendResponse(any(ReplyHeader.class), isNull(), eq("response"), isNull(), isNull(), anyInt());
+    }
+
+    @Test
+    public void testBatchingDisabled() {
+        WatchEventBatch.setEnabled(false);
+        zks.processTxn(new TxnHeader(1, 1, 3, 0, OpCode.delete), new DeleteTxn("/a/x"));
+
+        // each event is still sent, with a write of its own
+        Assertions.assertEquals(Arrays.asList(2, 2), writes(cnxn1));
+        Assertions.assertEquals(Arrays.asList(2), writes(cnxn2));
+        verify(cnxn1, never()).sendNotifications(any());
+        Assertions.assertEquals(0L, metrics().get("cnt_watch_events_per_flush"));
+    }
+
+    @Test
+    public void testDetachedBatch() throws Exception {
+        WatchEventBatch batch = applyOnOtherThread();
+        verify(cnxn1, never()).sendNotifications(any());
+        verify(cnxn2, never()).sendNotifications(any());
+
+        // sent by the thread completing the txn, one write per connection
+        batch.send();
+        verify(cnxn1).sendNotifications(Arrays.asList(event1, event3));
+        verify(cnxn2).sendNotifications(Collections.singletonList(event2));
+        // and only once
+        batch.send();
+        verify(cnxn1).sendNotifications(any());
+        verify(cnxn2).sendNotifications(any());
+    }
+
+    @Test
+    public void testDetachedBatchWhenBatchingDisabled() throws Exception {
+        WatchEventBatch.setEnabled(false);
+        // a txn applied ahead always keeps its events
+        WatchEventBatch batch = applyOnOtherThread();
+        verify(cnxn1, never()).sendNotifications(any());
+        batch.send();
+        verify(cnxn1).sendNotifications(Arrays.asList(event1, event3));
+        verify(cnxn2).sendNotifications(Collections.singletonList(event2));
+
+        // while the other txns send them right away
+        WatchEventBatch.begin();
+        Assertions.assertFalse(WatchEventBatch.defer(cnxn1, event1));
+        WatchEventBatch.end();
+    }
+
+    @Test
+    public void testEmptyDetachedBatch() {
+        WatchEventBatch.beginDetached();
+        WatchEventBatch batch = WatchEventBatch.detach();
+        Assertions.assertFalse(WatchEventBatch.defer(cnxn1, event1));
+        batch.send();
+        verify(cnxn1, never()).sendNotifications(any());
+    }
+
+}
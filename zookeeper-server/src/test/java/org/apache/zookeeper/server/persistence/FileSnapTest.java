@@ -0,0 +1,112 @@
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.zookeeper.server.DataTree;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileSnapTest {
+
+    @TempDir
+    File snapDir;
+
+    @BeforeEach
+    public void setUp() {
+        SnapStream.setLayout(SnapStream.Layout.PARTITIONED);
+        System.setProperty(FileSnap.SNAPSHOT_WRITE_THREADS, "3");
+        System.setProperty(FileSnap.SNAPSHOT_CHUNK_SIZE, "512");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        SnapStream.setLayout(SnapStream.Layout.DEFAULT_LAYOUT);
+        System.clearProperty(FileSnap.SNAPSHOT_WRITE_THREADS);
+        System.clearProperty(FileSnap.SNAPSHOT_CHUNK_SIZE);
+    }
+
+    private static DataTree createTree(int subtrees, long zxid) throws Exception {
+        DataTree tree = new DataTree();
+        for (int i = 0; i < subtrees; i++) {
+            tree.createNode("/n" + i, new byte[100], null, 0, 1, zxid, 1);
+            for (int j = 0; j < 10; j++) {
+                tree.createNode("/n" + i + "/c" + j, new byte[10], null, j == 0 ? 0x12L : 0, 1, zxid, 1);
+            }
+        }
+        tree.lastProcessedZxid = zxid;
+        return tree;
+    }
+
+    private File takeSnapshot(DataTree tree, Map<Long, Integer> sessions) throws Exception {
+        File snapshot = new File(snapDir, Util.makeSnapshotName(tree.lastProcessedZxid));
+        new FileSnap(snapDir).serialize(tree, sessions, snapshot, false);
+        return snapshot;
+    }
+
+    private File[] segmentsOf(long zxid) {
+        String prefix = FileSnap.SNAPSHOT_SEGMENT_FILE_PREFIX + "." + Long.toHexString(zxid) + ".";
+        return snapDir.listFiles((dir, name) -> name.startsWith(prefix));
+    }
+
+    @Test
+    public void testPartitionedRoundTrip() throws Exception {
+        DataTree tree = createTree(8, 10);
+        Map<Long, Integer> sessions = new HashMap<>();
+        sessions.put(0x12L, 3000);
+        takeSnapshot(tree, sessions);
+        Assertions.assertEquals(3, segmentsOf(10).length);
+
+        DataTree restored = new DataTree();
+        Map<Long, Integer> restoredSessions = new HashMap<>();
+        Assertions.assertEquals(10, new FileSnap(snapDir).deserialize(restored, restoredSessions));
+        Assertions.assertEquals(sessions, restoredSessions);
+        Assertions.assertEquals(tree.getNodeCount(), restored.getNodeCount());
+        Assertions.assertEquals(tree.getTreeDigest(), restored.getTreeDigest());
+        Assertions.assertEquals(8, restored.getEphemerals(0x12L).size());
+        Assertions.assertEquals(tree.getNode("/n5").getChildren(), restored.getNode("/n5").getChildren());
+    }
+
+    @Test
+    public void testPartitionedEmptyTree() throws Exception {
+        DataTree tree = new DataTree();
+        tree.lastProcessedZxid = 1;
+        takeSnapshot(tree, new HashMap<>());
+
+        DataTree restored = new DataTree();
+        Assertions.assertEquals(1, new FileSnap(snapDir).deserialize(restored, new HashMap<>()));
+        Assertions.assertEquals(tree.getNodeCount(), restored.getNodeCount());
+    }
+
+    @Test
+    public void testMissingSegmentFallsBackToOlderSnapshot() throws Exception {
+        takeSnapshot(createTree(4, 10), new HashMap<>());
+        takeSnapshot(createTree(6, 20), new HashMap<>());
+
+        File[] segments = segmentsOf(20);
+        Assertions.assertTrue(segments[0].delete());
+
+        DataTree restored = new DataTree();
+        Assertions.assertEquals(10, new FileSnap(snapDir).deserialize(restored, new HashMap<>()));
+        Assertions.assertNotNull(restored.getNode("/n3"));
+        Assertions.assertNull(restored.getNode("/n5"));
+    }
+
+    @Test
+    public void testTruncatedSegmentFallsBackToOlderSnapshot() throws Exception {
+        takeSnapshot(createTree(4, 10), new HashMap<>());
+        takeSnapshot(createTree(6, 20), new HashMap<>());
+
+        File segment = segmentsOf(20)[1];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        DataTree restored = new DataTree();
+        Assertions.assertEquals(10, new FileSnap(snapDir).deserialize(restored, new HashMap<>()));
+        Assertions.assertEquals(createTree(4, 10).getTreeDigest(), restored.getTreeDigest());
+    }
+
+}
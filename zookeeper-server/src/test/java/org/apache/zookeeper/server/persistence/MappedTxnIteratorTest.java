@@ -0,0 +1,94 @@
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+public class MappedTxnIteratorTest {
+
+    @TempDir
+    File logDir;
+
+    /**
+     * Write txns with zxids 1 to count, rolling the log every perLog txns.
+     */
+    private void writeLogs(int count, int perLog, int dataSize) throws Exception {
+        FileTxnLog log = new FileTxnLog(logDir);
+        for (int zxid = 1; zxid <= count; zxid++) {
+            TxnHeader hdr = new TxnHeader(1, zxid, zxid, 0, ZooDefs.OpCode.setData);
+            log.append(hdr, new SetDataTxn("/n" + zxid, new byte[dataSize], zxid));
+            if (zxid % perLog == 0) {
+                log.commit();
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+    }
+
+    @Test
+    public void testIterateAcrossLogs() throws Exception {
+        writeLogs(300, 100, 10);
+        Assertions.assertEquals(3, logDir.listFiles((dir, name) -> name.startsWith("log.")).length);
+
+        MappedTxnIterator it = new MappedTxnIterator(logDir, 1, false);
+        try {
+            for (long zxid = 1; zxid <= 300; zxid++) {
+                Assertions.assertNotNull(it.getHeader(), "missing txn " + zxid);
+                Assertions.assertEquals(zxid, it.getHeader().getZxid());
+                Assertions.assertEquals("/n" + zxid, ((SetDataTxn) it.getTxn()).getPath());
+                Assertions.assertEquals(zxid != 300, it.next());
+            }
+        } finally {
+            it.close();
+        }
+
+        it = new MappedTxnIterator(logDir, 150, true);
+        try {
+            Assertions.assertEquals(150, it.getHeader().getZxid());
+            it.skipTo(250);
+            Assertions.assertEquals(200, it.getHeader().getZxid(), "skipTo stays in the current log");
+            Assertions.assertTrue(it.next());
+            Assertions.assertEquals(201, it.getHeader().getZxid());
+            it.skipTo(250);
+            Assertions.assertEquals(250, it.getHeader().getZxid());
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testWindowsAreUnmapped() throws Exception {
+        // records of 1MB, larger than a window once a few of them are read
+        int dataSize = 1024 * 1024 - 100;
+        writeLogs(20, 10, dataSize);
+
+        MappedTxnIterator it = new MappedTxnIterator(logDir, 1, false);
+        long zxid = 0;
+        try {
+            Assertions.assertTrue(it.isMapped());
+            do {
+                Assertions.assertEquals(++zxid, it.getHeader().getZxid());
+                Assertions.assertEquals(dataSize, ((SetDataTxn) it.getTxn()).getData().length);
+            } while (it.next());
+            Assertions.assertFalse(it.isMapped(), "the last log is unmapped once read");
+        } finally {
+            it.close();
+        }
+        Assertions.assertEquals(20, zxid);
+        Assertions.assertFalse(it.isMapped());
+
+        // the logs can be deleted, e.g. by a purge, once the iterator is closed
+        for (File f : logDir.listFiles()) {
+            Assertions.assertTrue(f.delete(), f.toString());
+        }
+
+        it = new MappedTxnIterator(logDir, 1, false);
+        it.close();
+        Assertions.assertFalse(it.isMapped());
+    }
+}
@@ -0,0 +1,151 @@
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class TxnLogIndexTest {
+
+    @TempDir
+    File logDir;
+
+    private File logFile;
+
+    private File indexFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        FileTxnLog.setTxnLogIndexInterval(10);
+        FileTxnLog log = new FileTxnLog(logDir);
+        for (int zxid = 1; zxid <= 300; zxid++) {
+            TxnHeader hdr = new TxnHeader(1, zxid, zxid, 0, ZooDefs.OpCode.setData);
+            log.append(hdr, new SetDataTxn("/n" + zxid, new byte[100], zxid));
+            if (zxid % 50 == 0) {
+                log.commit();
+            }
+        }
+        log.close();
+        logFile = new File(logDir, Util.makeLogName(1));
+        indexFile = TxnLogIndex.indexFileOf(logFile);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FileTxnLog.setTxnLogIndexInterval(1000);
+    }
+
+    private void assertReadsFrom(long zxid, long lastZxid) throws Exception {
+        try (TxnLog.TxnIterator it = new FileTxnLog(logDir).read(zxid)) {
+            for (long expected = zxid; expected <= lastZxid; expected++) {
+                Assertions.assertNotNull(it.getHeader(), "missing txn " + expected);
+                Assertions.assertEquals(expected, it.getHeader().getZxid());
+                Assertions.assertEquals("/n" + expected, ((SetDataTxn) it.getTxn()).getPath());
+                Assertions.assertEquals(expected != lastZxid, it.next());
+            }
+        }
+    }
+
+    private void writeIndex(long[]... entries) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+            out.writeInt(TxnLogIndex.MAGIC);
+            out.writeInt(TxnLogIndex.VERSION);
+            for (long[] entry : entries) {
+                out.writeLong(entry[0]);
+                out.writeLong(entry[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testIndexIsWritten() throws Exception {
+        Assertions.assertTrue(indexFile.exists());
+        Assertions.assertEquals(30, TxnLogIndex.forLog(logFile).size());
+        long[] entry = TxnLogIndex.forLog(logFile).floor(255);
+        Assertions.assertEquals(251, entry[0]);
+        assertReadsFrom(255, 300);
+    }
+
+    @Test
+    public void testMissingIndex() throws Exception {
+        Assertions.assertTrue(indexFile.delete());
+        assertReadsFrom(255, 300);
+        Assertions.assertEquals(0, TxnLogIndex.forLog(logFile).size());
+    }
+
+    @Test
+    public void testStaleIndex() throws Exception {
+        // offsets which do not point at the indexed txns
+        writeIndex(new long[] {101, 1000}, new long[] {201, 2000});
+        assertReadsFrom(255, 300);
+        Assertions.assertEquals(0, TxnLogIndex.forLog(logFile).size(), "a stale index is cleared");
+        assertReadsFrom(120, 300);
+    }
+
+    @Test
+    public void testUntrustedEntriesAreDropped() throws Exception {
+        long[] first = TxnLogIndex.forLog(logFile).floor(1);
+        long[] second = TxnLogIndex.forLog(logFile).floor(11);
+        TxnLogIndex.delete(logFile);
+
+        // a zero filled tail, as left by a crash before the index was synced
+        writeIndex(first, second, new long[] {0, 0}, new long[] {0, 0});
+        Assertions.assertEquals(2, TxnLogIndex.forLog(logFile).size());
+        assertReadsFrom(255, 300);
+        TxnLogIndex.delete(logFile);
+
+        writeIndex(first, new long[] {11, logFile.length() + 100});
+        Assertions.assertEquals(1, TxnLogIndex.forLog(logFile).size());
+        assertReadsFrom(255, 300);
+    }
+
+    private static void append(FileTxnLog log, int from, int to) throws Exception {
+        for (int zxid = from; zxid <= to; zxid++) {
+            TxnHeader hdr = new TxnHeader(1, zxid, zxid, 0, ZooDefs.OpCode.setData);
+            log.append(hdr, new SetDataTxn("/n" + zxid, new byte[100], zxid));
+        }
+    }
+
+    @Test
+    public void testIndexCoversSyncedTxnsOnly() throws Exception {
+        File dir = new File(logDir, "pipelined");
+        Assertions.assertTrue(dir.mkdir());
+        FileTxnLog log = new FileTxnLog(dir);
+        File file = new File(dir, Util.makeLogName(1));
+        append(log, 1, 50);
+        TxnLog.PendingCommit commit = log.startCommit();
+        // appended while the commit syncs
+        append(log, 51, 100);
+        commit.complete();
+        Assertions.assertEquals(5, TxnLogIndex.forLog(file).size());
+        Assertions.assertEquals(41, TxnLogIndex.forLog(file).floor(100)[0]);
+        log.commit();
+        Assertions.assertEquals(10, TxnLogIndex.forLog(file).size());
+
+        // the index of a rolled log is written once a commit synced it
+        append(log, 101, 120);
+        log.rollLog();
+        append(log, 121, 130);
+        Assertions.assertEquals(10, TxnLogIndex.forLog(file).size());
+        log.commit();
+        Assertions.assertEquals(12, TxnLogIndex.forLog(file).size());
+        Assertions.assertEquals(1, TxnLogIndex.forLog(new File(dir, Util.makeLogName(121))).size());
+        log.close();
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        Assertions.assertEquals(30, TxnLogIndex.forLog(logFile).size());
+        Assertions.assertTrue(new FileTxnLog(logDir).truncate(150));
+        Assertions.assertFalse(indexFile.exists());
+        Assertions.assertEquals(0, TxnLogIndex.forLog(logFile).size());
+        assertReadsFrom(140, 150);
+        assertReadsFrom(1, 150);
+    }
+
+}
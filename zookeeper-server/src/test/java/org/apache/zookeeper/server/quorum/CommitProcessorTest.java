@@ -0,0 +1,113 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CommitProcessorTest {
+
+    private static final long SESSION = 1;
+
+    /** what the next processor did, in order */
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    private CommitProcessor processor;
+
+    /**
+     * Records when each request starts and ends, the reads being slow enough
+     * for a write run meanwhile to show up in between.
+     */
+    private class RecordingProcessor implements RequestProcessor {
+
+        @Override
+        public void processRequest(Request request) {
+            events.add("start " + request.cxid);
+            if (request.type != OpCode.create) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            events.add("end " + request.cxid);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+    }
+
+    @BeforeEach
+    public void setUp() {
+        // the reads are served by a worker, the writes by the main thread
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS, "2");
+        processor = new CommitProcessor(new RecordingProcessor(), "test", true, (threadName, errorCode) -> { });
+        processor.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        processor.shutdown();
+        processor.join();
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS);
+    }
+
+    private static Request request(int cxid, int type) {
+        return new Request(null, SESSION, cxid, type, ByteBuffer.allocate(0), null);
+    }
+
+    private void waitForEvents(int count) throws InterruptedException {
+        QuorumCluster.waitFor(count + " events", () -> events.size() >= count);
+        Thread.sleep(200);
+        Assertions.assertEquals(count, events.size(), events.toString());
+    }
+
+    @Test
+    public void testReadIndexAndReadBeforeWrite() throws Exception {
+        Request readIndex = request(1, OpCode.readIndex);
+        processor.processRequest(readIndex);
+        processor.processRequest(request(2, OpCode.getData));
+        processor.processRequest(request(3, OpCode.create));
+        Thread.sleep(200);
+        Assertions.assertEquals(Collections.emptyList(), events, "served before the read index is committed");
+
+        // the write is committed before the read index: the read index and
+        // the read queued before it are served, and done, before it
+        processor.commit(new Request(SESSION, 3, OpCode.create, new TxnHeader(SESSION, 3, 10, 0, OpCode.create), null, 10));
+        waitForEvents(6);
+        Assertions.assertEquals(Arrays.asList("start 1", "end 1", "start 2", "end 2", "start 3", "end 3"), events);
+
+        // the late commit of the read index is not served again, nor does it
+        // hold the following reads
+        processor.commit(readIndex);
+        processor.processRequest(request(4, OpCode.getData));
+        waitForEvents(8);
+        Assertions.assertEquals(Arrays.asList("start 4", "end 4"), events.subList(6, 8));
+    }
+
+    @Test
+    public void testReadIndexHoldsItsSession() throws Exception {
+        Request readIndex = request(1, OpCode.readIndex);
+        processor.processRequest(readIndex);
+        processor.processRequest(request(2, OpCode.getData));
+        processor.processRequest(new Request(null, SESSION + 1, 9, OpCode.getData, ByteBuffer.allocate(0), null));
+        // the other session is not held
+        waitForEvents(2);
+        Assertions.assertEquals(Arrays.asList("start 9", "end 9"), events);
+
+        processor.commit(readIndex);
+        waitForEvents(6);
+        Assertions.assertEquals(Arrays.asList("start 1", "end 1", "start 2", "end 2"), events.subList(2, 6));
+    }
+
+}
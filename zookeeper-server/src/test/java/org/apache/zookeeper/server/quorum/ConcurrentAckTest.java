@@ -0,0 +1,166 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.X509Exception;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.sasl.SaslException;
+
+public class ConcurrentAckTest {
+
+    @TempDir
+    File baseDir;
+
+    /** the zxids committed by the leader, in order */
+    private final List<Long> commits = Collections.synchronizedList(new ArrayList<>());
+
+    /** tryToCommit throws when this many calls are left, if positive */
+    private final AtomicInteger failAfter = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private boolean proposalBatching;
+    private boolean concurrentAckProcessing;
+
+    private class TestPeer extends QuorumPeer {
+
+        TestPeer() throws SaslException {
+        }
+
+        @Override
+        protected Leader makeLeader(FileTxnSnapLog logFactory) throws IOException, X509Exception {
+            return new Leader(this, new LeaderZooKeeperServer(logFactory, this, getZkDb())) {
+                @Override
+                public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress followerAddr) {
+                    if (failAfter.get() > 0 && failAfter.decrementAndGet() == 0) {
+                        failures.incrementAndGet();
+                        throw new IllegalStateException("injected failure");
+                    }
+                    return super.tryToCommit(p, zxid, followerAddr);
+                }
+
+                @Override
+                public void commit(long zxid) {
+                    commits.add(zxid);
+                    super.commit(zxid);
+                }
+            };
+        }
+
+    }
+
+    @BeforeEach
+    public void setUp() {
+        proposalBatching = Leader.isProposalBatchingEnabled();
+        concurrentAckProcessing = Leader.isConcurrentAckProcessingEnabled();
+        // one ACK per proposal and follower, all counted concurrently
+        Leader.setProposalBatchingEnabled(false);
+        Leader.setConcurrentAckProcessingEnabled(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Leader.setProposalBatchingEnabled(proposalBatching);
+        Leader.setConcurrentAckProcessingEnabled(concurrentAckProcessing);
+    }
+
+    private QuorumCluster startCluster() throws Exception {
+        QuorumCluster cluster = new QuorumCluster(baseDir, 5, 0);
+        for (int id = 1; id <= 5; id++) {
+            cluster.peerFactory(id, TestPeer::new);
+        }
+        cluster.startAll();
+        return cluster;
+    }
+
+    private void write(ZooKeeper zk, String prefix, int count) throws Exception {
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            zk.create(prefix + i, new byte[16], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                      (rc, path, ctx, name) -> {
+                          if (rc != KeeperException.Code.OK.intValue()) {
+                              errors.incrementAndGet();
+                          }
+                          done.countDown();
+                      }, null);
+        }
+        Assertions.assertTrue(done.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS), "writes stalled");
+        Assertions.assertEquals(0, errors.get());
+    }
+
+    private void assertCommittedOnceInOrder(QuorumCluster cluster) throws Exception {
+        DataTree leaderTree = cluster.peer(cluster.leaderId()).getActiveServer().getZKDatabase().getDataTree();
+        List<Long> committed;
+        synchronized (commits) {
+            committed = new ArrayList<>(commits);
+        }
+        long first = committed.get(0);
+        for (int i = 0; i < committed.size(); i++) {
+            Assertions.assertEquals(first + i, (long) committed.get(i), "commit #" + i);
+        }
+        // the last commit may not be applied yet
+        long last = committed.get(committed.size() - 1);
+        QuorumCluster.waitFor("the leader to apply " + Long.toHexString(last),
+            () -> leaderTree.lastProcessedZxid >= last);
+        Assertions.assertEquals(last, leaderTree.lastProcessedZxid);
+    }
+
+    @Test
+    public void testConcurrentAcksCommitInOrder() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            int leader = cluster.leaderId();
+            List<Thread> writers = new ArrayList<>();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (int id = 1; id <= 5; id++) {
+                ZooKeeper zk = cluster.connect(id);
+                String prefix = "/n" + id + "-";
+                writers.add(new Thread(() -> {
+                    try {
+                        write(zk, prefix, 200);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            Assertions.assertEquals(Collections.emptyList(), errors);
+            Assertions.assertEquals(leader, cluster.leaderId());
+            assertCommittedOnceInOrder(cluster);
+        }
+    }
+
+    @Test
+    public void testCommitsResumeAfterAFailedPass() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            ZooKeeper zk = cluster.connect(cluster.leaderId());
+            failAfter.set(50);
+            write(zk, "/a", 200);
+            Assertions.assertEquals(1, failures.get());
+            // later acks commit the proposal whose commit failed, and what
+            // was proposed meanwhile
+            write(zk, "/b", 100);
+            assertCommittedOnceInOrder(cluster);
+        }
+    }
+
+}
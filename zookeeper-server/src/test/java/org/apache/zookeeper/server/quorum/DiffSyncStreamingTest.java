@@ -0,0 +1,174 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import javax.security.sasl.SaslException;
+
+public class DiffSyncStreamingTest {
+
+    @TempDir
+    File baseDir;
+
+    /** whether the next sync of a follower is recorded */
+    private volatile boolean armed;
+
+    /** whether the follower crashes instead of acknowledging the NEWLEADER */
+    private volatile boolean crash;
+
+    /** the DIFF, SNAP or TRUNC starting the sync */
+    private volatile int syncType = -1;
+
+    /** when the follower acknowledges the NEWLEADER */
+    private volatile long appliedZxid = -1;
+    private volatile long loggedZxid = -1;
+
+    private class TestPeer extends QuorumPeer {
+
+        TestPeer() throws SaslException {
+        }
+
+        @Override
+        protected Follower makeFollower(FileTxnSnapLog logFactory) throws IOException {
+            return new Follower(this, new FollowerZooKeeperServer(logFactory, this, getZkDb())) {
+                @Override
+                void readPacket(QuorumPacket pp) throws IOException {
+                    super.readPacket(pp);
+                    int type = pp.getType();
+                    if (armed && (type == Leader.DIFF || type == Leader.SNAP || type == Leader.TRUNC)) {
+                        syncType = type;
+                    }
+                }
+
+                @Override
+                void writePacket(QuorumPacket pp, boolean flush) throws IOException {
+                    // the first ACK of the sync is the one of the NEWLEADER
+                    if (armed && pp.getType() == Leader.ACK) {
+                        armed = false;
+                        appliedZxid = zk.getZKDatabase().getDataTreeLastProcessedZxid();
+                        // what a restart would find on disk
+                        loggedZxid = new FileTxnLog(zk.getTxnLogFactory().getDataDir()).getLastLoggedZxid();
+                        if (crash) {
+                            throw new IOException("crash before acknowledging the NEWLEADER");
+                        }
+                    }
+                    super.writePacket(pp, flush);
+                }
+            };
+        }
+
+    }
+
+    @BeforeEach
+    public void setUp() {
+        Learner.setDiffSyncStreamingEnabled(true);
+        Learner.setDiffSyncStreamingBatchSize(50);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Learner.setDiffSyncStreamingEnabled(false);
+        Learner.setDiffSyncStreamingBatchSize(1000);
+    }
+
+    /**
+     * Write while a follower is down, and restart it, so it syncs with a DIFF
+     * of the writes.
+     *
+     * @return the follower
+     */
+    private int restartBehind(QuorumCluster cluster, int writes) throws Exception {
+        for (int id = 1; id <= cluster.size(); id++) {
+            cluster.peerFactory(id, TestPeer::new);
+        }
+        cluster.startAll();
+        ZooKeeper zk = cluster.connect(cluster.leaderId());
+        zk.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        int follower = cluster.followerId();
+        cluster.stop(follower);
+        for (int i = 0; i < writes; i++) {
+            zk.create("/a/n", new byte[16], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+        }
+        armed = true;
+        cluster.start(follower);
+        cluster.waitForServing(follower);
+        return follower;
+    }
+
+    private static long leaderZxid(QuorumCluster cluster) throws InterruptedException {
+        return cluster.peer(cluster.leaderId()).getActiveServer().getZKDatabase().getDataTreeLastProcessedZxid();
+    }
+
+    private static void assertSameTree(QuorumCluster cluster, int id) throws Exception {
+        DataTree leaderTree = cluster.peer(cluster.leaderId()).getActiveServer().getZKDatabase().getDataTree();
+        DataTree tree = cluster.peer(id).getActiveServer().getZKDatabase().getDataTree();
+        QuorumCluster.waitFor("server " + id + " to catch up",
+            () -> tree.lastProcessedZxid == leaderTree.lastProcessedZxid);
+        Assertions.assertEquals(leaderTree.getTreeDigest(), tree.getTreeDigest());
+    }
+
+    @Test
+    public void testStreamedDiff() throws Exception {
+        try (QuorumCluster cluster = new QuorumCluster(baseDir, 3, 0)) {
+            int follower = restartBehind(cluster, 200);
+            Assertions.assertEquals(Leader.DIFF, syncType);
+            // the txns are applied and logged by the NEWLEADER
+            long zxid = leaderZxid(cluster);
+            Assertions.assertEquals(zxid, appliedZxid);
+            Assertions.assertEquals(zxid, loggedZxid);
+            assertSameTree(cluster, follower);
+            Assertions.assertEquals(200, cluster.connect(follower).getChildren("/a", false).size());
+
+            // and the follower keeps up afterwards
+            cluster.connect(follower).create("/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            assertSameTree(cluster, follower);
+        }
+    }
+
+    @Test
+    public void testBufferedDiff() throws Exception {
+        Learner.setDiffSyncStreamingEnabled(false);
+        try (QuorumCluster cluster = new QuorumCluster(baseDir, 3, 0)) {
+            int follower = restartBehind(cluster, 200);
+            Assertions.assertEquals(Leader.DIFF, syncType);
+            // the txns are only applied with the UPTODATE
+            Assertions.assertTrue(appliedZxid < leaderZxid(cluster));
+            assertSameTree(cluster, follower);
+        }
+    }
+
+    @Test
+    public void testCrashAfterNewLeader() throws Exception {
+        crash = true;
+        try (QuorumCluster cluster = new QuorumCluster(baseDir, 3, 0)) {
+            int follower = restartBehind(cluster, 200);
+            // the txns logged before the crash are on disk
+            long zxid = leaderZxid(cluster);
+            Assertions.assertEquals(zxid, loggedZxid);
+
+            // the follower synced again, and has them after a restart
+            assertSameTree(cluster, follower);
+            cluster.stop(follower);
+            FileTxnSnapLog snapLog = new FileTxnSnapLog(cluster.dataDir(follower), cluster.dataDir(follower));
+            try {
+                Assertions.assertEquals(zxid, new ZKDatabase(snapLog).loadDataBase());
+            } finally {
+                snapLog.close();
+            }
+            cluster.start(follower);
+            cluster.waitForServing(follower);
+            assertSameTree(cluster, follower);
+        }
+    }
+
+}
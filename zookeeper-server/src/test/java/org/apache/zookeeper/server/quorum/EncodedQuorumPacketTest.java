@@ -0,0 +1,80 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EncodedQuorumPacketTest {
+
+    @TempDir
+    File baseDir;
+
+    @Test
+    public void testEncodedLikeQuorumPacket() throws Exception {
+        byte[] data = new byte[] {1, 2, 3};
+        for (EncodedQuorumPacket packet : new EncodedQuorumPacket[] {
+            new EncodedQuorumPacket(Leader.PROPOSAL, 0x100000001L, data),
+            new EncodedQuorumPacket(Leader.COMMIT, 0x100000001L, null)}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            BinaryOutputArchive.getArchive(expected).writeRecord(
+                new QuorumPacket(packet.getType(), packet.getZxid(), packet.getData(), null), "packet");
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            packet.writeTo(encoded);
+            Assertions.assertArrayEquals(expected.toByteArray(), encoded.toByteArray());
+            Assertions.assertEquals(encoded.size(), packet.getEncodedLength());
+
+            QuorumPacket read = new QuorumPacket();
+            BinaryInputArchive.getArchive(new ByteArrayInputStream(encoded.toByteArray())).readRecord(read, "packet");
+            Assertions.assertEquals(packet.getType(), read.getType());
+            Assertions.assertEquals(packet.getZxid(), read.getZxid());
+            Assertions.assertArrayEquals(packet.getData(), read.getData());
+        }
+        EncodedQuorumPacket packet = new EncodedQuorumPacket(Leader.COMMIT, 1, null);
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> packet.setZxid(2));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> packet.setData(data));
+    }
+
+    @Test
+    public void testEnsembleConverges() throws Exception {
+        try (QuorumCluster cluster = new QuorumCluster(baseDir, 3, 1)) {
+            cluster.startAll();
+            int leader = cluster.leaderId();
+            int follower = cluster.followerId();
+
+            int count = 200;
+            CountDownLatch created = new CountDownLatch(2 * count);
+            for (int id : new int[] {leader, follower}) {
+                ZooKeeper zk = cluster.connect(id);
+                for (int i = 0; i < count; i++) {
+                    zk.create("/s" + id + "-" + i, new byte[i], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                              (rc, path, ctx, name) -> created.countDown(), null);
+                }
+            }
+            Assertions.assertTrue(created.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // every learner, the observer included, got the same proposals
+            DataTree leaderTree = cluster.peer(leader).getActiveServer().getZKDatabase().getDataTree();
+            for (int id = 1; id <= cluster.size(); id++) {
+                DataTree tree = cluster.peer(id).getActiveServer().getZKDatabase().getDataTree();
+                QuorumCluster.waitFor("server " + id + " to catch up",
+                    () -> tree.lastProcessedZxid == leaderTree.lastProcessedZxid);
+                Assertions.assertEquals(leaderTree.getNodeCount(), tree.getNodeCount());
+                Assertions.assertEquals(leaderTree.getTreeDigest(), tree.getTreeDigest());
+                Assertions.assertEquals(150, tree.getNode("/s" + follower + "-150").getData().length);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+public class NioQuorumCnxManagerTest {
+
+    @TempDir
+    File baseDir;
+
+    @BeforeEach
+    public void setUp() {
+        NioQuorumCnxManager.setNioTransportEnabled(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        NioQuorumCnxManager.setNioTransportEnabled(false);
+    }
+
+    private static void assertSameTree(QuorumCluster cluster, int... ids) throws Exception {
+        DataTree leaderTree = cluster.peer(cluster.leaderId()).getActiveServer().getZKDatabase().getDataTree();
+        for (int id : ids) {
+            DataTree tree = cluster.peer(id).getActiveServer().getZKDatabase().getDataTree();
+            QuorumCluster.waitFor("server " + id + " to catch up",
+                () -> tree.lastProcessedZxid == leaderTree.lastProcessedZxid);
+            Assertions.assertEquals(leaderTree.getTreeDigest(), tree.getTreeDigest());
+        }
+    }
+
+    @Test
+    public void testLeaderElection() throws Exception {
+        try (QuorumCluster cluster = new QuorumCluster(baseDir, 5, 0)) {
+            cluster.startAll();
+            for (int id = 1; id <= 5; id++) {
+                Assertions.assertTrue(cluster.peer(id).getQuorumCnxManager() instanceof NioQuorumCnxManager);
+            }
+            // the highest id wins the first election, having the same zxid
+            int leader = cluster.leaderId();
+            Assertions.assertEquals(5, leader);
+            ZooKeeper zk = cluster.connect(cluster.followerId());
+            zk.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            // the others elect a new leader, which has the write
+            cluster.stop(leader);
+            cluster.waitForServing();
+            int newLeader = cluster.leaderId();
+            Assertions.assertNotEquals(leader, newLeader);
+            ZooKeeper zk2 = cluster.connect(newLeader);
+            Assertions.assertNotNull(zk2.exists("/a", false));
+            zk2.create("/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            // the old leader joins the new one, through a connection it
+            // initiates to the lower ids and accepts from the higher ones
+            cluster.start(leader);
+            cluster.waitForServing(leader);
+            Assertions.assertNotNull(cluster.peer(leader).follower);
+            assertSameTree(cluster, 1, 2, 3, 4, 5);
+        }
+    }
+
+    @Test
+    public void testElectionAfterLosingQuorum() throws Exception {
+        try (QuorumCluster cluster = new QuorumCluster(baseDir, 3, 0)) {
+            cluster.startAll();
+            int leader = cluster.leaderId();
+            int follower = cluster.followerId();
+            cluster.connect(leader).create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            // the remaining server cannot lead alone
+            cluster.stop(leader);
+            cluster.stop(follower);
+            int remaining = 6 - leader - follower;
+            QuorumCluster.waitFor("server " + remaining + " to look for a leader",
+                () -> !cluster.isServing(remaining));
+
+            cluster.start(follower);
+            cluster.waitForServing();
+            cluster.start(leader);
+            cluster.waitForServing();
+            ZooKeeper zk = cluster.connect(leader);
+            Assertions.assertNotNull(zk.exists("/a", false));
+            zk.create("/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            assertSameTree(cluster, 1, 2, 3);
+        }
+    }
+
+}
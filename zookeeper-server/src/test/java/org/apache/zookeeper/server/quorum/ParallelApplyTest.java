@@ -0,0 +1,184 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ParallelApplyTest {
+
+    /** the session of the write holding the processor while a batch is committed */
+    private static final long BLOCKER = 100;
+
+    /** the txns applied ahead and the writes sent to the next processor */
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile CountDownLatch unblock = new CountDownLatch(1);
+
+    private ZooKeeperServer zks;
+
+    private CommitProcessor processor;
+
+    private class RecordingProcessor implements RequestProcessor {
+
+        @Override
+        public void processRequest(Request request) {
+            if (request.sessionId == BLOCKER) {
+                try {
+                    unblock.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            events.add("write " + request.cxid);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+    }
+
+    @BeforeEach
+    public void setUp() {
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS, "2");
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE, "16");
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY_ENABLED, "true");
+        zks = mock(ZooKeeperServer.class, RETURNS_DEEP_STUBS);
+        doAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            events.add("apply " + request.cxid);
+            return null;
+        }).when(zks).applyTxn(any());
+        processor = new CommitProcessor(new RecordingProcessor(), "test", true, (threadName, errorCode) -> { }, zks);
+        processor.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        unblock.countDown();
+        processor.shutdown();
+        processor.join();
+        CommitProcessor.setParallelApplyEnabled(false);
+        CommitProcessor.setMaxCommitBatchSize(1);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY_ENABLED);
+    }
+
+    private static Request write(int cxid, long session, int type, Record txn) {
+        long zxid = 10 + cxid;
+        return new Request(session, cxid, type, new TxnHeader(session, cxid, zxid, 0, type), txn, zxid);
+    }
+
+    private static Request create(int cxid, long session, String path) {
+        return write(cxid, session, OpCode.create, new CreateTxn(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+    }
+
+    private static Request setData(int cxid, long session, String path) {
+        return write(cxid, session, OpCode.setData, new SetDataTxn(path, new byte[0], 1));
+    }
+
+    /**
+     * Commit the writes while the processor is busy with an earlier one, so
+     * they are all processed in the same batch, and wait for them.
+     */
+    private void commitBatch(Request... writes) throws InterruptedException {
+        unblock = new CountDownLatch(1);
+        processor.commit(write(0, BLOCKER, OpCode.createSession, new CreateSessionTxn(30000)));
+        for (Request request : writes) {
+            processor.commit(request);
+        }
+        unblock.countDown();
+        QuorumCluster.waitFor("the writes", () -> {
+            synchronized (events) {
+                return events.stream().filter(e -> e.startsWith("write")).count() == writes.length;
+            }
+        });
+    }
+
+    private static void assertAppliedTogether(List<String> events, String... applied) {
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(applied)), new HashSet<>(events), events.toString());
+    }
+
+    @Test
+    public void testDisjointWritesAppliedTogether() throws Exception {
+        commitBatch(create(1, 1, "/a"), setData(2, 2, "/b"), create(3, 3, "/c/d"));
+        // the txns are applied in any order, the writes are completed in zxid order
+        assertAppliedTogether(events.subList(0, 3), "apply 1", "apply 2", "apply 3");
+        Assertions.assertEquals(Arrays.asList("write 1", "write 2", "write 3"), events.subList(3, 6));
+    }
+
+    @Test
+    public void testSharedPath() throws Exception {
+        // the second one changes the node created by the first one
+        commitBatch(create(1, 1, "/a"), setData(2, 2, "/b"), setData(3, 3, "/a"), setData(4, 4, "/c"));
+        assertAppliedTogether(events.subList(0, 2), "apply 1", "apply 2");
+        Assertions.assertEquals(Arrays.asList("write 1", "write 2"), events.subList(2, 4));
+        assertAppliedTogether(events.subList(4, 6), "apply 3", "apply 4");
+        Assertions.assertEquals(Arrays.asList("write 3", "write 4"), events.subList(6, 8));
+    }
+
+    @Test
+    public void testSharedParent() throws Exception {
+        // both change the children of /a
+        commitBatch(create(1, 1, "/a/x"), create(2, 2, "/a/y"));
+        Assertions.assertEquals(Arrays.asList("apply 1", "write 1", "write 2"), events);
+        events.clear();
+        // and of the root
+        commitBatch(create(3, 1, "/b"), create(4, 2, "/c"));
+        Assertions.assertEquals(Arrays.asList("apply 3", "write 3", "write 4"), events);
+    }
+
+    @Test
+    public void testSharedSession() throws Exception {
+        commitBatch(setData(1, 1, "/a"), setData(2, 1, "/b"));
+        Assertions.assertEquals(Arrays.asList("apply 1", "write 1", "write 2"), events);
+    }
+
+    @Test
+    public void testUnknownTxnsProcessedAlone() throws Exception {
+        commitBatch(
+            create(1, 1, "/a"),
+            write(2, 2, OpCode.createSession, new CreateSessionTxn(30000)),
+            setData(3, 3, "/zookeeper/quota"),
+            setData(4, 4, "/b"),
+            setData(5, 5, "/c"));
+        // the writes before them are completed first
+        Assertions.assertEquals(Arrays.asList("apply 1", "write 1", "write 2", "write 3"), events.subList(0, 4));
+        assertAppliedTogether(events.subList(4, 6), "apply 4", "apply 5");
+        Assertions.assertEquals(Arrays.asList("write 4", "write 5"), events.subList(6, 8));
+    }
+
+    @Test
+    public void testSnapshotDigestTxnProcessedAlone() throws Exception {
+        // the tree is compared with the snapshot digest after the txn of zxid 12
+        when(zks.getZKDatabase().getDataTree().isSnapshotDigestZxid(12)).thenReturn(true);
+        commitBatch(setData(1, 1, "/a"), setData(2, 2, "/b"), setData(3, 3, "/c"));
+        Assertions.assertEquals(Arrays.asList("apply 1", "write 1", "write 2", "write 3"), events);
+    }
+
+}
@@ -0,0 +1,182 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.X509Exception;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.sasl.SaslException;
+
+public class ProposalBatchingTest {
+
+    @TempDir
+    File baseDir;
+
+    /** the zxids committed by the leader, in order */
+    private final List<Long> commits = Collections.synchronizedList(new ArrayList<>());
+
+    /** the cumulative ACKs received for more than one proposal */
+    private final AtomicInteger rangeAcks = new AtomicInteger();
+
+    /**
+     * A peer which records the commits it sends as leader, and which can
+     * follow with the protocol of a peer without proposal batching.
+     */
+    private class TestPeer extends QuorumPeer {
+
+        private final boolean legacy;
+
+        TestPeer(boolean legacy) throws SaslException {
+            this.legacy = legacy;
+        }
+
+        @Override
+        protected Leader makeLeader(FileTxnSnapLog logFactory) throws IOException, X509Exception {
+            return new Leader(this, new LeaderZooKeeperServer(logFactory, this, getZkDb())) {
+                @Override
+                public void commit(long zxid) {
+                    commits.add(zxid);
+                    super.commit(zxid);
+                }
+
+                @Override
+                public void processCumulativeAck(long sid, long lastAckedZxid, long zxid, SocketAddress followerAddr) {
+                    if (lastAckedZxid != 0 && zxid > lastAckedZxid + 1) {
+                        rangeAcks.incrementAndGet();
+                    }
+                    super.processCumulativeAck(sid, lastAckedZxid, zxid, followerAddr);
+                }
+            };
+        }
+
+        @Override
+        protected Follower makeFollower(FileTxnSnapLog logFactory) throws IOException {
+            if (!legacy) {
+                return super.makeFollower(logFactory);
+            }
+            return new Follower(this, new FollowerZooKeeperServer(logFactory, this, getZkDb())) {
+                @Override
+                int getProtocolVersion() {
+                    return 0x10000;
+                }
+            };
+        }
+
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Leader.setProposalBatchingEnabled(true);
+    }
+
+    private QuorumCluster startCluster(int legacyId) throws Exception {
+        QuorumCluster cluster = new QuorumCluster(baseDir, 3, 0);
+        for (int id = 1; id <= 3; id++) {
+            boolean legacy = id == legacyId;
+            cluster.peerFactory(id, () -> new TestPeer(legacy));
+        }
+        cluster.startAll();
+        return cluster;
+    }
+
+    /**
+     * Write from every server at once, so proposals queue up and are batched.
+     */
+    private void writeFromAll(QuorumCluster cluster, int count) throws Exception {
+        CountDownLatch done = new CountDownLatch(3 * count);
+        AtomicInteger failures = new AtomicInteger();
+        for (int id = 1; id <= 3; id++) {
+            ZooKeeper zk = cluster.connect(id);
+            for (int i = 0; i < count; i++) {
+                zk.create("/n" + id + "-" + i, new byte[64], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                          (rc, path, ctx, name) -> {
+                              if (rc != KeeperException.Code.OK.intValue()) {
+                                  failures.incrementAndGet();
+                              }
+                              done.countDown();
+                          }, null);
+            }
+        }
+        Assertions.assertTrue(done.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(0, failures.get());
+    }
+
+    private void assertCommittedOnceInOrder(QuorumCluster cluster) throws Exception {
+        int leader = cluster.leaderId();
+        DataTree leaderTree = cluster.peer(leader).getActiveServer().getZKDatabase().getDataTree();
+        List<Long> committed;
+        synchronized (commits) {
+            committed = new ArrayList<>(commits);
+        }
+        Assertions.assertFalse(committed.isEmpty());
+        // the zxids of an epoch are consecutive, every one is committed once
+        long first = committed.get(0);
+        for (int i = 0; i < committed.size(); i++) {
+            Assertions.assertEquals(first + i, (long) committed.get(i), "commit #" + i);
+        }
+        Assertions.assertEquals(1, first & 0xffffffffL);
+        Assertions.assertEquals(leaderTree.lastProcessedZxid, (long) committed.get(committed.size() - 1));
+
+        for (int id = 1; id <= 3; id++) {
+            DataTree tree = cluster.peer(id).getActiveServer().getZKDatabase().getDataTree();
+            QuorumCluster.waitFor("server " + id + " to catch up",
+                () -> tree.lastProcessedZxid == leaderTree.lastProcessedZxid);
+            Assertions.assertEquals(leaderTree.getTreeDigest(), tree.getTreeDigest());
+        }
+    }
+
+    @Test
+    public void testCumulativeAcksCommitEveryZxidOnce() throws Exception {
+        try (QuorumCluster cluster = startCluster(-1)) {
+            Leader leader = cluster.peer(cluster.leaderId()).leader;
+            for (LearnerHandler handler : leader.getLearners()) {
+                Assertions.assertTrue(handler.isBatchingNegotiated(), "follower " + handler.getSid());
+            }
+            writeFromAll(cluster, 300);
+            assertCommittedOnceInOrder(cluster);
+            Assertions.assertTrue(rangeAcks.get() > 0, "no ACK covered several proposals");
+        }
+    }
+
+    @Test
+    public void testFollowerWithoutBatching() throws Exception {
+        try (QuorumCluster cluster = startCluster(1)) {
+            int leaderId = cluster.leaderId();
+            Assumptions.assumeTrue(leaderId != 1, "the legacy peer was elected");
+            for (LearnerHandler handler : cluster.peer(leaderId).leader.getLearners()) {
+                Assertions.assertEquals(handler.getSid() != 1, handler.isBatchingNegotiated(),
+                                        "follower " + handler.getSid());
+            }
+            writeFromAll(cluster, 300);
+            assertCommittedOnceInOrder(cluster);
+        }
+    }
+
+    @Test
+    public void testBatchingDisabledOnTheLeader() throws Exception {
+        Leader.setProposalBatchingEnabled(false);
+        try (QuorumCluster cluster = startCluster(-1)) {
+            for (LearnerHandler handler : cluster.peer(cluster.leaderId()).leader.getLearners()) {
+                Assertions.assertFalse(handler.isBatchingNegotiated());
+            }
+            writeFromAll(cluster, 100);
+            assertCommittedOnceInOrder(cluster);
+        }
+    }
+
+}
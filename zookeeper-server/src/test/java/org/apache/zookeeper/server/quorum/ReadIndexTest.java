@@ -0,0 +1,263 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.security.sasl.SaslException;
+
+public class ReadIndexTest {
+
+    @TempDir
+    File baseDir;
+
+    /**
+     * A peer whose follower holds the packets of the given types, until they
+     * are no longer held and it receives another packet. The other packets
+     * are processed meanwhile.
+     */
+    private static class TestPeer extends QuorumPeer {
+
+        final Set<Integer> held = ConcurrentHashMap.newKeySet();
+
+        TestPeer() throws SaslException {
+        }
+
+        @Override
+        protected Follower makeFollower(FileTxnSnapLog logFactory) throws IOException {
+            return new Follower(this, new FollowerZooKeeperServer(logFactory, this, getZkDb())) {
+                private final List<QuorumPacket> heldPackets = new ArrayList<>();
+
+                @Override
+                protected void processPacket(QuorumPacket qp) throws Exception {
+                    if (held.contains(qp.getType())) {
+                        // the packet is read again into qp
+                        heldPackets.add(new QuorumPacket(qp.getType(), qp.getZxid(), qp.getData(), qp.getAuthinfo()));
+                        return;
+                    }
+                    Iterator<QuorumPacket> iter = heldPackets.iterator();
+                    while (iter.hasNext()) {
+                        QuorumPacket packet = iter.next();
+                        if (!held.contains(packet.getType())) {
+                            iter.remove();
+                            super.processPacket(packet);
+                        }
+                    }
+                    super.processPacket(qp);
+                }
+            };
+        }
+
+    }
+
+    @BeforeEach
+    public void setUp() {
+        // the commits are sent in COMMIT packets
+        Leader.setProposalBatchingEnabled(false);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Leader.setProposalBatchingEnabled(true);
+        Leader.setReadIndexEnabled(true);
+        Leader.setReadIndexLeaseMs(0);
+    }
+
+    private QuorumCluster startCluster() throws Exception {
+        QuorumCluster cluster = new QuorumCluster(baseDir, 3, 0);
+        for (int id = 1; id <= 3; id++) {
+            cluster.peerFactory(id, TestPeer::new);
+        }
+        cluster.startAll();
+        return cluster;
+    }
+
+    private static void hold(QuorumCluster cluster, int id, int type) throws InterruptedException {
+        ((TestPeer) cluster.peer(id)).held.add(type);
+    }
+
+    private static void release(QuorumCluster cluster, int id, int type) throws InterruptedException {
+        ((TestPeer) cluster.peer(id)).held.remove(type);
+    }
+
+    private static CompletableFuture<byte[]> getData(ZooKeeper zk, String path) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        zk.getData(path, null, (rc, p, ctx, data, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                future.complete(data);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+            }
+        }, null, true);
+        return future;
+    }
+
+    private static void assertPending(CompletableFuture<?> future) throws Exception {
+        Assertions.assertThrows(TimeoutException.class, () -> future.get(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLinearizableReads() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            ZooKeeper leader = cluster.connect(cluster.leaderId());
+            ZooKeeper follower = cluster.connect(cluster.followerId());
+            for (int i = 0; i < 20; i++) {
+                leader.create("/n" + i, new byte[] {(byte) i}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                Stat stat = new Stat();
+                Assertions.assertArrayEquals(new byte[] {(byte) i}, follower.getData("/n" + i, null, stat, true));
+                Assertions.assertEquals(stat, follower.exists("/n" + i, null, true));
+                Assertions.assertEquals(i + 1, follower.getChildren("/", null, null, true).size() - 1);
+            }
+            Assertions.assertNull(follower.exists("/missing", null, true));
+            Assertions.assertThrows(KeeperException.NoNodeException.class, () -> follower.getData("/missing", null, null, true));
+            // and served on the leader as well
+            Assertions.assertArrayEquals(new byte[] {19}, leader.getData("/n19", null, null, true));
+
+            // the asynchronous forms
+            leader.create("/last", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            CompletableFuture<Stat> exists = new CompletableFuture<>();
+            follower.exists("/last", null, (rc, p, ctx, stat) -> exists.complete(stat), null, true);
+            Assertions.assertNotNull(exists.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            CompletableFuture<List<String>> children = new CompletableFuture<>();
+            follower.getChildren("/", null, (rc, p, ctx, list, stat) -> children.complete(list), null, true);
+            Assertions.assertTrue(children.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS).contains("last"));
+        }
+    }
+
+    @Test
+    public void testFollowerWaitsForTheReadIndex() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            ZooKeeper leader = cluster.connect(cluster.leaderId());
+            int followerId = cluster.followerId();
+            ZooKeeper follower = cluster.connect(followerId);
+
+            // the follower acknowledges the write, but does not apply it
+            hold(cluster, followerId, Leader.COMMIT);
+            leader.create("/a", new byte[] {1}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            Assertions.assertNull(follower.exists("/a", false), "the follower applied the write");
+
+            CompletableFuture<byte[]> read = getData(follower, "/a");
+            assertPending(read);
+            release(cluster, followerId, Leader.COMMIT);
+            Assertions.assertArrayEquals(new byte[] {1}, read.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testLeaderWaitsForAQuorum() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            int leaderId = cluster.leaderId();
+            ZooKeeper leader = cluster.connect(leaderId);
+            leader.create("/a", new byte[] {1}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            List<Integer> followers = new ArrayList<>();
+            for (int id = 1; id <= 3; id++) {
+                if (id != leaderId) {
+                    followers.add(id);
+                }
+            }
+
+            // one follower answering the pings is enough
+            hold(cluster, followers.get(0), Leader.PING);
+            Assertions.assertArrayEquals(new byte[] {1}, getData(leader, "/a").get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // no follower answers, for less than the sync limit
+            hold(cluster, followers.get(1), Leader.PING);
+            CompletableFuture<byte[]> read = getData(leader, "/a");
+            assertPending(read);
+            release(cluster, followers.get(1), Leader.PING);
+            Assertions.assertArrayEquals(new byte[] {1}, read.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            release(cluster, followers.get(0), Leader.PING);
+        }
+    }
+
+    @Test
+    public void testLeaderLease() throws Exception {
+        Leader.setReadIndexLeaseMs(60000);
+        try (QuorumCluster cluster = startCluster()) {
+            int leaderId = cluster.leaderId();
+            ZooKeeper leader = cluster.connect(leaderId);
+            leader.create("/a", new byte[] {1}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            int followerId = cluster.followerId();
+            ZooKeeper follower = cluster.connect(followerId);
+            // the lease starts with a ping round answered by the followers
+            Leader leaderPeer = cluster.peer(leaderId).leader;
+            long start = System.nanoTime();
+            QuorumCluster.waitFor("a ping round", () -> {
+                for (LearnerHandler handler : leaderPeer.getLearners()) {
+                    if (!handler.isPingAnsweredSince(start)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            List<Integer> held = new ArrayList<>();
+            for (int id = 1; id <= 3; id++) {
+                if (id != leaderId) {
+                    hold(cluster, id, Leader.PING);
+                    held.add(id);
+                }
+            }
+            // a quorum answered a ping within the lease, capped to the sync
+            // limit: no ping round
+            Assertions.assertArrayEquals(new byte[] {1}, getData(leader, "/a").get(1000, TimeUnit.MILLISECONDS));
+            // the follower still asks the leader
+            Assertions.assertArrayEquals(new byte[] {1}, getData(follower, "/a").get(1000, TimeUnit.MILLISECONDS));
+            for (int id : held) {
+                release(cluster, id, Leader.PING);
+            }
+
+            // past the lease, the leader waits for the pings again; the pings
+            // are held for less than the sync limit, after which the leader
+            // would give up the followers
+            Leader.setReadIndexLeaseMs(200);
+            for (int id : held) {
+                hold(cluster, id, Leader.PING);
+            }
+            Thread.sleep(400);
+            CompletableFuture<byte[]> read = getData(leader, "/a");
+            assertPending(read);
+            for (int id : held) {
+                release(cluster, id, Leader.PING);
+            }
+            Assertions.assertArrayEquals(new byte[] {1}, read.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testReadIndexDisabled() throws Exception {
+        Leader.setReadIndexEnabled(false);
+        try (QuorumCluster cluster = startCluster()) {
+            ZooKeeper leader = cluster.connect(cluster.leaderId());
+            ZooKeeper follower = cluster.connect(cluster.followerId());
+            leader.create("/a", new byte[] {1}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            // served like the reads following a sync
+            Assertions.assertArrayEquals(new byte[] {1}, follower.getData("/a", null, null, true));
+            Assertions.assertArrayEquals(new byte[] {1}, leader.getData("/a", null, null, true));
+            Assertions.assertEquals(Collections.singletonList("a"), filter(follower.getChildren("/", null, null, true)));
+        }
+    }
+
+    private static List<String> filter(List<String> children) {
+        List<String> filtered = new ArrayList<>(children);
+        filtered.remove("zookeeper");
+        return filtered;
+    }
+
+}
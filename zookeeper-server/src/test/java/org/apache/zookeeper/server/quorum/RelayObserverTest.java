@@ -0,0 +1,125 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+public class RelayObserverTest {
+
+    private static final int RELAY = 4;
+
+    private static final int OBSERVER = 5;
+
+    @TempDir
+    File baseDir;
+
+    @BeforeEach
+    public void setUp() {
+        Observer.setRelayEnabled(true);
+        Observer.setRelayMasters(Integer.toString(RELAY));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Observer.setRelayEnabled(false);
+        Observer.setRelayMasters("");
+    }
+
+    /**
+     * 3 voters and 2 observers, all with the same observerMasterPort on their
+     * own address, the second observer syncing with the first one.
+     */
+    private QuorumCluster startCluster() throws Exception {
+        QuorumCluster cluster = new QuorumCluster(baseDir, 3, 2).distinctAddresses();
+        for (int id = 1; id <= cluster.size(); id++) {
+            cluster.config(id, "observerMasterPort", Integer.toString(cluster.observerMasterPort(1)));
+        }
+        for (int id = 1; id <= RELAY; id++) {
+            cluster.start(id);
+        }
+        cluster.waitForServing();
+        cluster.start(OBSERVER);
+        cluster.waitForServing(OBSERVER);
+        return cluster;
+    }
+
+    private static long learnerMaster(QuorumCluster cluster, int id) throws InterruptedException {
+        return cluster.peer(id).observer.getCurrentLearnerMaster().getId();
+    }
+
+    private static void assertSameTree(QuorumCluster cluster, int id) throws Exception {
+        DataTree leaderTree = cluster.peer(cluster.leaderId()).getActiveServer().getZKDatabase().getDataTree();
+        DataTree tree = cluster.peer(id).getActiveServer().getZKDatabase().getDataTree();
+        QuorumCluster.waitFor("server " + id + " to catch up",
+            () -> tree.lastProcessedZxid == leaderTree.lastProcessedZxid);
+        Assertions.assertEquals(leaderTree.getTreeDigest(), tree.getTreeDigest());
+    }
+
+    @Test
+    public void testObserverSyncsWithRelay() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            // the relay syncs with a voter, and the observer with the relay
+            Assertions.assertTrue(learnerMaster(cluster, RELAY) <= 3);
+            Assertions.assertEquals(RELAY, learnerMaster(cluster, OBSERVER));
+            Assertions.assertEquals(Integer.valueOf(1), cluster.peer(RELAY).getSynced_observers_metric());
+
+            // the txns are relayed to the observer, its writes are passed
+            // upstream
+            ZooKeeper leader = cluster.connect(cluster.leaderId());
+            ZooKeeper observer = cluster.connect(OBSERVER);
+            leader.create("/a", new byte[] {1}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            observer.create("/b", new byte[] {2}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            Assertions.assertArrayEquals(new byte[] {1}, observer.getData("/a", false, null));
+            Assertions.assertNotNull(leader.exists("/b", false));
+            assertSameTree(cluster, RELAY);
+            assertSameTree(cluster, OBSERVER);
+
+            // the session of the observer is known upstream, and closed there
+            long session = observer.getSessionId();
+            Assertions.assertTrue(cluster.peer(cluster.leaderId()).getActiveServer().getSessionTracker()
+                                      .isTrackingSession(session));
+            observer.close();
+            QuorumCluster.waitFor("the ephemeral node to be deleted", () -> {
+                try {
+                    return leader.exists("/b", false) == null;
+                } catch (Exception e) {
+                    return false;
+                }
+            });
+            assertSameTree(cluster, OBSERVER);
+        }
+    }
+
+    @Test
+    public void testObserverFallsBackToVoters() throws Exception {
+        try (QuorumCluster cluster = startCluster()) {
+            Assertions.assertEquals(RELAY, learnerMaster(cluster, OBSERVER));
+            ZooKeeper leader = cluster.connect(cluster.leaderId());
+            leader.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            cluster.stop(RELAY);
+            QuorumCluster.waitFor("the observer to sync with a voter", () -> {
+                try {
+                    return cluster.isServing(OBSERVER) && learnerMaster(cluster, OBSERVER) <= 3;
+                } catch (Exception e) {
+                    return false;
+                }
+            });
+            leader.create("/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            assertSameTree(cluster, OBSERVER);
+            Assertions.assertNotNull(cluster.connect(OBSERVER).exists("/b", false));
+
+            // the relay catches up when it is back
+            cluster.start(RELAY);
+            cluster.waitForServing(RELAY);
+            assertSameTree(cluster, RELAY);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.QuorumCluster;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.sasl.SaslException;
+
+public class RequestBatchTest {
+
+    @TempDir
+    File baseDir;
+
+    /** the number of requests of each REQUESTBATCH sent by a learner */
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    /** the REQUEST packets sent alone by a learner */
+    private final AtomicInteger singleRequests = new AtomicInteger();
+
+    private void recordSent(QuorumPacket pp) {
+        if (pp.getType() == Leader.REQUESTBATCH) {
+            batchSizes.add(ByteBuffer.wrap(pp.getData()).getInt());
+        } else if (pp.getType() == Leader.REQUEST) {
+            singleRequests.incrementAndGet();
+        }
+    }
+
+    private class TestPeer extends QuorumPeer {
+
+        TestPeer() throws SaslException {
+        }
+
+        @Override
+        protected Follower makeFollower(FileTxnSnapLog logFactory) throws IOException {
+            return new Follower(this, new FollowerZooKeeperServer(logFactory, this, getZkDb())) {
+                @Override
+                void writePacket(QuorumPacket pp, boolean flush) throws IOException {
+                    recordSent(pp);
+                    super.writePacket(pp, flush);
+                }
+            };
+        }
+
+        @Override
+        protected Observer makeObserver(FileTxnSnapLog logFactory) throws IOException {
+            return new Observer(this, new ObserverZooKeeperServer(logFactory, this, getZkDb())) {
+                @Override
+                void writePacket(QuorumPacket pp, boolean flush) throws IOException {
+                    recordSent(pp);
+                    super.writePacket(pp, flush);
+                }
+            };
+        }
+
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Learner.setRequestBatchingEnabled(true);
+        Learner.setMaxRequestBatchSize(64);
+    }
+
+    private QuorumCluster startCluster() throws Exception {
+        QuorumCluster cluster = new QuorumCluster(baseDir, 3, 1);
+        for (int id = 1; id <= cluster.size(); id++) {
+            cluster.peerFactory(id, TestPeer::new);
+        }
+        cluster.startAll();
+        return cluster;
+    }
+
+    /**
+     * Send bursts of writes from a follower and from the observer, and check
+     * each session sees its sequential nodes created in order.
+     */
+    private void writeFromLearners(QuorumCluster cluster, int count) throws Exception {
+        int[] learners = {cluster.followerId(), cluster.size()};
+        for (int id : learners) {
+            cluster.connect(id).create("/s" + id, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        CountDownLatch done = new CountDownLatch(2 * count);
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int id : learners) {
+            ZooKeeper zk = cluster.connect(id);
+            String[] last = {""};
+            for (int i = 0; i < count; i++) {
+                zk.create("/s" + id + "/n", new byte[8], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL,
+                          (rc, path, ctx, name) -> {
+                              if (rc != KeeperException.Code.OK.intValue()) {
+                                  errors.add(path + ": " + KeeperException.Code.get(rc));
+                              } else if (name.compareTo(last[0]) <= 0) {
+                                  errors.add(name + " created after " + last[0]);
+                              } else {
+                                  last[0] = name;
+                              }
+                              done.countDown();
+                          }, null);
+            }
+        }
+        Assertions.assertTrue(done.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(Collections.emptyList(), errors);
+
+        // the learners answer once they applied the commits, the leader may
+        // still be applying them
+        DataTree leaderTree = cluster.peer(cluster.leaderId()).getActiveServer().getZKDatabase().getDataTree();
+        for (int id : learners) {
+            String parent = "/s" + id;
+            QuorumCluster.waitFor("the leader to apply the creates under " + parent,
+                () -> leaderTree.getNode(parent).getChildren().size() == count);
+        }
+        for (int id = 1; id <= cluster.size(); id++) {
+            DataTree tree = cluster.peer(id).getActiveServer().getZKDatabase().getDataTree();
+            QuorumCluster.waitFor("server " + id + " to catch up",
+                () -> tree.lastProcessedZxid == leaderTree.lastProcessedZxid);
+            Assertions.assertEquals(leaderTree.getTreeDigest(), tree.getTreeDigest());
+        }
+    }
+
+    @Test
+    public void testRequestsForwardedInBatches() throws Exception {
+        Learner.setMaxRequestBatchSize(16);
+        try (QuorumCluster cluster = startCluster()) {
+            writeFromLearners(cluster, 500);
+            List<Integer> sizes;
+            synchronized (batchSizes) {
+                sizes = new ArrayList<>(batchSizes);
+            }
+            Assertions.assertFalse(sizes.isEmpty(), "no REQUESTBATCH sent");
+            for (int size : sizes) {
+                Assertions.assertTrue(size > 1 && size <= 16, "batch of " + size);
+            }
+        }
+    }
+
+    @Test
+    public void testRequestBatchingDisabled() throws Exception {
+        Learner.setRequestBatchingEnabled(false);
+        try (QuorumCluster cluster = startCluster()) {
+            writeFromLearners(cluster, 200);
+            Assertions.assertEquals(Collections.emptyList(), batchSizes);
+            Assertions.assertTrue(singleRequests.get() >= 2 * 200);
+        }
+    }
+
+}
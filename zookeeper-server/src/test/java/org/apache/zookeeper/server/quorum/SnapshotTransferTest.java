@@ -0,0 +1,207 @@
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class SnapshotTransferTest {
+
+    @TempDir
+    File leaderDir;
+
+    @TempDir
+    File learnerDir;
+
+    private ZKDatabase leaderDb;
+
+    private FileTxnSnapLog learnerSnapLog;
+
+    private ZKDatabase learnerDb;
+
+    private final LearnerSyncThrottler throttler = new LearnerSyncThrottler(1, LearnerSyncThrottler.SyncType.SNAP);
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        FileTxnSnapLog leaderSnapLog = new FileTxnSnapLog(leaderDir, leaderDir);
+        leaderDb = new ZKDatabase(leaderSnapLog);
+        leaderDb.loadDataBase();
+        DataTree tree = leaderDb.getDataTree();
+        // random data, so that the snapshot spans several chunks compressed or not
+        Random random = new Random(42);
+        for (int i = 1; i <= 40; i++) {
+            byte[] data = new byte[64 * 1024];
+            random.nextBytes(data);
+            tree.createNode("/node" + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, i, i, i);
+        }
+        tree.lastProcessedZxid = 40;
+        leaderSnapLog.save(tree, leaderDb.getSessionWithTimeOuts(), true);
+
+        learnerSnapLog = new FileTxnSnapLog(learnerDir, learnerDir);
+        learnerDb = new ZKDatabase(learnerSnapLog);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        SnapshotTransfer.setCompressionEnabled(true);
+        leaderDb.close();
+        learnerDb.close();
+    }
+
+    private List<QuorumPacket> send(SnapshotTransfer transfer) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        transfer.send(BinaryOutputArchive.getArchive(bos), bos, throttler);
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bos.toByteArray()));
+        List<QuorumPacket> chunks = new ArrayList<>();
+        while (true) {
+            QuorumPacket qp = new QuorumPacket();
+            try {
+                ia.readRecord(qp, "packet");
+            } catch (EOFException e) {
+                return chunks;
+            }
+            chunks.add(qp);
+        }
+    }
+
+    /**
+     * A learner reading the given chunks, then failing as if the connection
+     * to the leader was dropped.
+     */
+    private static Learner learnerReading(List<QuorumPacket> chunks) throws IOException {
+        Learner learner = mock(Learner.class);
+        int[] next = new int[1];
+        doAnswer(invocation -> {
+            if (next[0] == chunks.size()) {
+                throw new EOFException("connection dropped");
+            }
+            QuorumPacket chunk = chunks.get(next[0]++);
+            QuorumPacket qp = invocation.getArgument(0);
+            qp.setType(chunk.getType());
+            qp.setZxid(chunk.getZxid());
+            qp.setData(chunk.getData());
+            return null;
+        }).when(learner).readPacket(any(QuorumPacket.class));
+        return learner;
+    }
+
+    private static QuorumPacket snapPacket(SnapshotTransfer transfer) {
+        return new QuorumPacket(Leader.SNAP, transfer.getZxid(), transfer.getHeader(), null);
+    }
+
+    private long[] resumeState() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SnapshotTransfer.writeResumeState(learnerSnapLog.getSnapDir(), new DataOutputStream(bos));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        return new long[] {dis.readLong(), dis.readLong()};
+    }
+
+    private void assertSameTree() {
+        DataTree expected = leaderDb.getDataTree();
+        DataTree actual = learnerDb.getDataTree();
+        Assertions.assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        Assertions.assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+        Assertions.assertArrayEquals(expected.getNode("/node40").getData(), actual.getNode("/node40").getData());
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        for (boolean compression : new boolean[] {true, false}) {
+            SnapshotTransfer.setCompressionEnabled(compression);
+            SnapshotTransfer transfer = SnapshotTransfer.find(leaderDb, 0, 0);
+            Assertions.assertNotNull(transfer);
+            Assertions.assertEquals(0, transfer.getOffset());
+            Assertions.assertEquals(40, transfer.getZxid());
+            List<QuorumPacket> chunks = send(transfer);
+            Assertions.assertTrue(chunks.size() > 1, "the snapshot fits in one chunk");
+
+            SnapshotTransfer.receive(learnerReading(chunks), snapPacket(transfer), learnerSnapLog.getSnapDir(), learnerDb);
+            assertSameTree();
+            SnapshotTransfer.deleteSpools(learnerSnapLog.getSnapDir(), null);
+            Assertions.assertArrayEquals(new long[] {0, 0}, resumeState());
+        }
+    }
+
+    @Test
+    public void testBadChecksum() throws Exception {
+        SnapshotTransfer.setCompressionEnabled(false);
+        SnapshotTransfer transfer = SnapshotTransfer.find(leaderDb, 0, 0);
+        List<QuorumPacket> chunks = send(transfer);
+        byte[] data = chunks.get(1).getData();
+        data[data.length - 1] ^= 1;
+
+        IOException e = Assertions.assertThrows(IOException.class, () -> SnapshotTransfer.receive(
+            learnerReading(chunks), snapPacket(transfer), learnerSnapLog.getSnapDir(), learnerDb));
+        Assertions.assertEquals("Corrupted snapshot chunk, bad checksum", e.getMessage());
+        // the first chunk was fine, it is not received again
+        Assertions.assertEquals(chunks.get(1).getZxid(), resumeState()[1]);
+    }
+
+    @Test
+    public void testResumeAfterDroppedConnection() throws Exception {
+        SnapshotTransfer transfer = SnapshotTransfer.find(leaderDb, 0, 0);
+        List<QuorumPacket> chunks = send(transfer);
+        Assertions.assertThrows(EOFException.class, () -> SnapshotTransfer.receive(
+            learnerReading(chunks.subList(0, 2)), snapPacket(transfer), learnerSnapLog.getSnapDir(), learnerDb));
+
+        long[] state = resumeState();
+        Assertions.assertNotEquals(0, state[0]);
+        Assertions.assertEquals(chunks.get(2).getZxid(), state[1]);
+
+        SnapshotTransfer resumed = SnapshotTransfer.find(leaderDb, state[0], state[1]);
+        Assertions.assertEquals(transfer.getFileName(), resumed.getFileName());
+        Assertions.assertEquals(state[1], resumed.getOffset());
+        List<QuorumPacket> rest = send(resumed);
+        Assertions.assertEquals(chunks.size() - 2, rest.size());
+        Assertions.assertEquals(state[1], rest.get(0).getZxid());
+
+        SnapshotTransfer.receive(learnerReading(rest), snapPacket(resumed), learnerSnapLog.getSnapDir(), learnerDb);
+        assertSameTree();
+    }
+
+    @Test
+    public void testStaleResumeState() throws Exception {
+        SnapshotTransfer transfer = SnapshotTransfer.find(leaderDb, 0, 0);
+        List<QuorumPacket> chunks = send(transfer);
+        Assertions.assertThrows(EOFException.class, () -> SnapshotTransfer.receive(
+            learnerReading(chunks.subList(0, 2)), snapPacket(transfer), learnerSnapLog.getSnapDir(), learnerDb));
+        long[] state = resumeState();
+
+        // the leader no longer has the snapshot of the spool, it sends a whole one
+        SnapshotTransfer fresh = SnapshotTransfer.find(leaderDb, state[0] + 1, state[1]);
+        Assertions.assertEquals(0, fresh.getOffset());
+        // nor a snapshot shorter than what the learner has
+        fresh = SnapshotTransfer.find(leaderDb, state[0], new File(leaderDir, "version-2/" + transfer.getFileName()).length() + 1);
+        Assertions.assertEquals(0, fresh.getOffset());
+
+        // a learner whose spool does not match the offset starts over
+        SnapshotTransfer mismatched = SnapshotTransfer.find(leaderDb, state[0], chunks.get(1).getZxid());
+        Assertions.assertEquals(chunks.get(1).getZxid(), mismatched.getOffset());
+        Assertions.assertThrows(IOException.class, () -> SnapshotTransfer.receive(
+            learnerReading(send(mismatched)), snapPacket(mismatched), learnerSnapLog.getSnapDir(), learnerDb));
+        Assertions.assertArrayEquals(new long[] {0, 0}, resumeState());
+
+        SnapshotTransfer.receive(learnerReading(send(fresh)), snapPacket(fresh), learnerSnapLog.getSnapDir(), learnerDb);
+        assertSameTree();
+    }
+
+}
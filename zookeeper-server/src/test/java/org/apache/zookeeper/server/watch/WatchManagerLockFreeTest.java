@@ -0,0 +1,220 @@
+package org.apache.zookeeper.server.watch;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WatchManagerLockFreeTest {
+
+    private WatchManagerLockFree manager;
+
+    @BeforeEach
+    public void setUp() {
+        manager = new WatchManagerLockFree();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private static class CountingWatcher implements Watcher {
+
+        final AtomicInteger events = new AtomicInteger();
+        final List<WatchedEvent> received = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void process(WatchedEvent event) {
+            events.incrementAndGet();
+            received.add(event);
+        }
+
+    }
+
+    @Test
+    public void testStandardWatchFiresOnce() {
+        CountingWatcher w1 = new CountingWatcher();
+        CountingWatcher w2 = new CountingWatcher();
+        Assertions.assertTrue(manager.addWatch("/a", w1));
+        Assertions.assertFalse(manager.addWatch("/a", w1), "already watching");
+        Assertions.assertTrue(manager.addWatch("/a", w2));
+        Assertions.assertTrue(manager.addWatch("/b", w1));
+        Assertions.assertEquals(3, manager.size());
+        Assertions.assertTrue(manager.containsWatcher("/a", w2));
+
+        WatcherOrBitSet fired = manager.triggerWatch("/a", EventType.NodeDataChanged);
+        Assertions.assertTrue(fired.contains(w1));
+        Assertions.assertTrue(fired.contains(w2));
+        Assertions.assertEquals(1, w1.events.get());
+        Assertions.assertEquals("/a", w1.received.get(0).getPath());
+        Assertions.assertEquals(EventType.NodeDataChanged, w1.received.get(0).getType());
+
+        Assertions.assertNull(manager.triggerWatch("/a", EventType.NodeDeleted));
+        Assertions.assertFalse(manager.containsWatcher("/a", w1));
+        Assertions.assertTrue(manager.containsWatcher("/b", w1));
+        Assertions.assertEquals(1, manager.size());
+
+        // the path can be watched again once triggered
+        Assertions.assertTrue(manager.addWatch("/a", w1));
+        manager.triggerWatch("/a", EventType.NodeDeleted);
+        Assertions.assertEquals(2, w1.events.get());
+    }
+
+    @Test
+    public void testRemoveWatcherAndSuppress() {
+        CountingWatcher w1 = new CountingWatcher();
+        CountingWatcher w2 = new CountingWatcher();
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        Assertions.assertTrue(manager.removeWatcher("/a", w2));
+        Assertions.assertFalse(manager.removeWatcher("/a", w2));
+        Assertions.assertFalse(manager.containsWatcher("/a", w2));
+
+        manager.addWatch("/a", w2);
+        manager.triggerWatch("/a", EventType.NodeDataChanged, new WatcherOrBitSet(Collections.singleton(w1)));
+        Assertions.assertEquals(0, w1.events.get(), "suppressed");
+        Assertions.assertEquals(1, w2.events.get());
+        Assertions.assertEquals(0, manager.size());
+        Assertions.assertEquals(0, manager.pathSize());
+    }
+
+    @Test
+    public void testPersistentAndRecursiveWatches() {
+        CountingWatcher persistent = new CountingWatcher();
+        CountingWatcher recursive = new CountingWatcher();
+        manager.addWatch("/a", persistent, WatcherMode.PERSISTENT);
+        manager.addWatch("/a", recursive, WatcherMode.PERSISTENT_RECURSIVE);
+        Assertions.assertEquals(1, manager.getRecursiveWatchQty());
+        Assertions.assertTrue(manager.containsWatcher("/a/b/c", recursive));
+        Assertions.assertFalse(manager.containsWatcher("/a/b", persistent));
+
+        manager.triggerWatch("/a", EventType.NodeDataChanged);
+        manager.triggerWatch("/a", EventType.NodeDataChanged);
+        Assertions.assertEquals(2, persistent.events.get(), "persistent watches stay in place");
+        Assertions.assertEquals(2, recursive.events.get());
+
+        manager.triggerWatch("/a/b/c", EventType.NodeCreated);
+        Assertions.assertEquals(2, persistent.events.get());
+        Assertions.assertEquals(3, recursive.events.get());
+        Assertions.assertEquals("/a/b/c", recursive.received.get(2).getPath());
+
+        manager.triggerWatch("/a", EventType.NodeChildrenChanged);
+        Assertions.assertEquals(3, persistent.events.get());
+        Assertions.assertEquals(3, recursive.events.get(), "recursive watches skip child events");
+
+        Assertions.assertTrue(manager.removeWatcher("/a", recursive));
+        Assertions.assertEquals(0, manager.getRecursiveWatchQty());
+        manager.triggerWatch("/a/b", EventType.NodeCreated);
+        Assertions.assertEquals(3, recursive.events.get());
+    }
+
+    @Test
+    public void testDeadWatchers() {
+        ServerCnxn live = mock(ServerCnxn.class);
+        ServerCnxn dead = mock(ServerCnxn.class);
+        for (int i = 0; i < 10; i++) {
+            manager.addWatch("/n" + i, live);
+            manager.addWatch("/n" + i, dead, i % 2 == 0 ? WatcherMode.STANDARD : WatcherMode.PERSISTENT);
+        }
+        Assertions.assertEquals(20, manager.size());
+
+        when(dead.isStale()).thenReturn(true);
+        Assertions.assertFalse(manager.addWatch("/other", dead), "a closed cnxn cannot add watches");
+        Assertions.assertFalse(manager.containsWatcher("/other", dead));
+
+        // the WatcherCleaner does this lazily once enough watchers died,
+        // ids are allocated from 0 so the dead watcher has id 1
+        manager.processDeadWatchers(Collections.singleton(1));
+        Assertions.assertEquals(10, manager.size());
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertFalse(manager.containsWatcher("/n" + i, dead));
+            Assertions.assertTrue(manager.containsWatcher("/n" + i, live));
+        }
+        Assertions.assertTrue(manager.getWatcher2PathesMap().containsKey(live));
+        Assertions.assertFalse(manager.getWatcher2PathesMap().containsKey(dead));
+    }
+
+    @Test
+    public void testConcurrentAddAndTrigger() throws Exception {
+        int paths = 50;
+        int adders = 8;
+        int triggers = 4;
+        int iterations = 20000;
+        AtomicLong added = new AtomicLong();
+        List<CountingWatcher> watchers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int t = 0; t < adders; t++) {
+            CountingWatcher watcher = new CountingWatcher();
+            watchers.add(watcher);
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        if (manager.addWatch("/n" + random.nextInt(paths), watcher)) {
+                            added.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (int t = 0; t < triggers; t++) {
+            int seed = 100 + t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        manager.triggerWatch("/n" + random.nextInt(paths), EventType.NodeDataChanged);
+                    }
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(0, failures.get());
+
+        // every watch which was added is either fired once, or still there
+        long fired = 0;
+        for (CountingWatcher watcher : watchers) {
+            fired += watcher.events.get();
+        }
+        Assertions.assertEquals(added.get(), fired + manager.size());
+
+        for (int i = 0; i < paths; i++) {
+            manager.triggerWatch("/n" + i, EventType.NodeDeleted);
+        }
+        fired = 0;
+        for (CountingWatcher watcher : watchers) {
+            fired += watcher.events.get();
+        }
+        Assertions.assertEquals(added.get(), fired);
+        Assertions.assertEquals(0, manager.size());
+        Assertions.assertEquals(0, manager.pathSize());
+    }
+
+}
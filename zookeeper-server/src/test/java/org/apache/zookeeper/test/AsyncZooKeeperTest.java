@@ -0,0 +1,230 @@
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncZooKeeper;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncZooKeeperTest {
+
+    @TempDir
+    File baseDir;
+
+    private QuorumCluster cluster;
+
+    private ZooKeeper zk;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        cluster = new QuorumCluster(baseDir, 3, 0);
+        cluster.startAll();
+        zk = cluster.connect(cluster.followerId());
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "completions"));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        cluster.close();
+    }
+
+    private static <T> T get(CompletionStage<T> stage) throws Exception {
+        return stage.toCompletableFuture().get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static KeeperException getException(CompletionStage<?> stage) throws Exception {
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> get(stage));
+        Assertions.assertTrue(e.getCause() instanceof KeeperException, e.getCause().toString());
+        return (KeeperException) e.getCause();
+    }
+
+    /**
+     * Holds the event thread of the client in a callback until the latch
+     * returned is counted down.
+     */
+    private CountDownLatch blockEventThread() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        zk.exists("/", false, (StatCallback) (rc, path, ctx, stat) -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, null);
+        Assertions.assertTrue(blocked.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return release;
+    }
+
+    @Test
+    public void testCompletions() throws Exception {
+        AsyncZooKeeper async = new AsyncZooKeeper(zk, executor);
+        Stat created = new Stat();
+        Assertions.assertEquals("/a", get(async.create("/a", new byte[] {1}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+            CreateMode.PERSISTENT, created)));
+        Stat stat = new Stat();
+        Assertions.assertArrayEquals(new byte[] {1}, get(async.getData("/a", false, stat)));
+        // the stats given are filled in
+        Assertions.assertEquals(zk.exists("/a", false), stat);
+        Assertions.assertEquals(stat, created);
+        Assertions.assertEquals(1, get(async.setData("/a", new byte[] {2}, 0)).getVersion());
+        Assertions.assertEquals(Arrays.asList("a", "zookeeper"), get(async.getChildren("/", false, null)));
+        Assertions.assertNull(get(async.exists("/none", false)));
+        Assertions.assertNull(get(async.delete("/a", 1)));
+
+        Assertions.assertEquals(KeeperException.Code.NONODE, getException(async.getData("/a", false, null)).code());
+        KeeperException e = getException(async.setData("/", new byte[0], 5));
+        Assertions.assertEquals(KeeperException.Code.BADVERSION, e.code());
+        Assertions.assertEquals("/", e.getPath());
+    }
+
+    @Test
+    public void testMulti() throws Exception {
+        AsyncZooKeeper async = new AsyncZooKeeper(zk, executor);
+        List<OpResult> results = get(async.multi(Arrays.asList(
+            Op.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+            Op.setData("/a", new byte[] {1}, 0))));
+        Assertions.assertEquals(2, results.size());
+        Assertions.assertTrue(results.get(1) instanceof OpResult.SetDataResult);
+
+        // a failed multi completes with the results of its operations
+        KeeperException e = getException(async.multi(Arrays.asList(
+            Op.create("/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+            Op.delete("/none", -1))));
+        Assertions.assertEquals(KeeperException.Code.NONODE, e.code());
+        results = e.getResults();
+        Assertions.assertNotNull(results);
+        Assertions.assertEquals(2, results.size());
+        Assertions.assertEquals(KeeperException.Code.OK.intValue(), ((OpResult.ErrorResult) results.get(0)).getErr());
+        Assertions.assertEquals(KeeperException.Code.NONODE.intValue(), ((OpResult.ErrorResult) results.get(1)).getErr());
+        Assertions.assertNull(zk.exists("/b", false));
+    }
+
+    @Test
+    public void testCompletedOffTheEventThread() throws Exception {
+        AsyncZooKeeper async = new AsyncZooKeeper(zk, executor);
+        CountDownLatch release = blockEventThread();
+        try {
+            // a slow callback does not hold up the stages
+            CompletableFuture<String> thread = async.exists("/", false).toCompletableFuture()
+                .thenApply(stat -> Thread.currentThread().getName());
+            Assertions.assertEquals("completions", get(thread));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testRejectedExecution() throws Exception {
+        AtomicInteger rejected = new AtomicInteger();
+        AsyncZooKeeper async = new AsyncZooKeeper(zk, task -> {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("shut down");
+        });
+        CountDownLatch release = blockEventThread();
+        CompletableFuture<String> thread;
+        try {
+            thread = async.exists("/", false).toCompletableFuture()
+                .thenApply(stat -> Thread.currentThread().getName());
+            QuorumCluster.waitFor("the reply", () -> rejected.get() > 0);
+            // completed by the event thread instead, once it is free
+            Assertions.assertFalse(thread.isDone());
+        } finally {
+            release.countDown();
+        }
+        Assertions.assertTrue(get(thread).endsWith("-EventThread"), thread.get());
+
+        // as well as the local failures
+        Assertions.assertEquals(KeeperException.Code.NOWATCHER,
+            getException(async.removeAllWatches("/", Watcher.WatcherType.Any, true)).code());
+        Assertions.assertEquals(2, rejected.get());
+    }
+
+    @Test
+    public void testWatchEventAfterStage() throws Exception {
+        zk.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        // an executor holding the stages until released
+        CountDownLatch gate = new CountDownLatch(1);
+        Executor gated = task -> new Thread(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            task.run();
+        }).start();
+        AsyncZooKeeper async = new AsyncZooKeeper(zk, gated);
+        Queue<String> order = new ConcurrentLinkedQueue<>();
+        LinkedBlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<>();
+        CompletableFuture<Void> stage = async.getData("/a", event -> {
+            order.add("event");
+            events.add(event);
+        }, null).toCompletableFuture().thenRun(() -> order.add("stage"));
+
+        // the change is notified to zk before the reply of its read
+        ZooKeeper writer = cluster.connect(cluster.followerId());
+        writer.setData("/a", new byte[] {1}, -1);
+        zk.exists("/a", false);
+        Assertions.assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+        Assertions.assertFalse(stage.isDone());
+
+        // and reaches the watcher once the stage of the read completed
+        gate.countDown();
+        get(stage);
+        Assertions.assertNotNull(events.poll(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(Arrays.asList("stage", "event"), Arrays.asList(order.toArray()));
+    }
+
+    @Test
+    public void testStageAfterWatchEvent() throws Exception {
+        zk.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        AsyncZooKeeper async = new AsyncZooKeeper(zk, executor);
+        Queue<String> order = new ConcurrentLinkedQueue<>();
+        zk.exists("/a", event -> order.add("event"));
+        ZooKeeper writer = cluster.connect(cluster.followerId());
+        CountDownLatch release = blockEventThread();
+        CompletableFuture<Void> stage;
+        try {
+            // an event queued behind a slow callback, then the reply of a read
+            writer.setData("/a", new byte[] {1}, -1);
+            zk.exists("/a", false);
+            stage = async.exists("/", false).toCompletableFuture().thenRun(() -> order.add("stage"));
+            zk.exists("/", false);
+            Assertions.assertFalse(stage.isDone());
+        } finally {
+            release.countDown();
+        }
+        get(stage);
+        Assertions.assertEquals(Arrays.asList("event", "stage"), Arrays.asList(order.toArray()));
+    }
+
+}
@@ -0,0 +1,152 @@
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.ChildrenPage;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ChildrenPageTest {
+
+    @TempDir
+    File baseDir;
+
+    private QuorumCluster cluster;
+
+    /** a client of a follower */
+    private ZooKeeper zk;
+
+    private int follower;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        cluster = new QuorumCluster(baseDir, 3, 0);
+        cluster.startAll();
+        follower = cluster.followerId();
+        zk = cluster.connect(follower);
+        zk.create("/q", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        cluster.close();
+    }
+
+    private List<String> createChildren(String prefix, int count) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = String.format("%s%03d", prefix, i);
+            zk.create("/q/" + name, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            names.add(name);
+        }
+        return names;
+    }
+
+    @Test
+    public void testPagesServedByFollower() throws Exception {
+        List<String> expected = createChildren("item-", 250);
+        // the follower has the children of its own session
+        List<String> children = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        ChildrenPage page;
+        do {
+            page = zk.getChildrenPage("/q", false, null, cursor, 40);
+            Assertions.assertTrue(page.getChildren().size() <= 40);
+            Assertions.assertEquals(250, page.getStat().getNumChildren());
+            children.addAll(page.getChildren());
+            cursor = page.getNextCursor();
+            pages++;
+        } while (!page.isLast());
+        Assertions.assertEquals(expected, children);
+        Assertions.assertEquals(7, pages);
+    }
+
+    @Test
+    public void testChangesBetweenPages() throws Exception {
+        createChildren("item-", 100);
+        ChildrenPage first = zk.getChildrenPage("/q", false, null, null, 50);
+        Assertions.assertEquals("item-049", first.getChildren().get(49));
+
+        // a child already read and one to be read are deleted, and children
+        // are added before and after the cursor
+        ZooKeeper leader = cluster.connect(cluster.leaderId());
+        leader.delete("/q/item-010", -1);
+        leader.delete("/q/item-060", -1);
+        leader.create("/q/item-010a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        leader.create("/q/item-060a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        CompletableFuture<Integer> synced = new CompletableFuture<>();
+        zk.sync("/q", (rc, path, ctx) -> synced.complete(rc), null);
+        Assertions.assertEquals(KeeperException.Code.OK.intValue(), synced.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        ChildrenPage second = zk.getChildrenPage("/q", false, null, first.getNextCursor(), 0);
+        Assertions.assertTrue(second.isLast());
+        Assertions.assertEquals("item-050", second.getChildren().get(0));
+        Assertions.assertTrue(second.getChildren().contains("item-060a"));
+        Assertions.assertFalse(second.getChildren().contains("item-060"));
+        Assertions.assertEquals(50, second.getChildren().size());
+        // the listing is not a snapshot
+        Assertions.assertNotEquals(first.getStat().getCversion(), second.getStat().getCversion());
+    }
+
+    @Test
+    public void testPrefixAndSequenceRange() throws Exception {
+        createChildren("item-", 10);
+        List<String> locks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String path = zk.create("/q/lock-", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+            locks.add(path.substring("/q/".length()));
+        }
+        long first = Long.parseLong(locks.get(0).substring("lock-".length()));
+
+        ChildrenPage page = zk.getChildrenPage("/q", false, "lock-", null, 0);
+        Assertions.assertEquals(locks, page.getChildren());
+        Assertions.assertTrue(page.isLast());
+
+        page = zk.getChildrenPage("/q", null, "lock-", first + 5, first + 7, null, 0);
+        Assertions.assertEquals(locks.subList(5, 8), page.getChildren());
+
+        page = zk.getChildrenPage("/q", false, "none-", null, 0);
+        Assertions.assertEquals(Collections.emptyList(), page.getChildren());
+        Assertions.assertTrue(page.isLast());
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        createChildren("item-", 10);
+        CompletableFuture<WatchedEvent> fired = new CompletableFuture<>();
+        Watcher watcher = fired::complete;
+        ChildrenPage page = zk.getChildrenPage("/q", watcher, null, -1, -1, null, 4);
+        Assertions.assertFalse(page.isLast());
+        // the next pages do not need one
+        zk.getChildrenPage("/q", null, null, -1, -1, page.getNextCursor(), 4);
+        Assertions.assertFalse(fired.isDone());
+
+        // fired by a change made through the leader
+        cluster.connect(cluster.leaderId()).create("/q/new", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        WatchedEvent event = fired.get(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Assertions.assertEquals(Watcher.Event.EventType.NodeChildrenChanged, event.getType());
+        Assertions.assertEquals("/q", event.getPath());
+    }
+
+    @Test
+    public void testNoNode() throws Exception {
+        Assertions.assertThrows(KeeperException.NoNodeException.class,
+            () -> zk.getChildrenPage("/missing", false, null, null, 0));
+        Assertions.assertEquals(Arrays.asList("q", "zookeeper"),
+            zk.getChildrenPage("/", false, null, null, 0).getChildren());
+    }
+
+}
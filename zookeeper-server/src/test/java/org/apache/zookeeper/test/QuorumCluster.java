@@ -0,0 +1,313 @@
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.apache.zookeeper.server.quorum.QuorumPeerMain;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import javax.security.sasl.SaslException;
+
+/**
+ * Runs an ensemble of QuorumPeers in this JVM on local ports, for tests.
+ * The servers are numbered from 1, the voters first and then the observers.
+ */
+public class QuorumCluster implements AutoCloseable {
+
+    public static final int TICK_TIME = 500;
+
+    public static final long TIMEOUT_MS = 60000;
+
+    private final File baseDir;
+    private final int voters;
+    private final int observers;
+    private final int[] clientPorts;
+    private final int[] quorumPorts;
+    private final int[] electionPorts;
+    private final int[] observerMasterPorts;
+    private final Map<Integer, Properties> extraConfig = new HashMap<>();
+    private final Map<Integer, PeerFactory> peerFactories = new HashMap<>();
+    private final Map<Integer, Server> servers = new HashMap<>();
+    private final Set<ZooKeeper> clients = new HashSet<>();
+    private boolean distinctAddresses;
+
+    public QuorumCluster(File baseDir, int voters, int observers) throws IOException {
+        System.setProperty("zookeeper.admin.enableServer", "false");
+        this.baseDir = baseDir;
+        this.voters = voters;
+        this.observers = observers;
+        int count = voters + observers;
+        clientPorts = freePorts(count);
+        quorumPorts = freePorts(count);
+        electionPorts = freePorts(count);
+        observerMasterPorts = freePorts(count);
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        int[] ports = new int[count];
+        ServerSocket[] sockets = new ServerSocket[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    public int size() {
+        return voters + observers;
+    }
+
+    public boolean isObserver(int id) {
+        return id > voters;
+    }
+
+    /**
+     * Give each server its own loopback address, for the ports every server
+     * listens on, like the observerMasterPort.
+     */
+    public QuorumCluster distinctAddresses() {
+        distinctAddresses = true;
+        return this;
+    }
+
+    public String address(int id) {
+        return distinctAddresses ? "127.0.0." + id : "127.0.0.1";
+    }
+
+    public int clientPort(int id) {
+        return clientPorts[id - 1];
+    }
+
+    public int observerMasterPort(int id) {
+        return observerMasterPorts[id - 1];
+    }
+
+    public File dataDir(int id) {
+        return new File(baseDir, "server" + id);
+    }
+
+    /**
+     * Add a configuration entry of a server, applied when it is next started.
+     */
+    public QuorumCluster config(int id, String key, String value) {
+        extraConfig.computeIfAbsent(id, k -> new Properties()).setProperty(key, value);
+        return this;
+    }
+
+    /**
+     * Use the given factory to create the QuorumPeer of a server, e.g. to
+     * inject faults.
+     */
+    public QuorumCluster peerFactory(int id, PeerFactory factory) {
+        peerFactories.put(id, factory);
+        return this;
+    }
+
+    private Properties properties(int id) throws IOException {
+        File dataDir = dataDir(id);
+        if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+            throw new IOException("Unable to create " + dataDir);
+        }
+        try (Writer writer = new FileWriter(new File(dataDir, "myid"))) {
+            writer.write(Integer.toString(id));
+        }
+        Properties props = new Properties();
+        props.setProperty("tickTime", Integer.toString(TICK_TIME));
+        props.setProperty("initLimit", "10");
+        props.setProperty("syncLimit", "5");
+        props.setProperty("dataDir", dataDir.getAbsolutePath());
+        props.setProperty("clientPort", Integer.toString(clientPort(id)));
+        props.setProperty("clientPortAddress", address(id));
+        for (int i = 1; i <= size(); i++) {
+            props.setProperty("server." + i, address(i) + ":" + quorumPorts[i - 1] + ":" + electionPorts[i - 1]
+                                             + (isObserver(i) ? ":observer" : ""));
+        }
+        if (isObserver(id)) {
+            props.setProperty("peerType", "observer");
+        }
+        if (extraConfig.containsKey(id)) {
+            props.putAll(extraConfig.get(id));
+        }
+        return props;
+    }
+
+    public void startAll() throws Exception {
+        for (int id = 1; id <= size(); id++) {
+            start(id);
+        }
+        waitForServing();
+    }
+
+    public void start(int id) throws Exception {
+        Assertions.assertFalse(servers.containsKey(id), "server " + id + " is running");
+        QuorumPeerConfig config = new QuorumPeerConfig();
+        config.parseProperties(properties(id));
+        Server server = new Server(peerFactories.get(id));
+        server.thread = new Thread(() -> {
+            try {
+                server.runFromConfig(config);
+            } catch (Exception e) {
+                server.failure = e;
+            }
+        }, "QuorumCluster-" + id);
+        server.thread.setDaemon(true);
+        server.thread.start();
+        servers.put(id, server);
+    }
+
+    /**
+     * Shut a server down, its data stays in place for a restart.
+     */
+    public void stop(int id) throws InterruptedException {
+        Server server = servers.remove(id);
+        if (server == null) {
+            return;
+        }
+        QuorumPeer peer = server.awaitPeer();
+        peer.shutdown();
+        server.thread.join(TIMEOUT_MS);
+        Assertions.assertFalse(server.thread.isAlive(), "server " + id + " did not stop");
+    }
+
+    public QuorumPeer peer(int id) throws InterruptedException {
+        Server server = servers.get(id);
+        Assertions.assertNotNull(server, "server " + id + " is not running");
+        return server.awaitPeer();
+    }
+
+    public boolean isServing(int id) {
+        Server server = servers.get(id);
+        if (server == null || server.peer == null) {
+            return false;
+        }
+        ZooKeeperServer zks = server.peer.getActiveServer();
+        return zks != null && zks.isRunning();
+    }
+
+    public void waitForServing() throws InterruptedException {
+        for (int id : servers.keySet()) {
+            waitForServing(id);
+        }
+    }
+
+    public void waitForServing(int id) throws InterruptedException {
+        waitFor("server " + id + " to serve", () -> isServing(id));
+    }
+
+    public int leaderId() throws InterruptedException {
+        for (int id : servers.keySet()) {
+            if (peer(id).leader != null && isServing(id)) {
+                return id;
+            }
+        }
+        Assertions.fail("no leader");
+        return -1;
+    }
+
+    /**
+     * @return some running voter which is not the leader
+     */
+    public int followerId() throws InterruptedException {
+        for (int id : servers.keySet()) {
+            if (peer(id).follower != null && isServing(id)) {
+                return id;
+            }
+        }
+        Assertions.fail("no follower");
+        return -1;
+    }
+
+    /**
+     * @return a client connected to the given server only
+     */
+    public ZooKeeper connect(int id) throws Exception {
+        return connect(id, event -> { });
+    }
+
+    public ZooKeeper connect(int id, Watcher watcher) throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper(address(id) + ":" + clientPort(id), 30000, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+            watcher.process(event);
+        });
+        clients.add(zk);
+        Assertions.assertTrue(connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS), "connecting to server " + id);
+        return zk;
+    }
+
+    public static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for " + what);
+            Thread.sleep(50);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+        clients.clear();
+        for (int id : new HashSet<>(servers.keySet())) {
+            stop(id);
+        }
+    }
+
+    public interface PeerFactory {
+
+        QuorumPeer create() throws SaslException;
+
+    }
+
+    private static class Server extends QuorumPeerMain {
+
+        private final PeerFactory factory;
+        volatile QuorumPeer peer;
+        Thread thread;
+        volatile Exception failure;
+
+        Server(PeerFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        protected QuorumPeer getQuorumPeer() throws SaslException {
+            peer = factory != null ? factory.create() : new QuorumPeer();
+            return peer;
+        }
+
+        QuorumPeer awaitPeer() throws InterruptedException {
+            waitFor("the peer to be created", () -> peer != null || failure != null);
+            Assertions.assertNull(failure);
+            return peer;
+        }
+
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.SubtreeCache;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SubtreeCacheTest {
+
+    @TempDir
+    File baseDir;
+
+    private QuorumCluster cluster;
+
+    /** the server of the cache */
+    private int follower;
+
+    /** a client of the server of the cache */
+    private ZooKeeper zk;
+
+    /** the number of disconnections of zk */
+    private final AtomicInteger disconnections = new AtomicInteger();
+
+    /** a client of the leader, making the changes */
+    private ZooKeeper writer;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        cluster = new QuorumCluster(baseDir, 3, 0);
+        cluster.startAll();
+        follower = cluster.followerId();
+        zk = cluster.connect(follower, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.Disconnected) {
+                disconnections.incrementAndGet();
+            }
+        });
+        writer = cluster.connect(cluster.leaderId());
+        for (String path : Arrays.asList("/c", "/c/a", "/c/a/x", "/c/b", "/c/d")) {
+            writer.create(path, path.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        cluster.close();
+    }
+
+    /**
+     * Waits for the cache to have the node of the path as on the server.
+     */
+    private void waitForCached(SubtreeCache cache, String path) throws InterruptedException {
+        QuorumCluster.waitFor("the cache to have " + path, () -> {
+            try {
+                if (!cache.isCurrent()) {
+                    return false;
+                }
+                Stat stat = writer.exists(path, false);
+                if (stat == null) {
+                    return cache.exists(path) == null;
+                }
+                return stat.equals(cache.exists(path))
+                    && Arrays.equals(writer.getData(path, false, null), cache.getData(path, null));
+            } catch (Exception e) {
+                return false;
+            }
+        });
+    }
+
+    private static List<String> sorted(List<String> children) {
+        children.sort(null);
+        return children;
+    }
+
+    @Test
+    public void testUpdates() throws Exception {
+        SubtreeCache cache = new SubtreeCache(zk, "/c", 0);
+        cache.start();
+        Assertions.assertTrue(cache.isCurrent());
+        Assertions.assertArrayEquals("/c/a/x".getBytes(), cache.getData("/c/a/x", null));
+        Assertions.assertEquals(Arrays.asList("a", "b", "d"), sorted(cache.getChildren("/c", null)));
+        Assertions.assertEquals(writer.exists("/c", false), cache.exists("/c"));
+        Assertions.assertNull(cache.exists("/c/none"));
+
+        writer.setData("/c/a", new byte[] {1}, -1);
+        writer.create("/c/e", new byte[] {2}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        writer.delete("/c/a/x", -1);
+        waitForCached(cache, "/c/a");
+        waitForCached(cache, "/c/e");
+        waitForCached(cache, "/c/a/x");
+        // the stats of the parents follow their children
+        waitForCached(cache, "/c");
+        Stat stat = new Stat();
+        Assertions.assertEquals(Arrays.asList("a", "b", "d", "e"), sorted(cache.getChildren("/c", stat)));
+        Assertions.assertEquals(4, stat.getNumChildren());
+        Assertions.assertEquals(Arrays.asList(), cache.getChildren("/c/a", stat));
+        Assertions.assertEquals(writer.exists("/c/a", false), stat);
+
+        // the paths out of the subtree are read from the server
+        Assertions.assertEquals(writer.exists("/zookeeper", false), cache.exists("/zookeeper"));
+        cache.close();
+        Assertions.assertFalse(cache.isCurrent());
+    }
+
+    @Test
+    public void testResyncAfterRestart() throws Exception {
+        SubtreeCache cache = new SubtreeCache(zk, "/c", QuorumCluster.TIMEOUT_MS);
+        cache.start();
+        long lastZxid = cache.getLastZxid();
+
+        // changes the watch does not notify
+        cluster.stop(follower);
+        QuorumCluster.waitFor("the client to disconnect", () -> disconnections.get() > 0);
+        writer.setData("/c/a", new byte[] {1}, -1);
+        writer.delete("/c/b", -1);
+        writer.create("/c/a/y", new byte[] {2}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        // the cache keeps serving its nodes for the staleness
+        Assertions.assertTrue(cache.isCurrent());
+        Assertions.assertArrayEquals("/c/a".getBytes(), cache.getData("/c/a", null));
+        Assertions.assertNotNull(cache.exists("/c/b"));
+
+        // and reads the subtree again since its last zxid once reconnected
+        cluster.start(follower);
+        cluster.waitForServing(follower);
+        for (String path : Arrays.asList("/c", "/c/a", "/c/a/x", "/c/a/y", "/c/b", "/c/d")) {
+            waitForCached(cache, path);
+        }
+        Assertions.assertTrue(cache.getLastZxid() > lastZxid);
+        Assertions.assertEquals(Arrays.asList("a", "d"), sorted(cache.getChildren("/c", null)));
+        Assertions.assertEquals(Arrays.asList("x", "y"), sorted(cache.getChildren("/c/a", null)));
+        // the nodes which did not change keep their data
+        Assertions.assertArrayEquals("/c/d".getBytes(), cache.getData("/c/d", null));
+        Assertions.assertArrayEquals("/c/a/x".getBytes(), cache.getData("/c/a/x", null));
+
+        // the watch was set again
+        writer.setData("/c/d", new byte[] {3}, -1);
+        waitForCached(cache, "/c/d");
+        Assertions.assertArrayEquals(new byte[] {3}, cache.getData("/c/d", null));
+    }
+
+    @Test
+    public void testStaleness() throws Exception {
+        SubtreeCache stale = new SubtreeCache(zk, "/c", QuorumCluster.TIMEOUT_MS);
+        stale.start();
+        SubtreeCache current = new SubtreeCache(zk, "/c", 0);
+        current.start();
+
+        cluster.stop(follower);
+        QuorumCluster.waitFor("the cache to be out of date", () -> !current.isCurrent());
+        Assertions.assertTrue(stale.isCurrent());
+        Assertions.assertArrayEquals("/c/b".getBytes(), stale.getData("/c/b", null));
+        // the reads are sent to the server
+        Assertions.assertThrows(KeeperException.ConnectionLossException.class, () -> current.getData("/c/b", null));
+
+        // the root deleted while disconnected
+        writer.delete("/c/b", -1);
+        writer.delete("/c/a/x", -1);
+        writer.delete("/c/a", -1);
+        writer.delete("/c/d", -1);
+        writer.delete("/c", -1);
+        cluster.start(follower);
+        cluster.waitForServing(follower);
+        QuorumCluster.waitFor("the caches to be up to date", () -> current.isCurrent() && stale.isCurrent());
+        for (SubtreeCache cache : Arrays.asList(stale, current)) {
+            QuorumCluster.waitFor("the subtree to be empty", () -> {
+                try {
+                    return cache.exists("/c") == null && cache.exists("/c/b") == null;
+                } catch (Exception e) {
+                    return false;
+                }
+            });
+        }
+    }
+
+}
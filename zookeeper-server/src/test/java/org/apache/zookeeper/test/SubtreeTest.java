@@ -0,0 +1,251 @@
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.SubtreeChunk;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKUtil;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class SubtreeTest {
+
+    /** chunks of a few nodes of DATA */
+    private static final int CHUNK_BYTES = 600;
+
+    private static final byte[] DATA = new byte[100];
+
+    @TempDir
+    File baseDir;
+
+    private QuorumCluster cluster;
+
+    /** a client of a follower */
+    private ZooKeeper zk;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        cluster = new QuorumCluster(baseDir, 3, 0);
+        cluster.startAll();
+        zk = cluster.connect(cluster.followerId());
+        // /t, its children a to e and their children 0 to 2
+        create(zk, "/t");
+        for (String child : Arrays.asList("a", "b", "c", "d", "e")) {
+            create(zk, "/t/" + child);
+            for (int i = 0; i < 3; i++) {
+                create(zk, "/t/" + child + "/" + i);
+            }
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        cluster.close();
+    }
+
+    private static void create(ZooKeeper zk, String path) throws Exception {
+        zk.create(path, DATA, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    private static List<String> paths(List<SubtreeChunk.Node> nodes) {
+        return nodes.stream().map(SubtreeChunk.Node::getPath).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the paths of the subtree, in pre-order with the children
+     * sorted by name
+     */
+    private static List<String> preOrder(ZooKeeper zk, String path, int depth) throws Exception {
+        List<String> paths = new ArrayList<>();
+        paths.add(path);
+        if (depth != 0) {
+            List<String> children = zk.getChildren(path, false);
+            children.sort(null);
+            for (String child : children) {
+                paths.addAll(preOrder(zk, path.equals("/") ? "/" + child : path + "/" + child, depth - 1));
+            }
+        }
+        return paths;
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        List<String> expected = preOrder(zk, "/t", -1);
+        Assertions.assertEquals(21, expected.size());
+
+        // read in one chunk
+        SubtreeChunk chunk = zk.getSubtree("/t", -1, 0, null, null);
+        Assertions.assertTrue(chunk.isLast());
+        Assertions.assertEquals(expected, paths(chunk.getNodes()));
+        SubtreeChunk.Node node = chunk.getNodes().get(1);
+        Assertions.assertArrayEquals(DATA, node.getData());
+        Assertions.assertEquals(zk.exists(node.getPath(), false), node.getStat());
+
+        // and by chunks, each ending at the cursor
+        List<String> paths = new ArrayList<>();
+        String cursor = null;
+        int chunks = 0;
+        do {
+            chunk = zk.getSubtree("/t", -1, CHUNK_BYTES, cursor, null);
+            paths.addAll(paths(chunk.getNodes()));
+            cursor = chunk.getNextCursor();
+            if (!chunk.isLast()) {
+                Assertions.assertEquals(paths.get(paths.size() - 1), cursor);
+            }
+            chunks++;
+        } while (!chunk.isLast());
+        Assertions.assertEquals(expected, paths);
+        Assertions.assertTrue(chunks > 3, chunks + " chunks");
+        Assertions.assertEquals(expected, paths(zk.getSubtree("/t", -1, CHUNK_BYTES)));
+
+        Assertions.assertThrows(KeeperException.NoNodeException.class, () -> zk.getSubtree("/missing", -1, 0));
+        Assertions.assertThrows(KeeperException.BadArgumentsException.class,
+            () -> zk.getSubtree("/t/a", -1, 0, "/t/b/0", null));
+    }
+
+    @Test
+    public void testResumeAcrossDeletes() throws Exception {
+        List<String> before = preOrder(zk, "/t", -1);
+        // a cursor in the middle of /t/b
+        SubtreeChunk chunk;
+        String cursor = null;
+        do {
+            chunk = zk.getSubtree("/t", -1, CHUNK_BYTES, cursor, null);
+            cursor = chunk.getNextCursor();
+        } while (!chunk.isLast() && !cursor.startsWith("/t/b/"));
+        Assertions.assertTrue(cursor.startsWith("/t/b/"), cursor);
+
+        // the node of the cursor is deleted with its parent, and nodes are
+        // created before and after it
+        ZooKeeper other = cluster.connect(cluster.leaderId());
+        ZKUtil.deleteRecursive(other, "/t/b");
+        create(other, "/t/a/9");
+        create(other, "/t/b0");
+        create(other, "/t/f");
+        zk.sync("/t", null, null);
+
+        List<String> expected = new ArrayList<>(before.subList(before.indexOf(cursor) + 1, before.size()));
+        expected.removeIf(path -> path.startsWith("/t/b/"));
+        expected.add(expected.indexOf("/t/c"), "/t/b0");
+        expected.add("/t/f");
+        List<String> paths = new ArrayList<>();
+        do {
+            chunk = zk.getSubtree("/t", -1, CHUNK_BYTES, cursor, null);
+            paths.addAll(paths(chunk.getNodes()));
+            cursor = chunk.getNextCursor();
+        } while (!chunk.isLast());
+        Assertions.assertEquals(expected, paths);
+    }
+
+    @Test
+    public void testDepth() throws Exception {
+        Assertions.assertEquals(Arrays.asList("/t"), paths(zk.getSubtree("/t", 0, 0)));
+        Assertions.assertEquals(Arrays.asList("/t", "/t/a", "/t/b", "/t/c", "/t/d", "/t/e"), paths(zk.getSubtree("/t", 1, 0)));
+        // also when resuming from a cursor
+        Assertions.assertEquals(preOrder(zk, "/t", 1), paths(zk.getSubtree("/t", 1, 250)));
+        Assertions.assertEquals(preOrder(zk, "/t", 2), paths(zk.getSubtree("/t", 2, CHUNK_BYTES)));
+        create(zk, "/t/a/0/x");
+        Assertions.assertEquals(preOrder(zk, "/t", 2), paths(zk.getSubtree("/t", 2, CHUNK_BYTES)));
+        Assertions.assertEquals(preOrder(zk, "/t", -1), paths(zk.getSubtree("/t", -1, CHUNK_BYTES)));
+    }
+
+    @Test
+    public void testNodesNotReadableSkipped() throws Exception {
+        ZooKeeper owner = cluster.connect(cluster.leaderId());
+        owner.addAuthInfo("digest", "owner:secret".getBytes(StandardCharsets.UTF_8));
+        owner.create("/t/c/secret", DATA, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+        // readable, but under a node that is not
+        create(owner, "/t/c/secret/open");
+        zk.sync("/t", null, null);
+
+        List<String> all = preOrder(owner, "/t", -1);
+        List<String> expected = new ArrayList<>(all);
+        expected.removeIf(path -> path.startsWith("/t/c/secret"));
+        Assertions.assertEquals(expected, paths(zk.getSubtree("/t", -1, 0)));
+        Assertions.assertEquals(expected, paths(zk.getSubtree("/t", -1, CHUNK_BYTES)));
+        Assertions.assertEquals(all, paths(owner.getSubtree("/t", -1, CHUNK_BYTES)));
+
+        // the root of the subtree itself
+        Assertions.assertThrows(KeeperException.NoAuthException.class, () -> zk.getSubtree("/t/c/secret", -1, 0));
+    }
+
+    @Test
+    public void testChroot() throws Exception {
+        int id = cluster.followerId();
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper chrooted = new ZooKeeper(cluster.address(id) + ":" + cluster.clientPort(id) + "/t", 30000, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        });
+        try {
+            Assertions.assertTrue(connected.await(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            List<String> expected = preOrder(zk, "/t", -1).stream()
+                .map(path -> path.equals("/t") ? "/" : path.substring("/t".length()))
+                .collect(Collectors.toList());
+
+            // the cursors are client paths too
+            List<String> paths = new ArrayList<>();
+            SubtreeChunk chunk;
+            String cursor = null;
+            do {
+                chunk = chrooted.getSubtree("/", -1, CHUNK_BYTES, cursor, null);
+                paths.addAll(paths(chunk.getNodes()));
+                cursor = chunk.getNextCursor();
+                Assertions.assertFalse(cursor.startsWith("/t/"), cursor);
+            } while (!chunk.isLast());
+            Assertions.assertEquals(expected, paths);
+            Assertions.assertEquals(Arrays.asList("/c", "/c/0", "/c/1", "/c/2"), paths(chrooted.getSubtree("/c", -1, 250)));
+        } finally {
+            chrooted.close();
+        }
+    }
+
+    @Test
+    public void testWatchSetWithFirstChunk() throws Exception {
+        LinkedBlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<>();
+        Watcher watcher = events::add;
+        SubtreeChunk chunk = zk.getSubtree("/t", -1, CHUNK_BYTES, null, watcher);
+        Assertions.assertFalse(chunk.isLast());
+        String read = chunk.getNodes().get(1).getPath();
+
+        // a change to a node already read, before the next chunk
+        ZooKeeper other = cluster.connect(cluster.leaderId());
+        other.setData(read, new byte[] {1}, -1);
+        WatchedEvent event = events.poll(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Assertions.assertNotNull(event);
+        Assertions.assertEquals(Watcher.Event.EventType.NodeDataChanged, event.getType());
+        Assertions.assertEquals(read, event.getPath());
+
+        // the watch is persistent and recursive, so without the children
+        // changes
+        do {
+            chunk = zk.getSubtree("/t", -1, CHUNK_BYTES, chunk.getNextCursor(), null);
+        } while (!chunk.isLast());
+        other.create("/t/e/2/x", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        other.delete("/t/e/2/x", -1);
+        List<String> seen = new ArrayList<>();
+        while (seen.size() < 2) {
+            event = events.poll(QuorumCluster.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Assertions.assertNotNull(event, "events so far " + seen);
+            seen.add(event.getType() + " " + event.getPath());
+        }
+        Assertions.assertEquals(Arrays.asList(
+            "NodeCreated /t/e/2/x",
+            "NodeDeleted /t/e/2/x"), seen);
+    }
+
+}